@@ -82,6 +82,70 @@ public class TurnStackProperties extends StackProperties
 
     public static final int DEFAULT_MAX_CHANNELBINDS_PER_ALLOCATION = 10;
 
+    public static final String RELAY_THREADS 
+	= "org.jitsi.turnserver.relay_threads";
+
+    public static final int DEFAULT_RELAY_THREADS
+	= Runtime.getRuntime().availableProcessors();
+
+    public static final String ZERO_COPY_FORWARDING 
+	= "org.jitsi.turnserver.zero_copy_forwarding";
+
+    public static final boolean DEFAULT_ZERO_COPY_FORWARDING = true;
+
+    public static final String RELAY_PORT_QUARANTINE 
+	= "org.jitsi.turnserver.relay_port_quarantine";
+
+    public static final int DEFAULT_RELAY_PORT_QUARANTINE = 10 * 1000;
+
+    public static final String RELAY_SOCKET_POOL_SIZE 
+	= "org.jitsi.turnserver.relay_socket_pool_size";
+
+    public static final int DEFAULT_RELAY_SOCKET_POOL_SIZE = 16;
+
+    public static final String RELAY_ADDRESSES 
+	= "org.jitsi.turnserver.relay_addresses";
+
+    public static final String RELAY_ADDRESS_SELECTION 
+	= "org.jitsi.turnserver.relay_address_selection";
+
+    public static final String CONTROL_THREADS 
+	= "org.jitsi.turnserver.control_threads";
+
+    public static final int DEFAULT_CONTROL_THREADS = 2;
+
+    public static final String CONTROL_QUEUE_SIZE 
+	= "org.jitsi.turnserver.control_queue_size";
+
+    public static final int DEFAULT_CONTROL_QUEUE_SIZE = 1024;
+
+    public static final String TCP_CONNECT_TIMEOUT 
+	= "org.jitsi.turnserver.tcp_connect_timeout";
+
+    public static final int DEFAULT_TCP_CONNECT_TIMEOUT = 10000;
+
+    public static final int MAX_TCP_CONNECT_TIMEOUT = 12000;
+
+    public static final String TCP_SPLICE_BUFFER_SIZE 
+	= "org.jitsi.turnserver.tcp_splice_buffer_size";
+
+    public static final int DEFAULT_TCP_SPLICE_BUFFER_SIZE = 65536;
+
+    public static final String TCP_NODELAY 
+	= "org.jitsi.turnserver.tcp_nodelay";
+
+    public static final boolean DEFAULT_TCP_NODELAY = true;
+
+    public static final String TCP_SOCKET_BUFFER_SIZE 
+	= "org.jitsi.turnserver.tcp_socket_buffer_size";
+
+    public static final int DEFAULT_TCP_SOCKET_BUFFER_SIZE = 0;
+
+    public static final String CONNECTION_ID_LIFETIME 
+	= "org.jitsi.turnserver.connection_id_lifetime";
+
+    public static final int DEFAULT_CONNECTION_ID_LIFETIME = 30 * 1000;
+
     public static final String REALM 
 	= "org.jitsi.turnserver.realm";
    
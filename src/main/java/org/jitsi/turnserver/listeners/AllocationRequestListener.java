@@ -174,6 +174,7 @@ public class AllocationRequestListener
             }
             // do other checks here
             
+            Allocation allocation = null;
             if (errorCode == null)
             {
                 if(evenPortAttribute==null)
@@ -181,21 +182,72 @@ public class AllocationRequestListener
                     evenPortAttribute =
                         AttributeFactory.createEvenPortAttribute(false);
                 }
-                TransportAddress relayAddress = turnStack.getNewRelayAddress(
-                    evenPortAttribute.isRFlag(), serverAddress.getTransport());
+                ReservationTable.Reservation reservation = null;
+                TransportAddress relayAddress = null;
+                if (reservationTokenAttribute != null)
+                {
+                    reservation = turnStack.claimReservation(
+                        reservationTokenAttribute.getReservationToken());
+                    if (reservation != null)
+                        relayAddress = reservation.getRelayAddress();
+                }
+                else
+                {
+                    relayAddress = turnStack.getNewRelayAddress(
+                        serverAddress.isIPv6(), evenPort != null,
+                        evenPortAttribute.isRFlag(),
+                        serverAddress.getTransport());
+                }
 /*                logger.finest("Added a new Relay Address "+relayAddress);
                 System.out.println("Added a new Relay Address "+relayAddress
                 	+" for client "+evt.getRemoteAddress());
 */              
-                Allocation allocation = null;
-                synchronized(this)
+                if (relayAddress == null)
+                {
+                    // no relay port left or unknown reservation token
+                    errorCode = ErrorCodeAttribute.INSUFFICIENT_CAPACITY;
+                    logger.finest("No relay address for " + fiveTuple);
+                }
+                else
                 {
                     allocation =
                         new Allocation(relayAddress, fiveTuple,
                             lifetimeAttribute.getLifetime());
-                    this.turnStack.addNewServerAllocation(allocation);
-//                    System.out.println("Added a new allocation.");
+                    if (!this.turnStack.addNewServerAllocation(
+                        allocation, reservation))
+                    {
+                        // lost a race for the five tuple or the last
+                        // allocation, or the relay socket failed
+                        if (!this.turnStack.canHaveMoreAllocations())
+                        {
+                            errorCode =
+                                ErrorCodeAttribute.ALLOCATION_QUOTA_REACHED;
+                        }
+                        else if (this.turnStack.getServerAllocation(
+                            fiveTuple) != null)
+                        {
+                            errorCode = ErrorCodeAttribute.ALLOCATION_MISMATCH;
+                        }
+                        else
+                        {
+                            errorCode =
+                                ErrorCodeAttribute.INSUFFICIENT_CAPACITY;
+                        }
+                        if (reservation != null)
+                            this.turnStack.releaseReservation(reservation);
+                        else
+                            this.turnStack.releaseRelayAddress(relayAddress);
+                        if (evenPortAttribute.isRFlag())
+                        {
+                            this.turnStack.releaseRelayAddress(
+                                nextAddress(relayAddress));
+                        }
+                    }
                 }
+            }
+
+            if (errorCode == null)
+            {
                 logger.finest("Added a new Allocation with relay address :"
 				+ allocation.getRelayAddress()+" for client "
 				+evt.getRemoteAddress());
@@ -223,37 +275,28 @@ public class AllocationRequestListener
                         evt.getTransactionID().getBytes());
                response.putAttribute(clientXorAddress);
                 
-                if(evenPort!=null)
+                if(evenPort!=null && evenPort.isRFlag())
                 {
-                    // TODO : logic for process and creating Reservation Token.
-                    byte[] token = {7,7,7,7};
-                    ReservationTokenAttribute reservationToken
-                        = AttributeFactory.createReservationTokenAttribute(
-                            token);
-                    response.putAttribute(reservationToken);
-                    if(evenPort.isRFlag())
+                    // the next port has been allocated with the relay port
+                    TransportAddress nextAddress =
+                        nextAddress(allocation.getRelayAddress());
+                    byte[] token =
+                        this.turnStack.reserveRelayAddress(nextAddress);
+                    if (token != null)
                     {
-                        TransportAddress relayAddess
-                            = allocation.getRelayAddress();
-                        TransportAddress nextAddress 
-                            = new TransportAddress(
-                                relayAddress.getAddress(),
-                                relayAddress.getPort()+1,
-                                relayAddress.getTransport());
-                        boolean isReserved
-                            = this.turnStack.reservePort(nextAddress);
-                        if(isReserved)
-                        {
-                            logger.log(
-                                Level.FINEST,
-                                nextAddress+" reserved by "+fiveTuple);
-                        }
-                        else
-                        {
-                            logger.log(
-                                Level.FINEST,
-                                nextAddress+" not reserved by "+fiveTuple);
-                        }
+                        ReservationTokenAttribute reservationToken
+                            = AttributeFactory.createReservationTokenAttribute(
+                                token);
+                        response.putAttribute(reservationToken);
+                        logger.log(
+                            Level.FINEST,
+                            nextAddress+" reserved by "+fiveTuple);
+                    }
+                    else
+                    {
+                        logger.log(
+                            Level.FINEST,
+                            nextAddress+" not reserved by "+fiveTuple);
                     }
                 }               
             }
@@ -294,6 +337,19 @@ public class AllocationRequestListener
         }
     }
 
+    /**
+     * Returns the relay address of the next port, the one reserved for an
+     * EVEN-PORT request with the R flag.
+     * 
+     * @param relayAddress the even relay address.
+     * @return the address of the next port.
+     */
+    private static TransportAddress nextAddress(TransportAddress relayAddress)
+    {
+        return new TransportAddress(relayAddress.getAddress(),
+            relayAddress.getPort() + 1, relayAddress.getTransport());
+    }
+
     /**
      * Starts this <tt>AllocationRequestListener</tt>. If it is not currently
      * running, does nothing.
@@ -302,7 +358,7 @@ public class AllocationRequestListener
     {
         if (!started)
         {
-            turnStack.addRequestListener(this);
+            turnStack.addRequestHandler(Message.ALLOCATE_REQUEST, this);
             started = true;
         }
     }
@@ -314,7 +370,7 @@ public class AllocationRequestListener
      */
     public void stop()
     {
-        turnStack.removeRequestListener(this);
+        turnStack.removeRequestHandler(Message.ALLOCATE_REQUEST, this);
         started = false;
     }
 }
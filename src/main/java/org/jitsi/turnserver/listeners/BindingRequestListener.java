@@ -24,6 +24,8 @@ import org.ice4j.*;
 import org.ice4j.message.*;
 import org.ice4j.stack.*;
 
+import org.jitsi.turnserver.stack.*;
+
 /**
  * The class that would be handling and responding to incoming requests that are
  * validated and sends a SUCCESS response
@@ -107,7 +109,15 @@ public class BindingRequestListener
     {
         if (!started)
         {
-            stunStack.addRequestListener(this);
+            if (stunStack instanceof TurnStack)
+            {
+                ((TurnStack) stunStack).addRequestHandler(
+                    Message.BINDING_REQUEST, this);
+            }
+            else
+            {
+                stunStack.addRequestListener(this);
+            }
             started = true;
         }
     }
@@ -119,7 +129,15 @@ public class BindingRequestListener
      */
     public void stop()
     {
-        stunStack.removeRequestListener(this);
+        if (stunStack instanceof TurnStack)
+        {
+            ((TurnStack) stunStack).removeRequestHandler(
+                Message.BINDING_REQUEST, this);
+        }
+        else
+        {
+            stunStack.removeRequestListener(this);
+        }
         started = false;
     }
 }
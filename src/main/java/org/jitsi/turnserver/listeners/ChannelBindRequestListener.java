@@ -188,7 +188,7 @@ public class ChannelBindRequestListener
     {
         if (!started)
         {
-            turnStack.addRequestListener(this);
+            turnStack.addRequestHandler(Message.CHANNELBIND_REQUEST, this);
             started = true;
         }
     }
@@ -200,7 +200,7 @@ public class ChannelBindRequestListener
      */
     public void stop()
     {
-        turnStack.removeRequestListener(this);
+        turnStack.removeRequestHandler(Message.CHANNELBIND_REQUEST, this);
         started = false;
     }
 }
@@ -20,8 +20,7 @@
 package org.jitsi.turnserver.listeners;
 
 import java.io.IOException;
-import java.net.InetSocketAddress;
-import java.net.Socket;
+import java.nio.channels.SocketChannel;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -36,9 +35,10 @@ import org.ice4j.attribute.XorPeerAddressAttribute;
 import org.ice4j.message.Message;
 import org.ice4j.message.MessageFactory;
 import org.ice4j.message.Response;
-import org.ice4j.socket.IceTcpSocketWrapper;
 import org.ice4j.stack.RequestListener;
 import org.ice4j.stack.StunStack;
+import org.jitsi.turnserver.TurnStackProperties;
+import org.jitsi.turnserver.socket.TcpConnector;
 import org.jitsi.turnserver.stack.Allocation;
 import org.jitsi.turnserver.stack.FiveTuple;
 import org.jitsi.turnserver.stack.TurnStack;
@@ -62,6 +62,14 @@ public class ConnectRequestListener
 
     private final TurnStack turnStack;
 
+    /**
+     * The time in milliseconds after which a connect to a peer is abandoned
+     * and answered with a 447 error. It is kept shorter than the life of the
+     * server transaction of the Connect request, the response could not be
+     * sent anymore after that.
+     */
+    private final long connectTimeout;
+
     /**
      * The indicator which determines whether this
      * <tt>ValidatedrequestListener</tt> is currently started.
@@ -76,16 +84,35 @@ public class ConnectRequestListener
     public ConnectRequestListener(StunStack stunStack)
     {
         this.turnStack = (TurnStack) stunStack;
+        this.connectTimeout = getConnectTimeout();
+    }
+
+    /**
+     * Returns the configured connect timeout, or the default one if the
+     * configured value is not positive or exceeds
+     * {@link TurnStackProperties#MAX_TCP_CONNECT_TIMEOUT}.
+     */
+    private static long getConnectTimeout()
+    {
+        int timeout = TurnStackProperties.getInt(
+            TurnStackProperties.TCP_CONNECT_TIMEOUT,
+            TurnStackProperties.DEFAULT_TCP_CONNECT_TIMEOUT);
+        if (timeout <= 0
+            || timeout > TurnStackProperties.MAX_TCP_CONNECT_TIMEOUT)
+        {
+            logger.warning("Ignoring " + TurnStackProperties.TCP_CONNECT_TIMEOUT
+                + "=" + timeout + ", it must be between 1 and "
+                + TurnStackProperties.MAX_TCP_CONNECT_TIMEOUT
+                + " ms for the Connect transaction to outlive it");
+            timeout = TurnStackProperties.DEFAULT_TCP_CONNECT_TIMEOUT;
+        }
+        return timeout;
     }
 
     @Override
     public void processRequest(StunMessageEvent evt)
         throws IllegalArgumentException
     {
-        if (logger.isLoggable(Level.FINER))
-        {
-            logger.setLevel(Level.FINEST);
-        }
         Message message = evt.getMessage();
         if (message.getMessageType() == Message.CONNECT_REQUEST)
         {
@@ -131,58 +158,22 @@ public class ConnectRequestListener
                         AttributeFactory.createConnectionIdAttribute();
                     logger.finest("Created ConnectionID : "
                         + connectionId.getConnectionIdValue());
-                    try
-                    {
-                        Socket socket =
-                            new Socket(peerAddress.getAddress().getAddress(),
-                                peerAddress.getAddress().getPort());
-                        socket.setSoTimeout(30*1000);
-                        IceTcpSocketWrapper iceSocket =
-                            new IceTcpSocketWrapper(socket);
-                        this.turnStack.addSocket(iceSocket);
-                    }
-                    catch (IOException e)
-                    {
-                        // TODO Auto-generated catch block
-                        e.printStackTrace();
-                    }
-                    /**
-                     * TODO
-                     * Create a new TCP connection to the peer from relay
-                     * address. 
-                     * wait for at-least 30 seconds. 
-                     * If it fails then send 447 error code. 
-                     **/
-                    this.turnStack.addUnAcknowlededConnectionId(
-                        connectionId.getConnectionIdValue(),
-                        peerAddress.getAddress(), allocation);
-                    logger.finest("Creating Connect Success Response.");
-                    response =
-                        MessageFactory.createConnectResponse(connectionId
-                            .getConnectionIdValue());
-                    
+                    /*
+                     * The connection to the peer may take long to be
+                     * established so it is not waited for in the
+                     * control-plane thread, the response is sent once it
+                     * completes or times out.
+                     */
+                    connect(evt, peerAddress.getAddress(),
+                        connectionId.getConnectionIdValue(), allocation);
+                    return;
                 }
             }
             if(errorCode != null){
                 response = MessageFactory.createConnectErrorResponse(errorCode);
                 logger.finest("error Code : "+(int)errorCode+ " on ConnectRequest");
             }
-            try
-            {
-                logger.finest("Sending Connect Response");
-                turnStack.sendResponse(
-                    evt.getTransactionID().getBytes(), response,
-                    evt.getLocalAddress(), evt.getRemoteAddress());
-            }
-            catch (Exception e)
-            {
-            System.err.println("Failed to send response");
-                logger.log(
-                    Level.INFO, "Failed to send " + response + " through "
-                        + evt.getLocalAddress(), e);
-                // try to trigger a 500 response although if this one failed,
-                throw new RuntimeException("Failed to send a response", e);
-            }
+            sendResponse(evt, response);
         }
         else
         {
@@ -191,6 +182,116 @@ public class ConnectRequestListener
 
     }
 
+    /**
+     * Starts to connect to the peer and answers the Connect request once the
+     * connection is established, or with a 447 (Connection Timeout or
+     * Failure) error if it is not within the configured timeout. A 437
+     * (Allocation Mismatch) error is sent instead if the allocation has been
+     * released in the meantime.
+     * 
+     * @param evt the Connect request.
+     * @param peerAddress the address of the peer to connect to.
+     * @param connectionId the connection id assigned to the connection.
+     * @param allocation the allocation of the client.
+     */
+    private void connect(final StunMessageEvent evt,
+        final TransportAddress peerAddress, final int connectionId,
+        final Allocation allocation)
+    {
+        TcpConnector.Callback callback = new TcpConnector.Callback()
+            {
+                @Override
+                public void connected(SocketChannel channel)
+                {
+                    // the peer connection is not read from until the
+                    // client data connection is bound and spliced to it,
+                    // it is closed if the allocation is gone or the
+                    // connection id is taken
+                    if (!turnStack.addUnAcknowlededConnectionId(
+                        connectionId, channel, allocation))
+                    {
+                        logger.fine("Connection to " + peerAddress
+                            + " not added to " + allocation);
+                        sendResponseQuietly(evt,
+                            MessageFactory.createConnectErrorResponse(
+                                allocation.isExpired()
+                                    ? ErrorCodeAttribute.ALLOCATION_MISMATCH
+                                    : ErrorCodeAttribute
+                                        .CONNECTION_TIMEOUT_OR_FAILURE));
+                        return;
+                    }
+                    logger.finest("Creating Connect Success Response.");
+                    sendResponseQuietly(evt,
+                        MessageFactory.createConnectResponse(connectionId));
+                }
+
+                @Override
+                public void failed(IOException cause)
+                {
+                    logger.fine("Connect to " + peerAddress + " failed: "
+                        + cause);
+                    sendResponseQuietly(evt,
+                        MessageFactory.createConnectErrorResponse(
+                            ErrorCodeAttribute.CONNECTION_TIMEOUT_OR_FAILURE));
+                }
+            };
+        try
+        {
+            turnStack.getTcpConnector().connect(
+                null, peerAddress, connectTimeout, callback);
+        }
+        catch (IllegalStateException e)
+        {
+            // the stack is shutting down
+            callback.failed(new IOException(e.getMessage()));
+        }
+    }
+
+    /**
+     * Sends the response to a Connect request which is no longer being
+     * processed by the stack, so there is nobody left to answer with a 500
+     * if it fails.
+     * 
+     * @param evt the Connect request.
+     * @param response the response to send.
+     */
+    private void sendResponseQuietly(StunMessageEvent evt, Response response)
+    {
+        try
+        {
+            sendResponse(evt, response);
+        }
+        catch (RuntimeException e)
+        {
+            // already logged by sendResponse
+        }
+    }
+
+    /**
+     * Sends the response to a Connect request.
+     * 
+     * @param evt the Connect request.
+     * @param response the response to send.
+     */
+    private void sendResponse(StunMessageEvent evt, Response response)
+    {
+        try
+        {
+            logger.finest("Sending Connect Response");
+            turnStack.sendResponse(
+                evt.getTransactionID().getBytes(), response,
+                evt.getLocalAddress(), evt.getRemoteAddress());
+        }
+        catch (Exception e)
+        {
+            logger.log(
+                Level.INFO, "Failed to send " + response + " through "
+                    + evt.getLocalAddress(), e);
+            // try to trigger a 500 response although if this one failed,
+            throw new RuntimeException("Failed to send a response", e);
+        }
+    }
+
     /**
      * Starts this <tt>ConnectRequestListener</tt>. If it is not currently
      * running, does nothing.
@@ -199,7 +300,7 @@ public class ConnectRequestListener
     {
         if (!started)
         {
-            turnStack.addRequestListener(this);
+            turnStack.addRequestHandler(Message.CONNECT_REQUEST, this);
             started = true;
         }
     }
@@ -211,7 +312,7 @@ public class ConnectRequestListener
      */
     public void stop()
     {
-        turnStack.removeRequestListener(this);
+        turnStack.removeRequestHandler(Message.CONNECT_REQUEST, this);
         started = false;
     }
 
@@ -150,6 +150,19 @@ public class ConnectionBindRequestListener
                 // TODO Auto-generated catch block
                 e.printStackTrace();
             }
+            if (errorCode == null)
+            {
+                // from now on the client data connection carries the bytes
+                // relayed to and from the peer
+                this.turnStack.spliceDataConnection(
+                    connectionId.getConnectionIdValue(), serverAddress,
+                    clientAddress);
+            }
+            else if (transport == Transport.TCP)
+            {
+                this.turnStack.resumeDataConnection(serverAddress,
+                    clientAddress);
+            }
         }
         else
         {
@@ -165,7 +178,7 @@ public class ConnectionBindRequestListener
     {
         if (!started)
         {
-            turnStack.addRequestListener(this);
+            turnStack.addRequestHandler(Message.CONNECTION_BIND_REQUEST, this);
             started = true;
         }
     }
@@ -177,7 +190,7 @@ public class ConnectionBindRequestListener
      */
     public void stop()
     {
-        turnStack.removeRequestListener(this);
+        turnStack.removeRequestHandler(Message.CONNECTION_BIND_REQUEST, this);
         started = false;
     }
 }
@@ -188,7 +188,7 @@ public class CreatePermissionRequestListener
     {
         if (!started)
         {
-            turnStack.addRequestListener(this);
+            turnStack.addRequestHandler(Message.CREATEPERMISSION_REQUEST, this);
             started = true;
         }
     }
@@ -200,7 +200,7 @@ public class CreatePermissionRequestListener
      */
     public void stop()
     {
-        turnStack.removeRequestListener(this);
+        turnStack.removeRequestHandler(Message.CREATEPERMISSION_REQUEST, this);
         started = false;
     }
 
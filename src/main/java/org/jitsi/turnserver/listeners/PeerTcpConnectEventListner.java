@@ -19,6 +19,7 @@
 
 package org.jitsi.turnserver.listeners;
 
+import java.io.IOException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -67,6 +68,7 @@ public class PeerTcpConnectEventListner
         {
             logger.finest("Allocation not found for relay : "
                 + event.getLocalAdress());
+            closeChannel(event);
         }
         else if (allocation.isPermitted(event.getRemoteAdress()))
         {
@@ -82,9 +84,18 @@ public class PeerTcpConnectEventListner
                     MessageFactory.createConnectionAttemptIndication(
                         connectionId.getConnectionIdValue(),
                         event.getRemoteAdress(), tranID.getBytes());
-                this.turnStack.addUnAcknowlededConnectionId(
-                    connectionId.getConnectionIdValue(),
-                    event.getRemoteAdress(), allocation);
+                if (event.getChannel() != null)
+                {
+                    this.turnStack.addUnAcknowlededConnectionId(
+                        connectionId.getConnectionIdValue(),
+                        event.getChannel(), allocation);
+                }
+                else
+                {
+                    this.turnStack.addUnAcknowlededConnectionId(
+                        connectionId.getConnectionIdValue(),
+                        event.getRemoteAdress(), allocation);
+                }
                 logger.finest("Sending Connection Attempt Indication.");
                 this.turnStack.sendIndication(
                     connectionAttemptIndication, allocation.getClientAddress(),
@@ -101,8 +112,27 @@ public class PeerTcpConnectEventListner
         {
             logger.finest("permission not installed for - "
                 + event.getRemoteAdress());
+            closeChannel(event);
         }
         // this.turnStack.add
     }
 
+    /**
+     * Closes the connection handed over with an event which is rejected.
+     * 
+     * @param event the connect event.
+     */
+    private static void closeChannel(TcpConnectEvent event)
+    {
+        if (event.getChannel() == null)
+            return;
+        try
+        {
+            event.getChannel().close();
+        }
+        catch (IOException e)
+        {
+        }
+    }
+
 }
@@ -101,7 +101,15 @@ public class RefreshRequestListener
                 this.turnStack.getServerAllocation(fiveTuple);
             if (allocation != null)
             {
-                if (lifetimeAttribute != null)
+                if (lifetimeAttribute != null
+                    && lifetimeAttribute.getLifetime() == 0)
+                {
+                    logger.finest("Deleting allocation with relay addr "
+                        + allocation.getRelayAddress());
+                    this.turnStack.deleteServerAllocation(allocation);
+                    response = MessageFactory.createRefreshResponse(0);
+                }
+                else if (lifetimeAttribute != null)
                 {
 		    logger.finest("Refreshing allocation with relay addr "
 			    + allocation.getRelayAddress() + " with lifetime "
@@ -154,7 +162,7 @@ public class RefreshRequestListener
     {
         if (!started)
         {
-            turnStack.addRequestListener(this);
+            turnStack.addRequestHandler(Message.REFRESH_REQUEST, this);
             started = true;
         }
     }
@@ -166,7 +174,7 @@ public class RefreshRequestListener
      */
     public void stop()
     {
-        turnStack.removeRequestListener(this);
+        turnStack.removeRequestHandler(Message.REFRESH_REQUEST, this);
         started = false;
     }
 }
@@ -19,6 +19,7 @@
 
 package org.jitsi.turnserver.listeners;
 
+import java.nio.*;
 import java.util.logging.Logger;
 
 import org.ice4j.*;
@@ -79,16 +80,15 @@ public class SendIndicationListener extends IndicationListener
 	    TransportAddress peerAddr = xorPeerAddress.getAddress();
 	    if(alloc!=null && alloc.isPermitted(peerAddr))
 	    {
-		RawMessage udpMessage = RawMessage.build(data.getData(),
-			data.getDataLength(), peerAddr, alloc.getRelayAddress());
-		try 
+		if (this.getTurnStack().sendToPeer(alloc, peerAddr,
+			ByteBuffer.wrap(data.getData(), 0, data.getDataLength())))
 		{
-		    this.getTurnStack().sendUdpMessage(udpMessage, peerAddr,
-			    alloc.getRelayAddress());
 		    logger.finest("Sent SendIndiaction to " + peerAddr
 			    + " from " + alloc.getRelayAddress());
-		} catch (StunException e) {
-		    System.err.println("Unable to send message.");
+		}
+		else
+		{
+		    logger.finest("Unable to send message.");
 		}
 	    }
 	    // else silently ignore the indication.
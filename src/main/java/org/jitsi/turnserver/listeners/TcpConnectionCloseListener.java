@@ -0,0 +1,47 @@
+/*
+ * TurnServer, the OpenSource Java Solution for TURN protocol. Maintained by the
+ * Jitsi community (http://jitsi.org).
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jitsi.turnserver.listeners;
+
+import org.ice4j.*;
+
+import org.jitsi.turnserver.socket.*;
+import org.jitsi.turnserver.stack.*;
+
+/**
+ * Releases the Allocation or the Connection Id of a TCP connection of the
+ * TurnServer when the connection is lost.
+ */
+public class TcpConnectionCloseListener
+    implements TcpCloseEventListener
+{
+    private final TurnStack turnStack;
+
+    public TcpConnectionCloseListener(TurnStack turnStack)
+    {
+        this.turnStack = turnStack;
+    }
+
+    @Override
+    public void onClose(TransportAddress localAddress,
+        TransportAddress remoteAddress)
+    {
+        this.turnStack.tcpConnectionClosed(localAddress, remoteAddress);
+    }
+}
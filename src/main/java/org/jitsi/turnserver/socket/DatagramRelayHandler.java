@@ -0,0 +1,46 @@
+/*
+ * TurnServer, the OpenSource Java Solution for TURN protocol. Maintained by the
+ * Jitsi community (http://jitsi.org).
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jitsi.turnserver.socket;
+
+import java.net.*;
+import java.nio.*;
+
+/**
+ * Receives the datagrams read by a {@link UdpRelayEngine} from its relay
+ * channels.
+ */
+public interface DatagramRelayHandler
+{
+    /**
+     * Called on an event-loop thread of the engine for every datagram
+     * received on a relay channel. The buffer is reused for the next
+     * datagram as soon as this method returns, so it must neither be kept
+     * nor handed to another thread. The handler may write
+     * {@link UdpRelayEngine#HEADROOM} bytes before the position and
+     * {@link UdpRelayEngine#TAILROOM} bytes after the limit to frame the
+     * datagram in place.
+     * 
+     * @param attachment the object the channel was opened with.
+     * @param source the address the datagram came from.
+     * @param data the datagram, between its position and its limit.
+     */
+    public void handleDatagram(
+        Object attachment, InetSocketAddress source, ByteBuffer data);
+}
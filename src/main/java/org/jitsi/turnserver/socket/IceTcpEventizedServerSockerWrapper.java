@@ -22,6 +22,7 @@ package org.jitsi.turnserver.socket;
 import java.io.IOException;
 import java.net.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.logging.*;
 
 import org.ice4j.*;
@@ -47,6 +48,13 @@ public class IceTcpEventizedServerSockerWrapper
     private static Logger logger = Logger
         .getLogger(IceTcpEventizedServerSockerWrapper.class.getName());
 
+    /**
+     * The time in milliseconds the accept thread waits after a failed accept,
+     * which keeps it from spinning while the process is out of file
+     * descriptors.
+     */
+    private static final long ACCEPT_BACKOFF = 100;
+
     /**
      * Thread that will wait new connections.
      */
@@ -60,10 +68,25 @@ public class IceTcpEventizedServerSockerWrapper
     /**
      * If the socket is still listening.
      */
-    private boolean isRun = false;
+    private volatile boolean isRun = false;
 
     private TcpConnectEventListener listener;
 
+    /**
+     * The listener notified when an accepted connection is lost or
+     * <tt>null</tt>.
+     */
+    private volatile TcpCloseEventListener closeListener;
+
+    /**
+     * The wrappers of the accepted connections which are still open mapped
+     * by remote address.
+     */
+    private final Map<InetSocketAddress, IceTcpEventizedSocketWrapper>
+        connections =
+            new ConcurrentHashMap<InetSocketAddress,
+                IceTcpEventizedSocketWrapper>();
+
     /**
      * STUN stack.
      */
@@ -72,13 +95,17 @@ public class IceTcpEventizedServerSockerWrapper
     /**
      * List of TCP client sockets.
      */
-    private final List<Socket> sockets = new ArrayList<Socket>();
+    private final List<Socket> sockets =
+        Collections.synchronizedList(new ArrayList<Socket>());
 
     public IceTcpEventizedServerSockerWrapper(ServerSocket serverSocket,
         Component component)
     {
         this.serverSocket = serverSocket;
         this.component = component;
+        // set before the thread starts so that a close() issued right after
+        // the constructor returns is not overwritten
+        isRun = true;
         acceptThread = new ThreadAccept();
         acceptThread.start();
     }
@@ -113,7 +140,13 @@ public class IceTcpEventizedServerSockerWrapper
         {
             isRun = false;
             serverSocket.close();
-            for (Socket s : sockets)
+            Socket[] accepted;
+            synchronized (sockets)
+            {
+                accepted = sockets.toArray(new Socket[sockets.size()]);
+                sockets.clear();
+            }
+            for (Socket s : accepted)
             {
                 s.close();
             }
@@ -156,9 +189,12 @@ public class IceTcpEventizedServerSockerWrapper
     @Override
     public Socket getTCPSocket()
     {
-        if (sockets.size() > 0)
+        synchronized (sockets)
         {
-            return sockets.get(0);
+            if (sockets.size() > 0)
+            {
+                return sockets.get(0);
+            }
         }
 
         return null;
@@ -179,6 +215,18 @@ public class IceTcpEventizedServerSockerWrapper
         this.listener = listener;
     }
 
+    /**
+     * Sets the listener notified when an accepted connection is lost. The
+     * accepted sockets are then forgotten as soon as their connection is
+     * lost.
+     * 
+     * @param closeListener the listener or <tt>null</tt>.
+     */
+    public void setCloseListener(TcpCloseEventListener closeListener)
+    {
+        this.closeListener = closeListener;
+    }
+
     @Override
     public void removeEventListener()
     {
@@ -194,6 +242,77 @@ public class IceTcpEventizedServerSockerWrapper
             logger.finest("Listener not registered");
     }
 
+    /**
+     * Returns the wrapper of an accepted connection which is still open.
+     * Only the connections accepted after a close listener has been set are
+     * known.
+     * 
+     * @param remoteAddress the remote address of the connection.
+     * @return the wrapper of the connection or <tt>null</tt>.
+     */
+    public IceTcpEventizedSocketWrapper getConnection(
+        InetSocketAddress remoteAddress)
+    {
+        return connections.get(remoteAddress);
+    }
+
+    /**
+     * Wraps an accepted socket and adds it to the stack.
+     */
+    private void addToStack(Socket tcpSocket)
+        throws IOException
+    {
+        final MultiplexingSocket multiplexingSocket =
+            new MultiplexingSocket(tcpSocket);
+        final TcpCloseEventListener closeListener = this.closeListener;
+        IceSocketWrapper sock;
+        if (closeListener == null)
+        {
+            sock = new IceTcpSocketWrapper(multiplexingSocket);
+        }
+        else
+        {
+            final InetSocketAddress remoteAddress =
+                (InetSocketAddress) tcpSocket.getRemoteSocketAddress();
+            IceTcpEventizedSocketWrapper wrapper =
+                new IceTcpEventizedSocketWrapper(multiplexingSocket,
+                    tcpSocket.getChannel(), new TcpCloseEventListener()
+                    {
+                        @Override
+                        public void onClose(TransportAddress localAddress,
+                            TransportAddress remoteAddr)
+                        {
+                            sockets.remove(multiplexingSocket);
+                            connections.remove(remoteAddress);
+                            closeListener.onClose(localAddress, remoteAddr);
+                        }
+                    });
+            connections.put(remoteAddress, wrapper);
+            sock = wrapper;
+        }
+        removeClosedSockets();
+        sockets.add(multiplexingSocket);
+        component.getParentStream().getParentAgent().getStunStack()
+            .addSocket(sock);
+    }
+
+    /**
+     * Forgets the accepted sockets which have been closed meanwhile, which
+     * are not reported when there is no close listener.
+     */
+    private void removeClosedSockets()
+    {
+        synchronized (sockets)
+        {
+            Iterator<Socket> i = sockets.iterator();
+            while (i.hasNext())
+            {
+                if (i.next().isClosed())
+                    i.remove();
+            }
+        }
+    }
+
     /**
      * Thread that will wait for new TCP connections.
      * 
@@ -201,14 +320,17 @@ public class IceTcpEventizedServerSockerWrapper
     private class ThreadAccept
         extends Thread
     {
+        ThreadAccept()
+        {
+            super("TcpAccept-" + serverSocket.getLocalSocketAddress());
+        }
+
         /**
          * Thread entry point.
          */
         @Override
         public void run()
         {
-            isRun = true;
-
             while (isRun)
             {
                 try
@@ -217,32 +339,13 @@ public class IceTcpEventizedServerSockerWrapper
 
                     if (tcpSocket != null)
                     {
-                        MultiplexingSocket multiplexingSocket =
-                            new MultiplexingSocket(tcpSocket);
-                        component.getParentStream().getParentAgent()
-                            .getStunStack().addSocket(
-                                new IceTcpSocketWrapper(multiplexingSocket));
-
-                        sockets.add(multiplexingSocket);
-                        String[] serverIpPort =
-                            serverSocket.getLocalSocketAddress().toString()
-                                .replaceAll(
-                                    "/", "").split(
-                                    ":");
+                        addToStack(tcpSocket);
                         TransportAddress localAddr =
-                            new TransportAddress(InetAddress.getLocalHost(),
-                                Integer.parseInt(serverIpPort[1]),
-                                Transport.TCP);
-                        
-                        String[] remoteIpPort =
-                            tcpSocket.getRemoteSocketAddress().toString()
-                                .replaceAll(
-                                    "/", "").split(
-                                    ":");
+                            new TransportAddress(tcpSocket.getLocalAddress(),
+                                tcpSocket.getLocalPort(), Transport.TCP);
                         TransportAddress remoteAddr =
-                            new TransportAddress(remoteIpPort[0],
-                                Integer.parseInt(remoteIpPort[1]),
-                                Transport.TCP);
+                            new TransportAddress(tcpSocket.getInetAddress(),
+                                tcpSocket.getPort(), Transport.TCP);
                         logger.finest("Connection Request from "+remoteAddr+" to "+localAddr);
                         TcpConnectEvent event =
                             new TcpConnectEvent(localAddr, remoteAddr);
@@ -252,7 +355,17 @@ public class IceTcpEventizedServerSockerWrapper
                 }
                 catch (IOException e)
                 {
+                    if (!isRun || serverSocket.isClosed())
+                        break;
                     logger.info("Failed to accept TCP socket " + e);
+                    try
+                    {
+                        Thread.sleep(ACCEPT_BACKOFF);
+                    }
+                    catch (InterruptedException ie)
+                    {
+                        break;
+                    }
                 }
             }
         }
@@ -0,0 +1,309 @@
+/*
+ * TurnServer, the OpenSource Java Solution for TURN protocol. Maintained by the
+ * Jitsi community (http://jitsi.org).
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jitsi.turnserver.socket;
+
+import java.io.*;
+import java.net.*;
+import java.nio.channels.*;
+import java.util.concurrent.atomic.*;
+import java.util.logging.*;
+
+import org.ice4j.*;
+import org.ice4j.socket.*;
+
+/**
+ * A TCP socket wrapper which notifies a {@link TcpCloseEventListener} when
+ * its connection is lost, that is when reading from it fails or reaches the
+ * end of the stream, or when it is closed locally.
+ * <p>
+ * It also lets a client data connection be handed over to the
+ * {@link TcpSpliceEngine}: once it has read a ConnectionBind request it does
+ * not read any further until the request has been answered, so that the
+ * bytes the client relays after a successful ConnectionBind are never
+ * consumed by the stack. The connection is then either {@link #detach()}ed
+ * or its reading {@link #resume()}d.
+ * </p>
+ */
+public class IceTcpEventizedSocketWrapper
+    extends IceTcpSocketWrapper
+{
+    /**
+     * The <tt>Logger</tt> used by the <tt>IceTcpEventizedSocketWrapper</tt>
+     * class and its instances for logging output.
+     */
+    private static final Logger logger
+        = Logger.getLogger(IceTcpEventizedSocketWrapper.class.getName());
+
+    /**
+     * The local address of the connection.
+     */
+    private final TransportAddress localAddress;
+
+    /**
+     * The remote address of the connection.
+     */
+    private final TransportAddress remoteAddress;
+
+    /**
+     * The listener to notify when the connection is lost.
+     */
+    private final TcpCloseEventListener listener;
+
+    /**
+     * Whether {@link #listener} has been notified.
+     */
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    /**
+     * The longest time in milliseconds reading waits for the ConnectionBind
+     * request which has been read to be answered.
+     */
+    private static final long BIND_WAIT = 10000;
+
+    /**
+     * The STUN message type of a ConnectionBind request.
+     */
+    private static final int CONNECTION_BIND_REQUEST = 0x000b;
+
+    /**
+     * The channel of the socket or <tt>null</tt> if it has none.
+     */
+    private final SocketChannel channel;
+
+    /**
+     * The lock guarding {@link #bindPending} and {@link #detached}.
+     */
+    private final Object bindLock = new Object();
+
+    /**
+     * Whether a ConnectionBind request has been read and not answered yet.
+     */
+    private boolean bindPending;
+
+    /**
+     * Whether the connection has been detached from the stack.
+     */
+    private boolean detached;
+
+    /**
+     * Wraps a connected TCP socket.
+     * 
+     * @param socket the connected socket.
+     * @param listener the listener to notify when the connection is lost.
+     * @throws IOException if the streams of the socket cannot be obtained.
+     */
+    public IceTcpEventizedSocketWrapper(Socket socket,
+        TcpCloseEventListener listener)
+        throws IOException
+    {
+        super(socket);
+        this.localAddress = new TransportAddress(socket.getLocalAddress(),
+            socket.getLocalPort(), Transport.TCP);
+        this.remoteAddress = new TransportAddress(socket.getInetAddress(),
+            socket.getPort(), Transport.TCP);
+        this.listener = listener;
+        this.channel = socket.getChannel();
+    }
+
+    /**
+     * Wraps a connected TCP socket whose channel cannot be obtained from the
+     * socket itself, such as a socket wrapped into another one.
+     * 
+     * @param socket the connected socket.
+     * @param channel the channel of the underlying socket.
+     * @param listener the listener to notify when the connection is lost.
+     * @throws IOException if the streams of the socket cannot be obtained.
+     */
+    public IceTcpEventizedSocketWrapper(Socket socket, SocketChannel channel,
+        TcpCloseEventListener listener)
+        throws IOException
+    {
+        super(socket);
+        this.localAddress = new TransportAddress(socket.getLocalAddress(),
+            socket.getLocalPort(), Transport.TCP);
+        this.remoteAddress = new TransportAddress(socket.getInetAddress(),
+            socket.getPort(), Transport.TCP);
+        this.listener = listener;
+        this.channel = channel;
+    }
+
+    /**
+     * @return the remote address of the connection.
+     */
+    public TransportAddress getRemoteAddress()
+    {
+        return remoteAddress;
+    }
+
+    /**
+     * @return the channel of the connection or <tt>null</tt> if it has none,
+     *         in which case it cannot be detached.
+     */
+    public SocketChannel getChannel()
+    {
+        return channel;
+    }
+
+    /**
+     * Detaches the connection from the stack after its ConnectionBind
+     * request has been answered. Reading stops for good and closing this
+     * wrapper no longer closes the connection nor notifies the listener.
+     * 
+     * @return the channel of the connection or <tt>null</tt> if it has none,
+     *         in which case the connection is not detached.
+     */
+    public SocketChannel detach()
+    {
+        if (channel == null)
+            return null;
+        synchronized (bindLock)
+        {
+            detached = true;
+            bindLock.notifyAll();
+        }
+        closed.set(true);
+        return channel;
+    }
+
+    /**
+     * Resumes reading after a ConnectionBind request has failed.
+     */
+    public void resume()
+    {
+        synchronized (bindLock)
+        {
+            bindPending = false;
+            bindLock.notifyAll();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * Notifies the listener if the connection has been lost.
+     */
+    @Override
+    public void receive(DatagramPacket p) throws IOException
+    {
+        awaitBind();
+        try
+        {
+            super.receive(p);
+            if (channel != null && isConnectionBindRequest(p))
+            {
+                synchronized (bindLock)
+                {
+                    bindPending = true;
+                }
+            }
+        }
+        catch (SocketTimeoutException e)
+        {
+            throw e;
+        }
+        catch (IOException e)
+        {
+            fireClose();
+            throw e;
+        }
+    }
+
+    /**
+     * Waits until the ConnectionBind request read last, if any, has been
+     * answered.
+     * 
+     * @throws SocketException if the connection has been detached.
+     */
+    private void awaitBind()
+        throws SocketException
+    {
+        synchronized (bindLock)
+        {
+            long deadline = System.currentTimeMillis() + BIND_WAIT;
+            while (bindPending && !detached)
+            {
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0)
+                {
+                    // the request has been lost, e.g. rejected by the stack
+                    bindPending = false;
+                    break;
+                }
+                try
+                {
+                    bindLock.wait(wait);
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            if (detached)
+                throw new SocketException("Connection detached");
+        }
+    }
+
+    /**
+     * Determines whether a received packet is a ConnectionBind request.
+     */
+    private static boolean isConnectionBindRequest(DatagramPacket p)
+    {
+        if (p.getLength() < 20)
+            return false;
+        byte[] data = p.getData();
+        int off = p.getOffset();
+        int type = ((data[off] & 0xff) << 8) | (data[off + 1] & 0xff);
+        return type == CONNECTION_BIND_REQUEST
+            && data[off + 4] == 0x21 && data[off + 5] == 0x12
+            && data[off + 6] == (byte) 0xa4 && data[off + 7] == 0x42;
+    }
+
+    /**
+     * {@inheritDoc}
+     * 
+     * Notifies the listener unless it has already been notified. Does
+     * nothing once the connection has been detached.
+     */
+    @Override
+    public void close()
+    {
+        synchronized (bindLock)
+        {
+            if (detached)
+                return;
+        }
+        super.close();
+        fireClose();
+    }
+
+    /**
+     * Notifies {@link #listener} once.
+     */
+    private void fireClose()
+    {
+        if (!closed.compareAndSet(false, true))
+            return;
+        logger.finest("TCP connection from " + remoteAddress + " to "
+            + localAddress + " closed");
+        if (listener != null)
+            listener.onClose(localAddress, remoteAddress);
+    }
+}
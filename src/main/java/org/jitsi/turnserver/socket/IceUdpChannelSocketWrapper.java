@@ -0,0 +1,229 @@
+/*
+ * TurnServer, the OpenSource Java Solution for TURN protocol. Maintained by the
+ * Jitsi community (http://jitsi.org).
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jitsi.turnserver.socket;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.concurrent.*;
+import java.util.logging.*;
+
+import org.ice4j.socket.*;
+
+/**
+ * Lets ice4j use a client-facing UDP socket whose channel is read by a
+ * {@link UdpRelayEngine}. The handler of the channel forwards the relayed
+ * traffic itself and passes the STUN messages on with {@link #deliver}, from
+ * where the ice4j reading thread picks them up with {@link #receive}.
+ * <p>
+ * The wrapper also keeps, per remote address, the object the handler
+ * associates with the datagrams of that client, typically its Allocation.
+ * </p>
+ */
+public class IceUdpChannelSocketWrapper
+    extends IceUdpSocketWrapper
+{
+    /**
+     * The <tt>Logger</tt> used by the <tt>IceUdpChannelSocketWrapper</tt>
+     * class and its instances for logging output.
+     */
+    private static final Logger logger
+        = Logger.getLogger(IceUdpChannelSocketWrapper.class.getName());
+
+    /**
+     * The maximum number of datagrams waiting to be received by ice4j.
+     */
+    private static final int RECEIVE_QUEUE_CAPACITY = 1024;
+
+    /**
+     * Put in {@link #received} to wake up a reader blocked on a closed
+     * wrapper.
+     */
+    private static final DatagramPacket CLOSED
+        = new DatagramPacket(new byte[0], 0);
+
+    /**
+     * The engine reading {@link #channel}.
+     */
+    private final UdpRelayEngine engine;
+
+    /**
+     * The wrapped channel.
+     */
+    private final DatagramChannel channel;
+
+    /**
+     * The datagrams passed on to ice4j.
+     */
+    private final BlockingQueue<DatagramPacket> received
+        = new ArrayBlockingQueue<DatagramPacket>(RECEIVE_QUEUE_CAPACITY);
+
+    /**
+     * The objects associated with the remote addresses of the clients.
+     */
+    private final ConcurrentHashMap<InetSocketAddress, Object> clients
+        = new ConcurrentHashMap<InetSocketAddress, Object>();
+
+    /**
+     * Whether this wrapper has been closed.
+     */
+    private volatile boolean closed = false;
+
+    /**
+     * Creates a wrapper around a channel registered with an engine.
+     * 
+     * @param engine the engine reading the channel.
+     * @param channel the channel to wrap.
+     * @throws SocketException if the underlying socket is unusable.
+     */
+    public IceUdpChannelSocketWrapper(UdpRelayEngine engine,
+        DatagramChannel channel)
+        throws SocketException
+    {
+        super(channel.socket());
+        this.engine = engine;
+        this.channel = channel;
+    }
+
+    /**
+     * @return the wrapped channel.
+     */
+    public DatagramChannel getChannel()
+    {
+        return channel;
+    }
+
+    /**
+     * Associates an object with the datagrams coming from a client.
+     * 
+     * @param client the remote address of the client.
+     * @param attachment the object to associate.
+     */
+    public void addClient(InetSocketAddress client, Object attachment)
+    {
+        clients.put(client, attachment);
+    }
+
+    /**
+     * Removes the association of a client if it is still the specified one.
+     * 
+     * @param client the remote address of the client.
+     * @param attachment the object associated with it.
+     */
+    public void removeClient(InetSocketAddress client, Object attachment)
+    {
+        clients.remove(client, attachment);
+    }
+
+    /**
+     * Returns the object associated with a client.
+     * 
+     * @param client the remote address of the client.
+     * @return the associated object or <tt>null</tt>.
+     */
+    public Object getClient(InetSocketAddress client)
+    {
+        return clients.get(client);
+    }
+
+    /**
+     * Passes a datagram on to ice4j. It is copied since the buffer belongs
+     * to the engine. Dropped if ice4j does not keep up.
+     * 
+     * @param source the address the datagram came from.
+     * @param data the datagram, between its position and its limit.
+     */
+    public void deliver(InetSocketAddress source, ByteBuffer data)
+    {
+        byte[] bytes = new byte[data.remaining()];
+        data.get(bytes);
+        if (!received.offer(new DatagramPacket(bytes, bytes.length, source)))
+        {
+            logger.finer("Dropped a datagram from " + source
+                + ", receive queue is full");
+        }
+    }
+
+    /**
+     * Sends a datagram through the channel without blocking.
+     * 
+     * @param p the datagram to send.
+     * @throws IOException if the wrapper is closed.
+     */
+    @Override
+    public void send(DatagramPacket p)
+        throws IOException
+    {
+        if (closed)
+            throw new SocketException("Socket closed");
+        ByteBuffer data =
+            ByteBuffer.wrap(p.getData(), p.getOffset(), p.getLength());
+        if (!engine.send(channel, data, (InetSocketAddress) p.getSocketAddress()))
+        {
+            logger.finer("Dropped a datagram to " + p.getSocketAddress());
+        }
+    }
+
+    /**
+     * Blocks until a datagram is passed on by the handler of the channel.
+     * 
+     * @param p the packet to receive into.
+     * @throws IOException if the wrapper is closed.
+     */
+    @Override
+    public void receive(DatagramPacket p)
+        throws IOException
+    {
+        DatagramPacket next;
+        try
+        {
+            next = closed ? CLOSED : received.take();
+        }
+        catch (InterruptedException e)
+        {
+            throw new InterruptedIOException();
+        }
+        if (next == CLOSED)
+        {
+            received.offer(CLOSED);
+            throw new SocketException("Socket closed");
+        }
+
+        int length = Math.min(next.getLength(), p.getData().length
+            - p.getOffset());
+        System.arraycopy(
+            next.getData(), 0, p.getData(), p.getOffset(), length);
+        p.setLength(length);
+        p.setSocketAddress(next.getSocketAddress());
+    }
+
+    /**
+     * Closes the channel and wakes up the reader.
+     */
+    @Override
+    public void close()
+    {
+        closed = true;
+        engine.close(channel);
+        received.clear();
+        received.offer(CLOSED);
+    }
+}
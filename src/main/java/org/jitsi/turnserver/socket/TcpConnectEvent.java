@@ -19,6 +19,8 @@
 
 package org.jitsi.turnserver.socket;
 
+import java.nio.channels.SocketChannel;
+
 import org.ice4j.TransportAddress;
 
 /**
@@ -33,15 +35,34 @@ public class TcpConnectEvent
     
     private final TransportAddress remoteAdress;
 
+    /**
+     * The channel of the accepted connection if it has been handed over to
+     * the listener, otherwise <tt>null</tt>.
+     */
+    private final SocketChannel channel;
+
     /**
      * @param localAdress
      * @param remoteAdress
      */
     public TcpConnectEvent(TransportAddress localAdress,
         TransportAddress remoteAdress)
+    {
+        this(localAdress, remoteAdress, null);
+    }
+
+    /**
+     * @param localAdress
+     * @param remoteAdress
+     * @param channel the channel of the accepted connection handed over to
+     *            the listener or <tt>null</tt>.
+     */
+    public TcpConnectEvent(TransportAddress localAdress,
+        TransportAddress remoteAdress, SocketChannel channel)
     {
         this.localAdress = localAdress;
         this.remoteAdress = remoteAdress;
+        this.channel = channel;
     }
 
     public TransportAddress getLocalAdress()
@@ -54,6 +75,15 @@ public class TcpConnectEvent
         return remoteAdress;
     }   
 
+    /**
+     * Returns the channel of the accepted connection if it has been handed
+     * over to the listener, which then owns it, otherwise <tt>null</tt>.
+     */
+    public SocketChannel getChannel()
+    {
+        return channel;
+    }
+
     
     
 }
@@ -0,0 +1,475 @@
+/*
+ * TurnServer, the OpenSource Java Solution for TURN protocol. Maintained by the
+ * Jitsi community (http://jitsi.org).
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jitsi.turnserver.socket;
+
+import java.io.*;
+import java.net.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.logging.*;
+
+/**
+ * Establishes outbound TCP connections, such as the connections to the peers
+ * requested by RFC 6062 Connect requests, with non-blocking
+ * <tt>SocketChannel</tt>s multiplexed over a single <tt>Selector</tt> thread.
+ * A connect which has not completed by its deadline is abandoned, so a slow
+ * or unreachable peer costs neither a thread nor the OS connect timeout.
+ * <p>
+ * The outcome of every connect is reported exactly once to its
+ * {@link Callback}, on the connector thread: callbacks must not block. The
+ * connects still in progress when the connector is stopped fail.
+ * </p>
+ */
+public class TcpConnector
+    implements Runnable
+{
+    /**
+     * The <tt>Logger</tt> used by the <tt>TcpConnector</tt> class and its
+     * instances for logging output.
+     */
+    private static final Logger logger
+        = Logger.getLogger(TcpConnector.class.getName());
+
+    /**
+     * Receives the outcome of a connect.
+     */
+    public interface Callback
+    {
+        /**
+         * Notifies that the connection has been established.
+         * 
+         * @param channel the connected channel, still in non-blocking mode.
+         *            The callback owns it from now on.
+         */
+        public void connected(SocketChannel channel);
+
+        /**
+         * Notifies that the connection could not be established. The channel
+         * has been closed.
+         * 
+         * @param cause the cause of the failure, a
+         *            <tt>SocketTimeoutException</tt> if the deadline passed.
+         */
+        public void failed(IOException cause);
+    }
+
+    /**
+     * The name of the connector thread.
+     */
+    private final String name;
+
+    /**
+     * The selector of the channels being connected.
+     */
+    private final Selector selector;
+
+    /**
+     * The connects waiting to be registered with {@link #selector}.
+     */
+    private final Queue<Connect> pending = new ConcurrentLinkedQueue<Connect>();
+
+    /**
+     * The connects in progress ordered by deadline. A connect leaves it as
+     * soon as its outcome is known. Only accessed by the connector thread.
+     */
+    private final TreeSet<Connect> deadlines = new TreeSet<Connect>();
+
+    /**
+     * The sequence number of the next connect, which orders the connects
+     * with the same deadline.
+     */
+    private long nextSequence;
+
+    /**
+     * The number of connects waiting for the remote end to answer, the size
+     * of {@link #deadlines}.
+     */
+    private final AtomicInteger connecting = new AtomicInteger();
+
+    /**
+     * The number of connects which have succeeded.
+     */
+    private final AtomicLong connected = new AtomicLong();
+
+    /**
+     * The number of connects which have failed, timeouts included.
+     */
+    private final AtomicLong failed = new AtomicLong();
+
+    /**
+     * The number of connects which have timed out.
+     */
+    private final AtomicLong timedOut = new AtomicLong();
+
+    /**
+     * The thread running this connector or <tt>null</tt> if it is not running.
+     */
+    private volatile Thread thread;
+
+    /**
+     * Whether {@link #stop()} has been called. Guarded by <tt>this</tt>, like
+     * the queueing of the connects, so that no connect is queued after the
+     * last one has been failed.
+     */
+    private boolean stopped;
+
+    /**
+     * Creates a new connector. It does not run until {@link #start()} is
+     * called.
+     * 
+     * @param name the name of the connector thread.
+     * @throws IOException if the Selector could not be opened.
+     */
+    public TcpConnector(String name)
+        throws IOException
+    {
+        this.name = name;
+        this.selector = Selector.open();
+    }
+
+    /**
+     * Starts the connector thread.
+     */
+    public synchronized void start()
+    {
+        if (thread != null || stopped)
+            return;
+        Thread t = new Thread(this, name);
+        t.setDaemon(true);
+        thread = t;
+        t.start();
+    }
+
+    /**
+     * Stops the connector thread. The connects queued or in progress fail. A
+     * stopped connector cannot be started again.
+     */
+    public synchronized void stop()
+    {
+        if (stopped)
+            return;
+        stopped = true;
+        Thread t = thread;
+        thread = null;
+        selector.wakeup();
+        if (t == null)
+            failAll();
+    }
+
+    /**
+     * Starts to connect to a remote address. Returns immediately, the
+     * connect is made and its outcome reported to the callback on the
+     * connector thread.
+     * 
+     * @param bindAddress the local address to bind to or <tt>null</tt> for
+     *            any.
+     * @param remoteAddress the address to connect to.
+     * @param timeout the time in milliseconds after which the connect is
+     *            abandoned.
+     * @param callback the callback receiving the outcome.
+     * @throws IllegalStateException if the connector has been stopped.
+     */
+    public void connect(InetSocketAddress bindAddress,
+        InetSocketAddress remoteAddress, long timeout, Callback callback)
+    {
+        Connect connect = new Connect(bindAddress, remoteAddress, callback,
+            System.currentTimeMillis() + timeout);
+        synchronized (this)
+        {
+            if (stopped)
+                throw new IllegalStateException(name + " is stopped");
+            pending.add(connect);
+        }
+        selector.wakeup();
+    }
+
+    /**
+     * Returns the number of connects waiting for the remote end to answer.
+     */
+    public int getConnectingCount()
+    {
+        return connecting.get();
+    }
+
+    /**
+     * Returns the number of connects which have succeeded.
+     */
+    public long getConnectedCount()
+    {
+        return connected.get();
+    }
+
+    /**
+     * Returns the number of connects which have failed, timeouts included.
+     */
+    public long getFailedCount()
+    {
+        return failed.get();
+    }
+
+    /**
+     * Returns the number of connects which have timed out.
+     */
+    public long getTimedOutCount()
+    {
+        return timedOut.get();
+    }
+
+    @Override
+    public void run()
+    {
+        try
+        {
+            while (thread == Thread.currentThread())
+            {
+                registerPending();
+
+                if (deadlines.isEmpty())
+                {
+                    selector.select();
+                }
+                else
+                {
+                    long wait = deadlines.first().deadline
+                        - System.currentTimeMillis();
+                    if (wait > 0)
+                        selector.select(wait);
+                    else
+                        selector.selectNow();
+                }
+
+                Iterator<SelectionKey> keys
+                    = selector.selectedKeys().iterator();
+                while (keys.hasNext())
+                {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (key.isValid() && key.isConnectable())
+                        finishConnect(key);
+                }
+                expire(System.currentTimeMillis());
+            }
+        }
+        catch (IOException e)
+        {
+            logger.log(Level.SEVERE, name + " failed", e);
+        }
+        finally
+        {
+            failAll();
+        }
+    }
+
+    /**
+     * Starts the connects queued by {@link #connect}.
+     */
+    private void registerPending()
+    {
+        Connect connect;
+        while ((connect = pending.poll()) != null)
+        {
+            SocketChannel channel = null;
+            try
+            {
+                channel = SocketChannel.open();
+                connect.channel = channel;
+                channel.configureBlocking(false);
+                if (connect.bindAddress != null)
+                    channel.socket().bind(connect.bindAddress);
+                if (channel.connect(connect.remoteAddress))
+                {
+                    succeed(connect);
+                    continue;
+                }
+                channel.register(selector, SelectionKey.OP_CONNECT, connect);
+            }
+            catch (IOException e)
+            {
+                fail(connect, e);
+                continue;
+            }
+            connect.sequence = nextSequence++;
+            deadlines.add(connect);
+            connecting.incrementAndGet();
+        }
+    }
+
+    /**
+     * Completes the connect of a channel which became connectable.
+     */
+    private void finishConnect(SelectionKey key)
+    {
+        Connect connect = (Connect) key.attachment();
+        try
+        {
+            if (!connect.channel.finishConnect())
+                return;
+        }
+        catch (IOException e)
+        {
+            removeDeadline(connect);
+            fail(connect, e);
+            return;
+        }
+        key.cancel();
+        removeDeadline(connect);
+        succeed(connect);
+    }
+
+    /**
+     * Fails the connects whose deadline has passed.
+     */
+    private void expire(long now)
+    {
+        while (!deadlines.isEmpty() && deadlines.first().deadline <= now)
+        {
+            Connect connect = deadlines.pollFirst();
+            connecting.decrementAndGet();
+            timedOut.incrementAndGet();
+            fail(connect, new SocketTimeoutException("connect timed out"));
+        }
+    }
+
+    /**
+     * Fails every connect which is queued or in progress.
+     */
+    private void failAll()
+    {
+        IOException cause = new ClosedChannelException();
+        Connect connect;
+        while ((connect = pending.poll()) != null)
+            fail(connect, cause);
+        while ((connect = deadlines.pollFirst()) != null)
+        {
+            connecting.decrementAndGet();
+            fail(connect, cause);
+        }
+        try
+        {
+            selector.close();
+        }
+        catch (IOException e)
+        {
+        }
+    }
+
+    /**
+     * Removes a connect whose outcome is known from {@link #deadlines}.
+     */
+    private void removeDeadline(Connect connect)
+    {
+        if (deadlines.remove(connect))
+            connecting.decrementAndGet();
+    }
+
+    /**
+     * Reports the channel of a connect as connected.
+     */
+    private void succeed(Connect connect)
+    {
+        connected.incrementAndGet();
+        try
+        {
+            connect.callback.connected(connect.channel);
+        }
+        catch (RuntimeException e)
+        {
+            logger.log(Level.WARNING, "Connect callback failed", e);
+        }
+    }
+
+    /**
+     * Closes the channel of a connect and reports the failure.
+     */
+    private void fail(Connect connect, IOException cause)
+    {
+        close(connect.channel);
+        failed.incrementAndGet();
+        try
+        {
+            connect.callback.failed(cause);
+        }
+        catch (RuntimeException e)
+        {
+            logger.log(Level.WARNING, "Connect callback failed", e);
+        }
+    }
+
+    private static void close(SocketChannel channel)
+    {
+        if (channel == null)
+            return;
+        try
+        {
+            channel.close();
+        }
+        catch (IOException e)
+        {
+        }
+    }
+
+    /**
+     * A connect queued or in progress.
+     */
+    private static class Connect
+        implements Comparable<Connect>
+    {
+        final InetSocketAddress bindAddress;
+
+        final InetSocketAddress remoteAddress;
+
+        final Callback callback;
+
+        /**
+         * The time in milliseconds at which the connect is abandoned.
+         */
+        final long deadline;
+
+        /**
+         * The channel being connected, opened by the connector thread.
+         */
+        SocketChannel channel;
+
+        /**
+         * The order of the connect among those with the same deadline.
+         */
+        long sequence;
+
+        Connect(InetSocketAddress bindAddress,
+            InetSocketAddress remoteAddress, Callback callback, long deadline)
+        {
+            this.bindAddress = bindAddress;
+            this.remoteAddress = remoteAddress;
+            this.callback = callback;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public int compareTo(Connect other)
+        {
+            if (deadline != other.deadline)
+                return (deadline < other.deadline) ? -1 : 1;
+            return (sequence < other.sequence) ? -1
+                : ((sequence == other.sequence) ? 0 : 1);
+        }
+    }
+}
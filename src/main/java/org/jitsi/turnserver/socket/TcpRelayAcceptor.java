@@ -0,0 +1,395 @@
+/*
+ * TurnServer, the OpenSource Java Solution for TURN protocol. Maintained by the
+ * Jitsi community (http://jitsi.org).
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.jitsi.turnserver.socket;
+
+import java.io.*;
+import java.net.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.logging.*;
+
+import org.ice4j.*;
+
+/**
+ * Accepts the connections of the peers on the TCP relay addresses of all the
+ * Allocations. Every listening port is a non-blocking
+ * <tt>ServerSocketChannel</tt> registered with a single <tt>Selector</tt>,
+ * so the number of threads does not depend on the number of TCP
+ * Allocations.
+ * <p>
+ * Each accepted connection is handed over to the listener of its port with a
+ * {@link TcpConnectEvent}, on the acceptor thread: listeners must not block.
+ * The listener owns the channel of the event and has to close it if it
+ * rejects the connection.
+ * </p>
+ */
+public class TcpRelayAcceptor
+    implements Runnable
+{
+    /**
+     * The <tt>Logger</tt> used by the <tt>TcpRelayAcceptor</tt> class and its
+     * instances for logging output.
+     */
+    private static final Logger logger
+        = Logger.getLogger(TcpRelayAcceptor.class.getName());
+
+    /**
+     * The time in milliseconds for which a listening port is not accepted
+     * from after an accept failed, for instance because the process ran out
+     * of file descriptors.
+     */
+    private static final long ACCEPT_BACKOFF = 100;
+
+    /**
+     * The name of the acceptor thread.
+     */
+    private final String name;
+
+    /**
+     * The selector of the listening channels.
+     */
+    private final Selector selector;
+
+    /**
+     * The listening ports waiting to be registered with {@link #selector}.
+     */
+    private final Queue<Port> pending = new ConcurrentLinkedQueue<Port>();
+
+    /**
+     * The keys of the listening ports whose accept failed and which are not
+     * selected until {@link #resumeAt}. Only accessed by the acceptor thread.
+     */
+    private final List<SelectionKey> suspended = new ArrayList<SelectionKey>();
+
+    /**
+     * The time in milliseconds at which the {@link #suspended} ports are
+     * accepted from again.
+     */
+    private long resumeAt;
+
+    /**
+     * The number of listening ports which are open.
+     */
+    private final AtomicInteger openCount = new AtomicInteger();
+
+    /**
+     * The number of connections which have been accepted.
+     */
+    private final AtomicLong acceptedCount = new AtomicLong();
+
+    /**
+     * The thread running this acceptor or <tt>null</tt> if it is not running.
+     */
+    private volatile Thread thread;
+
+    /**
+     * Creates a new acceptor. It does not accept until {@link #start()} is
+     * called.
+     * 
+     * @param name the name of the acceptor thread.
+     * @throws IOException if the Selector could not be opened.
+     */
+    public TcpRelayAcceptor(String name)
+        throws IOException
+    {
+        this.name = name;
+        this.selector = Selector.open();
+    }
+
+    /**
+     * Starts the acceptor thread.
+     */
+    public synchronized void start()
+    {
+        if (thread != null)
+            return;
+        Thread t = new Thread(this, name);
+        t.setDaemon(true);
+        thread = t;
+        t.start();
+    }
+
+    /**
+     * Stops the acceptor thread and closes all the listening ports.
+     */
+    public synchronized void stop()
+    {
+        Thread t = thread;
+        thread = null;
+        selector.wakeup();
+        if (t == null)
+            closeAll();
+    }
+
+    /**
+     * Opens a listening port.
+     * 
+     * @param bindAddress the address to listen on.
+     * @param relayAddress the relay address reported as the local address of
+     *            the events of the port.
+     * @param listener the listener of the connections accepted on the port.
+     * @return the listening channel, to be closed with {@link #close}.
+     * @throws IOException if the address could not be bound.
+     */
+    public ServerSocketChannel open(InetSocketAddress bindAddress,
+        TransportAddress relayAddress, TcpConnectEventListener listener)
+        throws IOException
+    {
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        try
+        {
+            channel.socket().bind(bindAddress);
+            channel.configureBlocking(false);
+        }
+        catch (IOException e)
+        {
+            closeQuietly(channel);
+            throw e;
+        }
+        openCount.incrementAndGet();
+        pending.add(new Port(channel, relayAddress, listener));
+        selector.wakeup();
+        return channel;
+    }
+
+    /**
+     * Closes a listening port opened with {@link #open}. The connections
+     * already handed over are not affected.
+     * 
+     * @param channel the listening channel.
+     */
+    public void close(ServerSocketChannel channel)
+    {
+        if (channel == null)
+            return;
+        synchronized (channel)
+        {
+            if (!channel.isOpen())
+                return;
+            closeQuietly(channel);
+        }
+        openCount.decrementAndGet();
+        // the key of the channel is dropped by the next select
+        selector.wakeup();
+    }
+
+    /**
+     * Returns the number of listening ports which are open.
+     */
+    public int getOpenCount()
+    {
+        return openCount.get();
+    }
+
+    /**
+     * Returns the number of connections which have been accepted.
+     */
+    public long getAcceptedCount()
+    {
+        return acceptedCount.get();
+    }
+
+    @Override
+    public void run()
+    {
+        try
+        {
+            while (thread == Thread.currentThread())
+            {
+                registerPending();
+                if (suspended.isEmpty())
+                {
+                    selector.select();
+                }
+                else
+                {
+                    long wait = resumeAt - System.currentTimeMillis();
+                    if (wait > 0)
+                        selector.select(wait);
+                    else
+                        selector.selectNow();
+                    resumeSuspended();
+                }
+
+                Iterator<SelectionKey> keys
+                    = selector.selectedKeys().iterator();
+                while (keys.hasNext())
+                {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (key.isValid() && key.isAcceptable())
+                        accept(key);
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            logger.log(Level.SEVERE, name + " failed", e);
+        }
+        finally
+        {
+            closeAll();
+        }
+    }
+
+    /**
+     * Registers the listening ports queued by {@link #open}.
+     */
+    private void registerPending()
+    {
+        Port port;
+        while ((port = pending.poll()) != null)
+        {
+            try
+            {
+                port.channel.register(
+                    selector, SelectionKey.OP_ACCEPT, port);
+            }
+            catch (ClosedChannelException e)
+            {
+                // closed before it could be registered
+            }
+        }
+    }
+
+    /**
+     * Accepts the pending connections of a listening port and hands them
+     * over to its listener.
+     */
+    private void accept(SelectionKey key)
+    {
+        Port port = (Port) key.attachment();
+        while (true)
+        {
+            SocketChannel channel;
+            try
+            {
+                channel = port.channel.accept();
+            }
+            catch (IOException e)
+            {
+                logger.info("Failed to accept TCP socket on "
+                    + port.relayAddress + ": " + e);
+                // the port stays acceptable, so do not select it for a while
+                // rather than spin on the failure
+                key.interestOps(0);
+                if (suspended.isEmpty())
+                    resumeAt = System.currentTimeMillis() + ACCEPT_BACKOFF;
+                suspended.add(key);
+                return;
+            }
+            if (channel == null)
+                return;
+            acceptedCount.incrementAndGet();
+
+            Socket socket = channel.socket();
+            TransportAddress remoteAddress =
+                new TransportAddress(socket.getInetAddress(),
+                    socket.getPort(), Transport.TCP);
+            logger.finest("Connection Request from " + remoteAddress
+                + " to " + port.relayAddress);
+            try
+            {
+                port.listener.onConnect(new TcpConnectEvent(
+                    port.relayAddress, remoteAddress, channel));
+            }
+            catch (RuntimeException e)
+            {
+                logger.log(Level.WARNING, "Connect listener failed", e);
+                closeQuietly(channel);
+            }
+        }
+    }
+
+    /**
+     * Selects the {@link #suspended} ports again once their backoff is over.
+     */
+    private void resumeSuspended()
+    {
+        if (System.currentTimeMillis() < resumeAt)
+            return;
+        for (SelectionKey key : suspended)
+        {
+            if (key.isValid())
+                key.interestOps(SelectionKey.OP_ACCEPT);
+        }
+        suspended.clear();
+    }
+
+    /**
+     * Closes every listening port which is queued or registered.
+     */
+    private void closeAll()
+    {
+        Port port;
+        while ((port = pending.poll()) != null)
+            closeQuietly(port.channel);
+        try
+        {
+            for (SelectionKey key : selector.keys())
+                closeQuietly(key.channel());
+            selector.close();
+        }
+        catch (IOException e)
+        {
+        }
+        catch (ClosedSelectorException e)
+        {
+        }
+        openCount.set(0);
+    }
+
+    private static void closeQuietly(Channel channel)
+    {
+        try
+        {
+            channel.close();
+        }
+        catch (IOException e)
+        {
+        }
+    }
+
+    /**
+     * A listening port.
+     */
+    private static class Port
+    {
+        final ServerSocketChannel channel;
+
+        /**
+         * The relay address reported as the local address of the events.
+         */
+        final TransportAddress relayAddress;
+
+        final TcpConnectEventListener listener;
+
+        Port(ServerSocketChannel channel, TransportAddress relayAddress,
+            TcpConnectEventListener listener)
+        {
+            this.channel = channel;
+            this.relayAddress = relayAddress;
+            this.listener = listener;
+        }
+    }
+}
@@ -0,0 +1,878 @@
+/*
+ * TurnServer, the OpenSource Java Solution for TURN protocol. Maintained by the
+ * Jitsi community (http://jitsi.org).
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jitsi.turnserver.socket;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.logging.*;
+
+import org.ice4j.*;
+
+/**
+ * Relays the bytes of RFC 6062 TCP connections. Once a client data connection
+ * has been bound to the connection of a peer, the two channels are paired
+ * into a {@link Splice} and the bytes read from either are written to the
+ * other as they are, without being decoded into messages and without any
+ * lookup. The splices are served by a small fixed number of
+ * <tt>Selector</tt> threads, both channels of a splice by the same one.
+ * <p>
+ * Each direction of a splice is a {@link Flow} with a bounded ring buffer of
+ * direct memory, so the memory of a splice is bounded whatever the speeds of
+ * its endpoints: bytes are read into the ring only as far as it has room and
+ * written out of it as fast as the destination accepts them. While the ring
+ * is full the source is not read from, which lets TCP flow control push back
+ * on the sender, and reading resumes once the ring is half empty. The time
+ * spent in this state is accounted as stall time.
+ * </p>
+ * When either connection is lost, both are closed as required by RFC 6062 and
+ * the listener of the splice is notified. A connection which ends its stream
+ * is not read from any more, but what it sent is still passed on before the
+ * end of the stream is passed on and both are closed.
+ */
+public class TcpSpliceEngine
+{
+    /**
+     * The <tt>Logger</tt> used by the <tt>TcpSpliceEngine</tt> class and its
+     * instances for logging output.
+     */
+    private static final Logger logger
+        = Logger.getLogger(TcpSpliceEngine.class.getName());
+
+    /**
+     * The default capacity of the ring buffer of each direction of a splice.
+     */
+    public static final int DEFAULT_BUFFER_SIZE = 65536;
+
+    /**
+     * The event loops.
+     */
+    private final EventLoop[] loops;
+
+    /**
+     * The capacity of the ring buffer of each direction of a splice.
+     */
+    private final int bufferSize;
+
+    /**
+     * Whether Nagle's algorithm is disabled on the spliced connections.
+     */
+    private final boolean tcpNoDelay;
+
+    /**
+     * The size of the socket send and receive buffers of the spliced
+     * connections, 0 to keep the defaults of the system.
+     */
+    private final int socketBufferSize;
+
+    /**
+     * The index of the event loop to which the next splice is assigned.
+     */
+    private final AtomicInteger nextLoop = new AtomicInteger();
+
+    /**
+     * The number of splices currently open.
+     */
+    private final AtomicInteger spliceCount = new AtomicInteger();
+
+    /**
+     * Creates a new engine with the {@link #DEFAULT_BUFFER_SIZE}, Nagle's
+     * algorithm disabled and the socket buffers of the system. It does not
+     * run until {@link #start()} is called.
+     * 
+     * @param name the prefix of the names of the event-loop threads.
+     * @param threads the number of event-loop threads.
+     * @throws IOException if a Selector could not be opened.
+     */
+    public TcpSpliceEngine(String name, int threads)
+        throws IOException
+    {
+        this(name, threads, DEFAULT_BUFFER_SIZE, true, 0);
+    }
+
+    /**
+     * Creates a new engine. It does not run until {@link #start()} is called.
+     * 
+     * @param name the prefix of the names of the event-loop threads.
+     * @param threads the number of event-loop threads.
+     * @param bufferSize the capacity of the ring buffer of each direction of
+     *            a splice.
+     * @param tcpNoDelay whether to disable Nagle's algorithm on the spliced
+     *            connections.
+     * @param socketBufferSize the size of the socket send and receive buffers
+     *            of the spliced connections, 0 to keep the defaults of the
+     *            system.
+     * @throws IOException if a Selector could not be opened.
+     */
+    public TcpSpliceEngine(String name, int threads, int bufferSize,
+        boolean tcpNoDelay, int socketBufferSize)
+        throws IOException
+    {
+        if (threads <= 0)
+            throw new IllegalArgumentException("threads must be positive");
+        if (bufferSize <= 0)
+            throw new IllegalArgumentException("bufferSize must be positive");
+        this.bufferSize = bufferSize;
+        this.tcpNoDelay = tcpNoDelay;
+        this.socketBufferSize = socketBufferSize;
+        this.loops = new EventLoop[threads];
+        for (int i = 0; i < threads; i++)
+            loops[i] = new EventLoop(name + "-" + i);
+    }
+
+    /**
+     * Starts the event-loop threads.
+     */
+    public void start()
+    {
+        for (EventLoop loop : loops)
+            loop.start();
+    }
+
+    /**
+     * Stops the event-loop threads and closes all the splices.
+     */
+    public void stop()
+    {
+        for (EventLoop loop : loops)
+            loop.shutDown();
+    }
+
+    /**
+     * Starts to relay the bytes between a client data connection and a peer
+     * connection. The engine owns both channels from now on.
+     * 
+     * @param client the connected channel of the client data connection.
+     * @param peer the connected channel of the peer connection.
+     * @param listener the listener notified with the addresses of the client
+     *            data connection when the splice is closed because either
+     *            connection is lost, may be <tt>null</tt>.
+     * @return the new splice.
+     * @throws IOException if either channel cannot be configured.
+     */
+    public Splice splice(SocketChannel client, SocketChannel peer,
+        TcpCloseEventListener listener)
+        throws IOException
+    {
+        client.configureBlocking(false);
+        peer.configureBlocking(false);
+
+        Splice splice = new Splice(client, peer, listener);
+        splice.setTcpNoDelay(tcpNoDelay);
+        if (socketBufferSize > 0)
+            splice.setSocketBufferSize(socketBufferSize);
+        spliceCount.incrementAndGet();
+        int index = (nextLoop.getAndIncrement() & Integer.MAX_VALUE)
+            % loops.length;
+        loops[index].register(splice);
+        return splice;
+    }
+
+    /**
+     * @return the number of splices currently open.
+     */
+    public int getSpliceCount()
+    {
+        return spliceCount.get();
+    }
+
+    /**
+     * @return the number of event-loop threads.
+     */
+    public int getThreadCount()
+    {
+        return loops.length;
+    }
+
+    /**
+     * @return the capacity of the ring buffer of each direction of a splice.
+     */
+    public int getBufferSize()
+    {
+        return bufferSize;
+    }
+
+    /**
+     * One direction of a splice: the bytes read from a source channel on
+     * their way to a destination channel through a bounded ring buffer.
+     * The ring and the counters are only written by the event loop.
+     */
+    public class Flow
+    {
+        /**
+         * The ring buffer, allocated on the first read.
+         */
+        private ByteBuffer ring;
+
+        /**
+         * The views of {@link #ring} the bytes are read into, one for the
+         * free space up to the end of the ring and one for the free space
+         * from its start.
+         */
+        private final ByteBuffer[] in = new ByteBuffer[2];
+
+        /**
+         * The views of {@link #ring} the bytes are written from.
+         */
+        private final ByteBuffer[] out = new ByteBuffer[2];
+
+        /**
+         * The total number of bytes read into the ring.
+         */
+        private volatile long bytesIn;
+
+        /**
+         * The total number of bytes written out of the ring.
+         */
+        private volatile long bytesOut;
+
+        /**
+         * The largest number of bytes the ring has held.
+         */
+        private volatile int maxBuffered;
+
+        /**
+         * The number of times reading stopped because the ring was full.
+         */
+        private volatile int stalls;
+
+        /**
+         * The total time in nanoseconds reading was stopped, not including
+         * the current stall.
+         */
+        private volatile long stallTime;
+
+        /**
+         * The <tt>System.nanoTime()</tt> at which the current stall started,
+         * 0 if reading is not stopped.
+         */
+        private volatile long stallStart;
+
+        /**
+         * Whether the source has reached the end of its stream, after which
+         * the ring is only drained.
+         */
+        private boolean ended;
+
+        /**
+         * Reads from a channel into the free space of the ring.
+         * 
+         * @return the number of bytes read, -1 at the end of the stream.
+         */
+        private long fill(SocketChannel src)
+            throws IOException
+        {
+            if (ring == null)
+            {
+                ring = ByteBuffer.allocateDirect(bufferSize);
+                for (int i = 0; i < 2; i++)
+                {
+                    in[i] = ring.duplicate();
+                    out[i] = ring.duplicate();
+                }
+            }
+            int buffered = getBuffered();
+            int free = bufferSize - buffered;
+            if (free == 0)
+                return 0;
+            int tail = (int) (bytesIn % bufferSize);
+            int first = Math.min(free, bufferSize - tail);
+            in[0].limit(tail + first).position(tail);
+            in[1].limit(free - first).position(0);
+
+            long read = src.read(in, 0, (first < free) ? 2 : 1);
+            if (read > 0)
+            {
+                bytesIn += read;
+                if (buffered + read > maxBuffered)
+                    maxBuffered = (int) (buffered + read);
+            }
+            return read;
+        }
+
+        /**
+         * Writes the bytes of the ring to a channel as far as it accepts
+         * them.
+         */
+        private void drain(SocketChannel dst)
+            throws IOException
+        {
+            int buffered = getBuffered();
+            if (buffered == 0)
+                return;
+            int head = (int) (bytesOut % bufferSize);
+            int first = Math.min(buffered, bufferSize - head);
+            out[0].limit(head + first).position(head);
+            out[1].limit(buffered - first).position(0);
+
+            long written = dst.write(out, 0, (first < buffered) ? 2 : 1);
+            if (written > 0)
+                bytesOut += written;
+        }
+
+        /**
+         * @return the total number of bytes relayed in this direction.
+         */
+        public long getBytes()
+        {
+            return bytesOut;
+        }
+
+        /**
+         * @return the number of bytes read but not written yet.
+         */
+        public int getBuffered()
+        {
+            return (int) (bytesIn - bytesOut);
+        }
+
+        /**
+         * @return the largest number of bytes which have been buffered.
+         */
+        public int getMaxBuffered()
+        {
+            return maxBuffered;
+        }
+
+        /**
+         * @return the number of times reading stopped because the ring was
+         *         full.
+         */
+        public int getStalls()
+        {
+            return stalls;
+        }
+
+        /**
+         * @return the total time in milliseconds reading has been stopped
+         *         because the ring was full, including the current stall.
+         */
+        public long getStallTime()
+        {
+            long start = stallStart;
+            long time = stallTime;
+            if (start != 0)
+                time += System.nanoTime() - start;
+            return time / 1000000;
+        }
+
+        /**
+         * @return <tt>true</tt> if reading is stopped because the ring is
+         *         full.
+         */
+        public boolean isStalled()
+        {
+            return stallStart != 0;
+        }
+
+        private void stall()
+        {
+            stalls++;
+            stallStart = System.nanoTime();
+        }
+
+        private void unstall()
+        {
+            stallTime += System.nanoTime() - stallStart;
+            stallStart = 0;
+        }
+    }
+
+    /**
+     * A client data connection and the peer connection it is bound to.
+     */
+    public class Splice
+    {
+        /**
+         * The channel of the client data connection.
+         */
+        private final SocketChannel client;
+
+        /**
+         * The channel of the peer connection.
+         */
+        private final SocketChannel peer;
+
+        /**
+         * The listener to notify when either connection is lost.
+         */
+        private final TcpCloseEventListener listener;
+
+        /**
+         * The local address of the client data connection.
+         */
+        private final TransportAddress localAddress;
+
+        /**
+         * The remote address of the client data connection.
+         */
+        private final TransportAddress remoteAddress;
+
+        /**
+         * The bytes relayed from the client to the peer.
+         */
+        private final Flow toPeer = new Flow();
+
+        /**
+         * The bytes relayed from the peer to the client.
+         */
+        private final Flow toClient = new Flow();
+
+        private SelectionKey clientKey;
+
+        private SelectionKey peerKey;
+
+        /**
+         * Whether the splice has been closed.
+         */
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        private Splice(SocketChannel client, SocketChannel peer,
+            TcpCloseEventListener listener)
+        {
+            this.client = client;
+            this.peer = peer;
+            this.listener = listener;
+            this.localAddress = new TransportAddress(
+                client.socket().getLocalAddress(),
+                client.socket().getLocalPort(), Transport.TCP);
+            this.remoteAddress = new TransportAddress(
+                client.socket().getInetAddress(),
+                client.socket().getPort(), Transport.TCP);
+        }
+
+        /**
+         * @return the local address of the client data connection.
+         */
+        public TransportAddress getLocalAddress()
+        {
+            return localAddress;
+        }
+
+        /**
+         * @return the remote address of the client data connection.
+         */
+        public TransportAddress getRemoteAddress()
+        {
+            return remoteAddress;
+        }
+
+        /**
+         * @return the flow of the bytes relayed from the client to the peer.
+         */
+        public Flow getToPeer()
+        {
+            return toPeer;
+        }
+
+        /**
+         * @return the flow of the bytes relayed from the peer to the client.
+         */
+        public Flow getToClient()
+        {
+            return toClient;
+        }
+
+        /**
+         * @return the number of bytes relayed from the client to the peer.
+         */
+        public long getBytesToPeer()
+        {
+            return toPeer.getBytes();
+        }
+
+        /**
+         * @return the number of bytes relayed from the peer to the client.
+         */
+        public long getBytesToClient()
+        {
+            return toClient.getBytes();
+        }
+
+        /**
+         * Enables or disables Nagle's algorithm on both connections.
+         * 
+         * @param on <tt>true</tt> to disable Nagle's algorithm.
+         * @throws IOException if the option cannot be set.
+         */
+        public void setTcpNoDelay(boolean on)
+            throws IOException
+        {
+            client.socket().setTcpNoDelay(on);
+            peer.socket().setTcpNoDelay(on);
+        }
+
+        /**
+         * @return <tt>true</tt> if Nagle's algorithm is disabled on the client
+         *         data connection.
+         * @throws IOException if the option cannot be read.
+         */
+        public boolean isTcpNoDelay()
+            throws IOException
+        {
+            return client.socket().getTcpNoDelay();
+        }
+
+        /**
+         * Sets the size of the socket send and receive buffers of both
+         * connections.
+         * 
+         * @param size the size in bytes.
+         * @throws IOException if the options cannot be set.
+         */
+        public void setSocketBufferSize(int size)
+            throws IOException
+        {
+            client.socket().setSendBufferSize(size);
+            client.socket().setReceiveBufferSize(size);
+            peer.socket().setSendBufferSize(size);
+            peer.socket().setReceiveBufferSize(size);
+        }
+
+        /**
+         * @return the size of the socket send buffer of the client data
+         *         connection.
+         * @throws IOException if the option cannot be read.
+         */
+        public int getSendBufferSize()
+            throws IOException
+        {
+            return client.socket().getSendBufferSize();
+        }
+
+        /**
+         * @return the size of the socket receive buffer of the client data
+         *         connection.
+         * @throws IOException if the option cannot be read.
+         */
+        public int getReceiveBufferSize()
+            throws IOException
+        {
+            return client.socket().getReceiveBufferSize();
+        }
+
+        /**
+         * @return <tt>true</tt> if this splice has been closed.
+         */
+        public boolean isClosed()
+        {
+            return closed.get();
+        }
+
+        /**
+         * Closes both connections without notifying the listener. Its event
+         * loop drops them on its next select.
+         */
+        public void close()
+        {
+            if (!closed.compareAndSet(false, true))
+                return;
+            spliceCount.decrementAndGet();
+            closeQuietly(client);
+            closeQuietly(peer);
+        }
+
+        /**
+         * Closes both connections after either has been lost and notifies the
+         * listener.
+         */
+        private void closeAndNotify()
+        {
+            if (closed.get())
+                return;
+            close();
+            logger.finest("Splice of " + remoteAddress + " closed");
+            if (listener != null)
+            {
+                try
+                {
+                    listener.onClose(localAddress, remoteAddress);
+                }
+                catch (RuntimeException e)
+                {
+                    logger.log(Level.WARNING, "Close listener failed", e);
+                }
+            }
+        }
+
+        /**
+         * Reads what the client or the peer has sent and relays as much of
+         * it as the other side accepts. Called by the event loop when the
+         * channel of the key is readable.
+         */
+        private void read(SelectionKey key)
+            throws IOException
+        {
+            boolean fromClient = (key == clientKey);
+            Flow flow = fromClient ? toPeer : toClient;
+            SocketChannel dst = fromClient ? peer : client;
+            SelectionKey dstKey = fromClient ? peerKey : clientKey;
+
+            long read = flow.fill(fromClient ? client : peer);
+            if (read < 0)
+            {
+                // stop reading the side which has finished, but pass on all
+                // that is still buffered before closing
+                flow.ended = true;
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                flow.drain(dst);
+                if (flow.getBuffered() == 0)
+                {
+                    finish(dst);
+                }
+                else
+                {
+                    dstKey.interestOps(
+                        dstKey.interestOps() | SelectionKey.OP_WRITE);
+                }
+                return;
+            }
+            flow.drain(dst);
+
+            if (flow.getBuffered() > 0)
+            {
+                dstKey.interestOps(
+                    dstKey.interestOps() | SelectionKey.OP_WRITE);
+                if (flow.getBuffered() == bufferSize)
+                {
+                    // stop reading until the other side catches up
+                    key.interestOps(
+                        key.interestOps() & ~SelectionKey.OP_READ);
+                    flow.stall();
+                }
+            }
+        }
+
+        /**
+         * Writes the bytes buffered for the channel of the key. Called by the
+         * event loop when the channel of the key is writable.
+         */
+        private void write(SelectionKey key)
+            throws IOException
+        {
+            boolean toClientSide = (key == clientKey);
+            Flow flow = toClientSide ? toClient : toPeer;
+            SelectionKey srcKey = toClientSide ? peerKey : clientKey;
+
+            SocketChannel dst = toClientSide ? client : peer;
+            flow.drain(dst);
+            if (flow.getBuffered() == 0)
+            {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                if (flow.ended)
+                {
+                    finish(dst);
+                    return;
+                }
+            }
+            if (flow.isStalled() && flow.getBuffered() <= bufferSize / 2)
+            {
+                srcKey.interestOps(
+                    srcKey.interestOps() | SelectionKey.OP_READ);
+                flow.unstall();
+            }
+        }
+
+        /**
+         * Sends the end of the stream to the destination of a flow whose
+         * source has ended and whose ring is empty, then closes the splice.
+         */
+        private void finish(SocketChannel dst)
+        {
+            try
+            {
+                dst.socket().shutdownOutput();
+            }
+            catch (IOException e)
+            {
+                // closed below anyway
+            }
+            closeAndNotify();
+        }
+    }
+
+    private static void closeQuietly(SocketChannel channel)
+    {
+        try
+        {
+            channel.close();
+        }
+        catch (IOException e)
+        {
+            logger.log(Level.FINE, "Failed to close " + channel, e);
+        }
+    }
+
+    /**
+     * A thread relaying the bytes of the splices registered with its
+     * <tt>Selector</tt>.
+     */
+    private class EventLoop
+        implements Runnable
+    {
+        /**
+         * The name of the thread.
+         */
+        private final String name;
+
+        /**
+         * The selector of the channels served by this loop.
+         */
+        private final Selector selector;
+
+        /**
+         * The splices waiting to be registered with {@link #selector}.
+         */
+        private final Queue<Splice> pending
+            = new ConcurrentLinkedQueue<Splice>();
+
+        /**
+         * The thread running this loop or <tt>null</tt> if it is not running.
+         */
+        private volatile Thread thread;
+
+        EventLoop(String name)
+            throws IOException
+        {
+            this.name = name;
+            this.selector = Selector.open();
+        }
+
+        synchronized void start()
+        {
+            if (thread != null)
+                return;
+            Thread t = new Thread(this, name);
+            t.setDaemon(true);
+            thread = t;
+            t.start();
+        }
+
+        synchronized void shutDown()
+        {
+            Thread t = thread;
+            thread = null;
+            selector.wakeup();
+            if (t == null)
+                closeAll();
+        }
+
+        void register(Splice splice)
+        {
+            pending.add(splice);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                while (thread == Thread.currentThread())
+                {
+                    registerPending();
+                    selector.select();
+
+                    Iterator<SelectionKey> keys
+                        = selector.selectedKeys().iterator();
+                    while (keys.hasNext())
+                    {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+
+                        Splice splice = (Splice) key.attachment();
+                        try
+                        {
+                            if (key.isValid() && key.isWritable())
+                                splice.write(key);
+                            if (key.isValid() && key.isReadable())
+                                splice.read(key);
+                        }
+                        catch (CancelledKeyException e)
+                        {
+                            // closed by its owner meanwhile
+                        }
+                        catch (IOException e)
+                        {
+                            logger.finer("Splice of "
+                                + splice.getRemoteAddress() + " failed: "
+                                + e.getMessage());
+                            splice.closeAndNotify();
+                        }
+                    }
+                }
+            }
+            catch (IOException e)
+            {
+                logger.log(Level.SEVERE, name + " failed", e);
+            }
+            finally
+            {
+                closeAll();
+            }
+        }
+
+        /**
+         * Registers the splices queued by {@link #register}.
+         */
+        private void registerPending()
+        {
+            Splice splice;
+            while ((splice = pending.poll()) != null)
+            {
+                try
+                {
+                    splice.clientKey = splice.client.register(
+                        selector, SelectionKey.OP_READ, splice);
+                    splice.peerKey = splice.peer.register(
+                        selector, SelectionKey.OP_READ, splice);
+                }
+                catch (ClosedChannelException e)
+                {
+                    // Closed before it could be registered.
+                    splice.closeAndNotify();
+                }
+            }
+        }
+
+        /**
+         * Closes the selector and every splice registered with it.
+         */
+        private void closeAll()
+        {
+            Splice splice;
+            while ((splice = pending.poll()) != null)
+                splice.close();
+            for (SelectionKey key : selector.keys())
+                ((Splice) key.attachment()).close();
+            try
+            {
+                selector.close();
+            }
+            catch (IOException e)
+            {
+                logger.log(Level.FINE, "Failed to close selector", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,600 @@
+/*
+ * TurnServer, the OpenSource Java Solution for TURN protocol. Maintained by the
+ * Jitsi community (http://jitsi.org).
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jitsi.turnserver.socket;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.logging.*;
+
+/**
+ * Reads and writes the UDP relay addresses of all the Allocations of a
+ * TurnStack with non-blocking <tt>DatagramChannel</tt>s multiplexed over a
+ * small fixed number of <tt>Selector</tt> threads, instead of one blocking
+ * socket and one reading thread per Allocation.
+ * <p>
+ * Each channel is served by a single event loop for its whole life. Received
+ * datagrams are handed to the {@link DatagramRelayHandler} on that loop, sends
+ * may be issued from any thread and never block: a datagram which does not
+ * fit in the socket send buffer is dropped as it would be on the wire.
+ * </p>
+ * <p>
+ * The event loops are also the shards of the data plane. A channel may be
+ * pinned to the shard of a key, such as the relay port of its Allocation, so
+ * that the datagrams received on it are always handled by the same thread.
+ * Nothing is moved between loops: a datagram is relayed by the thread which
+ * received it.
+ * </p>
+ */
+public class UdpRelayEngine
+{
+    /**
+     * The <tt>Logger</tt> used by the <tt>UdpRelayEngine</tt> class and its
+     * instances for logging output.
+     */
+    private static final Logger logger
+        = Logger.getLogger(UdpRelayEngine.class.getName());
+
+    /**
+     * The size of the receive buffer of an event loop, big enough for any
+     * UDP datagram.
+     */
+    private static final int RECEIVE_BUFFER_SIZE = 65536;
+
+    /**
+     * The number of bytes kept free in front of every received datagram so
+     * that a handler can prepend a header in place, enough for the header of
+     * a Data indication with an IPv6 XOR-PEER-ADDRESS.
+     */
+    public static final int HEADROOM = 64;
+
+    /**
+     * The number of bytes kept free after every received datagram so that a
+     * handler can pad it to a multiple of 4 in place.
+     */
+    public static final int TAILROOM = 4;
+
+    /**
+     * The maximum number of datagrams read from one channel before the event
+     * loop serves the other ready channels.
+     */
+    private static final int MAX_READS_PER_SELECT = 32;
+
+    /**
+     * The shard of the channels and Allocations which are not pinned to one.
+     */
+    public static final int NO_SHARD = -1;
+
+    /**
+     * The handler of the datagrams received on channels registered without
+     * one of their own.
+     */
+    private final DatagramRelayHandler handler;
+
+    /**
+     * The event loops.
+     */
+    private final EventLoop[] loops;
+
+    /**
+     * The index of the event loop to which the next channel is assigned.
+     */
+    private final AtomicInteger nextLoop = new AtomicInteger();
+
+    /**
+     * The channels registered with this engine which have not been closed
+     * through it yet.
+     */
+    private final Set<DatagramChannel> channels =
+        Collections.newSetFromMap(
+            new ConcurrentHashMap<DatagramChannel, Boolean>());
+
+    /**
+     * Creates a new engine. It does not run until {@link #start()} is called.
+     * 
+     * @param name the prefix of the names of the event-loop threads.
+     * @param threads the number of event-loop threads.
+     * @param handler the default handler of the received datagrams.
+     * @throws IOException if a Selector could not be opened.
+     */
+    public UdpRelayEngine(String name, int threads,
+        DatagramRelayHandler handler)
+        throws IOException
+    {
+        if (threads <= 0)
+            throw new IllegalArgumentException("threads must be positive");
+        this.handler = handler;
+        this.loops = new EventLoop[threads];
+        for (int i = 0; i < threads; i++)
+            loops[i] = new EventLoop(name + "-" + i);
+    }
+
+    /**
+     * Starts the event-loop threads.
+     */
+    public void start()
+    {
+        for (EventLoop loop : loops)
+            loop.start();
+    }
+
+    /**
+     * Stops the event-loop threads and closes all the channels.
+     */
+    public void stop()
+    {
+        for (EventLoop loop : loops)
+            loop.shutDown();
+    }
+
+    /**
+     * Opens a non-blocking channel bound to the specified relay address and
+     * registers it with one of the event loops.
+     * 
+     * @param bindAddress the relay address to bind to.
+     * @param attachment the object passed back to the handler with every
+     *            datagram received on the channel.
+     * @return the open channel.
+     * @throws IOException if the address could not be bound.
+     */
+    public DatagramChannel open(InetSocketAddress bindAddress,
+        Object attachment)
+        throws IOException
+    {
+        return open(bindAddress, handler, attachment);
+    }
+
+    /**
+     * Opens a non-blocking channel bound to the specified address and
+     * registers it with one of the event loops and its own handler.
+     * 
+     * @param bindAddress the address to bind to.
+     * @param handler the handler of the datagrams received on the channel.
+     * @param attachment the object passed back to the handler with every
+     *            datagram received on the channel.
+     * @return the open channel.
+     * @throws IOException if the address could not be bound.
+     */
+    public DatagramChannel open(InetSocketAddress bindAddress,
+        DatagramRelayHandler handler, Object attachment)
+        throws IOException
+    {
+        return open(bindAddress, handler, attachment, NO_SHARD);
+    }
+
+    /**
+     * Opens a non-blocking channel bound to the specified relay address and
+     * registers it with the event loop of a shard.
+     * 
+     * @param bindAddress the relay address to bind to.
+     * @param attachment the object passed back to the handler with every
+     *            datagram received on the channel.
+     * @param shard the shard returned by {@link #shardOf(int)}.
+     * @return the open channel.
+     * @throws IOException if the address could not be bound.
+     */
+    public DatagramChannel open(InetSocketAddress bindAddress,
+        Object attachment, int shard)
+        throws IOException
+    {
+        return open(bindAddress, handler, attachment, shard);
+    }
+
+    /**
+     * Opens a non-blocking channel bound to the specified address and
+     * registers it with the event loop of a shard and its own handler.
+     * 
+     * @param bindAddress the address to bind to.
+     * @param handler the handler of the datagrams received on the channel.
+     * @param attachment the object passed back to the handler with every
+     *            datagram received on the channel.
+     * @param shard the shard returned by {@link #shardOf(int)} or
+     *            {@link #NO_SHARD} to pick the event loops in turn.
+     * @return the open channel.
+     * @throws IOException if the address could not be bound.
+     */
+    public DatagramChannel open(InetSocketAddress bindAddress,
+        DatagramRelayHandler handler, Object attachment, int shard)
+        throws IOException
+    {
+        DatagramChannel channel = DatagramChannel.open();
+        try
+        {
+            channel.configureBlocking(false);
+            channel.bind(bindAddress);
+        }
+        catch (IOException e)
+        {
+            channel.close();
+            throw e;
+        }
+        register(channel, handler, attachment, shard);
+        return channel;
+    }
+
+    /**
+     * Registers an already bound channel with one of the event loops. The
+     * channel is put into non-blocking mode.
+     * 
+     * @param channel the bound channel.
+     * @param attachment the object passed back to the handler with every
+     *            datagram received on the channel.
+     * @throws IOException if the channel could not be made non-blocking.
+     */
+    public void register(DatagramChannel channel, Object attachment)
+        throws IOException
+    {
+        register(channel, handler, attachment);
+    }
+
+    /**
+     * Registers an already bound channel with one of the event loops and its
+     * own handler. The channel is put into non-blocking mode.
+     * 
+     * @param channel the bound channel.
+     * @param handler the handler of the datagrams received on the channel.
+     * @param attachment the object passed back to the handler with every
+     *            datagram received on the channel.
+     * @throws IOException if the channel could not be made non-blocking.
+     */
+    public void register(DatagramChannel channel,
+        DatagramRelayHandler handler, Object attachment)
+        throws IOException
+    {
+        register(channel, handler, attachment, NO_SHARD);
+    }
+
+    /**
+     * Registers an already bound channel with the event loop of a shard. The
+     * channel is put into non-blocking mode.
+     * 
+     * @param channel the bound channel.
+     * @param handler the handler of the datagrams received on the channel.
+     * @param attachment the object passed back to the handler with every
+     *            datagram received on the channel.
+     * @param shard the shard returned by {@link #shardOf(int)} or
+     *            {@link #NO_SHARD} to pick the event loops in turn.
+     * @throws IOException if the channel could not be made non-blocking.
+     */
+    public void register(DatagramChannel channel,
+        DatagramRelayHandler handler, Object attachment, int shard)
+        throws IOException
+    {
+        channel.configureBlocking(false);
+        int index = (shard == NO_SHARD)
+            ? (nextLoop.getAndIncrement() & Integer.MAX_VALUE) % loops.length
+            : shard;
+        channels.add(channel);
+        loops[index].register(
+            channel, new Registration(handler, attachment));
+    }
+
+    /**
+     * Registers an already bound channel with the event loop of a shard and
+     * the default handler.
+     * 
+     * @param channel the bound channel.
+     * @param attachment the object passed back to the handler with every
+     *            datagram received on the channel.
+     * @param shard the shard returned by {@link #shardOf(int)}.
+     * @throws IOException if the channel could not be made non-blocking.
+     */
+    public void register(DatagramChannel channel, Object attachment,
+        int shard)
+        throws IOException
+    {
+        register(channel, handler, attachment, shard);
+    }
+
+    /**
+     * Returns the shard of a key. The same key always maps to the same shard
+     * of this engine.
+     * 
+     * @param key the key, for instance the relay port of an Allocation.
+     * @return the index of the event loop serving the key.
+     */
+    public int shardOf(int key)
+    {
+        int h = key * 0x9E3779B9;
+        return ((h ^ (h >>> 16)) & Integer.MAX_VALUE) % loops.length;
+    }
+
+    /**
+     * Closes a channel opened by this engine. Its event loop drops it on its
+     * next select.
+     * 
+     * @param channel the channel to close, may be <tt>null</tt>.
+     */
+    public void close(DatagramChannel channel)
+    {
+        // only the first close of a channel goes past this point
+        if (channel == null || !channels.remove(channel))
+            return;
+        try
+        {
+            channel.close();
+        }
+        catch (IOException e)
+        {
+            logger.log(Level.FINE, "Failed to close " + channel, e);
+        }
+    }
+
+    /**
+     * Sends a datagram from a relay channel without blocking.
+     * 
+     * @param channel the relay channel to send from.
+     * @param data the datagram, between its position and its limit.
+     * @param destination the address to send to.
+     * @return <tt>true</tt> if the datagram was sent, <tt>false</tt> if it was
+     *         dropped because the send buffer is full or the channel closed.
+     */
+    public boolean send(DatagramChannel channel, ByteBuffer data,
+        InetSocketAddress destination)
+    {
+        try
+        {
+            return channel.send(data, destination) != 0
+                || !data.hasRemaining();
+        }
+        catch (IOException e)
+        {
+            logger.finer("Unable to send to " + destination + " from "
+                + channel + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * @return the number of channels currently open.
+     */
+    public int getChannelCount()
+    {
+        return channels.size();
+    }
+
+    /**
+     * @return the number of event-loop threads, which is also the number of
+     *         shards.
+     */
+    public int getThreadCount()
+    {
+        return loops.length;
+    }
+
+    /**
+     * A thread reading the channels registered with its <tt>Selector</tt>.
+     */
+    private class EventLoop
+        implements Runnable
+    {
+        /**
+         * The name of the thread.
+         */
+        private final String name;
+
+        /**
+         * The selector of the channels served by this loop.
+         */
+        private final Selector selector;
+
+        /**
+         * The channels waiting to be registered with {@link #selector}.
+         * Registering from another thread would block for the duration of
+         * the current select.
+         */
+        private final Queue<Registration> pending
+            = new ConcurrentLinkedQueue<Registration>();
+
+        /**
+         * The buffer every datagram of this loop is received into.
+         */
+        private final ByteBuffer buffer
+            = ByteBuffer.allocateDirect(
+                HEADROOM + RECEIVE_BUFFER_SIZE + TAILROOM);
+
+        /**
+         * The thread running this loop or <tt>null</tt> if it is not running.
+         */
+        private volatile Thread thread;
+
+        /**
+         * Whether {@link #shutDown()} has been called. The selector cannot be
+         * used again once it has.
+         */
+        private boolean shutDown;
+
+        EventLoop(String name)
+            throws IOException
+        {
+            this.name = name;
+            this.selector = Selector.open();
+        }
+
+        synchronized void start()
+        {
+            if (thread != null || shutDown)
+                return;
+            Thread t = new Thread(this, name);
+            t.setDaemon(true);
+            thread = t;
+            t.start();
+        }
+
+        synchronized void shutDown()
+        {
+            if (shutDown)
+                return;
+            shutDown = true;
+            Thread t = thread;
+            thread = null;
+            selector.wakeup();
+            if (t == null)
+                closeAll();
+        }
+
+        void register(DatagramChannel channel, Registration registration)
+        {
+            registration.channel = channel;
+            pending.add(registration);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                while (thread == Thread.currentThread())
+                {
+                    registerPending();
+                    selector.select();
+
+                    Iterator<SelectionKey> keys
+                        = selector.selectedKeys().iterator();
+                    while (keys.hasNext())
+                    {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        if (key.isValid() && key.isReadable())
+                            read(key);
+                    }
+                }
+            }
+            catch (IOException e)
+            {
+                logger.log(Level.SEVERE, name + " failed", e);
+            }
+            finally
+            {
+                closeAll();
+            }
+        }
+
+        /**
+         * Registers the channels queued by {@link #register}.
+         */
+        private void registerPending()
+        {
+            Registration registration;
+            while ((registration = pending.poll()) != null)
+            {
+                try
+                {
+                    registration.channel.register(
+                        selector, SelectionKey.OP_READ, registration);
+                }
+                catch (ClosedChannelException e)
+                {
+                    // Closed before it could be registered.
+                }
+            }
+        }
+
+        /**
+         * Reads the datagrams waiting on the channel of a key and hands them
+         * to the handler.
+         */
+        private void read(SelectionKey key)
+        {
+            DatagramChannel channel = (DatagramChannel) key.channel();
+            Registration registration = (Registration) key.attachment();
+
+            for (int i = 0; i < MAX_READS_PER_SELECT; i++)
+            {
+                SocketAddress source;
+                buffer.limit(HEADROOM + RECEIVE_BUFFER_SIZE);
+                buffer.position(HEADROOM);
+                try
+                {
+                    source = channel.receive(buffer);
+                }
+                catch (IOException e)
+                {
+                    // ICMP errors from earlier sends surface here.
+                    logger.finer("Error reading " + channel + ": "
+                        + e.getMessage());
+                    if (!channel.isOpen())
+                        key.cancel();
+                    return;
+                }
+                if (source == null)
+                    return;
+
+                buffer.limit(buffer.position());
+                buffer.position(HEADROOM);
+                try
+                {
+                    registration.handler.handleDatagram(
+                        registration.attachment,
+                        (InetSocketAddress) source,
+                        buffer);
+                }
+                catch (Throwable t)
+                {
+                    if (t instanceof ThreadDeath)
+                        throw (ThreadDeath) t;
+                    logger.log(Level.WARNING,
+                        "Failed to handle a datagram from " + source, t);
+                }
+            }
+        }
+
+        /**
+         * Closes the selector and every channel registered with it.
+         */
+        private void closeAll()
+        {
+            registerPending();
+            for (SelectionKey key : selector.keys())
+                close((DatagramChannel) key.channel());
+            try
+            {
+                selector.close();
+            }
+            catch (IOException e)
+            {
+                logger.log(Level.FINE, "Failed to close selector", e);
+            }
+        }
+    }
+
+    /**
+     * The handler and attachment of a registered channel.
+     */
+    private static class Registration
+    {
+        final DatagramRelayHandler handler;
+
+        final Object attachment;
+
+        DatagramChannel channel;
+
+        Registration(DatagramRelayHandler handler, Object attachment)
+        {
+            this.handler = handler;
+            this.attachment = attachment;
+        }
+    }
+}
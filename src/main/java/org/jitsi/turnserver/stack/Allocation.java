@@ -19,12 +19,19 @@
 
 package org.jitsi.turnserver.stack;
 
-import java.util.HashMap;
-import java.util.Iterator;
+import java.net.InetSocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.util.*;
+import java.util.concurrent.*;
 import java.util.logging.Logger;
 
 import org.ice4j.Transport;
 import org.ice4j.TransportAddress;
+import org.ice4j.socket.*;
+
+import org.jitsi.turnserver.socket.*;
+import org.jitsi.turnserver.util.*;
 
 /**
  * This class is an implementation of Allocations in TURN server.
@@ -45,6 +52,36 @@ public class Allocation
      */
     private final TransportAddress relayAddress;
 
+    /**
+     * The channel bound to the UDP relay address of this Allocation, served
+     * by the relay engine of the TurnStack. <tt>null</tt> for TCP relays.
+     */
+    private volatile DatagramChannel relayChannel;
+
+    /**
+     * The channel listening on the TCP relay address of this Allocation,
+     * served by the TCP relay acceptor of the TurnStack. <tt>null</tt> for
+     * UDP relays.
+     */
+    private volatile ServerSocketChannel tcpRelayChannel;
+
+    /**
+     * The packets and bytes relayed to the peers. Only written by the event
+     * loop of the client-facing socket the ChannelData messages and Send
+     * indications of this Allocation are received on.
+     */
+    private volatile long packetsToPeer;
+
+    private volatile long bytesToPeer;
+
+    /**
+     * The packets and bytes relayed to the client. Only written by the event
+     * loop of {@link #relayChannel}.
+     */
+    private volatile long packetsToClient;
+
+    private volatile long bytesToClient;
+
     /**
      * Represents the FiveTuple associated with this Allocation.
      */
@@ -91,49 +128,59 @@ public class Allocation
     public static final int MAX_CHANNELBIND = 10;
 
     /**
-     * The <tt>Thread</tt> which expires the <tt>Permission</tt>s of this
-     * <tt>Allocation</tt> and removes them from {@link #permissions}.
+     * The timer on which the expiry of this <tt>Allocation</tt>, its
+     * <tt>Permission</tt>s and its <tt>ChannelBind</tt>s is scheduled.
+     * <tt>null</tt> until the Allocation is added to a <tt>TurnStack</tt>.
      */
-    private Thread permissionExpireThread;
+    private volatile TimingWheel expiryTimer;
+
+    /**
+     * The <tt>Timeout</tt> which runs when this <tt>Allocation</tt> expires.
+     */
+    private TimingWheel.Timeout expiryTimeout;
 
     /**
      * Represents the permissions associated with peerAddress IP installed for
-     * this Allocation.
+     * this Allocation, keyed by the packed IP address of the peer.
      */
-    private final HashMap<TransportAddress, Permission> permissions =
-        new HashMap<TransportAddress, Permission>();
+    private final PermissionSet permissions = new PermissionSet();
 
     /**
-     * The <tt>Thread</tt> which expires the <tt>ChannelBind</tt>s of this
-     * <tt>Allocation</tt> and removes them from {@link #channelBindings}.
+     * Represents the Channel Bindings associated with this Allocation, by
+     * channel number and by peerAddress. Read without locking by the relay
+     * threads, changes are synchronized on the table.
      */
-    private Thread channelBindExpireThread;
+    private final ChannelTable channelBindings = new ChannelTable();
 
     /**
-     * Represents the Channel Bindings associated with this Allocation.
+     * The client-facing socket of the relay engine the client reached this
+     * Allocation through or <tt>null</tt>.
      */
-    private final HashMap<Character, ChannelBind> channelBindings =
-        new HashMap<Character, ChannelBind>();
+    private volatile IceUdpChannelSocketWrapper clientSocket;
 
     /**
-     * Contains the mapping of peerAdress of ChannelBinds to Channelno. This is
-     * used to check the peerAddress while creating new Permissions and
-     * ChannelBinds.
+     * The state the relay threads forward the datagrams of this Allocation
+     * with, rebuilt by {@link #publishForwarding()} on every change of the
+     * Permissions or ChannelBinds.
      */
-    private final HashMap<TransportAddress, Character> peerToChannelMap =
-        new HashMap<TransportAddress, Character>();
+    private volatile ForwardingSnapshot forwarding;
+
+    /**
+     * The lock serializing the publication of {@link #forwarding}.
+     */
+    private final Object forwardingLock = new Object();
 
     /**
      * Maps one-to-one from ConnecionID to Data Connection.
      */
-    private final HashMap<Integer,FiveTuple> connIdToDataConnMap
-         = new HashMap<Integer,FiveTuple>();
+    private final Map<Integer,FiveTuple> connIdToDataConnMap
+         = new ConcurrentHashMap<Integer,FiveTuple>();
     
     /**
      * Maps one-to-one from ConnecionID to Peer TCP Connection.
      */
-    private final HashMap<Integer,FiveTuple> connIdToPeerConnMap
-        = new HashMap<Integer,FiveTuple>();
+    private final Map<Integer,FiveTuple> connIdToPeerConnMap
+        = new ConcurrentHashMap<Integer,FiveTuple>();
     
     /**
      * Constructor to instantiate an Allocation without a username and password.
@@ -201,6 +248,7 @@ public class Allocation
         this.username = username;
         this.password = password;
         this.setLifetime(lifetime);
+        this.publishForwarding();
     }
 
     /**
@@ -219,6 +267,137 @@ public class Allocation
         return this.relayAddress;
     }
 
+    /**
+     * Returns the channel bound to the UDP relay address of this Allocation
+     * or <tt>null</tt> if it has none.
+     */
+    public DatagramChannel getRelayChannel()
+    {
+        return this.relayChannel;
+    }
+
+    /**
+     * Sets the channel bound to the UDP relay address of this Allocation.
+     * 
+     * @param relayChannel the channel opened by the relay engine.
+     */
+    void setRelayChannel(DatagramChannel relayChannel)
+    {
+        this.relayChannel = relayChannel;
+    }
+
+    /**
+     * Counts a datagram relayed to a peer. Called by the event loop of the
+     * client-facing socket only.
+     * 
+     * @param bytes the size of the payload.
+     */
+    void countToPeer(int bytes)
+    {
+        packetsToPeer++;
+        bytesToPeer += bytes;
+    }
+
+    /**
+     * Counts a datagram relayed to the client. Called by the event loop of
+     * the relay channel only.
+     * 
+     * @param bytes the size of the payload.
+     */
+    void countToClient(int bytes)
+    {
+        packetsToClient++;
+        bytesToClient += bytes;
+    }
+
+    /**
+     * Returns the number of datagrams relayed to the peers.
+     */
+    public long getPacketsToPeer()
+    {
+        return packetsToPeer;
+    }
+
+    /**
+     * Returns the number of payload bytes relayed to the peers.
+     */
+    public long getBytesToPeer()
+    {
+        return bytesToPeer;
+    }
+
+    /**
+     * Returns the number of datagrams relayed to the client.
+     */
+    public long getPacketsToClient()
+    {
+        return packetsToClient;
+    }
+
+    /**
+     * Returns the number of payload bytes relayed to the client.
+     */
+    public long getBytesToClient()
+    {
+        return bytesToClient;
+    }
+
+    /**
+     * Returns the channel listening on the TCP relay address of this
+     * Allocation or <tt>null</tt> if it has none.
+     */
+    public ServerSocketChannel getTcpRelayChannel()
+    {
+        return this.tcpRelayChannel;
+    }
+
+    /**
+     * Sets the channel listening on the TCP relay address of this
+     * Allocation.
+     * 
+     * @param tcpRelayChannel the channel opened by the TCP relay acceptor.
+     */
+    void setTcpRelayChannel(ServerSocketChannel tcpRelayChannel)
+    {
+        this.tcpRelayChannel = tcpRelayChannel;
+    }
+
+    /**
+     * Returns the current forwarding state of this Allocation. The relay
+     * threads read it once per datagram.
+     */
+    public ForwardingSnapshot getForwarding()
+    {
+        return this.forwarding;
+    }
+
+    /**
+     * Sets the client-facing socket of the relay engine the datagrams to the
+     * client are sent from.
+     * 
+     * @param clientSocket the socket or <tt>null</tt> to go through ice4j.
+     */
+    void setClientSocket(IceUdpChannelSocketWrapper clientSocket)
+    {
+        this.clientSocket = clientSocket;
+        publishForwarding();
+    }
+
+    /**
+     * Builds a new {@link ForwardingSnapshot} from the current ChannelBinds
+     * and Permissions and publishes it. Called after every change so that the
+     * last snapshot published reflects all of them.
+     */
+    private void publishForwarding()
+    {
+        synchronized (this.forwardingLock)
+        {
+            this.forwarding = new ForwardingSnapshot(
+                this.getClientAddress(), this.clientSocket,
+                this.channelBindings.getIndex(), this.permissions.values());
+        }
+    }
+
     /**
      * Returns the clientAddress associated with this Allocation.
      * The client address who instianted this allocation.
@@ -293,10 +472,11 @@ public class Allocation
      * 
      * @param connectionId the ConnectionId corresponding to Client Data
      *            Connection.
+     * @return the removed Client Data Connection or <tt>null</tt>.
      */
-    public void removeDataConnection(int connectionId)
+    public FiveTuple removeDataConnection(int connectionId)
     {
-        this.connIdToDataConnMap.remove(connectionId);
+        return this.connIdToDataConnMap.remove(connectionId);
     }
 
     /**
@@ -304,10 +484,23 @@ public class Allocation
      * 
      * @param connectionId the ConnectionId corresponding to Client Data
      *            Connection.
+     * @return the removed Peer TCP Data Connection or <tt>null</tt>.
      */
-    public void removePeerTCPConnection(int connectionId)
+    public FiveTuple removePeerTCPConnection(int connectionId)
     {
-        this.connIdToPeerConnMap.remove(connectionId);
+        return this.connIdToPeerConnMap.remove(connectionId);
+    }
+
+    /**
+     * Returns the Connection Ids of the Peer TCP and Client Data Connections
+     * of this Allocation.
+     */
+    public Set<Integer> getConnectionIds()
+    {
+        Set<Integer> connectionIds =
+            new HashSet<Integer>(this.connIdToPeerConnMap.keySet());
+        connectionIds.addAll(this.connIdToDataConnMap.keySet());
+        return connectionIds;
     }    
     
     /**
@@ -338,6 +531,10 @@ public class Allocation
         {
             this.expirationTime = System.currentTimeMillis() 
                 + Math.min(lifetime * 1000, Allocation.MAX_LIFETIME);
+            if (this.expiryTimeout != null)
+            {
+                this.expiryTimeout.reschedule(this.expirationTime);
+            }
         }
     }
 
@@ -380,6 +577,47 @@ public class Allocation
         }
     }
     
+    /**
+     * Schedules the expiry of this Allocation and of its Permissions and
+     * ChannelBinds on the specified timer. The <tt>expiryTask</tt> is run
+     * when the lifetime of the Allocation elapses without a refresh.
+     * 
+     * @param expiryTimer the timer of the TurnStack owning this Allocation.
+     * @param expiryTask the task removing this Allocation from the
+     *            TurnStack.
+     */
+    synchronized void startExpiry(TimingWheel expiryTimer, Runnable expiryTask)
+    {
+        if (this.expiryTimer != null)
+        {
+            throw new IllegalStateException(
+                "Allocation expiry has already been started!");
+        }
+        this.expiryTimer = expiryTimer;
+        this.expiryTimeout =
+            expiryTimer.schedule(expiryTask, this.expirationTime);
+        synchronized (this.permissions)
+        {
+            for (Permission permission : this.permissions.values())
+            {
+                schedulePermissionExpiry(permission);
+            }
+        }
+        for (ChannelBind channelBind : this.channelBindings.values())
+        {
+            scheduleChannelBindExpiry(channelBind);
+        }
+    }
+
+    /**
+     * Returns the expiry timer of this Allocation or <tt>null</tt> if it has
+     * not been added to a TurnStack yet.
+     */
+    private TimingWheel getExpiryTimer()
+    {
+        return this.expiryTimer;
+    }
+
     /**
      * Determines whether this <tt>Allocation</tt> is expired now.
      * 
@@ -399,9 +637,27 @@ public class Allocation
     {
         expired = true;
         /*
-         * TurnStack has a background Thread running with the purpose of
-         * removing expired Allocations.
+         * The TurnStack removes the Allocation from its expiry Timeout, all
+         * that is left to do here is to stop the Timeouts of the Permissions
+         * and ChannelBinds.
          */
+        if (this.expiryTimeout != null)
+        {
+            this.expiryTimeout.cancel();
+        }
+        synchronized (this.permissions)
+        {
+            for (Permission permission : this.permissions.values())
+            {
+                if (permission.getExpiryTimeout() != null)
+                    permission.getExpiryTimeout().cancel();
+            }
+        }
+        for (ChannelBind channelBind : this.channelBindings.values())
+        {
+            if (channelBind.getExpiryTimeout() != null)
+                channelBind.getExpiryTimeout().cancel();
+        }
     }
 
     /**
@@ -444,23 +700,24 @@ public class Allocation
      */
     public void addNewPermission(Permission permission)
     {
-        TransportAddress peerAddr =
-            new TransportAddress(permission.getIpAddress().getAddress(), 0,
-                Transport.UDP);
-        if (this.permissions.containsKey(peerAddr))
+        synchronized (this.permissions)
         {
-            this.permissions.get(permission.getIpAddress()).refresh();
-        }
-        else if (!this.canHaveMorePermisions())
-        {
-            return;
-        }
-        else
-        {
-            this.permissions.put(
-                permission.getIpAddress(), permission);
-            maybeStartPermissionExpireThread();
+            Permission existing =
+                this.permissions.get(permission.getIpAddress().getAddress());
+            if (existing != null)
+            {
+                existing.refresh();
+                // publishes the new expiration time to the relay threads
+                this.permissions.put(existing);
+                schedulePermissionExpiry(existing);
+            }
+            else if (this.canHaveMorePermisions())
+            {
+                this.permissions.put(permission);
+                schedulePermissionExpiry(permission);
+            }
         }
+        publishForwarding();
     }
 
     /**
@@ -479,33 +736,28 @@ public class Allocation
                     channelBind.getPeerAddress().getAddress(),
                     0, 
                     Transport.UDP);
-        if (isBadChannelRequest(channelBind))
+        synchronized(this.channelBindings)
         {
-            throw new IllegalArgumentException("400: BAD REQUEST");
-        }
-        else if(!channelBindings.containsKey(channelBind.getChannelNo()) 
-               && !peerToChannelMap.containsKey(channelBind.getPeerAddress()))
-        {
-            synchronized(this.channelBindings)
+            if (isBadChannelRequest(channelBind))
             {
-                this.channelBindings.put(   channelBind.getChannelNo(),
-                                            channelBind);
+                throw new IllegalArgumentException("400: BAD REQUEST");
             }
-            synchronized(this.peerToChannelMap)
+            ChannelBind existing =
+                this.channelBindings.get(channelBind.getChannelNo());
+            if (existing == null)
             {
-                this.peerToChannelMap.put(
-                    channelBind.getPeerAddress(), channelBind.getChannelNo());
+                this.channelBindings.put(channelBind);
             }
-        }
-        else
-        {
-            synchronized(this.channelBindings)
+            else
             {
-                this.channelBindings.get(channelBind.getChannelNo()).refresh();
+                channelBind = existing;
+                channelBind.refresh();
+                this.channelBindings.refresh(channelBind);
             }
         }
+        scheduleChannelBindExpiry(channelBind);
+        // also publishes the ChannelBind
         this.addNewPermission(peerAddr);
-        maybeStartChannelBindExpireThread();
     }
 
     /**
@@ -520,24 +772,16 @@ public class Allocation
      */
     public boolean isBadChannelRequest(ChannelBind channelBind)
     {
-        boolean hasChannelNo =
-            this.channelBindings.containsKey(channelBind.getChannelNo());
-        boolean hasPeerAddr =
-            this.peerToChannelMap.containsKey(channelBind.getPeerAddress());
-        if(hasChannelNo && hasPeerAddr)
+        ChannelBind existing =
+            this.channelBindings.get(channelBind.getChannelNo());
+        char peerChannel =
+            this.channelBindings.getChannel(channelBind.getPeerAddress());
+        if (existing != null)
         {
-            if (this.channelBindings.get(
-                channelBind.getChannelNo()).equals(
-                    channelBind.getPeerAddress()))
-            {
-                return false;
-            }
-      }
-      else if(!hasChannelNo && !hasPeerAddr)
-      {
-          return false;
-      }
-        return true;
+            return !existing.getPeerAddress().equals(
+                channelBind.getPeerAddress());
+        }
+        return peerChannel != ChannelTable.NO_CHANNEL;
     }
     
     /**
@@ -553,7 +797,13 @@ public class Allocation
         synchronized (this.channelBindings)
         {
             channelBind = this.channelBindings.remove(channelNo);
+            if (channelBind != null)
+            {
+                if (channelBind.getExpiryTimeout() != null)
+                    channelBind.getExpiryTimeout().cancel();
+            }
         }
+        publishForwarding();
         return channelBind;
     }
 
@@ -567,16 +817,22 @@ public class Allocation
      */
     public boolean isPermitted(TransportAddress peerAddress)
     {
-        peerAddress =
-            new TransportAddress(peerAddress.getAddress(), 0,
-                peerAddress.getTransport());
-        if (this.permissions.containsKey(peerAddress))
-        {
-            return true;
-        }
-        return false;
+        return this.permissions.isPermitted(peerAddress.getAddress());
     }
     
+    /**
+     * Returns the unexpired Permission installed for the IP address of the
+     * specified peer. Does not lock nor allocate so that it can be called for
+     * every relayed datagram.
+     * 
+     * @param peerAddress the address of the peer, the port is ignored.
+     * @return the Permission or <tt>null</tt> if there is none.
+     */
+    public Permission getPermission(InetSocketAddress peerAddress)
+    {
+        return this.permissions.getPermitted(peerAddress.getAddress());
+    }
+
     /**
      * Checks if the specified channel no is binded to this allocation.
      * 
@@ -587,7 +843,7 @@ public class Allocation
      */
     public boolean containsChannel(char channelNo)
     {
-	return this.channelBindings.containsKey(channelNo);
+	return this.channelBindings.get(channelNo) != null;
     }
 
     /**
@@ -595,14 +851,9 @@ public class Allocation
      * @param peerAddress the peerAddress for which to get the channel.
      * @return channelNo is channelNo is found, else 0x1000.
      */
-    public char getChannel(TransportAddress peerAddress)
+    public char getChannel(InetSocketAddress peerAddress)
     {
-	char val = 0x1000;
-	if(this.peerToChannelMap.containsKey(peerAddress))
-	{
-	    return this.peerToChannelMap.get(peerAddress);
-	}
-	return val;
+	return this.channelBindings.getChannel(peerAddress);
     }
     
     /**
@@ -646,255 +897,121 @@ public class Allocation
     }
 
     /**
-     * Initialises and starts {@link #channelBindExpireThread} if necessary.
+     * Schedules or moves the <tt>Timeout</tt> removing the specified
+     * Permission to its expiration time. Does nothing until this Allocation
+     * has been added to a TurnStack.
+     * 
+     * @param permission the Permission of this Allocation to expire.
      */
-    public void maybeStartChannelBindExpireThread()
+    private void schedulePermissionExpiry(final Permission permission)
     {
-        synchronized (channelBindings)
+        TimingWheel timer = getExpiryTimer();
+        if (timer == null)
         {
-            if (!channelBindings.isEmpty() && (channelBindExpireThread == null))
-            {
-                Thread t = new Thread()
+            return;
+        }
+
+        long deadline = permission.getExpirationTime();
+        if (permission.getExpiryTimeout() != null)
+        {
+            permission.getExpiryTimeout().reschedule(deadline);
+        }
+        else
+        {
+            permission.setExpiryTimeout(timer.schedule(
+                new Runnable()
                 {
                     @Override
                     public void run()
                     {
-                        runInAllocationChannelBindExpireThread();
+                        expirePermission(permission);
                     }
-                };
-
-                t.setDaemon(true);
-                t.setName(getClass().getName() + ".channelBindExpireThread");
-
-                boolean started = false;
-
-                channelBindExpireThread = t;
-                try
-                {
-                    t.start();
-                    started = true;
-                }
-                finally
-                {
-                    if (!started && (channelBindExpireThread == t))
-                        channelBindExpireThread = null;
-                }
-            }
+                }, deadline));
         }
     }
 
     /**
-     * Runs in {@link #channelBindExpireThread} and expires the
-     * <tt>ChannelBind</tt>s of this <tt>Allocation</tt> and removes them from
-     * {@link #channelBindingings}.
+     * Runs when the <tt>Timeout</tt> of a Permission elapses and removes it
+     * from {@link #permissions} unless it has been refreshed meanwhile.
+     * 
+     * @param permission the Permission to expire.
      */
-    private void runInAllocationChannelBindExpireThread()
+    private void expirePermission(Permission permission)
     {
-        try
-        {
-            long idleStartTime = -1;
-
-            do
-            {
-                synchronized (channelBindings)
-                {
-                    try
-                    {
-                        channelBindings.wait(ChannelBind.MAX_LIFETIME);
-                    }
-                    catch (InterruptedException ie)
-                    {
-                    }
-
-                    /*
-                     * Is the current Thread still designated to expire the
-                     * ChannelBinds of this Allocation?
-                     */
-                    if (Thread.currentThread() != channelBindExpireThread)
-                        break;
-
-                    long now = System.currentTimeMillis();
-
-                    /*
-                     * Has the current Thread been idle long enough to merit
-                     * disposing of it?
-                     */
-                    if (channelBindings.isEmpty())
-                    {
-                        if (idleStartTime == -1)
-                            idleStartTime = now;
-                        else if (now - idleStartTime > 60 * 1000)
-                            break;
-                    }
-                    else
-                    {
-                        // Expire the ChannelBinds of this Allocation.
-
-                        idleStartTime = -1;
-
-                        for (Iterator<ChannelBind> i =
-                            channelBindings.values().iterator(); i.hasNext();)
-                        {
-                            ChannelBind channelBind = i.next();
-
-                            if (channelBind == null)
-                            {
-                                i.remove();
-                            }
-                            else if (channelBind.isExpired(now))
-                            {
-                                logger.finer("ChannelBind " + channelBind
-                                    + " expired");
-                                i.remove();
-                                this.peerToChannelMap.remove(
-                                    channelBind.getPeerAddress());
-                                channelBind.expire();
-                            }
-                        }
-                    }
-                }
-            }
-            while (true);
-        }
-        finally
+        synchronized (this.permissions)
         {
-            synchronized (channelBindings)
+            long deadline = permission.getExpirationTime();
+            if (deadline > System.currentTimeMillis())
             {
-                if (channelBindExpireThread == Thread.currentThread())
-                    channelBindExpireThread = null;
-                /*
-                 * If channelBindExpireThread dies unexpectedly and yet it is
-                 * still necessary, resurrect it.
-                 */
-                if (channelBindExpireThread == null)
-                    maybeStartChannelBindExpireThread();
+                permission.getExpiryTimeout().reschedule(deadline);
+                return;
             }
+            this.permissions.remove(permission);
         }
+        publishForwarding();
+        logger.finer("Permission " + permission + " expired");
+        permission.expire();
     }
 
     /**
-     * Initialises and starts {@link #permissionExpireThread} if necessary.
+     * Schedules or moves the <tt>Timeout</tt> removing the specified
+     * ChannelBind to its expiration time. Does nothing until this Allocation
+     * has been added to a TurnStack.
+     * 
+     * @param channelBind the ChannelBind of this Allocation to expire.
      */
-    public void maybeStartPermissionExpireThread()
+    private void scheduleChannelBindExpiry(final ChannelBind channelBind)
     {
-        synchronized (permissions)
+        TimingWheel timer = getExpiryTimer();
+        if (timer == null)
         {
-            if (!permissions.isEmpty() && (permissionExpireThread == null))
-            {
-                Thread t = new Thread()
+            return;
+        }
+
+        long deadline = channelBind.getExpirationTime();
+        if (channelBind.getExpiryTimeout() != null)
+        {
+            channelBind.getExpiryTimeout().reschedule(deadline);
+        }
+        else
+        {
+            channelBind.setExpiryTimeout(timer.schedule(
+                new Runnable()
                 {
                     @Override
                     public void run()
                     {
-                        runInAllocationPermissionExpireThread();
+                        expireChannelBind(channelBind);
                     }
-                };
-
-                t.setDaemon(true);
-                t.setName(getClass().getName() + ".permissionExpireThread");
-
-                boolean started = false;
-
-                permissionExpireThread = t;
-                try
-                {
-                    t.start();
-                    started = true;
-                }
-                finally
-                {
-                    if (!started && (permissionExpireThread == t))
-                        permissionExpireThread = null;
-                }
-            }
+                }, deadline));
         }
     }
 
     /**
-     * Runs in {@link #PermissionExpireThread} and expires the
-     * <tt>Permission</tt>s of this <tt>Allocation</tt> and removes them from
-     * {@link #permissions}.
+     * Runs when the <tt>Timeout</tt> of a ChannelBind elapses and removes it
+     * from {@link #channelBindings} unless it has been refreshed meanwhile.
+     * 
+     * @param channelBind the ChannelBind to expire.
      */
-    private void runInAllocationPermissionExpireThread()
+    private void expireChannelBind(ChannelBind channelBind)
     {
-        try
+        synchronized (this.channelBindings)
         {
-            long idleStartTime = -1;
-
-            do
+            long deadline = channelBind.getExpirationTime();
+            if (deadline > System.currentTimeMillis())
             {
-                synchronized (permissions)
-                {
-                    try
-                    {
-                        permissions.wait(Permission.MAX_LIFETIME);
-                    }
-                    catch (InterruptedException ie)
-                    {
-                    }
-
-                    /*
-                     * Is the current Thread still designated to expire the
-                     * Permissions of this Allocation?
-                     */
-                    if (Thread.currentThread() != permissionExpireThread)
-                        break;
-
-                    long now = System.currentTimeMillis();
-
-                    /*
-                     * Has the current Thread been idle long enough to merit
-                     * disposing of it?
-                     */
-                    if (permissions.isEmpty())
-                    {
-                        if (idleStartTime == -1)
-                            idleStartTime = now;
-                        else if (now - idleStartTime > 60 * 1000)
-                            break;
-                    }
-                    else
-                    {
-                        // Expire the Permissions of this Allocation.
-
-                        idleStartTime = -1;
-
-                        for (Iterator<Permission> i =
-                            permissions.values().iterator(); i.hasNext();)
-                        {
-                            Permission permission = i.next();
-
-                            if (permission == null)
-                            {
-                                i.remove();
-                            }
-                            else if (permission.isExpired(now))
-                            {
-                                logger.finer("Permission " + permission
-                                    + " expired");
-                                i.remove();
-                                permission.expire();
-                            }
-                        }
-                    }
-                }
+                channelBind.getExpiryTimeout().reschedule(deadline);
+                return;
             }
-            while (true);
-        }
-        finally
-        {
-            synchronized (permissions)
+            if (this.channelBindings.get(channelBind.getChannelNo())
+                    == channelBind)
             {
-                if (permissionExpireThread == Thread.currentThread())
-                    permissionExpireThread = null;
-                /*
-                 * If permissionExpireThread dies unexpectedly and yet it is
-                 * still necessary, resurrect it.
-                 */
-                if (permissionExpireThread == null)
-                    maybeStartPermissionExpireThread();
+                this.channelBindings.remove(channelBind.getChannelNo());
             }
         }
+        publishForwarding();
+        logger.finer("ChannelBind " + channelBind + " expired");
+        channelBind.expire();
     }
 
     @Override
@@ -0,0 +1,274 @@
+/*
+ * TurnServer, the OpenSource Java Solution for TURN protocol. Maintained by the
+ * Jitsi community (http://jitsi.org).
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jitsi.turnserver.stack;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import org.ice4j.*;
+
+/**
+ * The server Allocations of a <tt>TurnStack</tt> with all their indexes: by
+ * five tuple, by relay address and the Connection Ids of the TCP connections
+ * of the TCP relays. The state of the Connection Ids themselves is owned by
+ * the {@link ConnectionIdManager}. Lookups go to concurrent maps without
+ * locking. Changes touching several indexes are serialized per key on one of
+ * {@link #STRIPES} locks, so that the indexes stay consistent with each other
+ * while Allocations of different keys are added and expired in parallel.
+ */
+public class AllocationRegistry
+{
+    /**
+     * The number of locks the keys are spread over.
+     */
+    private static final int STRIPES = 64;
+
+    /**
+     * The maximum number of Allocations.
+     */
+    private final int maxAllocations;
+
+    /**
+     * The locks serializing the changes of a key.
+     */
+    private final Object[] stripes = new Object[STRIPES];
+
+    /**
+     * The number of Allocations, reserved before they are indexed.
+     */
+    private final AtomicInteger size = new AtomicInteger();
+
+    /**
+     * The Allocations by the key of their five tuple.
+     */
+    private final ConcurrentHashMap<FiveTupleKey, Allocation> allocations
+        = new ConcurrentHashMap<FiveTupleKey, Allocation>(16, 0.75f, STRIPES);
+
+    /**
+     * The Allocations by relay address.
+     */
+    private final RelayAllocationTable relayAllocations
+        = new RelayAllocationTable();
+
+    /**
+     * Maps one-to-one from the key of a Data Connection to Connection Id.
+     */
+    private final ConcurrentHashMap<FiveTupleKey, Integer> dataConnToConnId
+        = new ConcurrentHashMap<FiveTupleKey, Integer>(16, 0.75f, STRIPES);
+
+    /**
+     * Maps one-to-one from the key of a Peer TCP Connection to Connection Id.
+     */
+    private final ConcurrentHashMap<FiveTupleKey, Integer> peerConnToConnId
+        = new ConcurrentHashMap<FiveTupleKey, Integer>(16, 0.75f, STRIPES);
+
+    /**
+     * Creates an empty registry.
+     * 
+     * @param maxAllocations the maximum number of Allocations.
+     */
+    public AllocationRegistry(int maxAllocations)
+    {
+        this.maxAllocations = maxAllocations;
+        for (int i = 0; i < STRIPES; i++)
+            stripes[i] = new Object();
+    }
+
+    /**
+     * Returns the lock of a key.
+     */
+    private Object stripe(int hash)
+    {
+        return stripes[(hash ^ (hash >>> 16)) & (STRIPES - 1)];
+    }
+
+    /**
+     * Returns the Allocation of a five tuple, even if it has expired.
+     * 
+     * @param key the key of the five tuple.
+     * @return the Allocation or <tt>null</tt>.
+     */
+    public Allocation get(FiveTupleKey key)
+    {
+        return allocations.get(key);
+    }
+
+    /**
+     * Returns the Allocation of a relay address, even if it has expired.
+     * 
+     * @param relayAddress the relay address.
+     * @return the Allocation or <tt>null</tt>.
+     */
+    public Allocation getByRelayAddress(TransportAddress relayAddress)
+    {
+        return relayAllocations.get(relayAddress);
+    }
+
+    /**
+     * Determines whether an Allocation is still in the indexes, expired or
+     * not.
+     * 
+     * @param allocation the Allocation.
+     * @return <tt>true</tt> if it has not been removed.
+     */
+    public boolean contains(Allocation allocation)
+    {
+        return allocations.get(allocation.getFiveTuple().getKey())
+            == allocation;
+    }
+
+    /**
+     * @return the number of Allocations.
+     */
+    public int size()
+    {
+        return size.get();
+    }
+
+    /**
+     * @return <tt>true</tt> if another Allocation can be added.
+     */
+    public boolean hasCapacity()
+    {
+        return size.get() < maxAllocations;
+    }
+
+    /**
+     * Adds an Allocation to all the indexes, unless there is no capacity left
+     * or its five tuple or its relay address is already taken.
+     * 
+     * @param allocation the Allocation to add.
+     * @return <tt>true</tt> if it has been added.
+     */
+    public boolean add(Allocation allocation)
+    {
+        for (;;)
+        {
+            int n = size.get();
+            if (n >= maxAllocations)
+                return false;
+            if (size.compareAndSet(n, n + 1))
+                break;
+        }
+
+        FiveTupleKey key = allocation.getFiveTuple().getKey();
+        synchronized (stripe(key.hashCode()))
+        {
+            if (allocations.putIfAbsent(key, allocation) == null)
+            {
+                if (relayAllocations.putIfAbsent(
+                    allocation.getRelayAddress(), allocation))
+                {
+                    return true;
+                }
+                allocations.remove(key, allocation);
+            }
+        }
+        size.decrementAndGet();
+        return false;
+    }
+
+    /**
+     * Removes an Allocation from all the indexes if it is still in them.
+     * 
+     * @param allocation the Allocation to remove.
+     * @return <tt>true</tt> if it has been removed.
+     */
+    public boolean remove(Allocation allocation)
+    {
+        FiveTupleKey key = allocation.getFiveTuple().getKey();
+        synchronized (stripe(key.hashCode()))
+        {
+            if (!allocations.remove(key, allocation))
+                return false;
+            relayAllocations.remove(allocation.getRelayAddress(), allocation);
+        }
+        size.decrementAndGet();
+        return true;
+    }
+
+    /**
+     * Indexes the peer TCP connection of a Connection Id.
+     * 
+     * @param connectionId the Connection Id.
+     * @param peerTuple the five tuple of the peer TCP connection.
+     */
+    public void addPeerConnection(int connectionId, FiveTuple peerTuple)
+    {
+        synchronized (stripe(connectionId))
+        {
+            peerConnToConnId.put(peerTuple.getKey(), connectionId);
+        }
+    }
+
+    /**
+     * Indexes the client data connection of a Connection Id which has just
+     * been bound.
+     * 
+     * @param connectionId the Connection Id.
+     * @param dataConnTuple the five tuple of the client data connection.
+     */
+    public void addDataConnection(int connectionId, FiveTuple dataConnTuple)
+    {
+        synchronized (stripe(connectionId))
+        {
+            dataConnToConnId.put(dataConnTuple.getKey(), connectionId);
+        }
+    }
+
+    /**
+     * Removes the TCP connections of a Connection Id from the indexes.
+     * 
+     * @param connectionId the Connection Id.
+     * @param peerTuple the five tuple of its peer TCP connection or
+     *            <tt>null</tt>.
+     * @param dataConnTuple the five tuple of its client data connection or
+     *            <tt>null</tt>.
+     */
+    public void removeConnectionId(int connectionId, FiveTuple peerTuple,
+        FiveTuple dataConnTuple)
+    {
+        synchronized (stripe(connectionId))
+        {
+            if (peerTuple != null)
+                peerConnToConnId.remove(peerTuple.getKey(), connectionId);
+            if (dataConnTuple != null)
+                dataConnToConnId.remove(dataConnTuple.getKey(), connectionId);
+        }
+    }
+
+    /**
+     * @param peerTuple the five tuple of a peer TCP connection.
+     * @return its Connection Id or <tt>null</tt>.
+     */
+    public Integer getConnectionIdForPeer(FiveTuple peerTuple)
+    {
+        return peerConnToConnId.get(peerTuple.getKey());
+    }
+
+    /**
+     * @param dataConnTuple the five tuple of a client data connection.
+     * @return its Connection Id or <tt>null</tt>.
+     */
+    public Integer getConnectionIdForDataConn(FiveTuple dataConnTuple)
+    {
+        return dataConnToConnId.get(dataConnTuple.getKey());
+    }
+}
@@ -23,6 +23,8 @@ import java.util.logging.Logger;
 
 import org.ice4j.*;
 
+import org.jitsi.turnserver.util.*;
+
 /**
  * This class is an implementation of ChannelBind in TURN protocol.
  * 
@@ -60,7 +62,13 @@ public class ChannelBind
     /**
      * Determines whether or not the ChannelBinding has expired.
      */
-    private boolean expired = true;
+    private boolean expired = false;
+
+    /**
+     * The <tt>Timeout</tt> which removes this ChannelBind from its Allocation
+     * once it expires.
+     */
+    private TimingWheel.Timeout expiryTimeout;
 
     /**
      * Creates a new ChannelBind object with MAX_LIFETIME as default lifetime
@@ -137,6 +145,32 @@ public class ChannelBind
         return channelNo;
     }
  
+    /**
+     * Returns the time in milliseconds at which this ChannelBind expires.
+     */
+    synchronized long getExpirationTime()
+    {
+        return this.expirationTime;
+    }
+
+    /**
+     * Returns the <tt>Timeout</tt> which expires this ChannelBind.
+     */
+    TimingWheel.Timeout getExpiryTimeout()
+    {
+        return this.expiryTimeout;
+    }
+
+    /**
+     * Sets the <tt>Timeout</tt> which expires this ChannelBind.
+     *
+     * @param expiryTimeout the timeout scheduled at the expiration time.
+     */
+    void setExpiryTimeout(TimingWheel.Timeout expiryTimeout)
+    {
+        this.expiryTimeout = expiryTimeout;
+    }
+
     /**
      * Returns the lifetime associated with this ChannelBind.
      * If the ChannelBind is expired it returns 0. 
@@ -225,8 +259,8 @@ public class ChannelBind
     {
         expired = true;
         /*
-         * Allocation has a background Thread running with the purpose of
-         * removing expired ChannelBinds.
+         * The Allocation schedules a Timeout on the TurnStack expiry timer
+         * with the purpose of removing expired ChannelBinds.
          */
     }
     
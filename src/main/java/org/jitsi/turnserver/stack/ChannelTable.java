@@ -0,0 +1,310 @@
+/*
+ * TurnServer, the OpenSource Java Solution for TURN protocol. Maintained by the
+ * Jitsi community (http://jitsi.org).
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.turnserver.stack;
+
+import java.net.*;
+import java.util.*;
+
+/**
+ * The ChannelBinds of an Allocation, indexed by channel number in an array
+ * covering the channel space 0x4000 through 0x7FFF and by peer transport
+ * address in a {@link PackedAddressTable}. Both indexes, with the expiration
+ * times of the ChannelBinds, make up one immutable {@link Index} replaced by
+ * a single reference swap on every change, so the relay threads read them
+ * without locking, boxing or hashing objects and never see one index ahead
+ * of the other. Changes are rare and serialized on the table.
+ */
+public class ChannelTable
+{
+    /**
+     * The lowest channel number.
+     */
+    public static final char MIN_CHANNEL = 0x4000;
+
+    /**
+     * The highest channel number.
+     */
+    public static final char MAX_CHANNEL = 0x7FFF;
+
+    /**
+     * The value returned by {@link #getChannel(InetSocketAddress)} for a peer
+     * without channel.
+     */
+    public static final char NO_CHANNEL = 0x1000;
+
+    /**
+     * The number of bits of the index within a page.
+     */
+    private static final int PAGE_BITS = 8;
+
+    private static final int PAGE_SIZE = 1 << PAGE_BITS;
+
+    /**
+     * The number of pages covering the channel space.
+     */
+    private static final int PAGE_COUNT =
+        (MAX_CHANNEL - MIN_CHANNEL + 1) >>> PAGE_BITS;
+
+    /**
+     * The current index.
+     */
+    private volatile Index index = new Index(
+        new ChannelBind[PAGE_COUNT][], new long[PAGE_COUNT][],
+        PackedAddressTable.<ChannelBind>empty());
+
+    /**
+     * @return the current index, which does not change when the table does.
+     */
+    public Index getIndex()
+    {
+        return index;
+    }
+
+    /**
+     * Returns the ChannelBind of a channel number.
+     * 
+     * @param channelNo the channel number.
+     * @return the ChannelBind or <tt>null</tt> if the channel is not bound.
+     */
+    public ChannelBind get(char channelNo)
+    {
+        return index.get(channelNo);
+    }
+
+    /**
+     * Returns the channel number bound to a peer.
+     * 
+     * @param peerAddress the transport address of the peer.
+     * @return the channel number or {@link #NO_CHANNEL}.
+     */
+    public char getChannel(InetSocketAddress peerAddress)
+    {
+        return index.getChannel(peerAddress);
+    }
+
+    /**
+     * @return the number of ChannelBinds.
+     */
+    public int size()
+    {
+        return index.peers.size();
+    }
+
+    /**
+     * @return a copy of the ChannelBinds.
+     */
+    public List<ChannelBind> values()
+    {
+        return index.peers.values();
+    }
+
+    /**
+     * Binds the channel number of a ChannelBind to its peer, replacing any
+     * ChannelBind of the same channel number or of the same peer.
+     * 
+     * @param channelBind the ChannelBind to add.
+     * @return the ChannelBind replaced for the channel number or
+     *         <tt>null</tt>.
+     */
+    public synchronized ChannelBind put(ChannelBind channelBind)
+    {
+        Index index = this.index;
+        ChannelBind previous = index.get(channelBind.getChannelNo());
+        if (previous != null)
+            index = index.without(previous);
+        char peerChannel = index.getChannel(channelBind.getPeerAddress());
+        if (peerChannel != NO_CHANNEL)
+            index = index.without(index.get(peerChannel));
+        this.index = index.with(channelBind);
+        return previous;
+    }
+
+    /**
+     * Publishes the current expiration time of a ChannelBind of the table,
+     * after it has been refreshed.
+     * 
+     * @param channelBind the refreshed ChannelBind.
+     */
+    public synchronized void refresh(ChannelBind channelBind)
+    {
+        if (index.get(channelBind.getChannelNo()) == channelBind)
+            index = index.with(channelBind);
+    }
+
+    /**
+     * Removes the ChannelBind of a channel number.
+     * 
+     * @param channelNo the channel number.
+     * @return the removed ChannelBind or <tt>null</tt>.
+     */
+    public synchronized ChannelBind remove(char channelNo)
+    {
+        ChannelBind channelBind = index.get(channelNo);
+        if (channelBind != null)
+            index = index.without(channelBind);
+        return channelBind;
+    }
+
+    /**
+     * An immutable state of a {@link ChannelTable}: its ChannelBinds with
+     * their expiration times by channel number and by peer.
+     */
+    public static final class Index
+    {
+        /**
+         * The ChannelBinds by channel number, in pages of {@link #PAGE_SIZE}
+         * allocated on demand.
+         */
+        private final ChannelBind[][] pages;
+
+        /**
+         * The expiration times of {@link #pages}.
+         */
+        private final long[][] deadlines;
+
+        /**
+         * The ChannelBinds by peer address, with their expiration times.
+         */
+        private final PackedAddressTable<ChannelBind> peers;
+
+        private Index(ChannelBind[][] pages, long[][] deadlines,
+            PackedAddressTable<ChannelBind> peers)
+        {
+            this.pages = pages;
+            this.deadlines = deadlines;
+            this.peers = peers;
+        }
+
+        /**
+         * Returns the ChannelBind of a channel number.
+         * 
+         * @param channelNo the channel number.
+         * @return the ChannelBind or <tt>null</tt> if the channel is not
+         *         bound.
+         */
+        public ChannelBind get(char channelNo)
+        {
+            if (channelNo < MIN_CHANNEL || channelNo > MAX_CHANNEL)
+                return null;
+            int i = channelNo - MIN_CHANNEL;
+            ChannelBind[] page = pages[i >>> PAGE_BITS];
+            return (page == null) ? null : page[i & (PAGE_SIZE - 1)];
+        }
+
+        /**
+         * Returns the peer bound to a channel.
+         * 
+         * @param channelNo the channel number.
+         * @param now the current time in milliseconds.
+         * @return the address of the peer or <tt>null</tt> if the channel is
+         *         not bound or has expired.
+         */
+        public InetSocketAddress getPeer(char channelNo, long now)
+        {
+            if (channelNo < MIN_CHANNEL || channelNo > MAX_CHANNEL)
+                return null;
+            int i = channelNo - MIN_CHANNEL;
+            ChannelBind[] page = pages[i >>> PAGE_BITS];
+            if (page == null)
+                return null;
+            ChannelBind channelBind = page[i & (PAGE_SIZE - 1)];
+            return (channelBind != null
+                    && deadlines[i >>> PAGE_BITS][i & (PAGE_SIZE - 1)] >= now)
+                ? channelBind.getPeerAddress() : null;
+        }
+
+        /**
+         * Returns the channel number bound to a peer.
+         * 
+         * @param peerAddress the transport address of the peer.
+         * @return the channel number or {@link #NO_CHANNEL}.
+         */
+        public char getChannel(InetSocketAddress peerAddress)
+        {
+            InetAddress address = peerAddress.getAddress();
+            int i = peers.find(PackedAddress.high(address),
+                PackedAddress.low(address), peerAddress.getPort());
+            return (i < 0) ? NO_CHANNEL : peers.valueAt(i).getChannelNo();
+        }
+
+        /**
+         * Returns the channel number bound to a peer unless it has expired.
+         * 
+         * @param peerAddress the transport address of the peer.
+         * @param now the current time in milliseconds.
+         * @return the channel number or {@link #NO_CHANNEL}.
+         */
+        public char getChannel(InetSocketAddress peerAddress, long now)
+        {
+            InetAddress address = peerAddress.getAddress();
+            int i = peers.find(PackedAddress.high(address),
+                PackedAddress.low(address), peerAddress.getPort());
+            return (i >= 0 && peers.deadlineAt(i) >= now)
+                ? peers.valueAt(i).getChannelNo() : NO_CHANNEL;
+        }
+
+        /**
+         * Returns a copy of this index with a ChannelBind set in its slot and
+         * for its peer, with its current expiration time.
+         */
+        private Index with(ChannelBind channelBind)
+        {
+            InetSocketAddress peer = channelBind.getPeerAddress();
+            long deadline = channelBind.getExpirationTime();
+            return copy(channelBind.getChannelNo(), channelBind, deadline,
+                peers.with(PackedAddress.high(peer.getAddress()),
+                    PackedAddress.low(peer.getAddress()), peer.getPort(),
+                    channelBind, deadline));
+        }
+
+        /**
+         * Returns a copy of this index without a ChannelBind it contains.
+         */
+        private Index without(ChannelBind channelBind)
+        {
+            InetSocketAddress peer = channelBind.getPeerAddress();
+            return copy(channelBind.getChannelNo(), null, 0,
+                peers.without(PackedAddress.high(peer.getAddress()),
+                    PackedAddress.low(peer.getAddress()), peer.getPort()));
+        }
+
+        /**
+         * Returns a copy of this index with the slot of a channel number set
+         * and the given peer table.
+         */
+        private Index copy(char channelNo, ChannelBind channelBind,
+            long deadline, PackedAddressTable<ChannelBind> peers)
+        {
+            int i = channelNo - MIN_CHANNEL;
+            int p = i >>> PAGE_BITS;
+            ChannelBind[][] newPages = pages.clone();
+            long[][] newDeadlines = deadlines.clone();
+            ChannelBind[] page = newPages[p];
+            long[] deadlinePage = newDeadlines[p];
+            page = (page == null) ? new ChannelBind[PAGE_SIZE] : page.clone();
+            deadlinePage = (deadlinePage == null)
+                ? new long[PAGE_SIZE] : deadlinePage.clone();
+            page[i & (PAGE_SIZE - 1)] = channelBind;
+            deadlinePage[i & (PAGE_SIZE - 1)] = deadline;
+            newPages[p] = page;
+            newDeadlines[p] = deadlinePage;
+            return new Index(newPages, newDeadlines, peers);
+        }
+    }
+}
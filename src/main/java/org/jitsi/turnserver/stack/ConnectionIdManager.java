@@ -0,0 +1,408 @@
+/*
+ * TurnServer, the OpenSource Java Solution for TURN protocol. Maintained by the
+ * Jitsi community (http://jitsi.org).
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jitsi.turnserver.stack;
+
+import java.io.*;
+import java.nio.channels.*;
+import java.util.concurrent.atomic.*;
+import java.util.logging.*;
+
+import org.jitsi.turnserver.socket.*;
+import org.jitsi.turnserver.util.*;
+
+/**
+ * Manages the life of the RFC 6062 Connection Ids of a <tt>TurnStack</tt>
+ * and of the TCP connections they own. A Connection Id is pending from the
+ * moment its peer connection is established until its client data
+ * connection is bound with a ConnectionBind request, and bound afterwards.
+ * A Connection Id which is still pending at its bind deadline expires: its
+ * peer connection is closed right away and the {@link ExpiryListener} is
+ * notified so that the Connection Id is removed from the indexes of the
+ * stack.
+ * <p>
+ * The Connection Ids are kept in an {@link IntObjectTable} and their
+ * deadlines on the expiry {@link TimingWheel} of the stack, so that neither
+ * the lookups nor the deadlines box or scan anything.
+ * </p>
+ */
+public class ConnectionIdManager
+{
+    /**
+     * The <tt>Logger</tt> used by the <tt>ConnectionIdManager</tt> class and
+     * its instances for logging output.
+     */
+    private static final Logger logger
+        = Logger.getLogger(ConnectionIdManager.class.getName());
+
+    /**
+     * Notified when a Connection Id expires.
+     */
+    public interface ExpiryListener
+    {
+        /**
+         * Notifies that a Connection Id has not been bound before its
+         * deadline. Its peer connection has already been closed.
+         * 
+         * @param connectionId the expired Connection Id.
+         * @param allocation the Allocation it belonged to.
+         */
+        public void connectionIdExpired(int connectionId,
+            Allocation allocation);
+    }
+
+    private static final int PENDING = 0;
+
+    private static final int BOUND = 1;
+
+    private static final int RELEASED = 2;
+
+    /**
+     * The Connection Ids which are pending or bound.
+     */
+    private final IntObjectTable<Entry> entries = new IntObjectTable<Entry>();
+
+    /**
+     * The timer running the bind deadlines.
+     */
+    private final TimingWheel timer;
+
+    /**
+     * The time in milliseconds a Connection Id waits to be bound.
+     */
+    private final long bindTimeout;
+
+    /**
+     * The listener notified when a Connection Id expires.
+     */
+    private final ExpiryListener listener;
+
+    /**
+     * The number of Connection Ids which are pending.
+     */
+    private final AtomicInteger pendingCount = new AtomicInteger();
+
+    /**
+     * The number of Connection Ids which are bound.
+     */
+    private final AtomicInteger boundCount = new AtomicInteger();
+
+    /**
+     * The number of Connection Ids which have expired.
+     */
+    private final AtomicLong expiredCount = new AtomicLong();
+
+    /**
+     * Creates a manager.
+     * 
+     * @param timer the timer to run the bind deadlines on.
+     * @param bindTimeout the time in milliseconds a Connection Id waits to be
+     *            bound.
+     * @param listener the listener notified when a Connection Id expires.
+     */
+    public ConnectionIdManager(TimingWheel timer, long bindTimeout,
+        ExpiryListener listener)
+    {
+        this.timer = timer;
+        this.bindTimeout = bindTimeout;
+        this.listener = listener;
+    }
+
+    /**
+     * Adds a pending Connection Id and starts its bind deadline.
+     * 
+     * @param connectionId the Connection Id.
+     * @param allocation the Allocation it belongs to.
+     * @param peerChannel the channel of its peer connection, or <tt>null</tt>
+     *            if the connection is served by the stack.
+     * @return <tt>false</tt> if the Connection Id is already in use.
+     */
+    public boolean add(final int connectionId, Allocation allocation,
+        SocketChannel peerChannel)
+    {
+        final Entry entry = new Entry(allocation, peerChannel);
+        if (entries.putIfAbsent(connectionId, entry) != null)
+            return false;
+        pendingCount.incrementAndGet();
+        synchronized (entry)
+        {
+            if (entry.state != PENDING)
+                return true;
+            entry.expiry = timer.schedule(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    expire(connectionId, entry);
+                }
+            }, System.currentTimeMillis() + bindTimeout);
+        }
+        return true;
+    }
+
+    /**
+     * Binds a pending Connection Id, which stops its deadline.
+     * 
+     * @param connectionId the Connection Id.
+     * @return <tt>true</tt> if it was pending and is now bound.
+     */
+    public boolean bind(int connectionId)
+    {
+        Entry entry = entries.get(connectionId);
+        if (entry == null)
+            return false;
+        synchronized (entry)
+        {
+            if (entry.state != PENDING)
+                return false;
+            entry.state = BOUND;
+            if (entry.expiry != null)
+                entry.expiry.cancel();
+        }
+        pendingCount.decrementAndGet();
+        boundCount.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Takes the channel of the peer connection of a bound Connection Id so
+     * that it can be spliced to the client data connection.
+     * 
+     * @param connectionId the Connection Id.
+     * @return the channel or <tt>null</tt> if it has none or it has been
+     *         taken already.
+     */
+    public SocketChannel takePeerChannel(int connectionId)
+    {
+        Entry entry = entries.get(connectionId);
+        if (entry == null)
+            return null;
+        synchronized (entry)
+        {
+            SocketChannel channel = entry.peerChannel;
+            entry.peerChannel = null;
+            return channel;
+        }
+    }
+
+    /**
+     * Sets the splice relaying the bytes of a bound Connection Id. It is
+     * closed when the Connection Id is released.
+     * 
+     * @param connectionId the Connection Id.
+     * @param splice the splice.
+     * @return <tt>false</tt> if the Connection Id has been released
+     *         meanwhile, in which case the splice has been closed.
+     */
+    public boolean setSplice(int connectionId, TcpSpliceEngine.Splice splice)
+    {
+        Entry entry = entries.get(connectionId);
+        if (entry != null)
+        {
+            synchronized (entry)
+            {
+                if (entry.state == BOUND)
+                {
+                    entry.splice = splice;
+                    return true;
+                }
+            }
+        }
+        splice.close();
+        return false;
+    }
+
+    /**
+     * @param connectionId a Connection Id.
+     * @return its splice or <tt>null</tt> if it is not spliced.
+     */
+    public TcpSpliceEngine.Splice getSplice(int connectionId)
+    {
+        Entry entry = entries.get(connectionId);
+        if (entry == null)
+            return null;
+        synchronized (entry)
+        {
+            return entry.splice;
+        }
+    }
+
+    /**
+     * @param connectionId a Connection Id.
+     * @return the Allocation of the Connection Id or <tt>null</tt> if it is
+     *         neither pending nor bound.
+     */
+    public Allocation getAllocation(int connectionId)
+    {
+        Entry entry = entries.get(connectionId);
+        return (entry == null) ? null : entry.allocation;
+    }
+
+    /**
+     * @param connectionId a Connection Id.
+     * @return <tt>true</tt> if it is waiting to be bound.
+     */
+    public boolean isPending(int connectionId)
+    {
+        Entry entry = entries.get(connectionId);
+        if (entry == null)
+            return false;
+        synchronized (entry)
+        {
+            return entry.state == PENDING;
+        }
+    }
+
+    /**
+     * Releases a Connection Id, pending or bound, and closes the connections
+     * it owns.
+     * 
+     * @param connectionId the Connection Id.
+     */
+    public void release(int connectionId)
+    {
+        Entry entry = entries.remove(connectionId);
+        if (entry != null)
+            close(entry);
+    }
+
+    /**
+     * Releases the Connection Id of an expired entry if it is still pending.
+     */
+    private void expire(int connectionId, Entry entry)
+    {
+        synchronized (entry)
+        {
+            if (entry.state != PENDING)
+                return;
+        }
+        if (!entries.remove(connectionId, entry) || !close(entry))
+            return;
+        expiredCount.incrementAndGet();
+        logger.finest("Connection Id " + connectionId + " expired");
+        try
+        {
+            listener.connectionIdExpired(connectionId, entry.allocation);
+        }
+        catch (RuntimeException e)
+        {
+            logger.log(Level.WARNING, "Expiry listener failed", e);
+        }
+    }
+
+    /**
+     * Marks an entry released and closes what it owns.
+     * 
+     * @return <tt>true</tt> if it was pending.
+     */
+    private boolean close(Entry entry)
+    {
+        SocketChannel channel;
+        TcpSpliceEngine.Splice splice;
+        int state;
+        synchronized (entry)
+        {
+            state = entry.state;
+            if (state == RELEASED)
+                return false;
+            entry.state = RELEASED;
+            if (entry.expiry != null)
+                entry.expiry.cancel();
+            channel = entry.peerChannel;
+            splice = entry.splice;
+            entry.peerChannel = null;
+            entry.splice = null;
+        }
+        if (state == PENDING)
+            pendingCount.decrementAndGet();
+        else
+            boundCount.decrementAndGet();
+        if (splice != null)
+            splice.close();
+        if (channel != null)
+        {
+            try
+            {
+                channel.close();
+            }
+            catch (IOException e)
+            {
+                logger.log(Level.FINE, "Failed to close " + channel, e);
+            }
+        }
+        return state == PENDING;
+    }
+
+    /**
+     * @return the number of Connection Ids waiting to be bound.
+     */
+    public int getPendingCount()
+    {
+        return pendingCount.get();
+    }
+
+    /**
+     * @return the number of bound Connection Ids.
+     */
+    public int getBoundCount()
+    {
+        return boundCount.get();
+    }
+
+    /**
+     * @return the number of Connection Ids which have expired.
+     */
+    public long getExpiredCount()
+    {
+        return expiredCount.get();
+    }
+
+    /**
+     * @return the number of Connection Ids which are pending or bound.
+     */
+    public int size()
+    {
+        return entries.size();
+    }
+
+    /**
+     * The state of a Connection Id and the resources it owns.
+     */
+    private static class Entry
+    {
+        final Allocation allocation;
+
+        int state = PENDING;
+
+        /**
+         * The channel of the peer connection until it is spliced.
+         */
+        SocketChannel peerChannel;
+
+        TcpSpliceEngine.Splice splice;
+
+        TimingWheel.Timeout expiry;
+
+        Entry(Allocation allocation, SocketChannel peerChannel)
+        {
+            this.allocation = allocation;
+            this.peerChannel = peerChannel;
+        }
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * TurnServer, the OpenSource Java Solution for TURN protocol. Maintained by the
+ * Jitsi community (http://jitsi.org).
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jitsi.turnserver.stack;
+
+import java.net.*;
+import java.nio.*;
+
+import org.jitsi.turnserver.util.*;
+
+/**
+ * Frames a datagram received from a peer as a Data indication in place, by
+ * writing the STUN header, the XOR-PEER-ADDRESS and the DATA attribute header
+ * in front of the payload and the padding after it, without building any
+ * Message or Attribute objects. The X-Address of the peer is precomputed
+ * once per Permission by {@link #xorAddress(InetAddress)}.
+ */
+public class DataIndicationEncoder
+{
+    /**
+     * The message type of a Data indication.
+     */
+    private static final char DATA_INDICATION = 0x0017;
+
+    /**
+     * The type of the XOR-PEER-ADDRESS attribute.
+     */
+    private static final char XOR_PEER_ADDRESS = 0x0012;
+
+    /**
+     * The type of the DATA attribute.
+     */
+    private static final char DATA = 0x0013;
+
+    /**
+     * The STUN magic cookie.
+     */
+    private static final int MAGIC_COOKIE = 0x2112A442;
+
+    /**
+     * The length of the STUN header.
+     */
+    private static final int HEADER_LENGTH = 20;
+
+    /**
+     * The length of an attribute header.
+     */
+    private static final int ATTRIBUTE_HEADER_LENGTH = 4;
+
+    /**
+     * The largest number of bytes written in front of the payload, with an
+     * IPv6 peer address.
+     */
+    public static final int MAX_OVERHEAD =
+        HEADER_LENGTH + ATTRIBUTE_HEADER_LENGTH + 20 + ATTRIBUTE_HEADER_LENGTH;
+
+    /**
+     * The generator of the transaction IDs.
+     */
+    private final TransactionIdGenerator transactionIds;
+
+    /**
+     * Creates an encoder.
+     * 
+     * @param transactionIds the generator of the transaction IDs.
+     */
+    public DataIndicationEncoder(TransactionIdGenerator transactionIds)
+    {
+        this.transactionIds = transactionIds;
+    }
+
+    /**
+     * Computes the X-Address of a peer, the address XOR'ed with the magic
+     * cookie. For IPv6 only the first 4 bytes are XOR'ed here, the other 12
+     * are XOR'ed with the transaction ID by {@link #encode}.
+     * 
+     * @param address the address of the peer.
+     * @return the 4 or 16 bytes of the X-Address.
+     */
+    public static byte[] xorAddress(InetAddress address)
+    {
+        byte[] bytes = address.getAddress();
+        for (int i = 0; i < 4; i++)
+            bytes[i] ^= (byte) (MAGIC_COOKIE >>> (24 - 8 * i));
+        return bytes;
+    }
+
+    /**
+     * Turns the payload between the position and the limit of a buffer into a
+     * Data indication. On return the buffer holds the whole message between
+     * its position and its limit.
+     * 
+     * @param data the payload, with at least {@link #MAX_OVERHEAD} bytes
+     *            before its position and 3 after its limit.
+     * @param xorPeerAddress the X-Address of the peer.
+     * @param peerPort the port of the peer.
+     */
+    public void encode(ByteBuffer data, byte[] xorPeerAddress, int peerPort)
+    {
+        int payloadLength = data.remaining();
+        int padding = (-payloadLength) & 3;
+        int peerAttributeLength = 4 + xorPeerAddress.length;
+        int start = data.position() - HEADER_LENGTH - ATTRIBUTE_HEADER_LENGTH
+            - peerAttributeLength - ATTRIBUTE_HEADER_LENGTH;
+        int index = start;
+
+        data.putChar(index, DATA_INDICATION);
+        data.putChar(index + 2, (char) (ATTRIBUTE_HEADER_LENGTH
+            + peerAttributeLength + ATTRIBUTE_HEADER_LENGTH + payloadLength
+            + padding));
+        data.putInt(index + 4, MAGIC_COOKIE);
+        transactionIds.next(data, index + 8);
+        index += HEADER_LENGTH;
+
+        data.putChar(index, XOR_PEER_ADDRESS);
+        data.putChar(index + 2, (char) peerAttributeLength);
+        data.put(index + 4, (byte) 0);
+        data.put(index + 5, (byte) (xorPeerAddress.length == 4 ? 0x01 : 0x02));
+        data.putChar(index + 6, (char) (peerPort ^ (MAGIC_COOKIE >>> 16)));
+        index += 8;
+        for (int i = 0; i < xorPeerAddress.length; i++)
+        {
+            byte b = xorPeerAddress[i];
+            if (i >= 4)
+            {
+                // the transaction ID has just been written at start + 8
+                b ^= data.get(start + 4 + i);
+            }
+            data.put(index + i, b);
+        }
+        index += xorPeerAddress.length;
+
+        data.putChar(index, DATA);
+        data.putChar(index + 2, (char) payloadLength);
+
+        int limit = data.limit();
+        data.limit(limit + padding);
+        for (int i = 0; i < padding; i++)
+            data.put(limit + i, (byte) 0);
+        data.position(start);
+    }
+}
@@ -23,9 +23,9 @@ import java.util.logging.*;
 import org.ice4j.*;
 
 /**
- * The class would represent the FiveTuple object of TURN protocol. The hashCode
- * function should be unique if possible since it will be used to uniquely find
- * the allocation object.
+ * The class would represent the FiveTuple object of TURN protocol. A FiveTuple
+ * is immutable and carries a precomputed {@link FiveTupleKey} which is used as
+ * its hashCode and for the lookups of allocations and connections.
  * 
  * @author Aakash Garg
  */
@@ -41,17 +41,22 @@ public class FiveTuple
     /**
      * Represents the Client's Transport Address.
      */
-    protected TransportAddress clientTransportAddress;
+    private final TransportAddress clientTransportAddress;
 
     /**
      * Represents the Server's Transport Address.
      */
-    protected TransportAddress serverTransportAddress;
+    private final TransportAddress serverTransportAddress;
 
     /**
      * Represents the Transport Protocol.
      */
-    protected Transport transport = Transport.UDP;
+    private final Transport transport;
+
+    /**
+     * The packed lookup key of this FiveTuple.
+     */
+    private final FiveTupleKey key;
 
     /**
      * Creates a new Five tuple Object with given arguments.
@@ -66,6 +71,15 @@ public class FiveTuple
         this.clientTransportAddress = clientAddress;
         this.serverTransportAddress = serverAddress;
         this.transport = transport;
+        this.key = FiveTupleKey.of(clientAddress, serverAddress, transport);
+    }
+
+    /**
+     * @return the packed lookup key of this FiveTuple.
+     */
+    public FiveTupleKey getKey()
+    {
+        return key;
     }
 
     /**
@@ -106,14 +120,6 @@ public class FiveTuple
         }
     }
 
-    /**
-     * @param clientTransportAddress The client's IP Address to be set.
-     */
-    public void setClientTransportAddress(TransportAddress clientAddress)
-    {
-        this.clientTransportAddress = clientAddress;
-    }
-
     /**
      * @return the serverTransportAddress or null if the the Server's Address
      *         has not been set.
@@ -155,14 +161,6 @@ public class FiveTuple
         }
     }
 
-    /**
-     * @param serverTransportAddress The Server's Address to be set.
-     */
-    public void setServerTransportAddress(TransportAddress serverAddress)
-    {
-        this.serverTransportAddress = serverAddress;
-    }
-
     /**
      * @return the transport protocol used for client server connection.
      */
@@ -172,47 +170,18 @@ public class FiveTuple
     }
 
     /**
-     * @param transport the transport to set.
-     */
-    public void setTransport(Transport transport)
-    {
-        this.transport = transport;
-    }
-
-    /*
-     * (non-Javadoc)
-     * 
-     * @see java.lang.Object#hashCode()
+     * Returns the precomputed hash of the {@link FiveTupleKey} of this
+     * FiveTuple, to which every field of the tuple contributes.
      */
     @Override
     public int hashCode()
     {
-        final int prime = 31;
-        int result = 1;
-        result =
-            prime
-                * result
-                + ((clientTransportAddress == null) ? 0
-                    : clientTransportAddress.hashCode());
-        result =
-            prime
-                * result
-                + ((serverTransportAddress == null) ? 0
-                    : serverTransportAddress.hashCode());
-        result =
-            prime * result + ((transport == null) ? 0 : transport.hashCode());
-        return result;
+        return key.hashCode();
     }
 
-    /*
-     * (non-Javadoc)
-     * 
-     * @see java.lang.Object#equals(java.lang.Object)
-     */
-    /*
-     * (non-Javadoc)
-     * 
-     * @see java.lang.Object#equals(java.lang.Object)
+    /**
+     * Two FiveTuples are equal if their client and server IP addresses, ports
+     * and transport protocol are the same.
      */
     @Override
     public boolean equals(Object obj)
@@ -221,42 +190,11 @@ public class FiveTuple
         {
             return true;
         }
-        if (obj == null)
-        {
-            return false;
-        }
         if (!(obj instanceof FiveTuple))
         {
             return false;
         }
-        FiveTuple other = (FiveTuple) obj;
-        if (clientTransportAddress == null)
-        {
-            if (other.clientTransportAddress != null)
-            {
-                return false;
-            }
-        }
-        else if (!clientTransportAddress.equals(other.clientTransportAddress))
-        {
-            return false;
-        }
-        if (serverTransportAddress == null)
-        {
-            if (other.serverTransportAddress != null)
-            {
-                return false;
-            }
-        }
-        else if (!serverTransportAddress.equals(other.serverTransportAddress))
-        {
-            return false;
-        }
-        if (transport != other.transport)
-        {
-            return false;
-        }
-        return true;
+        return key.equals(((FiveTuple) obj).key);
     }
 
     /*
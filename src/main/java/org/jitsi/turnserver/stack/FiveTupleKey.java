@@ -0,0 +1,206 @@
+/*
+ * TurnServer, the OpenSource Java Solution for TURN protocol. Maintained by the
+ * Jitsi community (http://jitsi.org).
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jitsi.turnserver.stack;
+
+import java.net.*;
+
+import org.ice4j.*;
+
+/**
+ * The immutable lookup key of a {@link FiveTuple}. Both addresses are packed
+ * into two longs each (IPv4 addresses are stored in their IPv4-mapped IPv6
+ * form), the two ports into one int and the hash is computed once at
+ * construction, so that lookups in the <tt>TurnStack</tt> tables only compare
+ * a handful of primitives.
+ */
+public final class FiveTupleKey
+{
+    /**
+     * The high 64 bits of the client IP address.
+     */
+    private final long clientHi;
+
+    /**
+     * The low 64 bits of the client IP address.
+     */
+    private final long clientLo;
+
+    /**
+     * The high 64 bits of the server IP address.
+     */
+    private final long serverHi;
+
+    /**
+     * The low 64 bits of the server IP address.
+     */
+    private final long serverLo;
+
+    /**
+     * The client port in the high and the server port in the low 16 bits.
+     */
+    private final int ports;
+
+    /**
+     * The transport protocol of this five tuple.
+     */
+    private final Transport transport;
+
+    /**
+     * The precomputed hash code.
+     */
+    private final int hash;
+
+    /**
+     * Creates a new key from already packed addresses.
+     */
+    private FiveTupleKey(long clientHi, long clientLo, long serverHi,
+        long serverLo, int ports, Transport transport)
+    {
+        this.clientHi = clientHi;
+        this.clientLo = clientLo;
+        this.serverHi = serverHi;
+        this.serverLo = serverLo;
+        this.ports = ports;
+        this.transport = transport;
+
+        long h = PackedAddress.mix(clientHi ^ Long.rotateLeft(clientLo, 17));
+        h = PackedAddress.mix(h ^ serverHi ^ Long.rotateLeft(serverLo, 31));
+        h = PackedAddress.mix(h ^ (((long) ports << 8)
+            | (transport == null ? 0 : transport.ordinal() + 1)));
+        this.hash = (int) (h ^ (h >>> 32));
+    }
+
+    /**
+     * Creates a key from the raw address bytes and ports of both ends without
+     * creating any intermediate address objects.
+     *
+     * @param clientAddr the 4 or 16 bytes of the client IP address.
+     * @param clientPort the client port.
+     * @param serverAddr the 4 or 16 bytes of the server IP address.
+     * @param serverPort the server port.
+     * @param transport the transport protocol.
+     * @return the key for the specified five tuple.
+     */
+    public static FiveTupleKey of(byte[] clientAddr, int clientPort,
+        byte[] serverAddr, int serverPort, Transport transport)
+    {
+        return new FiveTupleKey(
+            PackedAddress.high(clientAddr), PackedAddress.low(clientAddr),
+            PackedAddress.high(serverAddr), PackedAddress.low(serverAddr),
+            packPorts(clientPort, serverPort), transport);
+    }
+
+    /**
+     * Creates a key from the socket addresses of both ends, see
+     * {@link PackedAddress}.
+     *
+     * @param client the client address, may be <tt>null</tt>.
+     * @param server the server address, may be <tt>null</tt>.
+     * @param transport the transport protocol.
+     * @return the key for the specified five tuple.
+     */
+    public static FiveTupleKey of(InetSocketAddress client,
+        InetSocketAddress server, Transport transport)
+    {
+        long clientHi = 0, clientLo = 0, serverHi = 0, serverLo = 0;
+        int clientPort = 0, serverPort = 0;
+
+        if (client != null)
+        {
+            InetAddress addr = client.getAddress();
+            clientHi = PackedAddress.high(addr);
+            clientLo = PackedAddress.low(addr);
+            clientPort = client.getPort();
+        }
+        if (server != null)
+        {
+            InetAddress addr = server.getAddress();
+            serverHi = PackedAddress.high(addr);
+            serverLo = PackedAddress.low(addr);
+            serverPort = server.getPort();
+        }
+        return new FiveTupleKey(clientHi, clientLo, serverHi, serverLo,
+            packPorts(clientPort, serverPort), transport);
+    }
+
+    /**
+     * @return the client port of this key.
+     */
+    public int getClientPort()
+    {
+        return ports >>> 16;
+    }
+
+    /**
+     * @return the server port of this key.
+     */
+    public int getServerPort()
+    {
+        return ports & 0xffff;
+    }
+
+    /**
+     * @return the transport protocol of this key.
+     */
+    public Transport getTransport()
+    {
+        return transport;
+    }
+
+    private static int packPorts(int clientPort, int serverPort)
+    {
+        return ((clientPort & 0xffff) << 16) | (serverPort & 0xffff);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+        if (this == obj)
+        {
+            return true;
+        }
+        if (!(obj instanceof FiveTupleKey))
+        {
+            return false;
+        }
+        FiveTupleKey other = (FiveTupleKey) obj;
+        return hash == other.hash
+            && ports == other.ports
+            && clientLo == other.clientLo
+            && serverLo == other.serverLo
+            && clientHi == other.clientHi
+            && serverHi == other.serverHi
+            && transport == other.transport;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "FiveTupleKey [clientPort=" + getClientPort() + ", serverPort="
+            + getServerPort() + ", transport=" + transport + ", hash=" + hash
+            + "]";
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * TurnServer, the OpenSource Java Solution for TURN protocol. Maintained by the
+ * Jitsi community (http://jitsi.org).
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jitsi.turnserver.stack;
+
+import java.net.*;
+import java.util.*;
+
+import org.jitsi.turnserver.socket.*;
+
+/**
+ * An immutable view of everything the relay threads need to forward the
+ * datagrams of an Allocation: the client destination, the peers bound to
+ * channels with the header of their ChannelData and the permitted peers with
+ * their precomputed XOR-PEER-ADDRESS. The Allocation builds a new snapshot
+ * whenever a ChannelBind or a Permission is added, refreshed or expires and
+ * publishes it through a volatile field, so that a datagram is forwarded
+ * against one consistent state without locking (read-copy-update).
+ */
+public final class ForwardingSnapshot
+{
+    /**
+     * The value returned by {@link #getChannelHeader} for a peer without
+     * channel.
+     */
+    public static final int NO_CHANNEL_HEADER = -1;
+
+    /**
+     * The address of the client.
+     */
+    private final InetSocketAddress clientAddress;
+
+    /**
+     * The client-facing socket of the relay engine the client reached the
+     * Allocation through or <tt>null</tt>.
+     */
+    private final IceUdpChannelSocketWrapper clientSocket;
+
+    /**
+     * The ChannelBinds by channel number and by peer, shared with the
+     * {@link ChannelTable} of the Allocation.
+     */
+    private final ChannelTable.Index channels;
+
+    /**
+     * The Permissions by peer IP address, with their expiration times.
+     */
+    private final PackedAddressTable<Permission> permissions;
+
+    /**
+     * Builds a snapshot.
+     * 
+     * @param clientAddress the address of the client.
+     * @param clientSocket the client-facing socket of the relay engine or
+     *            <tt>null</tt>.
+     * @param channels the index of the ChannelBinds of the Allocation.
+     * @param permissions the Permissions of the Allocation.
+     */
+    ForwardingSnapshot(InetSocketAddress clientAddress,
+        IceUdpChannelSocketWrapper clientSocket,
+        ChannelTable.Index channels,
+        Collection<Permission> permissions)
+    {
+        this.clientAddress = clientAddress;
+        this.clientSocket = clientSocket;
+        this.channels = channels;
+
+        this.permissions =
+            new PackedAddressTable<Permission>(permissions.size());
+        for (Permission permission : permissions)
+        {
+            this.permissions.insert(permission.getPackedHigh(),
+                permission.getPackedLow(), 0, permission,
+                permission.getExpirationTime());
+        }
+    }
+
+    /**
+     * @return the address of the client.
+     */
+    public InetSocketAddress getClientAddress()
+    {
+        return clientAddress;
+    }
+
+    /**
+     * @return the client-facing socket of the relay engine the client reached
+     *         the Allocation through or <tt>null</tt> if the datagrams to the
+     *         client have to go through ice4j.
+     */
+    public IceUdpChannelSocketWrapper getClientSocket()
+    {
+        return clientSocket;
+    }
+
+    /**
+     * Returns the peer bound to a channel.
+     * 
+     * @param channelNo the channel number.
+     * @param now the current time in milliseconds.
+     * @return the address of the peer or <tt>null</tt> if the channel is not
+     *         bound or has expired.
+     */
+    public InetSocketAddress getChannelPeer(char channelNo, long now)
+    {
+        return channels.getPeer(channelNo, now);
+    }
+
+    /**
+     * Returns the first four bytes of the ChannelData to send the datagrams
+     * of a peer in, to be or-ed with their length.
+     * 
+     * @param peer the transport address of the peer.
+     * @param now the current time in milliseconds.
+     * @return the header or {@link #NO_CHANNEL_HEADER} if the peer is not
+     *         bound to an unexpired channel.
+     */
+    public int getChannelHeader(InetSocketAddress peer, long now)
+    {
+        char channelNo = channels.getChannel(peer, now);
+        return (channelNo != ChannelTable.NO_CHANNEL)
+            ? channelNo << 16 : NO_CHANNEL_HEADER;
+    }
+
+    /**
+     * Returns the X-Address of the XOR-PEER-ADDRESS of the Data indications
+     * of a permitted peer.
+     * 
+     * @param peer the IP address of the peer.
+     * @param now the current time in milliseconds.
+     * @return the X-Address or <tt>null</tt> if the peer has no unexpired
+     *         Permission.
+     */
+    public byte[] getXorPeerAddress(InetAddress peer, long now)
+    {
+        int i = permissions.find(
+            PackedAddress.high(peer), PackedAddress.low(peer), 0);
+        return (i >= 0 && permissions.deadlineAt(i) >= now)
+            ? permissions.valueAt(i).getXorPeerAddress() : null;
+    }
+
+    /**
+     * Returns the transport address of a permitted peer given in packed form,
+     * as decoded from a Send indication.
+     * 
+     * @param hi the high 64 bits of the packed IP address of the peer.
+     * @param lo the low 64 bits of the packed IP address of the peer.
+     * @param port the port of the peer.
+     * @param now the current time in milliseconds.
+     * @return the address of the peer or <tt>null</tt> if the peer has no
+     *         unexpired Permission.
+     */
+    public InetSocketAddress getPermittedPeer(long hi, long lo, int port,
+        long now)
+    {
+        int i = permissions.find(hi, lo, 0);
+        return (i >= 0 && permissions.deadlineAt(i) >= now)
+            ? permissions.valueAt(i).getPeerAddress(port) : null;
+    }
+}
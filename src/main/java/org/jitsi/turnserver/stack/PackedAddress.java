@@ -0,0 +1,193 @@
+/*
+ * TurnServer, the OpenSource Java Solution for TURN protocol. Maintained by the
+ * Jitsi community (http://jitsi.org).
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jitsi.turnserver.stack;
+
+import java.net.*;
+
+/**
+ * Packs IP addresses into two longs, the high and the low 64 bits of their
+ * IPv6 form. IPv4 addresses are stored in their IPv4-mapped IPv6 form, so the
+ * high long is 0 and the low long holds the IPv4 address as an int behind the
+ * 0xffff prefix.
+ * <p>
+ * Getting the bytes of an <tt>InetAddress</tt> copies them, so the packed
+ * form of the addresses seen last is kept in a small cache keyed by identity:
+ * the datagram channels hand out the same address object for consecutive
+ * datagrams of a peer, so the relay threads pack the address of an active
+ * peer once rather than once per datagram.
+ */
+public final class PackedAddress
+{
+    /**
+     * The prefix of an IPv4-mapped IPv6 address as stored in the low long.
+     */
+    private static final long IPV4_MAPPED_PREFIX = 0xffffL << 32;
+
+    /**
+     * The number of slots of {@link #cache}, a power of two.
+     */
+    private static final int CACHE_SIZE = 4096;
+
+    /**
+     * The packed form of recently packed addresses, indexed by their identity
+     * hash code. A slot is replaced as a whole, so the cache is read and
+     * written by any thread without locking.
+     */
+    private static final Packed[] cache = new Packed[CACHE_SIZE];
+
+    private PackedAddress()
+    {
+    }
+
+    /**
+     * Returns the high 64 bits of the IPv6 form of an address.
+     * 
+     * @param address the address, may be <tt>null</tt>.
+     * @return the high long, 0 for IPv4 addresses.
+     */
+    public static long high(InetAddress address)
+    {
+        return (address == null) ? 0 : packed(address).hi;
+    }
+
+    /**
+     * Returns the low 64 bits of the IPv6 form of an address.
+     * 
+     * @param address the address, may be <tt>null</tt>.
+     * @return the low long.
+     */
+    public static long low(InetAddress address)
+    {
+        return (address == null) ? 0 : packed(address).lo;
+    }
+
+    /**
+     * Returns the packed form of an address from {@link #cache}, packing and
+     * caching it if it is not there.
+     */
+    private static Packed packed(InetAddress address)
+    {
+        int slot = System.identityHashCode(address) & (CACHE_SIZE - 1);
+        Packed packed = cache[slot];
+        if (packed == null || packed.address != address)
+        {
+            byte[] bytes = address.getAddress();
+            packed = new Packed(address, high(bytes), low(bytes));
+            cache[slot] = packed;
+        }
+        return packed;
+    }
+
+    /**
+     * Returns the high 64 bits of the IPv6 form of a raw address.
+     * 
+     * @param addr the 4 or 16 bytes of the address, may be <tt>null</tt>.
+     * @return the high long, 0 for IPv4 addresses.
+     */
+    public static long high(byte[] addr)
+    {
+        if (addr == null || addr.length != 16)
+            return 0;
+        return readLong(addr, 0);
+    }
+
+    /**
+     * Returns the low 64 bits of the IPv6 form of a raw address.
+     * 
+     * @param addr the 4 or 16 bytes of the address, may be <tt>null</tt>.
+     * @return the low long.
+     */
+    public static long low(byte[] addr)
+    {
+        if (addr == null)
+        {
+            return 0;
+        }
+        else if (addr.length == 4)
+        {
+            return packIPv4(((addr[0] & 0xff) << 24)
+                | ((addr[1] & 0xff) << 16)
+                | ((addr[2] & 0xff) << 8)
+                | (addr[3] & 0xff));
+        }
+        else if (addr.length == 16)
+        {
+            return readLong(addr, 8);
+        }
+        throw new IllegalArgumentException(
+            "Illegal address length " + addr.length);
+    }
+
+    /**
+     * Packs an IPv4 address given as an int into the low long of its
+     * IPv4-mapped IPv6 form.
+     * 
+     * @param ipv4 the IPv4 address.
+     * @return the low long.
+     */
+    public static long packIPv4(int ipv4)
+    {
+        return IPV4_MAPPED_PREFIX | (ipv4 & 0xffffffffL);
+    }
+
+    /**
+     * The 64-bit finalizer of MurmurHash3, spreads every input bit over the
+     * whole result.
+     * 
+     * @param h the value to mix.
+     * @return the mixed value.
+     */
+    public static long mix(long h)
+    {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static long readLong(byte[] b, int off)
+    {
+        long v = 0;
+        for (int i = off; i < off + 8; i++)
+            v = (v << 8) | (b[i] & 0xff);
+        return v;
+    }
+
+    /**
+     * An address with its packed form.
+     */
+    private static final class Packed
+    {
+        final InetAddress address;
+
+        final long hi;
+
+        final long lo;
+
+        Packed(InetAddress address, long hi, long lo)
+        {
+            this.address = address;
+            this.hi = hi;
+            this.lo = lo;
+        }
+    }
+}
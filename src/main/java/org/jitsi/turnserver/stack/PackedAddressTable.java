@@ -0,0 +1,225 @@
+/*
+ * TurnServer, the OpenSource Java Solution for TURN protocol. Maintained by the
+ * Jitsi community (http://jitsi.org).
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jitsi.turnserver.stack;
+
+import java.util.*;
+
+/**
+ * An immutable open-addressing table keyed by packed IP address and port
+ * (see {@link PackedAddress}) which holds a value and a deadline for every
+ * key. Lookups neither lock, box nor hash objects, which lets the relay
+ * threads read a published table directly. A change copies the table; a
+ * table is only filled in place before it is published.
+ * 
+ * @param <V> the type of the values.
+ */
+final class PackedAddressTable<V>
+{
+    /**
+     * The empty table.
+     */
+    private static final PackedAddressTable<Object> EMPTY =
+        new PackedAddressTable<Object>(0);
+
+    private final long[] his;
+
+    private final long[] los;
+
+    private final int[] ports;
+
+    private final long[] deadlines;
+
+    /**
+     * The values, <tt>null</tt> for a free slot.
+     */
+    private final Object[] values;
+
+    private int size;
+
+    /**
+     * Creates an empty table with room for <tt>expectedSize</tt> entries.
+     * 
+     * @param expectedSize the number of entries to be inserted.
+     */
+    PackedAddressTable(int expectedSize)
+    {
+        int capacity = 2;
+        while (capacity < expectedSize * 2)
+            capacity <<= 1;
+        his = new long[capacity];
+        los = new long[capacity];
+        ports = new int[capacity];
+        deadlines = new long[capacity];
+        values = new Object[capacity];
+    }
+
+    /**
+     * Returns the empty table.
+     */
+    @SuppressWarnings("unchecked")
+    static <V> PackedAddressTable<V> empty()
+    {
+        return (PackedAddressTable<V>) EMPTY;
+    }
+
+    /**
+     * Returns the slot of a key.
+     * 
+     * @param hi the high 64 bits of the packed IP address.
+     * @param lo the low 64 bits of the packed IP address.
+     * @param port the port, 0 for keys without port.
+     * @return the slot or -1 if the key is not in this table.
+     */
+    int find(long hi, long lo, int port)
+    {
+        if (size == 0)
+            return -1;
+        int mask = values.length - 1;
+        for (int i = slot(hi, lo, port, mask);; i = (i + 1) & mask)
+        {
+            if (values[i] == null)
+                return -1;
+            if (ports[i] == port && los[i] == lo && his[i] == hi)
+                return i;
+        }
+    }
+
+    /**
+     * Returns the value in a slot returned by {@link #find}.
+     */
+    @SuppressWarnings("unchecked")
+    V valueAt(int i)
+    {
+        return (V) values[i];
+    }
+
+    /**
+     * Returns the deadline in a slot returned by {@link #find}.
+     */
+    long deadlineAt(int i)
+    {
+        return deadlines[i];
+    }
+
+    /**
+     * @return the number of entries.
+     */
+    int size()
+    {
+        return size;
+    }
+
+    /**
+     * @return a copy of the values.
+     */
+    List<V> values()
+    {
+        List<V> list = new ArrayList<V>(size);
+        for (int i = 0; i < values.length; i++)
+        {
+            if (values[i] != null)
+                list.add(valueAt(i));
+        }
+        return list;
+    }
+
+    /**
+     * Returns a copy of this table with a key set, replacing the entry of
+     * the same key if any.
+     * 
+     * @param hi the high 64 bits of the packed IP address.
+     * @param lo the low 64 bits of the packed IP address.
+     * @param port the port, 0 for keys without port.
+     * @param value the value, not <tt>null</tt>.
+     * @param deadline the deadline held for the value, 0 if unused.
+     * @return the new table.
+     */
+    PackedAddressTable<V> with(long hi, long lo, int port, V value,
+        long deadline)
+    {
+        PackedAddressTable<V> table = copy(
+            (find(hi, lo, port) < 0) ? size + 1 : size, -1);
+        table.insert(hi, lo, port, value, deadline);
+        return table;
+    }
+
+    /**
+     * Returns a copy of this table without a key.
+     * 
+     * @param hi the high 64 bits of the packed IP address.
+     * @param lo the low 64 bits of the packed IP address.
+     * @param port the port, 0 for keys without port.
+     * @return the new table or this table if it does not hold the key.
+     */
+    PackedAddressTable<V> without(long hi, long lo, int port)
+    {
+        int skip = find(hi, lo, port);
+        return (skip < 0) ? this : copy(size - 1, skip);
+    }
+
+    /**
+     * Sets a key in this table, which must not be published yet.
+     * 
+     * @param hi the high 64 bits of the packed IP address.
+     * @param lo the low 64 bits of the packed IP address.
+     * @param port the port, 0 for keys without port.
+     * @param value the value, not <tt>null</tt>.
+     * @param deadline the deadline held for the value, 0 if unused.
+     */
+    void insert(long hi, long lo, int port, V value, long deadline)
+    {
+        int mask = values.length - 1;
+        int i = slot(hi, lo, port, mask);
+        while (values[i] != null
+            && !(ports[i] == port && los[i] == lo && his[i] == hi))
+        {
+            i = (i + 1) & mask;
+        }
+        if (values[i] == null)
+            size++;
+        his[i] = hi;
+        los[i] = lo;
+        ports[i] = port;
+        deadlines[i] = deadline;
+        values[i] = value;
+    }
+
+    /**
+     * Copies the entries of this table except the one in slot <tt>skip</tt>
+     * into a new table with room for <tt>newSize</tt> entries.
+     */
+    private PackedAddressTable<V> copy(int newSize, int skip)
+    {
+        PackedAddressTable<V> table = new PackedAddressTable<V>(newSize);
+        for (int i = 0; i < values.length; i++)
+        {
+            if (values[i] != null && i != skip)
+                table.insert(his[i], los[i], ports[i], valueAt(i),
+                    deadlines[i]);
+        }
+        return table;
+    }
+
+    private static int slot(long hi, long lo, int port, int mask)
+    {
+        return (int) PackedAddress.mix(
+            hi ^ Long.rotateLeft(lo, 17) ^ ((long) port << 48)) & mask;
+    }
+}
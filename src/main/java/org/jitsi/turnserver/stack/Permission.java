@@ -19,8 +19,12 @@
 
 package org.jitsi.turnserver.stack;
 
+import java.net.*;
+
 import org.ice4j.*;
 
+import org.jitsi.turnserver.util.*;
+
 /**
  * This class is an implementation of Permissions in TURN protocol.
  * 
@@ -38,7 +42,32 @@ public class Permission
      * The IP address of the peer for which to create Permission.
      */
     private TransportAddress ipAddress;
- /**
+
+    /**
+     * The X-Address of the XOR-PEER-ADDRESS of the Data indications sent for
+     * this peer, precomputed by the {@link DataIndicationEncoder}.
+     */
+    private byte[] xorPeerAddress;
+
+    /**
+     * The high 64 bits of the packed IP address of the peer.
+     */
+    private long packedHigh;
+
+    /**
+     * The low 64 bits of the packed IP address of the peer.
+     */
+    private long packedLow;
+
+    /**
+     * The transport address the last Send indication to this peer was
+     * forwarded to, reused as long as the peer port does not change. Written
+     * by the relay threads without synchronisation, which is harmless
+     * because an <tt>InetSocketAddress</tt> is immutable.
+     */
+    private InetSocketAddress lastPeerAddress;
+
+    /**
      * The time in milliseconds when the Permission will expire.
      */
     private long expirationTime = -1;
@@ -48,6 +77,12 @@ public class Permission
      */
     private boolean expired = false;
 
+    /**
+     * The <tt>Timeout</tt> which removes this Permission from its Allocation
+     * once it expires.
+     */
+    private TimingWheel.Timeout expiryTimeout;
+
     /**
      * @param ipAddress contains the peer IP address and transport protocol to
      *            be assigned. The port value is ignored.
@@ -104,6 +139,11 @@ public class Permission
         this.ipAddress =
             new TransportAddress(ipAddress.getHostAddress(), 0,
                 ipAddress.getTransport());
+        this.xorPeerAddress =
+            DataIndicationEncoder.xorAddress(this.ipAddress.getAddress());
+        this.packedHigh = PackedAddress.high(this.ipAddress.getAddress());
+        this.packedLow = PackedAddress.low(this.ipAddress.getAddress());
+        this.lastPeerAddress = null;
     }
 
     /**
@@ -113,6 +153,81 @@ public class Permission
     public void setIpAddress(String ipAddress)
     {
         this.ipAddress = new TransportAddress(ipAddress, 0, Transport.UDP);
+        this.xorPeerAddress =
+            DataIndicationEncoder.xorAddress(this.ipAddress.getAddress());
+        this.packedHigh = PackedAddress.high(this.ipAddress.getAddress());
+        this.packedLow = PackedAddress.low(this.ipAddress.getAddress());
+        this.lastPeerAddress = null;
+    }
+
+    /**
+     * Returns the high 64 bits of the packed IP address of the peer.
+     */
+    long getPackedHigh()
+    {
+        return this.packedHigh;
+    }
+
+    /**
+     * Returns the low 64 bits of the packed IP address of the peer.
+     */
+    long getPackedLow()
+    {
+        return this.packedLow;
+    }
+
+    /**
+     * Returns the transport address of the peer of this Permission at a
+     * port.
+     * 
+     * @param port the port of the peer.
+     * @return the address, the same instance as long as the port does not
+     *         change.
+     */
+    InetSocketAddress getPeerAddress(int port)
+    {
+        InetSocketAddress peerAddress = this.lastPeerAddress;
+        if (peerAddress == null || peerAddress.getPort() != port)
+        {
+            peerAddress =
+                new InetSocketAddress(this.ipAddress.getAddress(), port);
+            this.lastPeerAddress = peerAddress;
+        }
+        return peerAddress;
+    }
+
+    /**
+     * Returns the precomputed X-Address of the peer of this Permission.
+     */
+    byte[] getXorPeerAddress()
+    {
+        return this.xorPeerAddress;
+    }
+
+    /**
+     * Returns the time in milliseconds at which this Permission expires.
+     */
+    synchronized long getExpirationTime()
+    {
+        return this.expirationTime;
+    }
+
+    /**
+     * Returns the <tt>Timeout</tt> which expires this Permission.
+     */
+    TimingWheel.Timeout getExpiryTimeout()
+    {
+        return this.expiryTimeout;
+    }
+
+    /**
+     * Sets the <tt>Timeout</tt> which expires this Permission.
+     *
+     * @param expiryTimeout the timeout scheduled at the expiration time.
+     */
+    void setExpiryTimeout(TimingWheel.Timeout expiryTimeout)
+    {
+        this.expiryTimeout = expiryTimeout;
     }
 
     /**
@@ -203,8 +318,8 @@ public class Permission
     {
         expired = true;
         /*
-         * TurnStack has a background Thread running with the purpose of
-         * removing expired Permissions.
+         * The Allocation schedules a Timeout on the TurnStack expiry timer
+         * with the purpose of removing expired Permissions.
          */
     }
     
@@ -233,7 +348,8 @@ public class Permission
     @Override
     public int hashCode()
     {
-        return ipAddress.getHostAddress().hashCode();
+        return (int) PackedAddress.mix(
+            packedHigh ^ Long.rotateLeft(packedLow, 17));
     }
 
     /*
@@ -248,15 +364,7 @@ public class Permission
             return false;
         }
         Permission other = (Permission) obj;
-        if (ipAddress == null)
-        {
-            if (other.ipAddress != null)
-            {
-                return false;
-            }
-        }
-        else if (ipAddress.getHostAddress().compareTo(
-            other.ipAddress.getHostAddress()) != 0)
+        if (packedHigh != other.packedHigh || packedLow != other.packedLow)
         {
             return false;
         }
@@ -0,0 +1,129 @@
+/*
+ * TurnServer, the OpenSource Java Solution for TURN protocol. Maintained by the
+ * Jitsi community (http://jitsi.org).
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jitsi.turnserver.stack;
+
+import java.net.*;
+import java.util.*;
+
+/**
+ * The Permissions of an Allocation in a {@link PackedAddressTable} keyed by
+ * the packed IP address of the peer with the expiration time of every
+ * Permission held alongside. The table is immutable once published and
+ * replaced on every change, so the relay threads check a peer without locking
+ * and without allocating; changes are rare and serialized on the set.
+ */
+public class PermissionSet
+{
+    /**
+     * The current table.
+     */
+    private volatile PackedAddressTable<Permission> table =
+        PackedAddressTable.empty();
+
+    /**
+     * Determines whether there is an unexpired Permission for the IP address
+     * of a peer.
+     * 
+     * @param address the IP address of the peer.
+     * @return <tt>true</tt> if the peer is permitted.
+     */
+    public boolean isPermitted(InetAddress address)
+    {
+        return getPermitted(address) != null;
+    }
+
+    /**
+     * Returns the unexpired Permission for the IP address of a peer.
+     * 
+     * @param address the IP address of the peer.
+     * @return the Permission or <tt>null</tt> if there is none or it has
+     *         expired.
+     */
+    public Permission getPermitted(InetAddress address)
+    {
+        PackedAddressTable<Permission> table = this.table;
+        int i = table.find(
+            PackedAddress.high(address), PackedAddress.low(address), 0);
+        return (i >= 0 && table.deadlineAt(i) >= System.currentTimeMillis())
+            ? table.valueAt(i) : null;
+    }
+
+    /**
+     * Returns the Permission for the IP address of a peer, even if it has
+     * expired but has not been removed yet.
+     * 
+     * @param address the IP address of the peer.
+     * @return the Permission or <tt>null</tt>.
+     */
+    public Permission get(InetAddress address)
+    {
+        PackedAddressTable<Permission> table = this.table;
+        int i = table.find(
+            PackedAddress.high(address), PackedAddress.low(address), 0);
+        return (i < 0) ? null : table.valueAt(i);
+    }
+
+    /**
+     * @return the number of Permissions.
+     */
+    public int size()
+    {
+        return table.size();
+    }
+
+    /**
+     * @return a copy of the Permissions.
+     */
+    public List<Permission> values()
+    {
+        return table.values();
+    }
+
+    /**
+     * Adds a Permission, replacing the one of the same IP address, or
+     * updates the expiration time held for it after a refresh.
+     * 
+     * @param permission the Permission to add or update.
+     * @return the replaced Permission or <tt>null</tt>.
+     */
+    public synchronized Permission put(Permission permission)
+    {
+        Permission previous = get(permission.getIpAddress().getAddress());
+        table = table.with(permission.getPackedHigh(),
+            permission.getPackedLow(), 0, permission,
+            permission.getExpirationTime());
+        return previous;
+    }
+
+    /**
+     * Removes a Permission if it is still in this set.
+     * 
+     * @param permission the Permission to remove.
+     * @return <tt>true</tt> if it was removed.
+     */
+    public synchronized boolean remove(Permission permission)
+    {
+        if (get(permission.getIpAddress().getAddress()) != permission)
+            return false;
+        table = table.without(permission.getPackedHigh(),
+            permission.getPackedLow(), 0);
+        return true;
+    }
+}
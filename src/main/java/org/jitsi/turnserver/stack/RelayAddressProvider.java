@@ -0,0 +1,442 @@
+/*
+ * TurnServer, the OpenSource Java Solution for TURN protocol. Maintained by the
+ * Jitsi community (http://jitsi.org).
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jitsi.turnserver.stack;
+
+import java.io.*;
+import java.net.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.logging.*;
+
+import org.ice4j.*;
+
+import org.jitsi.turnserver.*;
+
+/**
+ * Provides the relay addresses of the Allocations from a configured list of
+ * local relay IP addresses per address family. The addresses are resolved
+ * once when the provider is created; each one has its own
+ * {@link RelayPortAllocator} and, for UDP, its own {@link RelaySocketPool}.
+ * The IP address of a new relay address is picked either by round-robin or
+ * as the one with the most free ports left, see {@link Selection}.
+ */
+public class RelayAddressProvider
+{
+    /**
+     * The <tt>Logger</tt> used by the <tt>RelayAddressProvider</tt> class and
+     * its instances for logging output.
+     */
+    private static final Logger logger
+        = Logger.getLogger(RelayAddressProvider.class.getName());
+
+    /**
+     * The policies to pick the relay IP address of a new relay address.
+     */
+    public enum Selection
+    {
+        /**
+         * Picks the relay IP address with the most free ports, counting the
+         * sockets waiting in its pool.
+         */
+        LEAST_LOADED,
+
+        /**
+         * Picks the relay IP addresses of a family in turn.
+         */
+        ROUND_ROBIN;
+
+        /**
+         * Parses the value of the
+         * {@link TurnStackProperties#RELAY_ADDRESS_SELECTION} property.
+         * 
+         * @param value the value of the property, may be <tt>null</tt>.
+         * @param defaultValue the policy to return if <tt>value</tt> is
+         *            <tt>null</tt> or unknown.
+         * @return the policy named by <tt>value</tt>.
+         */
+        public static Selection parse(String value, Selection defaultValue)
+        {
+            if (value != null)
+            {
+                for (Selection selection : values())
+                {
+                    if (selection.name().equalsIgnoreCase(value.trim()))
+                        return selection;
+                }
+                logger.warning("Unknown relay address selection " + value);
+            }
+            return defaultValue;
+        }
+    }
+
+    /**
+     * The allocator and socket pool of one relay IP address.
+     */
+    private static class RelayIp
+    {
+        private final InetAddress address;
+
+        private final RelayPortAllocator ports;
+
+        /**
+         * The pool of bound UDP sockets or <tt>null</tt> if pooling is
+         * disabled.
+         */
+        private final RelaySocketPool pool;
+
+        private RelayIp(InetAddress address, RelayPortAllocator ports,
+            RelaySocketPool pool)
+        {
+            this.address = address;
+            this.ports = ports;
+            this.pool = pool;
+        }
+
+        /**
+         * Returns the number of relay addresses which can still be handed out
+         * on this IP address.
+         */
+        private int getFree()
+        {
+            return ports.getAvailable() + ((pool == null) ? 0 : pool.getSize());
+        }
+    }
+
+    /**
+     * The relay IP addresses by address.
+     */
+    private final Map<InetAddress, RelayIp> relayIps
+        = new HashMap<InetAddress, RelayIp>();
+
+    /**
+     * The IPv4 relay IP addresses.
+     */
+    private final RelayIp[] ipv4;
+
+    /**
+     * The IPv6 relay IP addresses.
+     */
+    private final RelayIp[] ipv6;
+
+    /**
+     * The policy to pick among the relay IP addresses of a family.
+     */
+    private final Selection selection;
+
+    /**
+     * The round-robin counters of {@link #ipv4} and {@link #ipv6}.
+     */
+    private final AtomicInteger nextIpv4 = new AtomicInteger();
+
+    private final AtomicInteger nextIpv6 = new AtomicInteger();
+
+    /**
+     * The sockets taken from the pools for the relay addresses returned by
+     * {@link #allocate} until their Allocation is added.
+     */
+    private final ConcurrentHashMap<InetSocketAddress, DatagramChannel>
+        pooledChannels =
+            new ConcurrentHashMap<InetSocketAddress, DatagramChannel>();
+
+    /**
+     * Creates a provider.
+     * 
+     * @param addresses the relay IP addresses of both families.
+     * @param selection the policy to pick among them.
+     * @param minPort the lowest relay port.
+     * @param maxPort the highest relay port.
+     * @param quarantine the time in milliseconds a released port waits
+     *            before it is handed out again.
+     * @param poolSize the number of bound UDP sockets to keep per relay IP
+     *            address, 0 to disable pooling.
+     */
+    public RelayAddressProvider(Collection<InetAddress> addresses,
+        Selection selection, int minPort, int maxPort, long quarantine,
+        int poolSize)
+    {
+        if (addresses.isEmpty())
+            throw new IllegalArgumentException("no relay address");
+
+        List<RelayIp> v4 = new ArrayList<RelayIp>();
+        List<RelayIp> v6 = new ArrayList<RelayIp>();
+        for (InetAddress address : addresses)
+        {
+            if (relayIps.containsKey(address))
+                continue;
+
+            RelayPortAllocator ports =
+                new RelayPortAllocator(minPort, maxPort, quarantine);
+            RelaySocketPool pool = (poolSize > 0)
+                ? new RelaySocketPool(address, ports, poolSize)
+                : null;
+            RelayIp relayIp = new RelayIp(address, ports, pool);
+            relayIps.put(address, relayIp);
+            if (address instanceof Inet6Address)
+                v6.add(relayIp);
+            else
+                v4.add(relayIp);
+        }
+        this.ipv4 = v4.toArray(new RelayIp[v4.size()]);
+        this.ipv6 = v6.toArray(new RelayIp[v6.size()]);
+        this.selection = selection;
+    }
+
+    /**
+     * Creates a provider configured by the {@link TurnStackProperties}. The
+     * relay IP addresses are resolved now; if none is configured the
+     * address of the local host is used.
+     * 
+     * @return the new provider.
+     */
+    public static RelayAddressProvider createFromProperties()
+    {
+        List<InetAddress> addresses = new ArrayList<InetAddress>();
+        String[] names = TurnStackProperties.getStringArray(
+            TurnStackProperties.RELAY_ADDRESSES, ",");
+        if (names != null)
+        {
+            for (String name : names)
+            {
+                name = name.trim();
+                if (name.length() == 0)
+                    continue;
+                try
+                {
+                    addresses.add(InetAddress.getByName(name));
+                }
+                catch (UnknownHostException e)
+                {
+                    logger.log(Level.WARNING,
+                        "Ignoring unknown relay address " + name, e);
+                }
+            }
+        }
+        if (addresses.isEmpty())
+        {
+            try
+            {
+                addresses.add(InetAddress.getLocalHost());
+            }
+            catch (UnknownHostException e)
+            {
+                logger.log(Level.WARNING,
+                    "Unable to get the local host, relaying on loopback", e);
+                addresses.add(InetAddress.getLoopbackAddress());
+            }
+        }
+
+        return new RelayAddressProvider(
+            addresses,
+            Selection.parse(
+                TurnStackProperties.getString(
+                    TurnStackProperties.RELAY_ADDRESS_SELECTION),
+                Selection.LEAST_LOADED),
+            TurnStackProperties.getInt(
+                TurnStackProperties.TURNSERVER_MIN_PORT,
+                TurnStackProperties.DEFAULT_TURNSERVER_MIN_PORT),
+            TurnStackProperties.getInt(
+                TurnStackProperties.TURNSERVER_MAX_PORT,
+                TurnStackProperties.DEFAULT_TURNSERVER_MAX_PORT),
+            TurnStackProperties.getInt(
+                TurnStackProperties.RELAY_PORT_QUARANTINE,
+                TurnStackProperties.DEFAULT_RELAY_PORT_QUARANTINE),
+            TurnStackProperties.getInt(
+                TurnStackProperties.RELAY_SOCKET_POOL_SIZE,
+                TurnStackProperties.DEFAULT_RELAY_SOCKET_POOL_SIZE));
+    }
+
+    /**
+     * Starts filling the socket pools.
+     */
+    public void start()
+    {
+        for (RelayIp relayIp : relayIps.values())
+        {
+            if (relayIp.pool != null)
+                relayIp.pool.start();
+        }
+    }
+
+    /**
+     * Stops the socket pools and closes the sockets still pooled.
+     */
+    public void stop()
+    {
+        for (RelayIp relayIp : relayIps.values())
+        {
+            if (relayIp.pool != null)
+                relayIp.pool.stop();
+        }
+    }
+
+    /**
+     * Allocates a new relay address. The relay IP address is picked among
+     * those of the requested family, or of the other family if there is
+     * none, and the next ones are tried in turn when its ports are
+     * exhausted. Plain UDP relay addresses come from the socket pool of the
+     * IP address when it is not empty, their socket is then handed over by
+     * {@link #takeChannel(InetSocketAddress)}.
+     * 
+     * @param ipv6 whether an IPv6 relay address is requested.
+     * @param even whether the port has to be even.
+     * @param pair whether the next port has to be allocated as well.
+     * @param transport the transport of the relay address.
+     * @return the relay address or <tt>null</tt> if no port is left.
+     */
+    public TransportAddress allocate(boolean ipv6, boolean even, boolean pair,
+        Transport transport)
+    {
+        RelayIp[] candidates = ipv6 ? this.ipv6 : this.ipv4;
+        AtomicInteger next = ipv6 ? nextIpv6 : nextIpv4;
+        if (candidates.length == 0)
+        {
+            candidates = ipv6 ? this.ipv4 : this.ipv6;
+            next = ipv6 ? nextIpv4 : nextIpv6;
+        }
+
+        int first = select(candidates, next);
+        for (int i = 0; i < candidates.length; i++)
+        {
+            RelayIp relayIp = candidates[(first + i) % candidates.length];
+
+            if (transport == Transport.UDP && !even && !pair
+                && relayIp.pool != null)
+            {
+                DatagramChannel channel = relayIp.pool.take();
+                if (channel != null)
+                {
+                    TransportAddress relayAddress = new TransportAddress(
+                        relayIp.address, channel.socket().getLocalPort(),
+                        transport);
+                    pooledChannels.put(relayAddress, channel);
+                    return relayAddress;
+                }
+            }
+
+            int port = relayIp.ports.allocate(even, pair);
+            if (port != RelayPortAllocator.NO_PORT)
+                return new TransportAddress(relayIp.address, port, transport);
+        }
+        logger.warning("No relay port left for "
+            + (ipv6 ? "IPv6" : "IPv4") + " relay addresses");
+        return null;
+    }
+
+    /**
+     * Returns the index of the relay IP address to try first.
+     */
+    private int select(RelayIp[] candidates, AtomicInteger next)
+    {
+        if (candidates.length == 1)
+            return 0;
+        if (selection == Selection.ROUND_ROBIN)
+            return (next.getAndIncrement() & Integer.MAX_VALUE)
+                % candidates.length;
+
+        int best = 0;
+        int bestFree = candidates[0].getFree();
+        for (int i = 1; i < candidates.length; i++)
+        {
+            int free = candidates[i].getFree();
+            if (free > bestFree)
+            {
+                best = i;
+                bestFree = free;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Hands over the pooled socket already bound to a relay address.
+     * 
+     * @param relayAddress a relay address returned by {@link #allocate}.
+     * @return the bound socket or <tt>null</tt> if the address does not come
+     *         from a pool.
+     */
+    public DatagramChannel takeChannel(InetSocketAddress relayAddress)
+    {
+        return pooledChannels.remove(relayAddress);
+    }
+
+    /**
+     * Releases a relay address which will not be used or whose Allocation is
+     * gone: closes its pooled socket if it has not been taken and returns
+     * its port to the allocator of its IP address.
+     * 
+     * @param relayAddress a relay address returned by {@link #allocate}.
+     */
+    public void release(TransportAddress relayAddress)
+    {
+        DatagramChannel channel = pooledChannels.remove(relayAddress);
+        if (channel != null)
+        {
+            try
+            {
+                channel.close();
+            }
+            catch (IOException e)
+            {
+                logger.log(Level.FINE, "Failed to close " + channel, e);
+            }
+        }
+        RelayIp relayIp = relayIps.get(relayAddress.getAddress());
+        if (relayIp != null)
+            relayIp.ports.release(relayAddress.getPort());
+    }
+
+    /**
+     * Returns the port allocator of a relay IP address.
+     * 
+     * @param address a relay IP address.
+     * @return its allocator or <tt>null</tt> if it is not a relay IP address
+     *         of this provider.
+     */
+    public RelayPortAllocator getPortAllocator(InetAddress address)
+    {
+        RelayIp relayIp = relayIps.get(address);
+        return (relayIp == null) ? null : relayIp.ports;
+    }
+
+    /**
+     * Returns the relay IP addresses of this provider.
+     */
+    public Collection<InetAddress> getAddresses()
+    {
+        return Collections.unmodifiableCollection(relayIps.keySet());
+    }
+
+    /**
+     * Returns the pools of bound UDP relay sockets, with their size, hit rate
+     * and refill lag.
+     */
+    public Collection<RelaySocketPool> getSocketPools()
+    {
+        List<RelaySocketPool> pools = new ArrayList<RelaySocketPool>();
+        for (RelayIp relayIp : relayIps.values())
+        {
+            if (relayIp.pool != null)
+                pools.add(relayIp.pool);
+        }
+        return pools;
+    }
+}
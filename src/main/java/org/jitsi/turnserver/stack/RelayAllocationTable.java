@@ -0,0 +1,203 @@
+/*
+ * TurnServer, the OpenSource Java Solution for TURN protocol. Maintained by the
+ * Jitsi community (http://jitsi.org).
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.turnserver.stack;
+
+import java.net.*;
+import java.util.concurrent.atomic.*;
+
+import org.ice4j.*;
+
+/**
+ * The server Allocations indexed by their relay address. Every local IP
+ * address and transport used for relaying gets a slot per port, found in a
+ * {@link PackedAddressTable} keyed by the packed IP address (see
+ * {@link PackedAddress}) and the transport, so that the Allocation of a relay
+ * address is a hash lookup and a volatile array read, without scanning the
+ * relay IP addresses or allocating. UDP and TCP relay addresses of the same
+ * IP address and port are distinct.
+ */
+public class RelayAllocationTable
+{
+    /**
+     * The number of ports of a relay IP address.
+     */
+    private static final int PORTS = 65536;
+
+    /**
+     * The relay IP addresses and transports known so far. The table is
+     * replaced when one is added, which happens once per local IP address
+     * and transport.
+     */
+    private volatile PackedAddressTable<RelayIp> ips =
+        PackedAddressTable.empty();
+
+    /**
+     * The number of Allocations in this table.
+     */
+    private final AtomicInteger size = new AtomicInteger();
+
+    /**
+     * Returns the Allocation of a relay address.
+     * 
+     * @param relayAddress the relay address.
+     * @return the Allocation or <tt>null</tt> if there is none.
+     */
+    public Allocation get(TransportAddress relayAddress)
+    {
+        return get(relayAddress.getAddress(), relayAddress.getPort(),
+            relayAddress.getTransport());
+    }
+
+    /**
+     * Returns the Allocation of a relay IP address, port and transport.
+     * 
+     * @param address the relay IP address.
+     * @param port the relay port.
+     * @param transport the transport of the relay address.
+     * @return the Allocation or <tt>null</tt> if there is none.
+     */
+    public Allocation get(InetAddress address, int port, Transport transport)
+    {
+        RelayIp ip = find(address, transport);
+        return (ip == null) ? null : ip.allocations.get(port & 0xffff);
+    }
+
+    /**
+     * Adds the Allocation of a relay address, replacing the one which might
+     * be there.
+     * 
+     * @param relayAddress the relay address of the Allocation.
+     * @param allocation the Allocation.
+     * @return the replaced Allocation or <tt>null</tt>.
+     */
+    public Allocation put(TransportAddress relayAddress,
+        Allocation allocation)
+    {
+        Allocation previous = relayIp(relayAddress)
+            .allocations.getAndSet(relayAddress.getPort(), allocation);
+        if (previous == null)
+            size.incrementAndGet();
+        return previous;
+    }
+
+    /**
+     * Adds the Allocation of a relay address unless there already is one.
+     * 
+     * @param relayAddress the relay address of the Allocation.
+     * @param allocation the Allocation.
+     * @return <tt>true</tt> if it has been added.
+     */
+    public boolean putIfAbsent(TransportAddress relayAddress,
+        Allocation allocation)
+    {
+        if (!relayIp(relayAddress).allocations.compareAndSet(
+            relayAddress.getPort(), null, allocation))
+        {
+            return false;
+        }
+        size.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Removes the Allocation of a relay address if it is the specified one.
+     * 
+     * @param relayAddress the relay address of the Allocation.
+     * @param allocation the Allocation to remove.
+     * @return <tt>true</tt> if it has been removed.
+     */
+    public boolean remove(TransportAddress relayAddress,
+        Allocation allocation)
+    {
+        RelayIp ip =
+            find(relayAddress.getAddress(), relayAddress.getTransport());
+        if (ip != null
+            && ip.allocations.compareAndSet(
+                relayAddress.getPort(), allocation, null))
+        {
+            size.decrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return the number of Allocations in this table.
+     */
+    public int size()
+    {
+        return size.get();
+    }
+
+    /**
+     * Returns the entry of the IP address and transport of a relay address,
+     * adding it if there is none.
+     */
+    private RelayIp relayIp(TransportAddress relayAddress)
+    {
+        InetAddress address = relayAddress.getAddress();
+        Transport transport = relayAddress.getTransport();
+        RelayIp ip = find(address, transport);
+        if (ip == null)
+        {
+            synchronized (this)
+            {
+                ip = find(address, transport);
+                if (ip == null)
+                {
+                    ip = new RelayIp();
+                    ips = ips.with(PackedAddress.high(address),
+                        PackedAddress.low(address), key(transport), ip, 0);
+                }
+            }
+        }
+        return ip;
+    }
+
+    /**
+     * Returns the entry of a relay IP address and transport.
+     */
+    private RelayIp find(InetAddress address, Transport transport)
+    {
+        PackedAddressTable<RelayIp> ips = this.ips;
+        if (ips.size() == 0 || address == null)
+            return null;
+        int i = ips.find(PackedAddress.high(address),
+            PackedAddress.low(address), key(transport));
+        return (i < 0) ? null : ips.valueAt(i);
+    }
+
+    /**
+     * Returns the value standing for a transport in the port of the keys of
+     * {@link #ips}.
+     */
+    private static int key(Transport transport)
+    {
+        return (transport == null) ? 0 : transport.ordinal() + 1;
+    }
+
+    /**
+     * The Allocations of a relay IP address and transport by port.
+     */
+    private static class RelayIp
+    {
+        final AtomicReferenceArray<Allocation> allocations =
+            new AtomicReferenceArray<Allocation>(PORTS);
+    }
+}
@@ -0,0 +1,302 @@
+/*
+ * TurnServer, the OpenSource Java Solution for TURN protocol. Maintained by the
+ * Jitsi community (http://jitsi.org).
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jitsi.turnserver.stack;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Hands out the relay ports of one relay IP address from a configurable
+ * range. The free ports are the set bits of a bitmap of 64-bit words,
+ * allocated and released with a compare-and-set on a single word, so even
+ * port pairs (EVEN-PORT with the R flag) are taken atomically. The range is
+ * split in shards of whole words and every thread starts searching in its
+ * own shard from where the last search ended, so concurrent Allocate
+ * requests rarely touch the same word. A released port is kept in
+ * quarantine for a while before it can be handed out again, so that late
+ * datagrams for the old Allocation do not reach a new one. UDP and TCP relays
+ * share the ports of an IP address.
+ */
+public class RelayPortAllocator
+{
+    /**
+     * The value returned by {@link #allocate(boolean, boolean)} when no port
+     * is left.
+     */
+    public static final int NO_PORT = -1;
+
+    /**
+     * The bits of the even ports in a word.
+     */
+    private static final long EVEN_BITS = 0x5555555555555555L;
+
+    /**
+     * The lowest port of the range.
+     */
+    private final int minPort;
+
+    /**
+     * The highest port of the range.
+     */
+    private final int maxPort;
+
+    /**
+     * The time in milliseconds a released port waits before it is free.
+     */
+    private final long quarantine;
+
+    /**
+     * The free ports of the range, bit <tt>port &amp; 63</tt> of word
+     * <tt>port &gt;&gt;&gt; 6</tt> being set if the port is free.
+     */
+    private final AtomicLongArray free = new AtomicLongArray(65536 / 64);
+
+    /**
+     * The word of {@link #minPort}.
+     */
+    private final int firstWord;
+
+    /**
+     * The number of words of a shard.
+     */
+    private final int shardWords;
+
+    /**
+     * The number of shards.
+     */
+    private final int shards;
+
+    /**
+     * The offset of the word where the last search in a shard ended.
+     */
+    private final AtomicIntegerArray hints;
+
+    /**
+     * The number of free ports, not counting the ones in quarantine.
+     */
+    private final AtomicInteger available = new AtomicInteger();
+
+    /**
+     * The released ports in quarantine, each one packed as its release
+     * deadline shifted left by 16 bits or-ed with the port, in release order.
+     */
+    private final ConcurrentLinkedQueue<Long> quarantined
+        = new ConcurrentLinkedQueue<Long>();
+
+    /**
+     * Whether a thread is moving ports out of quarantine.
+     */
+    private final AtomicBoolean draining = new AtomicBoolean();
+
+    /**
+     * Creates an allocator over a range of ports.
+     * 
+     * @param minPort the lowest port of the range.
+     * @param maxPort the highest port of the range.
+     * @param quarantine the time in milliseconds a released port waits before
+     *            it is handed out again.
+     */
+    public RelayPortAllocator(int minPort, int maxPort, long quarantine)
+    {
+        if (minPort < 1 || maxPort > 65535 || minPort > maxPort)
+        {
+            throw new IllegalArgumentException(
+                "Invalid relay port range " + minPort + "-" + maxPort);
+        }
+        this.minPort = minPort;
+        this.maxPort = maxPort;
+        this.quarantine = quarantine;
+
+        firstWord = minPort >>> 6;
+        int words = (maxPort >>> 6) - firstWord + 1;
+        int shards = 1;
+        while (shards * 2 <= Runtime.getRuntime().availableProcessors()
+            && shards * 2 <= words)
+        {
+            shards *= 2;
+        }
+        this.shards = shards;
+        this.shardWords = (words + shards - 1) / shards;
+        this.hints = new AtomicIntegerArray(shards);
+
+        for (int port = minPort; port <= maxPort; port++)
+            free.set(port >>> 6, free.get(port >>> 6) | (1L << port));
+        available.set(maxPort - minPort + 1);
+    }
+
+    /**
+     * Allocates a port.
+     * 
+     * @param even whether the port has to be even.
+     * @param pair whether the next (odd) port has to be allocated as well,
+     *            implies <tt>even</tt>.
+     * @return the port or {@link #NO_PORT} if the range is exhausted.
+     */
+    public int allocate(boolean even, boolean pair)
+    {
+        drainQuarantine(System.currentTimeMillis());
+
+        int shard = (int) Thread.currentThread().getId() & (shards - 1);
+        for (int i = 0; i < shards; i++)
+        {
+            int port = allocateInShard((shard + i) & (shards - 1), even, pair);
+            if (port != NO_PORT)
+                return port;
+        }
+        return NO_PORT;
+    }
+
+    /**
+     * Searches a shard for a free port or pair, starting from its hint.
+     */
+    private int allocateInShard(int shard, boolean even, boolean pair)
+    {
+        int start = firstWord + shard * shardWords;
+        int end = Math.min(start + shardWords, free.length());
+        int words = end - start;
+        if (words <= 0)
+            return NO_PORT;
+
+        int hint = hints.get(shard);
+        for (int i = 0; i < words; i++)
+        {
+            int offset = (hint + i) % words;
+            int index = start + offset;
+            for (;;)
+            {
+                long word = free.get(index);
+                long candidates;
+                if (pair)
+                    candidates = word & (word >>> 1) & EVEN_BITS;
+                else if (even)
+                    candidates = word & EVEN_BITS;
+                else
+                    candidates = word;
+                if (candidates == 0)
+                    break;
+
+                int bit = Long.numberOfTrailingZeros(candidates);
+                long taken = (pair ? 3L : 1L) << bit;
+                if (free.compareAndSet(index, word, word & ~taken))
+                {
+                    hints.set(shard, offset);
+                    available.addAndGet(pair ? -2 : -1);
+                    return (index << 6) | bit;
+                }
+            }
+        }
+        return NO_PORT;
+    }
+
+    /**
+     * Releases a port. It becomes free again once its quarantine is over.
+     * 
+     * @param port the port to release.
+     */
+    public void release(int port)
+    {
+        if (port < minPort || port > maxPort)
+            return;
+        if (quarantine <= 0)
+        {
+            free(port);
+            return;
+        }
+        long deadline = System.currentTimeMillis() + quarantine;
+        quarantined.add((deadline << 16) | port);
+    }
+
+    /**
+     * Marks a port free.
+     */
+    private void free(int port)
+    {
+        int index = port >>> 6;
+        long bit = 1L << port;
+        for (;;)
+        {
+            long word = free.get(index);
+            if ((word & bit) != 0)
+                return; // released twice
+            if (free.compareAndSet(index, word, word | bit))
+            {
+                available.incrementAndGet();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Frees the ports whose quarantine is over. Only one thread drains at a
+     * time, the others go on with the ports already free.
+     */
+    private void drainQuarantine(long now)
+    {
+        if (quarantined.isEmpty() || !draining.compareAndSet(false, true))
+            return;
+        try
+        {
+            Long head;
+            while ((head = quarantined.peek()) != null
+                && (head >>> 16) <= now)
+            {
+                quarantined.poll();
+                free((int) (head & 0xffff));
+            }
+        }
+        finally
+        {
+            draining.set(false);
+        }
+    }
+
+    /**
+     * @return the number of free ports, not counting the ones still in
+     *         quarantine.
+     */
+    public int getAvailable()
+    {
+        return available.get();
+    }
+
+    /**
+     * @return the number of ports in quarantine.
+     */
+    public int getQuarantined()
+    {
+        return quarantined.size();
+    }
+
+    /**
+     * @return the lowest port of the range.
+     */
+    public int getMinPort()
+    {
+        return minPort;
+    }
+
+    /**
+     * @return the highest port of the range.
+     */
+    public int getMaxPort()
+    {
+        return maxPort;
+    }
+}
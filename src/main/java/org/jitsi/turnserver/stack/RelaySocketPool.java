@@ -0,0 +1,349 @@
+/*
+ * TurnServer, the OpenSource Java Solution for TURN protocol. Maintained by the
+ * Jitsi community (http://jitsi.org).
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jitsi.turnserver.stack;
+
+import java.io.*;
+import java.net.*;
+import java.nio.channels.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.logging.*;
+
+/**
+ * A pool of UDP relay sockets of one relay IP address which are already
+ * bound to ports of its {@link RelayPortAllocator}, so that an Allocate
+ * request only has to take one instead of binding it while the request is
+ * in flight. A background thread refills the pool to its target size after
+ * every take. The pool keeps the number of hits, misses and the time it took
+ * the last refill to get back to the target size.
+ */
+public class RelaySocketPool
+{
+    /**
+     * The <tt>Logger</tt> used by the <tt>RelaySocketPool</tt> class and its
+     * instances for logging output.
+     */
+    private static final Logger logger
+        = Logger.getLogger(RelaySocketPool.class.getName());
+
+    /**
+     * The time in milliseconds the refiller waits before trying again when
+     * the port range is exhausted.
+     */
+    private static final long EXHAUSTED_BACKOFF = 1000;
+
+    /**
+     * The relay IP address the sockets are bound to.
+     */
+    private final InetAddress address;
+
+    /**
+     * The allocator of the ports of {@link #address}.
+     */
+    private final RelayPortAllocator ports;
+
+    /**
+     * The number of sockets the refiller keeps in the pool.
+     */
+    private final int targetSize;
+
+    /**
+     * The bound sockets.
+     */
+    private final ConcurrentLinkedQueue<DatagramChannel> channels
+        = new ConcurrentLinkedQueue<DatagramChannel>();
+
+    /**
+     * The number of sockets in {@link #channels}.
+     */
+    private final AtomicInteger size = new AtomicInteger();
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * The time in milliseconds from the first take after the pool was full
+     * to the moment it was full again, for the last refill.
+     */
+    private volatile long refillLag;
+
+    /**
+     * The time of the first take since the pool was last full or 0.
+     */
+    private final AtomicLong belowTargetSince = new AtomicLong();
+
+    /**
+     * The thread refilling the pool or <tt>null</tt> if it is not running.
+     */
+    private volatile Thread refiller;
+
+    /**
+     * Creates a pool. It is empty until {@link #start()} is called.
+     * 
+     * @param address the relay IP address to bind the sockets to.
+     * @param ports the allocator of the ports of <tt>address</tt>.
+     * @param targetSize the number of sockets to keep in the pool.
+     */
+    public RelaySocketPool(InetAddress address, RelayPortAllocator ports,
+        int targetSize)
+    {
+        this.address = address;
+        this.ports = ports;
+        this.targetSize = targetSize;
+    }
+
+    /**
+     * Starts the thread refilling the pool.
+     */
+    public synchronized void start()
+    {
+        if (refiller != null)
+            return;
+
+        Thread t = new Thread(
+            RelaySocketPool.class.getName() + "-" + address.getHostAddress())
+        {
+            @Override
+            public void run()
+            {
+                runInRefillerThread();
+            }
+        };
+        t.setDaemon(true);
+        refiller = t;
+        t.start();
+    }
+
+    /**
+     * Stops the refiller and closes the pooled sockets, releasing their
+     * ports. Waits for the refiller to exit, so that no socket it is binding
+     * is left behind.
+     */
+    public void stop()
+    {
+        Thread t;
+        synchronized (this)
+        {
+            t = refiller;
+            refiller = null;
+            notifyAll();
+        }
+        if (t != null && t != Thread.currentThread())
+        {
+            boolean interrupted = false;
+            while (t.isAlive())
+            {
+                try
+                {
+                    t.join();
+                }
+                catch (InterruptedException ie)
+                {
+                    interrupted = true;
+                }
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+        DatagramChannel channel;
+        while ((channel = channels.poll()) != null)
+        {
+            size.decrementAndGet();
+            discard(channel);
+        }
+    }
+
+    /**
+     * Takes a bound socket out of the pool.
+     * 
+     * @return a socket bound to a relay port of the IP address of this pool
+     *         or <tt>null</tt> if the pool is empty.
+     */
+    public DatagramChannel take()
+    {
+        DatagramChannel channel = channels.poll();
+        if (channel == null)
+        {
+            misses.incrementAndGet();
+        }
+        else
+        {
+            size.decrementAndGet();
+            hits.incrementAndGet();
+        }
+        belowTargetSince.compareAndSet(0, System.currentTimeMillis());
+        synchronized (this)
+        {
+            notifyAll();
+        }
+        return channel;
+    }
+
+    /**
+     * Runs in {@link #refiller} and binds sockets until the pool is full,
+     * then waits for the next take.
+     */
+    private void runInRefillerThread()
+    {
+        while (true)
+        {
+            synchronized (this)
+            {
+                if (refiller != Thread.currentThread())
+                    break;
+            }
+
+            boolean exhausted = false;
+            while (size.get() < targetSize
+                && refiller == Thread.currentThread())
+            {
+                int port = ports.allocate(false, false);
+                if (port == RelayPortAllocator.NO_PORT)
+                {
+                    exhausted = true;
+                    break;
+                }
+                DatagramChannel channel = null;
+                try
+                {
+                    channel = DatagramChannel.open();
+                    channel.bind(new InetSocketAddress(address, port));
+                }
+                catch (IOException e)
+                {
+                    // the port may be in use by another process
+                    logger.log(Level.FINE, "Unable to bind relay port "
+                        + port + " on " + address, e);
+                    if (channel != null)
+                        close(channel);
+                    ports.release(port);
+                    continue;
+                }
+                channels.add(channel);
+                size.incrementAndGet();
+            }
+
+            long since = belowTargetSince.get();
+            if (!exhausted && since != 0
+                && belowTargetSince.compareAndSet(since, 0))
+            {
+                refillLag = System.currentTimeMillis() - since;
+            }
+
+            synchronized (this)
+            {
+                if (refiller != Thread.currentThread())
+                    break;
+                if (exhausted || size.get() >= targetSize)
+                {
+                    try
+                    {
+                        wait(exhausted ? EXHAUSTED_BACKOFF : 0);
+                    }
+                    catch (InterruptedException ie)
+                    {
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Closes a socket which will not be used and releases its port.
+     */
+    private void discard(DatagramChannel channel)
+    {
+        int port = channel.socket().getLocalPort();
+        close(channel);
+        ports.release(port);
+    }
+
+    private static void close(DatagramChannel channel)
+    {
+        try
+        {
+            channel.close();
+        }
+        catch (IOException e)
+        {
+            logger.log(Level.FINE, "Failed to close " + channel, e);
+        }
+    }
+
+    /**
+     * @return the relay IP address of this pool.
+     */
+    public InetAddress getAddress()
+    {
+        return address;
+    }
+
+    /**
+     * @return the number of sockets in the pool.
+     */
+    public int getSize()
+    {
+        return size.get();
+    }
+
+    /**
+     * @return the number of sockets the pool is refilled to.
+     */
+    public int getTargetSize()
+    {
+        return targetSize;
+    }
+
+    /**
+     * @return the number of takes which got a socket.
+     */
+    public long getHits()
+    {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of takes which found the pool empty.
+     */
+    public long getMisses()
+    {
+        return misses.get();
+    }
+
+    /**
+     * @return the share of takes which got a socket, 1 if there was none.
+     */
+    public double getHitRate()
+    {
+        long hits = this.hits.get();
+        long total = hits + misses.get();
+        return (total == 0) ? 1 : (double) hits / total;
+    }
+
+    /**
+     * @return the time in milliseconds the last refill took to get the pool
+     *         back to its target size.
+     */
+    public long getRefillLag()
+    {
+        return refillLag;
+    }
+}
@@ -0,0 +1,272 @@
+/*
+ * TurnServer, the OpenSource Java Solution for TURN protocol. Maintained by the
+ * Jitsi community (http://jitsi.org).
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jitsi.turnserver.stack;
+
+import java.util.concurrent.*;
+import java.util.logging.*;
+
+import org.ice4j.*;
+import org.ice4j.attribute.*;
+import org.ice4j.message.*;
+import org.ice4j.stack.*;
+
+/**
+ * Delivers every request received by the <tt>TurnStack</tt> to the one
+ * handler registered for its message type, instead of offering it to each
+ * registered <tt>RequestListener</tt> in turn. The handlers are kept in a
+ * small array indexed by the class and method of the message type, which is
+ * replaced as a whole when a handler is added or removed so that dispatching
+ * takes no lock.
+ * <p>
+ * The handlers may run on a separate control-plane <tt>Executor</tt>, so that
+ * a burst of Allocate requests or a slow Connect does not hold up the ice4j
+ * threads which also deliver the data of established Allocations. A handler
+ * running there which throws is answered with a 400 or a 500 error response
+ * by the dispatcher, as the ice4j stack does for the listeners it runs.
+ * </p>
+ */
+public class RequestDispatcher
+    implements RequestListener
+{
+    /**
+     * The <tt>Logger</tt> used by the <tt>RequestDispatcher</tt> class and
+     * its instances for logging output.
+     */
+    private static final Logger logger
+        = Logger.getLogger(RequestDispatcher.class.getName());
+
+    /**
+     * The number of methods which can have a handler. The TURN methods,
+     * including those of RFC 6062, are all below it.
+     */
+    private static final int METHODS = 16;
+
+    /**
+     * The handlers indexed by {@link #index(char)}.
+     */
+    private volatile RequestListener[] handlers
+        = new RequestListener[4 * METHODS];
+
+    /**
+     * The executor running the handlers or <tt>null</tt> to run them on the
+     * thread delivering the request.
+     */
+    private final Executor executor;
+
+    /**
+     * The stack sending the error responses of the handlers which throw on
+     * {@link #executor}.
+     */
+    private final StunStack stunStack;
+
+    /**
+     * Creates a dispatcher running the handlers on the thread delivering the
+     * requests.
+     */
+    public RequestDispatcher()
+    {
+        this(null, null);
+    }
+
+    /**
+     * Creates a dispatcher running the handlers on an executor.
+     * 
+     * @param stunStack the stack the requests are received by, which sends
+     *            the error responses of the handlers which throw.
+     * @param executor the executor running the handlers or <tt>null</tt> to
+     *            run them on the thread delivering the requests.
+     */
+    public RequestDispatcher(StunStack stunStack, Executor executor)
+    {
+        this.stunStack = stunStack;
+        this.executor = executor;
+    }
+
+    /**
+     * Returns the index of the handler of a message type or -1 if the method
+     * cannot have one.
+     * 
+     * @param messageType the STUN message type.
+     * @return the index of the handler in {@link #handlers} or -1.
+     */
+    static int index(char messageType)
+    {
+        int method = ((messageType & 0x3e00) >> 2)
+            | ((messageType & 0x00e0) >> 1) | (messageType & 0x000f);
+        if (method >= METHODS)
+            return -1;
+        int messageClass =
+            ((messageType & 0x0100) >> 7) | ((messageType & 0x0010) >> 4);
+        return (messageClass * METHODS) + method;
+    }
+
+    /**
+     * Sets the handler of a message type, replacing any previous one.
+     * 
+     * @param messageType the message type of the requests to handle, for
+     *            instance {@link Message#ALLOCATE_REQUEST}.
+     * @param handler the handler.
+     */
+    public synchronized void setHandler(char messageType,
+        RequestListener handler)
+    {
+        int index = index(messageType);
+        if (index < 0)
+        {
+            throw new IllegalArgumentException(
+                "Unsupported message type: " + (int) messageType);
+        }
+        RequestListener[] newHandlers = handlers.clone();
+        newHandlers[index] = handler;
+        handlers = newHandlers;
+    }
+
+    /**
+     * Removes the handler of a message type if it is the specified one.
+     * 
+     * @param messageType the message type of the handled requests.
+     * @param handler the handler to remove.
+     */
+    public synchronized void removeHandler(char messageType,
+        RequestListener handler)
+    {
+        int index = index(messageType);
+        if (index < 0 || handlers[index] != handler)
+            return;
+        RequestListener[] newHandlers = handlers.clone();
+        newHandlers[index] = null;
+        handlers = newHandlers;
+    }
+
+    /**
+     * Returns the handler of a message type or <tt>null</tt>.
+     * 
+     * @param messageType the STUN message type.
+     * @return the handler registered for it or <tt>null</tt>.
+     */
+    public RequestListener getHandler(char messageType)
+    {
+        int index = index(messageType);
+        return (index < 0) ? null : handlers[index];
+    }
+
+    /**
+     * Passes the request to the handler of its message type, on the executor
+     * of this dispatcher if it has one.
+     * 
+     * @param evt the event of the request.
+     * @throws RuntimeException if the executor rejected the request, so that
+     *             the stack answers it with a 500 error.
+     */
+    @Override
+    public void processRequest(final StunMessageEvent evt)
+        throws IllegalArgumentException
+    {
+        char messageType = evt.getMessage().getMessageType();
+        final RequestListener handler = getHandler(messageType);
+        if (handler != null && executor == null)
+        {
+            handler.processRequest(evt);
+        }
+        else if (handler != null)
+        {
+            try
+            {
+                executor.execute(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        try
+                        {
+                            handler.processRequest(evt);
+                        }
+                        catch (IllegalArgumentException e)
+                        {
+                            logger.log(Level.INFO,
+                                "Failed to process request", e);
+                            sendErrorResponse(evt,
+                                ErrorCodeAttribute.BAD_REQUEST, e);
+                        }
+                        catch (RuntimeException e)
+                        {
+                            logger.log(Level.WARNING,
+                                "Failed to process request", e);
+                            sendErrorResponse(evt,
+                                ErrorCodeAttribute.SERVER_ERROR, e);
+                        }
+                    }
+                });
+            }
+            catch (RejectedExecutionException e)
+            {
+                logger.fine("Control plane overloaded, rejecting request of"
+                    + " type " + (int) messageType);
+                // trigger a 500 response
+                throw new RuntimeException("Control plane overloaded", e);
+            }
+        }
+        else if (logger.isLoggable(Level.FINEST))
+        {
+            logger.finest("No handler for request of type "
+                + (int) messageType);
+        }
+    }
+
+    /**
+     * Returns the type of the error responses to the requests of a type: the
+     * method of the request in the error response class.
+     * 
+     * @param requestType the STUN message type of a request.
+     * @return the message type of its error responses.
+     */
+    static char errorResponseType(char requestType)
+    {
+        return (char) (requestType | 0x0110);
+    }
+
+    /**
+     * Answers a request whose handler threw with an error response, the way
+     * the ice4j stack answers the requests of the listeners it runs.
+     * 
+     * @param evt the event of the request.
+     * @param errorCode the error code of the response.
+     * @param cause the exception thrown by the handler.
+     */
+    private void sendErrorResponse(StunMessageEvent evt, char errorCode,
+        RuntimeException cause)
+    {
+        if (stunStack == null)
+            return;
+        try
+        {
+            Response error = MessageFactory.createBindingErrorResponse(
+                errorCode, cause.getMessage());
+            error.setMessageType(
+                errorResponseType(evt.getMessage().getMessageType()));
+            stunStack.sendResponse(evt.getTransactionID().getBytes(), error,
+                evt.getLocalAddress(), evt.getRemoteAddress());
+        }
+        catch (Exception e)
+        {
+            logger.log(Level.INFO, "Failed to send an error response", e);
+        }
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * TurnServer, the OpenSource Java Solution for TURN protocol. Maintained by the
+ * Jitsi community (http://jitsi.org).
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jitsi.turnserver.stack;
+
+import java.nio.channels.*;
+import java.security.*;
+import java.util.concurrent.*;
+
+import org.ice4j.*;
+
+import org.jitsi.turnserver.util.*;
+
+/**
+ * The relay addresses reserved by Allocate requests with the R flag of
+ * EVEN-PORT set, by their RESERVATION-TOKEN. The reserved address is bound
+ * when it is reserved so that the Allocate request carrying the token only
+ * has to claim the socket. Reservations which are not claimed within
+ * {@link #LIFETIME} are expired by the <tt>TurnStack</tt>.
+ */
+public class ReservationTable
+{
+    /**
+     * The time in milliseconds a reservation is kept, 30 seconds as
+     * recommended by RFC 5766.
+     */
+    public static final long LIFETIME = 30 * 1000;
+
+    /**
+     * The length of a RESERVATION-TOKEN.
+     */
+    public static final int TOKEN_LENGTH = 8;
+
+    /**
+     * The source of the tokens, which must not be guessable.
+     */
+    private final SecureRandom random = new SecureRandom();
+
+    /**
+     * The reservations by token.
+     */
+    private final ConcurrentHashMap<Long, Reservation> reservations
+        = new ConcurrentHashMap<Long, Reservation>();
+
+    /**
+     * Adds a reservation under a new random token.
+     * 
+     * @param relayAddress the reserved relay address.
+     * @param channel the channel bound to the reserved address.
+     * @return the reservation.
+     */
+    public Reservation add(TransportAddress relayAddress,
+        DatagramChannel channel)
+    {
+        for (;;)
+        {
+            long token = random.nextLong();
+            Reservation reservation =
+                new Reservation(token, relayAddress, channel);
+            if (reservations.putIfAbsent(token, reservation) == null)
+                return reservation;
+        }
+    }
+
+    /**
+     * Removes the reservation of a token for an Allocate request to use.
+     * 
+     * @param token the RESERVATION-TOKEN of the request.
+     * @return the reservation or <tt>null</tt> if the token is unknown or
+     *         has expired.
+     */
+    public Reservation claim(byte[] token)
+    {
+        if (token == null || token.length != TOKEN_LENGTH)
+            return null;
+        long key = 0;
+        for (int i = 0; i < TOKEN_LENGTH; i++)
+            key = (key << 8) | (token[i] & 0xff);
+        Reservation reservation = reservations.remove(key);
+        if (reservation != null && reservation.expiryTimeout != null)
+            reservation.expiryTimeout.cancel();
+        return reservation;
+    }
+
+    /**
+     * Removes an expired reservation unless it has been claimed meanwhile.
+     * 
+     * @param reservation the reservation to remove.
+     * @return <tt>true</tt> if it has been removed.
+     */
+    public boolean remove(Reservation reservation)
+    {
+        return reservations.remove(reservation.token, reservation);
+    }
+
+    /**
+     * @return the number of reservations.
+     */
+    public int size()
+    {
+        return reservations.size();
+    }
+
+    /**
+     * A relay address reserved under a token.
+     */
+    public static class Reservation
+    {
+        private final long token;
+
+        private final TransportAddress relayAddress;
+
+        private final DatagramChannel channel;
+
+        /**
+         * The <tt>Timeout</tt> expiring this reservation.
+         */
+        private volatile TimingWheel.Timeout expiryTimeout;
+
+        private Reservation(long token, TransportAddress relayAddress,
+            DatagramChannel channel)
+        {
+            this.token = token;
+            this.relayAddress = relayAddress;
+            this.channel = channel;
+        }
+
+        /**
+         * @return the RESERVATION-TOKEN of this reservation.
+         */
+        public byte[] getToken()
+        {
+            byte[] bytes = new byte[TOKEN_LENGTH];
+            for (int i = 0; i < TOKEN_LENGTH; i++)
+                bytes[i] = (byte) (token >>> (56 - 8 * i));
+            return bytes;
+        }
+
+        /**
+         * @return the reserved relay address.
+         */
+        public TransportAddress getRelayAddress()
+        {
+            return relayAddress;
+        }
+
+        /**
+         * @return the channel bound to the reserved relay address.
+         */
+        DatagramChannel getChannel()
+        {
+            return channel;
+        }
+
+        void setExpiryTimeout(TimingWheel.Timeout expiryTimeout)
+        {
+            this.expiryTimeout = expiryTimeout;
+        }
+    }
+}
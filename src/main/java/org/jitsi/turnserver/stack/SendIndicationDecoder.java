@@ -0,0 +1,247 @@
+/*
+ * TurnServer, the OpenSource Java Solution for TURN protocol. Maintained by the
+ * Jitsi community (http://jitsi.org).
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jitsi.turnserver.stack;
+
+import java.nio.*;
+
+/**
+ * Reads a Send indication in place in the buffer it was received into. It
+ * locates the XOR-PEER-ADDRESS and DATA attributes by their offsets instead
+ * of decoding the whole Message, so that the DATA value can be forwarded to
+ * the peer as a slice of the receive buffer. The peer address is decoded into
+ * its packed form (see {@link PackedAddress}) and kept in the decoder, so an
+ * instance must not be shared between threads.
+ */
+public class SendIndicationDecoder
+{
+    /**
+     * The message type of a Send indication.
+     */
+    private static final char SEND_INDICATION = 0x0016;
+
+    /**
+     * The type of the XOR-PEER-ADDRESS attribute.
+     */
+    private static final char XOR_PEER_ADDRESS = 0x0012;
+
+    /**
+     * The type of the DATA attribute.
+     */
+    private static final char DATA = 0x0013;
+
+    /**
+     * The STUN magic cookie.
+     */
+    private static final int MAGIC_COOKIE = 0x2112A442;
+
+    /**
+     * The length of the STUN header.
+     */
+    private static final int HEADER_LENGTH = 20;
+
+    /**
+     * The high 64 bits of the packed address of the last decoded peer.
+     */
+    private long peerHigh;
+
+    /**
+     * The low 64 bits of the packed address of the last decoded peer.
+     */
+    private long peerLow;
+
+    /**
+     * The port of the last decoded peer.
+     */
+    private int peerPort;
+
+    /**
+     * Determines whether the datagram between the position and the limit of
+     * a buffer starts with the header of a Send indication whose length fits
+     * in the datagram.
+     * 
+     * @param data the received datagram.
+     * @return <tt>true</tt> if it is a Send indication.
+     */
+    public static boolean isSendIndication(ByteBuffer data)
+    {
+        int position = data.position();
+        return data.remaining() >= HEADER_LENGTH
+            && data.getChar(position) == SEND_INDICATION
+            && data.getInt(position + 4) == MAGIC_COOKIE
+            && data.getChar(position + 2) <= data.remaining() - HEADER_LENGTH;
+    }
+
+    /**
+     * Finds the peer address and the data of a Send indication. On success
+     * the buffer is narrowed to the value of the DATA attribute and the peer
+     * is available through {@link #getPeerHigh()}, {@link #getPeerLow()} and
+     * {@link #getPeerPort()}. An indication carrying a comprehension-required
+     * attribute this server does not understand is rejected, as RFC 5389
+     * section 7.3.2 requires indications with unknown comprehension-required
+     * attributes to be discarded.
+     * 
+     * @param data a datagram for which {@link #isSendIndication(ByteBuffer)}
+     *            holds.
+     * @return <tt>true</tt> if the indication has been decoded or
+     *         <tt>false</tt> if it has no valid XOR-PEER-ADDRESS or DATA or
+     *         has an unknown comprehension-required attribute, in which case
+     *         the buffer is left untouched.
+     */
+    public boolean decode(ByteBuffer data)
+    {
+        int position = data.position();
+        int end = position + HEADER_LENGTH + data.getChar(position + 2);
+        int index = position + HEADER_LENGTH;
+        boolean hasPeer = false;
+        int dataStart = -1;
+        int dataLength = 0;
+
+        while (index + 4 <= end)
+        {
+            char type = data.getChar(index);
+            int length = data.getChar(index + 2);
+            int value = index + 4;
+            if (value + length > end)
+                return false;
+
+            if (type == XOR_PEER_ADDRESS)
+            {
+                if (!hasPeer)
+                {
+                    if (!decodeXorAddress(data, position, value, length))
+                        return false;
+                    hasPeer = true;
+                }
+            }
+            else if (type == DATA)
+            {
+                if (dataStart < 0)
+                {
+                    dataStart = value;
+                    dataLength = length;
+                }
+            }
+            else if (type < 0x8000 && !isKnownAttribute(type))
+            {
+                return false;
+            }
+            index = value + ((length + 3) & ~3);
+        }
+
+        if (!hasPeer || dataStart < 0)
+            return false;
+        data.limit(dataStart + dataLength);
+        data.position(dataStart);
+        return true;
+    }
+
+    /**
+     * Returns the high 64 bits of the packed address of the peer of the last
+     * decoded indication.
+     */
+    public long getPeerHigh()
+    {
+        return peerHigh;
+    }
+
+    /**
+     * Returns the low 64 bits of the packed address of the peer of the last
+     * decoded indication.
+     */
+    public long getPeerLow()
+    {
+        return peerLow;
+    }
+
+    /**
+     * Returns the port of the peer of the last decoded indication.
+     */
+    public int getPeerPort()
+    {
+        return peerPort;
+    }
+
+    /**
+     * Decodes the value of an XOR-PEER-ADDRESS attribute into
+     * {@link #peerHigh}, {@link #peerLow} and {@link #peerPort}.
+     * 
+     * @param data the buffer holding the message.
+     * @param message the index of the message header.
+     * @param value the index of the attribute value.
+     * @param length the length of the attribute value.
+     * @return <tt>false</tt> if the value is invalid.
+     */
+    private boolean decodeXorAddress(ByteBuffer data, int message, int value,
+        int length)
+    {
+        int family = data.get(value + 1);
+        // XOR'ed with the magic cookie followed by the transaction ID
+        if (family == 0x01 && length == 8)
+        {
+            peerHigh = 0;
+            peerLow =
+                PackedAddress.packIPv4(data.getInt(value + 4) ^ MAGIC_COOKIE);
+        }
+        else if (family == 0x02 && length == 20)
+        {
+            peerHigh = data.getLong(value + 4) ^ data.getLong(message + 4);
+            peerLow = data.getLong(value + 12) ^ data.getLong(message + 12);
+        }
+        else
+        {
+            return false;
+        }
+        peerPort = data.getChar(value + 2) ^ (MAGIC_COOKIE >>> 16);
+        return true;
+    }
+
+    /**
+     * Determines whether a comprehension-required attribute is one of the
+     * STUN and TURN attributes this server understands.
+     * 
+     * @param type the type of the attribute.
+     * @return <tt>true</tt> if the attribute is known.
+     */
+    private static boolean isKnownAttribute(char type)
+    {
+        switch (type)
+        {
+        case 0x0001: // MAPPED-ADDRESS
+        case 0x0006: // USERNAME
+        case 0x0008: // MESSAGE-INTEGRITY
+        case 0x0009: // ERROR-CODE
+        case 0x000A: // UNKNOWN-ATTRIBUTES
+        case 0x000C: // CHANNEL-NUMBER
+        case 0x000D: // LIFETIME
+        case 0x0014: // REALM
+        case 0x0015: // NONCE
+        case 0x0016: // XOR-RELAYED-ADDRESS
+        case 0x0018: // EVEN-PORT
+        case 0x0019: // REQUESTED-TRANSPORT
+        case 0x001A: // DONT-FRAGMENT
+        case 0x0020: // XOR-MAPPED-ADDRESS
+        case 0x0022: // RESERVATION-TOKEN
+        case 0x002A: // CONNECTION-ID
+            return true;
+        default:
+            return false;
+        }
+    }
+}
@@ -19,6 +19,8 @@
 
 package org.jitsi.turnserver.stack;
 
+import java.net.*;
+import java.nio.*;
 import java.util.Arrays;
 import java.util.logging.*  ;
 
@@ -26,16 +28,26 @@ import org.ice4j.*;
 import org.ice4j.message.*;
 import org.ice4j.stack.*;
 
+import org.jitsi.turnserver.socket.*;
+
 /**
  * Class to handle incoming ChannelData messages coming from Client to Server.
  * It first finds if there is a ChannelBind installed for the peer. 
  * If yes it then sends the UDP message to peer.
  * If no it then silently ignores the message.
+ * On client-facing UDP sockets served by the relay engine ChannelData and
+ * Send indications are handled by {@link #handleDatagram}, which forwards
+ * their payload to the peer straight from the receive buffer.
  * 
  * @author Aakash Garg
  */
 public class ServerChannelDataEventHandler implements
-	ChannelDataEventHandler {
+	ChannelDataEventHandler, DatagramRelayHandler {
+
+    /**
+     * The length of the ChannelData header: channel number and length.
+     */
+    private static final int CHANNEL_DATA_HEADER_LENGTH = 4;
     
     /**
      * The <tt>Logger</tt> used by the
@@ -50,6 +62,20 @@ public class ServerChannelDataEventHandler implements
      */
     private TurnStack turnStack;
 
+    /**
+     * The decoders of the Send indications received on the client-facing UDP
+     * sockets, one per relay thread.
+     */
+    private final ThreadLocal<SendIndicationDecoder> sendIndicationDecoders
+        = new ThreadLocal<SendIndicationDecoder>()
+        {
+            @Override
+            protected SendIndicationDecoder initialValue()
+            {
+                return new SendIndicationDecoder();
+            }
+        };
+
     /**
      * Default Constructor.
      */
@@ -120,16 +146,10 @@ public class ServerChannelDataEventHandler implements
         TransportAddress destAddr = allocation.getPeerAddr(channelNo);
         if(destAddr != null)
         {
-	    RawMessage message = RawMessage.build(data, data.length, destAddr,
-		    allocation.getClientAddress());
-	    try {
-		logger.finer("Dispatching a UDP message to " + destAddr
-			+ ", data: " + Arrays.toString(message.getBytes()));
-		this.turnStack.sendUdpMessage(message, destAddr,
-		    allocation.getRelayAddress());
-	    } catch (StunException e) {
-		logger.finer(e.getMessage());
-	    }
+	    logger.finer("Dispatching a UDP message to " + destAddr
+		    + ", data: " + Arrays.toString(data));
+	    this.turnStack.sendToPeer(allocation, destAddr,
+		ByteBuffer.wrap(data));
         }
         else
         {
@@ -139,4 +159,105 @@ public class ServerChannelDataEventHandler implements
 
     }
 
+    /**
+     * Handles a datagram received on a client-facing UDP socket served by the
+     * relay engine. ChannelData is recognised by its first two bits being 01
+     * (channel numbers 0x4000 through 0x7FFF) and its payload is sent to the
+     * peer as a slice of the receive buffer, without being copied or decoded
+     * into objects. Send indications are forwarded the same way after their
+     * XOR-PEER-ADDRESS and DATA have been located by offset. Everything else
+     * is passed on to ice4j. The datagram is relayed by the event loop which
+     * received it, the only thread counting the traffic of its Allocation
+     * towards the peers.
+     * 
+     * @param attachment the wrapper of the client-facing socket.
+     * @param source the address of the client.
+     * @param data the datagram.
+     */
+    @Override
+    public void handleDatagram(
+        Object attachment, InetSocketAddress source, ByteBuffer data)
+    {
+        IceUdpChannelSocketWrapper sock =
+            (IceUdpChannelSocketWrapper) attachment;
+        int position = data.position();
+
+        if (data.remaining() < CHANNEL_DATA_HEADER_LENGTH
+            || (data.get(position) & 0xC0) != 0x40)
+        {
+            if (SendIndicationDecoder.isSendIndication(data))
+                forwardSendIndication(sock, source, data);
+            else
+                sock.deliver(source, data);
+            return;
+        }
+
+        char channelNo = data.getChar(position);
+        int length = data.getChar(position + 2);
+        if (length > data.remaining() - CHANNEL_DATA_HEADER_LENGTH)
+        {
+            logger.finest("Dropped a truncated ChannelData message.");
+            return;
+        }
+
+        Allocation allocation = (Allocation) sock.getClient(source);
+        if (allocation == null)
+        {
+            logger.finest("allocation not found.");
+            return;
+        }
+        InetSocketAddress destAddr = allocation.getForwarding()
+            .getChannelPeer(channelNo, System.currentTimeMillis());
+        if (destAddr == null)
+        {
+            if (logger.isLoggable(Level.FINEST))
+            {
+                logger.finest("Peer address not found for channel "
+                    + (int) channelNo);
+            }
+            return;
+        }
+
+        data.position(position + CHANNEL_DATA_HEADER_LENGTH);
+        data.limit(position + CHANNEL_DATA_HEADER_LENGTH + length);
+        if (this.turnStack.sendToPeer(allocation, destAddr, data))
+            allocation.countToPeer(length);
+    }
+
+    /**
+     * Forwards the DATA of a Send indication received on a client-facing UDP
+     * socket to its peer, if the peer is permitted, without decoding the
+     * indication into a Message.
+     * 
+     * @param sock the wrapper of the client-facing socket.
+     * @param source the address of the client.
+     * @param data the Send indication.
+     */
+    private void forwardSendIndication(IceUdpChannelSocketWrapper sock,
+        InetSocketAddress source, ByteBuffer data)
+    {
+        Allocation allocation = (Allocation) sock.getClient(source);
+        if (allocation == null)
+        {
+            logger.finest("allocation not found.");
+            return;
+        }
+        SendIndicationDecoder decoder = sendIndicationDecoders.get();
+        if (!decoder.decode(data))
+        {
+            logger.finest("Dropped a malformed Send indication.");
+            return;
+        }
+        InetSocketAddress peerAddress = allocation.getForwarding()
+            .getPermittedPeer(decoder.getPeerHigh(), decoder.getPeerLow(),
+                decoder.getPeerPort(), System.currentTimeMillis());
+        if (peerAddress == null)
+        {
+            logger.finest("No permission installed for the peer.");
+            return;
+        }
+        int length = data.remaining();
+        if (this.turnStack.sendToPeer(allocation, peerAddress, data))
+            allocation.countToPeer(length);
+    }
 }
@@ -19,6 +19,8 @@
 
 package org.jitsi.turnserver.stack;
 
+import java.net.*;
+import java.nio.*;
 import java.util.*;
 import java.util.logging.*;
 
@@ -26,6 +28,9 @@ import org.ice4j.*;
 import org.ice4j.message.*;
 import org.ice4j.stack.*;
 
+import org.jitsi.turnserver.socket.*;
+import org.jitsi.turnserver.util.*;
+
 /**
  * Class to handle UDP messages coming from Peer. The class first checks if
  * there is a non-expired ChannelBind for the peer if yes it then sends a
@@ -33,11 +38,14 @@ import org.ice4j.stack.*;
  * permission if yes then it sends a DataIndicatio to Client. All the mesages
  * sent to client here are from the address on which the allocation request was
  * received or the serverAddress of fiveTuple of corresponding Allocation.
+ * UDP datagrams from peers are delivered directly by the relay engine of the
+ * TurnStack through {@link #handleDatagram}.
  * 
  * @author Aakash Garg
  */
 public class ServerPeerUdpEventHandler
-    implements PeerUdpMessageEventHandler
+    implements PeerUdpMessageEventHandler,
+               DatagramRelayHandler
 {
     /**
      * The <tt>Logger</tt> used by the <tt>PeerUdpMessageEventHandler</tt> class
@@ -51,6 +59,19 @@ public class ServerPeerUdpEventHandler
      */
     private TurnStack turnStack;
 
+    /**
+     * The generator of the transaction IDs of the Data indications.
+     */
+    private final TransactionIdGenerator transactionIds =
+        new TransactionIdGenerator();
+
+    /**
+     * Frames the datagrams of permitted peers without channel as Data
+     * indications in the receive buffer of the relay engine.
+     */
+    private final DataIndicationEncoder dataIndicationEncoder =
+        new DataIndicationEncoder(transactionIds);
+
     /**
      * Default constructor.
      */
@@ -110,13 +131,21 @@ public class ServerPeerUdpEventHandler
             {
                 // get client allocation
                 logger.finest("Message came from TCP Client");
-                int connectionId =
+                Integer connectionId =
                     this.turnStack.getConnectionIdForDataConn(fiveTuple);
                 logger.finest("Connection Id extracted for "+fiveTuple+" is "+connectionId);
-                allocation = this.turnStack.getAllocationFromConnectionId(connectionId);
+                if (connectionId != null)
+                    allocation = this.turnStack.getAllocationFromConnectionId(connectionId);
                 logger.finest("Allocation extracted is "+allocation+" for client-"+fiveTuple);
-                FiveTuple peerTuple =
-                    allocation.getPeerTCPConnection(connectionId);
+                FiveTuple peerTuple = (allocation == null)
+                    ? null : allocation.getPeerTCPConnection(connectionId);
+                if (peerTuple == null)
+                {
+                    // the Connection Id has been released meanwhile
+                    logger.finest("No peer connection for client-"
+                        + fiveTuple);
+                    return;
+                }
                 TransportAddress peerAddress =
                     peerTuple.getClientTransportAddress();
                 TransportAddress relayAddress =
@@ -143,7 +172,7 @@ public class ServerPeerUdpEventHandler
             {
                 // else came from peer
                 logger.finest("Message came from TCP peer.");
-                int connectionId =
+                Integer connectionId =
                     this.turnStack.getConnectionIdForPeer(fiveTuple);
                 if (!allocation.isPermitted(remoteAddress))
                 {
@@ -152,8 +181,10 @@ public class ServerPeerUdpEventHandler
                 }
                 else
                 {
-                    TransportAddress dataConn = allocation.getDataConnection(
-                        connectionId).getClientTransportAddress();
+                    FiveTuple dataConnTuple = (connectionId == null)
+                        ? null : allocation.getDataConnection(connectionId);
+                    TransportAddress dataConn = (dataConnTuple == null)
+                        ? null : dataConnTuple.getClientTransportAddress();
                     if (dataConn != null)
                     {
                         RawMessage rawMessage =
@@ -181,10 +212,99 @@ public class ServerPeerUdpEventHandler
                 }
             }
         }
-        else if (allocation != null
-            && allocation.getChannel(remoteAddress) != 0x1000)
+        else
+        {
+            relayToClient(allocation, remoteAddress, data);
+        }
+    }
+
+    /**
+     * Handles a datagram received by the relay engine on the UDP relay address
+     * of an Allocation. If the client reached the Allocation through a socket
+     * of the relay engine the datagram is framed in place as ChannelData or as
+     * a Data indication and sent from the same buffer, otherwise it is
+     * relayed through the TurnStack. Channels and Permissions are looked up
+     * in the {@link ForwardingSnapshot} of the Allocation.
+     * 
+     * @param attachment the Allocation owning the relay address.
+     * @param source the address of the peer.
+     * @param data the datagram.
+     */
+    @Override
+    public void handleDatagram(
+        Object attachment, InetSocketAddress source, ByteBuffer data)
+    {
+        Allocation allocation = (Allocation) attachment;
+        ForwardingSnapshot forwarding = allocation.getForwarding();
+        if (forwarding.getClientSocket() == null)
+        {
+            relayToClient(allocation, source, data);
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        int length = data.remaining();
+        int header = forwarding.getChannelHeader(source, now);
+        if (header != ForwardingSnapshot.NO_CHANNEL_HEADER)
+        {
+            int position = data.position() - 4;
+            data.putInt(position, header | length);
+            data.position(position);
+            if (this.turnStack.sendToClient(forwarding, data))
+                allocation.countToClient(length);
+            return;
+        }
+
+        byte[] xorPeerAddress =
+            forwarding.getXorPeerAddress(source.getAddress(), now);
+        if (xorPeerAddress != null)
+        {
+            dataIndicationEncoder.encode(
+                data, xorPeerAddress, source.getPort());
+            if (this.turnStack.sendToClient(forwarding, data))
+                allocation.countToClient(length);
+        }
+        else if (logger.isLoggable(Level.FINEST))
+        {
+            logger.finest("No permission installed for peer-" + source);
+        }
+    }
+
+    /**
+     * Relays a datagram received by the relay engine through the TurnStack.
+     * 
+     * @param allocation the Allocation owning the relay address.
+     * @param source the address of the peer.
+     * @param data the datagram.
+     */
+    private void relayToClient(Allocation allocation,
+        InetSocketAddress source, ByteBuffer data)
+    {
+        byte[] bytes = new byte[data.remaining()];
+        data.get(bytes);
+        TransportAddress remoteAddress =
+            new TransportAddress(
+                source.getAddress(), source.getPort(), Transport.UDP);
+        relayToClient(allocation, remoteAddress, bytes);
+    }
+
+    /**
+     * Relays a UDP datagram received from a peer to the client of the
+     * allocation, as ChannelData if the peer is bound to a channel or else as
+     * a Data indication if it is permitted.
+     * 
+     * @param allocation the allocation the datagram was received for.
+     * @param remoteAddress the address of the peer.
+     * @param data the datagram.
+     */
+    private void relayToClient(Allocation allocation,
+        TransportAddress remoteAddress, byte[] data)
+    {
+        char channelNo = (allocation == null)
+            ? ChannelTable.NO_CHANNEL
+            : allocation.getChannel(remoteAddress);
+        if (channelNo != ChannelTable.NO_CHANNEL)
         {
-            char channelNo = allocation.getChannel(remoteAddress);
             ChannelData channelData = new ChannelData();
             channelData.setChannelNumber(channelNo);
             channelData.setData(data);
@@ -205,9 +325,8 @@ public class ServerPeerUdpEventHandler
         }
         else if (allocation != null && allocation.isPermitted(remoteAddress))
         {
-            TransactionID tranID = TransactionID.createNewTransactionID();
             Indication dataInd = MessageFactory.createDataIndication(
-                remoteAddress, data, tranID.getBytes());
+                remoteAddress, data, transactionIds.next());
             try
             {
                 logger.finest("Sending a ChannelData message " + dataInd
@@ -21,6 +21,7 @@ package org.jitsi.turnserver.stack;
 
 import java.io.*;
 import java.net.*;
+import java.nio.channels.*;
 import java.util.logging.*;
 
 import org.ice4j.*;
@@ -28,6 +29,7 @@ import org.ice4j.socket.*;
 
 import org.jitsi.turnserver.*;
 import org.jitsi.turnserver.listeners.*;
+import org.jitsi.turnserver.socket.*;
 
 /**
  * The class to run a Turn server.
@@ -141,26 +143,49 @@ public class TurnServer
         System.out.println("Local address - " + localAddress.getHostAddress()
             + ":" + localAddress.getPort());
         // instance a server socket for TCP
-        ServerSocket tcpServerSocket =
-            new ServerSocket(localAddress.getPort(), backlog,
-            localAddress.getAddress());
+        // a channel socket, so that the client data connections can be
+        // spliced to their peer connections
+        ServerSocket tcpServerSocket = ServerSocketChannel.open().socket();
         // set reuse to allow binding the socket to the same address
         tcpServerSocket.setReuseAddress(true);
+        tcpServerSocket.bind(new InetSocketAddress(localAddress.getAddress(),
+            localAddress.getPort()), backlog);
         System.out.println("Adding a TCP server socket - "
             + tcpServerSocket.getLocalSocketAddress());
         // create ICE socket wrapper for TCP
-        turnTcpServerSocket = new IceTcpServerSocketWrapper(tcpServerSocket,
-            turnStack.getComponent());
-        // instance a datagram socket for UDP
-        SafeCloseDatagramSocket udpServerSocket =
-            new SafeCloseDatagramSocket(localAddress.getPort(),
-            localAddress.getAddress());
-        // set reuse to allow binding the datagram socket to the same address
-        udpServerSocket.setReuseAddress(true);
-        System.out.println("Adding a UDP server socket - "
-            + udpServerSocket.getLocalSocketAddress());
-        // create ICE socket wrapper for UDP
-        turnUdpSocket = new IceUdpSocketWrapper(udpServerSocket);
+        // the allocations made over a TCP connection are released as soon as
+        // the connection is lost
+        IceTcpEventizedServerSockerWrapper eventizedServerSocket =
+            new IceTcpEventizedServerSockerWrapper(tcpServerSocket,
+                turnStack.getComponent());
+        eventizedServerSocket.setCloseListener(
+            new TcpConnectionCloseListener(turnStack));
+        turnStack.addTcpServerSocket(eventizedServerSocket);
+        turnTcpServerSocket = eventizedServerSocket;
+        if (TurnStackProperties.getBoolean(
+                TurnStackProperties.ZERO_COPY_FORWARDING,
+                TurnStackProperties.DEFAULT_ZERO_COPY_FORWARDING))
+        {
+            // ChannelData is forwarded by the relay engine, the rest of the
+            // UDP traffic is passed on to the stack through the wrapper
+            turnUdpSocket = turnStack.openClientUdpSocket(localAddress);
+            System.out.println("Adding a UDP server socket - "
+                + turnUdpSocket.getLocalSocketAddress());
+        }
+        else
+        {
+            // instance a datagram socket for UDP
+            SafeCloseDatagramSocket udpServerSocket =
+                new SafeCloseDatagramSocket(localAddress.getPort(),
+                localAddress.getAddress());
+            // set reuse to allow binding the datagram socket to the same
+            // address
+            udpServerSocket.setReuseAddress(true);
+            System.out.println("Adding a UDP server socket - "
+                + udpServerSocket.getLocalSocketAddress());
+            // create ICE socket wrapper for UDP
+            turnUdpSocket = new IceUdpSocketWrapper(udpServerSocket);
+        }
         // add the TCP socket to the stack
         turnStack.addSocket(turnTcpServerSocket);
         // add the UDP socket to the stack
@@ -179,6 +204,11 @@ public class TurnServer
         logger.info("Stopping server at " + localAddress.getAddress() + ":"
             + localAddress.getPort());
         turnStack.removeSocket(localAddress);
+        if (turnTcpServerSocket instanceof IceTcpEventizedServerSockerWrapper)
+        {
+            turnStack.removeTcpServerSocket(
+                (IceTcpEventizedServerSockerWrapper) turnTcpServerSocket);
+        }
         turnStack = null;
         turnUdpSocket.close();
         turnUdpSocket = null;
@@ -21,7 +21,10 @@ package org.jitsi.turnserver.stack;
 
 import java.io.*;
 import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.logging.*;
 
 import org.ice4j.*;
@@ -35,6 +38,7 @@ import org.ice4j.stack.*;
 import org.jitsi.turnserver.*;
 import org.jitsi.turnserver.listeners.*;
 import org.jitsi.turnserver.socket.*;
+import org.jitsi.turnserver.util.*;
 
 /**
  * The entry point to the TurnServer stack. The class is used to start, stop and
@@ -57,31 +61,26 @@ public class TurnStack
      * The maximum no of Allocations per TurnStack.
      */
     public static final int MAX_ALLOCATIONS = 500;
-    
-    /**
-     * To track the portNo used.
-     */
-//    private static int nextPortNo = 49152;
-    private static int nextPortNo = 15000;
-    
+
     /**
-     * Represents the Allocations stored for Server Side.
+     * The relay addresses reserved by RESERVATION-TOKEN.
      */
-    private final HashMap<FiveTuple,Allocation> serverAllocations
-        = new HashMap<FiveTuple,Allocation>();
+    private final ReservationTable reservations = new ReservationTable();
 
     /**
-     * Contains the mapping of relayAddress to Allocation.
+     * The provider of the relay addresses, with the port allocators and
+     * socket pools of the relay IP addresses.
      */
-    private final HashMap<TransportAddress,Allocation> serverRelayAllocationMap
-        = new HashMap<TransportAddress,Allocation>();
+    private final RelayAddressProvider relayAddresses =
+        RelayAddressProvider.createFromProperties();
     
     /**
-     * RelayAddress reserved by server.
+     * The Allocations stored for Server Side with their indexes by relay
+     * address and Connection Id.
      */
-    private final HashSet<TransportAddress> reservedAddress
-        = new HashSet<TransportAddress>();
-    
+    private final AllocationRegistry allocations
+        = new AllocationRegistry(MAX_ALLOCATIONS);
+
     /**
      * Represents the Allocations stored for Client Side.
      */
@@ -89,37 +88,106 @@ public class TurnStack
         = new HashMap<FiveTuple,Allocation>();
 
     /**
-     * Maps one-to-one from Data Connection to Connection Id.
+     * The timer which expires the <tt>Allocation</tt>s of this
+     * <tt>TurnStack</tt>, their Permissions and ChannelBinds and the
+     * unAcknowledged Connection Ids.
+     */
+    private final TimingWheel expiryTimer =
+        new TimingWheel(TurnStack.class.getName() + ".expiryTimer");
+
+    /**
+     * The threads running the request handlers, apart from the threads
+     * delivering the messages and relaying the data.
+     */
+    private final BoundedExecutor controlExecutor = new BoundedExecutor(
+        TurnStack.class.getName() + ".control",
+        TurnStackProperties.getInt(
+            TurnStackProperties.CONTROL_THREADS,
+            TurnStackProperties.DEFAULT_CONTROL_THREADS),
+        TurnStackProperties.getInt(
+            TurnStackProperties.CONTROL_QUEUE_SIZE,
+            TurnStackProperties.DEFAULT_CONTROL_QUEUE_SIZE));
+
+    /**
+     * The single request listener of this <tt>TurnStack</tt>, which passes
+     * every request to the handler of its message type on
+     * {@link #controlExecutor}.
+     */
+    private final RequestDispatcher requestDispatcher =
+        new RequestDispatcher(this, controlExecutor);
+
+    /**
+     * The engine serving the UDP relay addresses of the Allocations of this
+     * <tt>TurnStack</tt>.
+     */
+    private final UdpRelayEngine relayEngine;
+
+    /**
+     * The connector establishing the TCP connections to peers requested by
+     * Connect requests.
      */
-    private final HashMap<FiveTuple, Integer> dataConnToConnIdMap =
-        new HashMap<FiveTuple, Integer>();
+    private final TcpConnector tcpConnector = createTcpConnector();
 
     /**
-     * Maps one-to-one from Peer TCP Connection to Connection Id.
+     * The engine relaying the bytes between the bound client data connections
+     * and peer connections.
      */
-    private final HashMap<FiveTuple, Integer> peerConnToConnIdMap =
-        new HashMap<FiveTuple, Integer>();
+    private final TcpSpliceEngine spliceEngine = createSpliceEngine();
 
     /**
-     * Maps many-to-one from Connection Id to Allocation for where
-     * ConnectionBind Request has been received for Connection ID .
+     * The acceptor of the peer connections on the TCP relay addresses of all
+     * the allocations.
      */
-    private final HashMap<Integer, Allocation> connIdToAllocMap =
-        new HashMap<Integer, Allocation>();
+    private final TcpRelayAcceptor tcpAcceptor = createTcpAcceptor();
 
     /**
-     * Contains unAcknowledged Connection Id. Every element will expire after
-     * min of 30 sec.
+     * The listener of the peer connections accepted on the TCP relay
+     * addresses, shared by all the allocations.
      */
-    private final HashSet<Integer> unAcknowledgedConnId =
-        new HashSet<Integer>();
+    private final PeerTcpConnectEventListner peerConnectListener =
+        new PeerTcpConnectEventListner(this);
 
     /**
-     * The <tt>Thread</tt> which expires the <tt>TurnServerAllocation</tt>s of
-     * this <tt>TurnStack</tt> and removes them from {@link #serverAllocations}
-     * .
+     * The Connection Ids of the TCP relays with their bind deadline and the
+     * connections they own.
      */
-    private Thread serverAllocationExpireThread;
+    private final ConnectionIdManager connectionIds =
+        new ConnectionIdManager(expiryTimer,
+            TurnStackProperties.getInt(
+                TurnStackProperties.CONNECTION_ID_LIFETIME,
+                TurnStackProperties.DEFAULT_CONNECTION_ID_LIFETIME),
+            new ConnectionIdManager.ExpiryListener()
+            {
+                @Override
+                public void connectionIdExpired(int connectionId,
+                    Allocation allocation)
+                {
+                    logger.finest("Expired unAcknowledged connectionId-"
+                        + connectionId);
+                    releaseConnectionId(connectionId, allocation);
+                }
+            });
+
+    /**
+     * The TCP server sockets accepting client connections, which may become
+     * client data connections.
+     */
+    private final List<IceTcpEventizedServerSockerWrapper> tcpServerSockets =
+        new CopyOnWriteArrayList<IceTcpEventizedServerSockerWrapper>();
+
+    /**
+     * The handler of the datagrams received on the client-facing UDP sockets
+     * opened by {@link #openClientUdpSocket}.
+     */
+    private final DatagramRelayHandler clientDatagramHandler;
+
+    /**
+     * The client-facing UDP sockets served by {@link #relayEngine} mapped by
+     * their local port.
+     */
+    private final ConcurrentHashMap<Integer, IceUdpChannelSocketWrapper>
+        clientUdpSockets =
+            new ConcurrentHashMap<Integer, IceUdpChannelSocketWrapper>();
         
     /**
      * Indicates that if the don't fragment is support or not.
@@ -148,6 +216,11 @@ public class TurnStack
     {
         super();
         initCredentials();
+        relayEngine = createRelayEngine(new ServerPeerUdpEventHandler(this));
+        clientDatagramHandler = new ServerChannelDataEventHandler(this);
+        expiryTimer.start();
+        relayAddresses.start();
+        addRequestListener(requestDispatcher);
     }
 
     /**
@@ -162,6 +235,341 @@ public class TurnStack
 	        ChannelDataEventHandler channelDataEventHandler) {
 	super(peerUdpMessageEventHandler,channelDataEventHandler);
         initCredentials();
+        relayEngine = createRelayEngine(
+            (peerUdpMessageEventHandler instanceof DatagramRelayHandler)
+                ? (DatagramRelayHandler) peerUdpMessageEventHandler
+                : new ServerPeerUdpEventHandler(this));
+        clientDatagramHandler =
+            (channelDataEventHandler instanceof DatagramRelayHandler)
+                ? (DatagramRelayHandler) channelDataEventHandler
+                : new ServerChannelDataEventHandler(this);
+        expiryTimer.start();
+        relayAddresses.start();
+        addRequestListener(requestDispatcher);
+    }
+
+    /**
+     * Creates and starts the engine serving the UDP relay addresses.
+     * 
+     * @param handler the handler of the datagrams received from peers.
+     * @return the started engine.
+     */
+    private static UdpRelayEngine createRelayEngine(
+        DatagramRelayHandler handler)
+    {
+        try
+        {
+            UdpRelayEngine engine = new UdpRelayEngine(
+                TurnStack.class.getName() + ".relayEngine",
+                TurnStackProperties.getInt(
+                    TurnStackProperties.RELAY_THREADS,
+                    TurnStackProperties.DEFAULT_RELAY_THREADS),
+                handler);
+            engine.start();
+            return engine;
+        }
+        catch (IOException e)
+        {
+            throw new IllegalStateException(
+                "Unable to start the relay engine", e);
+        }
+    }
+
+    /**
+     * Creates and starts the connector of the TCP connections to peers.
+     * 
+     * @return the started connector.
+     */
+    private static TcpConnector createTcpConnector()
+    {
+        try
+        {
+            TcpConnector connector = new TcpConnector(
+                TurnStack.class.getName() + ".tcpConnector");
+            connector.start();
+            return connector;
+        }
+        catch (IOException e)
+        {
+            throw new IllegalStateException(
+                "Unable to start the TCP connector", e);
+        }
+    }
+
+    /**
+     * Creates and starts the acceptor of the peer connections on the TCP
+     * relay addresses.
+     * 
+     * @return the started acceptor.
+     */
+    private static TcpRelayAcceptor createTcpAcceptor()
+    {
+        try
+        {
+            TcpRelayAcceptor acceptor = new TcpRelayAcceptor(
+                TurnStack.class.getName() + ".tcpAcceptor");
+            acceptor.start();
+            return acceptor;
+        }
+        catch (IOException e)
+        {
+            throw new IllegalStateException(
+                "Unable to start the TCP relay acceptor", e);
+        }
+    }
+
+    /**
+     * Creates and starts the engine relaying the TCP connections.
+     * 
+     * @return the started engine.
+     */
+    private static TcpSpliceEngine createSpliceEngine()
+    {
+        try
+        {
+            TcpSpliceEngine engine = new TcpSpliceEngine(
+                TurnStack.class.getName() + ".spliceEngine",
+                TurnStackProperties.getInt(
+                    TurnStackProperties.RELAY_THREADS,
+                    TurnStackProperties.DEFAULT_RELAY_THREADS),
+                TurnStackProperties.getInt(
+                    TurnStackProperties.TCP_SPLICE_BUFFER_SIZE,
+                    TurnStackProperties.DEFAULT_TCP_SPLICE_BUFFER_SIZE),
+                TurnStackProperties.getBoolean(
+                    TurnStackProperties.TCP_NODELAY,
+                    TurnStackProperties.DEFAULT_TCP_NODELAY),
+                TurnStackProperties.getInt(
+                    TurnStackProperties.TCP_SOCKET_BUFFER_SIZE,
+                    TurnStackProperties.DEFAULT_TCP_SOCKET_BUFFER_SIZE));
+            engine.start();
+            return engine;
+        }
+        catch (IOException e)
+        {
+            throw new IllegalStateException(
+                "Unable to start the splice engine", e);
+        }
+    }
+
+    /**
+     * Stops the expiry timer, the control-plane threads, the relay engines,
+     * the TCP connector and the TCP relay acceptor in addition to shutting
+     * down the StunStack.
+     */
+    @Override
+    public void shutDown()
+    {
+        expiryTimer.stop();
+        relayAddresses.stop();
+        controlExecutor.shutDown();
+        relayEngine.stop();
+        tcpConnector.stop();
+        tcpAcceptor.stop();
+        spliceEngine.stop();
+        super.shutDown();
+    }
+
+    /**
+     * Registers the handler of the requests of a message type. Each request
+     * is delivered to the handler of its type only, replacing
+     * {@link #addRequestListener(RequestListener)} which offers every
+     * request to every listener.
+     * 
+     * @param messageType the message type of the requests to handle, for
+     *            instance {@link Message#ALLOCATE_REQUEST}.
+     * @param handler the handler of the requests.
+     */
+    public void addRequestHandler(char messageType, RequestListener handler)
+    {
+        requestDispatcher.setHandler(messageType, handler);
+    }
+
+    /**
+     * Unregisters the handler of the requests of a message type.
+     * 
+     * @param messageType the message type of the handled requests.
+     * @param handler the handler to unregister.
+     */
+    public void removeRequestHandler(char messageType,
+        RequestListener handler)
+    {
+        requestDispatcher.removeHandler(messageType, handler);
+    }
+
+    /**
+     * Returns the executor running the request handlers, with its queue
+     * size, rejected requests and queueing times.
+     */
+    public BoundedExecutor getControlExecutor()
+    {
+        return controlExecutor;
+    }
+
+    /**
+     * Returns the engine serving the UDP relay addresses of this TurnStack.
+     */
+    public UdpRelayEngine getRelayEngine()
+    {
+        return relayEngine;
+    }
+
+    /**
+     * Returns the connector of the TCP connections to peers.
+     */
+    public TcpConnector getTcpConnector()
+    {
+        return tcpConnector;
+    }
+
+    /**
+     * Returns the acceptor of the peer connections on the TCP relay
+     * addresses.
+     */
+    public TcpRelayAcceptor getTcpAcceptor()
+    {
+        return tcpAcceptor;
+    }
+
+    /**
+     * Returns the engine relaying the bound TCP connections.
+     */
+    public TcpSpliceEngine getSpliceEngine()
+    {
+        return spliceEngine;
+    }
+
+    /**
+     * Returns the splice relaying the bytes of a bound Connection Id, through
+     * which its buffer occupancy, stall time and socket settings can be
+     * observed and tuned.
+     * 
+     * @param connectionId the Connection Id.
+     * @return the splice or <tt>null</tt> if the Connection Id is not
+     *         spliced.
+     */
+    public TcpSpliceEngine.Splice getSplice(int connectionId)
+    {
+        return connectionIds.getSplice(connectionId);
+    }
+
+    /**
+     * Returns the manager of the Connection Ids of the TCP relays, which
+     * counts the pending, bound and expired ones.
+     */
+    public ConnectionIdManager getConnectionIdManager()
+    {
+        return connectionIds;
+    }
+
+    /**
+     * Registers a TCP server socket accepting client connections, so that the
+     * client data connections it accepts can be spliced to their peer
+     * connection.
+     * 
+     * @param serverSocket the server socket, with a close listener set.
+     */
+    public void addTcpServerSocket(
+        IceTcpEventizedServerSockerWrapper serverSocket)
+    {
+        tcpServerSockets.add(serverSocket);
+    }
+
+    /**
+     * Unregisters a TCP server socket registered with
+     * {@link #addTcpServerSocket}.
+     * 
+     * @param serverSocket the server socket.
+     */
+    public void removeTcpServerSocket(
+        IceTcpEventizedServerSockerWrapper serverSocket)
+    {
+        tcpServerSockets.remove(serverSocket);
+    }
+
+    /**
+     * Opens a client-facing UDP socket served by the relay engine. ChannelData
+     * received on it is forwarded to the peers straight from the receive
+     * buffer, everything else is passed on to ice4j through the returned
+     * wrapper, which has to be added to this stack with
+     * {@link #addSocket(IceSocketWrapper)}.
+     * 
+     * @param localAddress the address to listen on.
+     * @return the wrapper of the socket.
+     * @throws IOException if the address could not be bound.
+     */
+    public IceUdpChannelSocketWrapper openClientUdpSocket(
+        TransportAddress localAddress)
+        throws IOException
+    {
+        DatagramChannel channel = DatagramChannel.open();
+        IceUdpChannelSocketWrapper sock;
+        try
+        {
+            channel.socket().setReuseAddress(true);
+            channel.bind(localAddress);
+            sock = new IceUdpChannelSocketWrapper(relayEngine, channel);
+            relayEngine.register(channel, clientDatagramHandler, sock);
+        }
+        catch (IOException e)
+        {
+            channel.close();
+            throw e;
+        }
+        clientUdpSockets.put(channel.socket().getLocalPort(), sock);
+        return sock;
+    }
+
+    /**
+     * Returns the client-facing UDP socket served by the relay engine on
+     * which the specified allocation was made.
+     * 
+     * @param allocation the allocation.
+     * @return the socket or <tt>null</tt> if the allocation was not made over
+     *         UDP on a socket opened by {@link #openClientUdpSocket}.
+     */
+    public IceUdpChannelSocketWrapper getClientUdpSocket(Allocation allocation)
+    {
+        if (allocation.getFiveTuple().getTransport() != Transport.UDP)
+            return null;
+        return clientUdpSockets.get(allocation.getServerAddress().getPort());
+    }
+
+    /**
+     * Sends a datagram to the client of the specified allocation from its
+     * client-facing UDP socket. Never blocks.
+     * 
+     * @param forwarding the forwarding snapshot of the allocation, whose
+     *            client socket is not <tt>null</tt>.
+     * @param data the datagram, between its position and its limit.
+     * @return <tt>true</tt> if the datagram was sent, <tt>false</tt> if it was
+     *         dropped.
+     */
+    public boolean sendToClient(ForwardingSnapshot forwarding, ByteBuffer data)
+    {
+        return relayEngine.send(forwarding.getClientSocket().getChannel(),
+            data, forwarding.getClientAddress());
+    }
+
+    /**
+     * Sends a datagram to a peer from the UDP relay address of the specified
+     * allocation. Never blocks.
+     * 
+     * @param allocation the allocation to relay the datagram for.
+     * @param peerAddress the address of the peer.
+     * @param data the datagram, between its position and its limit.
+     * @return <tt>true</tt> if the datagram was sent, <tt>false</tt> if it was
+     *         dropped.
+     */
+    public boolean sendToPeer(Allocation allocation,
+        InetSocketAddress peerAddress, ByteBuffer data)
+    {
+        DatagramChannel channel = allocation.getRelayChannel();
+        if (channel == null)
+        {
+            logger.finer("No UDP relay channel for " + allocation);
+            return false;
+        }
+        return relayEngine.send(channel, data, peerAddress);
     }
 
     /**
@@ -174,7 +582,8 @@ public class TurnStack
     public void handleMessageEvent(StunMessageEvent ev)
     {
         Message msg = ev.getMessage();
-        logger.finest("Received an Event."+ev.getTransactionID());
+        if (logger.isLoggable(Level.FINEST))
+            logger.finest("Received an Event." + ev.getTransactionID());
         if (!TurnStack.isTurnMessage(msg))
         {
             logger.finest("Ignored a non-TURN message!");
@@ -361,15 +770,24 @@ public class TurnStack
      */
     public Allocation getServerAllocation(FiveTuple fiveTuple)
     {
-        Allocation allocation = null;
+        return getServerAllocation(fiveTuple.getKey());
+    }
 
-        synchronized (this.serverAllocations)
-        {
-            allocation = this.serverAllocations.get(fiveTuple);
-        }
+    /**
+     * Returns the Allocation with the specified <tt>key</tt> or
+     * <tt>null</tt> if no such Allocation exists.
+     * 
+     * @param key the key of the fiveTuple of the Allocation we are looking
+     *            for.
+     * 
+     * @return the {@link Allocation} we are looking for.
+     */
+    public Allocation getServerAllocation(FiveTupleKey key)
+    {
+        Allocation allocation = this.allocations.get(key);
         /*
          * If a Allocation is expired, do not return it. It will be
-         * removed from serverAllocations soon.
+         * removed from the registry soon.
          */
         if ((allocation != null) && allocation.isExpired())
             allocation = null;
@@ -410,81 +828,302 @@ public class TurnStack
      */
     public boolean canHaveMoreAllocations()
     {
-       return (this.serverAllocations.size() < MAX_ALLOCATIONS);
+       return this.allocations.hasCapacity();
     }
     
     /**
-     * Adds a new server allocation to this TurnStack.
+     * Adds a new server allocation to this TurnStack. The allocation is
+     * indexed before its relay socket is opened so that concurrent Allocate
+     * requests can not take the same five tuple or relay address.
      * 
      * @param allocation the allocation to be added to this TurnStack.
+     * @return <tt>false</tt> if the allocation could not be added because
+     *         there is no capacity left or its five tuple or relay address is
+     *         already in use.
+     */
+    public boolean addNewServerAllocation(Allocation allocation)
+    {
+        return addNewServerAllocation(allocation, null);
+    }
+
+    /**
+     * Adds a new server allocation to this TurnStack on the relay address of
+     * a reservation, whose already bound socket becomes the relay socket.
+     * 
+     * @param allocation the allocation to be added to this TurnStack, on the
+     *            relay address of the reservation.
+     * @param reservation the reservation claimed by the Allocate request or
+     *            <tt>null</tt>.
+     * @return <tt>false</tt> if the allocation could not be added because
+     *         there is no capacity left, its five tuple or relay address is
+     *         already in use or its relay socket could not be opened. The
+     *         relay address or reservation is then still to be released by
+     *         the caller.
      */
-    public synchronized void addNewServerAllocation(Allocation allocation)
+    public boolean addNewServerAllocation(Allocation allocation,
+        ReservationTable.Reservation reservation)
     {
-        synchronized(this.serverAllocations)
+        if (!this.allocations.add(allocation))
         {
-            this.serverAllocations.put(allocation.getFiveTuple(), allocation);
-            IceSocketWrapper sock;
-            if(true)
-            {   // check if meanwhile other thread has put the same allocation.
-                try
-                {
-		    logger.finer("Adding a new Socket for : "
-			    + allocation.getRelayAddress());
-		    if(allocation.getRelayAddress().getTransport()==Transport.UDP)
-		    {
-                    sock = new IceUdpSocketWrapper(
-                                new SafeCloseDatagramSocket(
-                                    allocation.getRelayAddress()));
-		    }
-		    else
-		    {
-                        IceTcpEventizedServerSockerWrapper mySock2 =
-                            new IceTcpEventizedServerSockerWrapper(
-                                new ServerSocket(allocation.getRelayAddress()
-                                    .getPort()), this.getComponent());
-                        PeerTcpConnectEventListner listener =
-                            new PeerTcpConnectEventListner(this);
-                        mySock2.setEventListener(listener);
-                        sock = mySock2;
-/*
-                        sock =
-                            new IceTcpServerSocketWrapper(new ServerSocket(allocation
-                                .getRelayAddress().getPort()),this.getComponent());
-*/		    }
-            this.addSocket(sock);
-		    logger.finer("Added a new Socket for : "
-			    + allocation.getRelayAddress());
-		    try
-		    {
-			allocation.start();
-		    }
-		    catch(Exception e)
-		    {
-		    }
-                }
-                catch (SocketException e)
-                {
-                    logger.finer("Error obtained : "+e.getMessage());
-                    logger.log(Level.FINEST, 
-                            "Error! Cannot add new socket from TurnStack at "
-                                +"addNewServerAllocation ");
-                    logger.log(Level.FINEST, e.getMessage());
-             //       allocation.expire();
-                }
-                catch (UnknownHostException e)
-                {
-                    System.err.println("Unable to add TCP relay Address for : "
-                        + allocation.getRelayAddress());
-                }
-                catch (IOException e)
-                {
-                    e.printStackTrace();
-                }
+            logger.finer("Unable to add allocation " + allocation);
+            return false;
+        }
+        logger.finer("Adding a new Socket for : "
+            + allocation.getRelayAddress());
+        try
+        {
+            if (allocation.getRelayAddress().getTransport() == Transport.UDP)
+                openUdpRelay(allocation, reservation);
+            else
+                openTcpRelay(allocation);
+        }
+        catch (IOException e)
+        {
+            logger.log(Level.INFO, "Unable to open the relay socket of "
+                + allocation.getRelayAddress(), e);
+            allocations.remove(allocation);
+            if (allocation.getRelayChannel() != null)
+                relayEngine.close(allocation.getRelayChannel());
+            tcpAcceptor.close(allocation.getTcpRelayChannel());
+            return false;
+        }
+        logger.finer("Added a new Socket for : "
+            + allocation.getRelayAddress());
+
+        IceUdpChannelSocketWrapper clientSock =
+            getClientUdpSocket(allocation);
+        if (clientSock != null)
+        {
+            allocation.setClientSocket(clientSock);
+            clientSock.addClient(allocation.getClientAddress(), allocation);
+        }
+        scheduleServerAllocationExpiry(allocation);
+        return true;
+    }
+
+    /**
+     * Registers the relay socket of a UDP allocation with the relay engine:
+     * the socket of its reservation, a pooled socket or a new one.
+     * 
+     * @param allocation the allocation.
+     * @param reservation the reservation claimed by the Allocate request or
+     *            <tt>null</tt>.
+     * @throws IOException if the socket could not be opened or registered.
+     */
+    private void openUdpRelay(Allocation allocation,
+        ReservationTable.Reservation reservation)
+        throws IOException
+    {
+        // the datagrams received on the relay port are always handled by the
+        // same shard
+        int shard = relayEngine.shardOf(allocation.getRelayAddress().getPort());
+        if (reservation != null)
+        {
+            // the reservation is released by the caller on failure
+            relayEngine.register(reservation.getChannel(), allocation, shard);
+            allocation.setRelayChannel(reservation.getChannel());
+            return;
+        }
+        DatagramChannel channel =
+            relayAddresses.takeChannel(allocation.getRelayAddress());
+        if (channel == null)
+        {
+            allocation.setRelayChannel(relayEngine.open(
+                allocation.getRelayAddress(), allocation, shard));
+            return;
+        }
+        try
+        {
+            relayEngine.register(channel, allocation, shard);
+        }
+        catch (IOException e)
+        {
+            // taken out of the pool, so only closed here
+            channel.close();
+            throw e;
+        }
+        allocation.setRelayChannel(channel);
+    }
+
+    /**
+     * Opens the listening channel of a TCP allocation on the shared acceptor.
+     * The peer connections are handed over with their channel, so that they
+     * can be spliced.
+     * 
+     * @param allocation the allocation.
+     * @throws IOException if the relay address could not be bound.
+     */
+    private void openTcpRelay(Allocation allocation)
+        throws IOException
+    {
+        // every relay IP has its own ports, so the same port may be in use
+        // by another allocation on another relay IP
+        TransportAddress relayAddress = allocation.getRelayAddress();
+        allocation.setTcpRelayChannel(tcpAcceptor.open(
+            new InetSocketAddress(
+                relayAddress.getAddress(), relayAddress.getPort()),
+            relayAddress, peerConnectListener));
+    }
+
+    /**
+     * Schedules the removal of the specified allocation from
+     * {@link #allocations} on {@link #expiryTimer}.
+     * 
+     * @param allocation the allocation just added to this TurnStack.
+     */
+    private void scheduleServerAllocationExpiry(final Allocation allocation)
+    {
+        allocation.startExpiry(expiryTimer, new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                expireServerAllocation(allocation);
+            }
+        });
+    }
+
+    /**
+     * Runs on {@link #expiryTimer} when the lifetime of the specified
+     * allocation elapses and removes it from this TurnStack. Does nothing if
+     * the allocation has been refreshed meanwhile as its Timeout has already
+     * been moved.
+     * 
+     * @param allocation the allocation whose lifetime elapsed.
+     */
+    private void expireServerAllocation(Allocation allocation)
+    {
+        if (!allocation.isExpired(System.currentTimeMillis()))
+            return;
+
+        logger.finer("allocation " + allocation + " expired");
+        releaseServerAllocation(allocation);
+    }
+
+    /**
+     * Deletes the specified allocation right away, as requested by a Refresh
+     * request with a lifetime of 0.
+     * 
+     * @param allocation the allocation to delete.
+     */
+    public void deleteServerAllocation(Allocation allocation)
+    {
+        logger.finer("allocation " + allocation + " deleted");
+        releaseServerAllocation(allocation);
+    }
+
+    /**
+     * Removes an allocation from this TurnStack and releases everything it
+     * holds: its relay socket and port, its Connection Ids and their TCP
+     * connections and the Timeouts of its Permissions and ChannelBinds. Only
+     * the first call for an allocation has an effect.
+     * 
+     * @param allocation the allocation to release.
+     */
+    private void releaseServerAllocation(Allocation allocation)
+    {
+        if (!allocations.remove(allocation))
+            return;
+
+        IceUdpChannelSocketWrapper clientSock =
+            getClientUdpSocket(allocation);
+        if (clientSock != null)
+            clientSock.removeClient(allocation.getClientAddress(), allocation);
+        if (allocation.getRelayChannel() != null)
+            relayEngine.close(allocation.getRelayChannel());
+        if (allocation.getTcpRelayChannel() != null)
+            tcpAcceptor.close(allocation.getTcpRelayChannel());
+        for (int connectionId : allocation.getConnectionIds())
+            releaseConnectionId(connectionId, allocation);
+        releaseRelayAddress(allocation.getRelayAddress());
+        allocation.expire();
+    }
+
+    /**
+     * Removes a Connection Id of an allocation from all the indexes and
+     * closes its peer TCP and client data connections.
+     * 
+     * @param connectionId the Connection Id to release.
+     * @param allocation the allocation it belongs to.
+     */
+    private void releaseConnectionId(int connectionId, Allocation allocation)
+    {
+        FiveTuple peerTuple = allocation.removePeerTCPConnection(connectionId);
+        FiveTuple dataConnTuple = allocation.removeDataConnection(connectionId);
+        allocations.removeConnectionId(connectionId, peerTuple, dataConnTuple);
+        connectionIds.release(connectionId);
+        closeTcpConnection(peerTuple);
+        closeTcpConnection(dataConnTuple);
+    }
+
+    /**
+     * Closes the channel of a peer connection which has not been spliced.
+     * 
+     * @param channel the channel or <tt>null</tt>.
+     */
+    private static void closePeerChannel(SocketChannel channel)
+    {
+        if (channel == null)
+            return;
+        try
+        {
+            channel.close();
+        }
+        catch (IOException e)
+        {
+            logger.log(Level.FINE, "Failed to close " + channel, e);
+        }
+    }
+
+    /**
+     * Removes the TCP connection of the specified five tuple from this
+     * TurnStack, which closes it.
+     * 
+     * @param fiveTuple the five tuple of the connection or <tt>null</tt>.
+     */
+    private void closeTcpConnection(FiveTuple fiveTuple)
+    {
+        if (fiveTuple != null)
+        {
+            this.removeSocket(fiveTuple.getServerTransportAddress(),
+                fiveTuple.getClientTransportAddress());
+        }
+    }
+
+    /**
+     * Called when a TCP connection of this TurnStack is lost. If it is the
+     * control connection of a TURN-over-TCP allocation the allocation is
+     * released, if it is the peer or client data connection of a Connection
+     * Id the Connection Id is released along with the other connection.
+     * 
+     * @param localAddress the local address of the connection.
+     * @param remoteAddress the remote address of the connection.
+     */
+    public void tcpConnectionClosed(TransportAddress localAddress,
+        TransportAddress remoteAddress)
+    {
+        FiveTuple fiveTuple =
+            new FiveTuple(remoteAddress, localAddress, Transport.TCP);
+        Allocation allocation = allocations.get(fiveTuple.getKey());
+        if (allocation != null)
+        {
+            logger.finer("Control connection of " + allocation + " lost");
+            releaseServerAllocation(allocation);
+            return;
+        }
+
+        Integer connectionId = allocations.getConnectionIdForDataConn(fiveTuple);
+        if (connectionId == null)
+            connectionId = allocations.getConnectionIdForPeer(fiveTuple);
+        if (connectionId != null)
+        {
+            allocation = connectionIds.getAllocation(connectionId);
+            if (allocation != null)
+            {
+                logger.finest("TCP connection of connectionId-" + connectionId
+                    + " lost");
+                releaseConnectionId(connectionId, allocation);
             }
-            this.serverRelayAllocationMap.put(
-                        allocation.getRelayAddress(), 
-                        allocation);
-            maybeStartServerAllocationExpireThread();
         }
     }
     
@@ -495,7 +1134,7 @@ public class TurnStack
      */
     public Allocation getServerAllocation(TransportAddress relayAddress)
     {
-	return this.serverRelayAllocationMap.get(relayAddress);
+        return this.allocations.getByRelayAddress(relayAddress);
     }
     
     /**
@@ -512,54 +1151,173 @@ public class TurnStack
     }
     
     /**
-     * Reserves a port for future use for Reservation-token.
+     * Reserves a relay address for a later Allocate request carrying the
+     * returned RESERVATION-TOKEN. The address is bound right away and
+     * released if it is not claimed within {@link ReservationTable#LIFETIME}.
      * 
-     * @param reserAddr the address to be reserved.
-     * @return false if it is already reserved, else true.
+     * @param reserAddr the address to be reserved, whose port has been
+     *            allocated by {@link #getNewRelayAddress}.
+     * @return the RESERVATION-TOKEN or <tt>null</tt> if the address could not
+     *         be bound, in which case its port has been released.
      */
-    public boolean reservePort(TransportAddress reserAddr)
+    public byte[] reserveRelayAddress(TransportAddress reserAddr)
     {
-        if(this.reservedAddress.contains(reserAddr))
+        DatagramChannel channel = null;
+        try
         {
-            return false;
+            channel = DatagramChannel.open();
+            channel.bind(reserAddr);
         }
-        else
+        catch (IOException e)
         {
-            this.reservedAddress.add(reserAddr);
-            return true;
+            logger.log(Level.FINE, "Unable to reserve " + reserAddr, e);
+            closeQuietly(channel);
+            releaseRelayAddress(reserAddr);
+            return null;
         }
+
+        final ReservationTable.Reservation reservation =
+            reservations.add(reserAddr, channel);
+        reservation.setExpiryTimeout(expiryTimer.schedule(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                if (reservations.remove(reservation))
+                {
+                    logger.finest("Reservation of "
+                        + reservation.getRelayAddress() + " expired");
+                    releaseReservation(reservation);
+                }
+            }
+        }, System.currentTimeMillis() + ReservationTable.LIFETIME));
+        return reservation.getToken();
     }
-    
+
     /**
-     * Function to get new Relay address.
-     * TODO : It has to be replaced with jitsi api.
+     * Claims the relay address reserved under a RESERVATION-TOKEN.
      * 
-     * @param evenCompulsary
-     * @return a new RelayAddress
+     * @param token the RESERVATION-TOKEN of an Allocate request.
+     * @return the reservation to pass to
+     *         {@link #addNewServerAllocation(Allocation,
+     *         ReservationTable.Reservation)} or <tt>null</tt> if the token is
+     *         unknown or has expired.
      */
-    public TransportAddress getNewRelayAddress(boolean evenCompulsary,
-        Transport transport)
+    public ReservationTable.Reservation claimReservation(byte[] token)
     {
-        InetAddress ipAddress = null;
+        return reservations.claim(token);
+    }
+
+    /**
+     * Closes the socket of a reservation which will not be used and releases
+     * its port.
+     * 
+     * @param reservation an expired reservation or one claimed by a failed
+     *            Allocate request.
+     */
+    public void releaseReservation(ReservationTable.Reservation reservation)
+    {
+        closeQuietly(reservation.getChannel());
+        releaseRelayAddress(reservation.getRelayAddress());
+    }
+
+    /**
+     * Closes a channel which has not been registered with the relay engine.
+     */
+    private static void closeQuietly(DatagramChannel channel)
+    {
+        if (channel == null)
+            return;
         try
         {
-            ipAddress = InetAddress.getLocalHost();
-        }
-        catch (UnknownHostException e)
-        {
-            e.printStackTrace();
+            channel.close();
         }
-        TransportAddress possibleAddr =
-            new TransportAddress(ipAddress, nextPortNo++, transport);
-        int diff = evenCompulsary ? 2 : 1;
-        nextPortNo += (evenCompulsary && (nextPortNo%2)==0) ? 0 : 1;
-        while(this.reservedAddress.contains(possibleAddr) && nextPortNo < 65535)
+        catch (IOException e)
         {
-            nextPortNo += diff;
-            possibleAddr =
-                new TransportAddress(ipAddress, nextPortNo++, Transport.UDP);
+            logger.log(Level.FINE, "Failed to close " + channel, e);
         }
-        return possibleAddr;
+    }
+    
+    /**
+     * Function to get new Relay address.
+     * 
+     * @param evenCompulsary whether the port has to be even.
+     * @param transport the transport of the relay address.
+     * @return a new RelayAddress or <tt>null</tt> if no port is left.
+     */
+    public TransportAddress getNewRelayAddress(boolean evenCompulsary,
+        Transport transport)
+    {
+        return getNewRelayAddress(false, evenCompulsary, false, transport);
+    }
+
+    /**
+     * Allocates a new IPv4 relay address.
+     * 
+     * @param even whether the port has to be even.
+     * @param pair whether the next port has to be allocated as well.
+     * @param transport the transport of the relay address.
+     * @return a new RelayAddress or <tt>null</tt> if no port is left.
+     */
+    public TransportAddress getNewRelayAddress(boolean even, boolean pair,
+        Transport transport)
+    {
+        return getNewRelayAddress(false, even, pair, transport);
+    }
+
+    /**
+     * Allocates a new relay address from the {@link RelayAddressProvider} of
+     * this TurnStack. Plain UDP relay addresses come from the
+     * {@link RelaySocketPool} of their relay IP address when it is not
+     * empty, their socket is then already bound when the Allocation is
+     * added.
+     * 
+     * @param ipv6 whether the relay address should be an IPv6 one; an
+     *            address of the other family is returned if no IPv6 (or
+     *            IPv4) relay address is configured.
+     * @param even whether the port has to be even.
+     * @param pair whether the next port has to be allocated as well, for the
+     *            EVEN-PORT R flag. It is released with
+     *            {@link #releaseRelayAddress(TransportAddress)} on the
+     *            address of the next port.
+     * @param transport the transport of the relay address.
+     * @return a new RelayAddress or <tt>null</tt> if no port is left.
+     */
+    public TransportAddress getNewRelayAddress(boolean ipv6, boolean even,
+        boolean pair, Transport transport)
+    {
+        return relayAddresses.allocate(ipv6, even, pair, transport);
+    }
+
+    /**
+     * Returns the provider of the relay addresses of this TurnStack.
+     */
+    public RelayAddressProvider getRelayAddressProvider()
+    {
+        return relayAddresses;
+    }
+
+    /**
+     * Returns the pools of bound UDP relay sockets, with their size, hit rate
+     * and refill lag.
+     * 
+     * @return the pools of the relay IP addresses.
+     */
+    public Collection<RelaySocketPool> getRelaySocketPools()
+    {
+        return relayAddresses.getSocketPools();
+    }
+
+    /**
+     * Returns the port of a relay address to its allocator.
+     * 
+     * @param relayAddress a relay address returned by
+     *            {@link #getNewRelayAddress(boolean, boolean, boolean,
+     *            Transport)}.
+     */
+    public void releaseRelayAddress(TransportAddress relayAddress)
+    {
+        relayAddresses.release(relayAddress);
     }
     
     /**
@@ -575,18 +1333,164 @@ public class TurnStack
     public void addUnAcknowlededConnectionId(int connectionId,
         TransportAddress peerAddress, Allocation allocation)
     {
+        if (!addConnectionId(connectionId, peerAddress, null, allocation))
+        {
+            throw new IllegalArgumentException("ConnectionId-" + connectionId
+                + " already exists");
+        }
+    }
+
+    /**
+     * Adds a new ConnectionId and starts its bind deadline.
+     * 
+     * @param connectionId the connectionId created.
+     * @param peerAddress the address of the peer.
+     * @param peerChannel the channel of the peer connection or <tt>null</tt>
+     *            if it is served by the stack.
+     * @param allocation the allocation of the relay address.
+     * @return <tt>false</tt> if the ConnectionId is already in use.
+     */
+    private boolean addConnectionId(int connectionId,
+        TransportAddress peerAddress, SocketChannel peerChannel,
+        Allocation allocation)
+    {
+        // the manager owns the state of the Connection Id, the indexes are
+        // only written once it is known to be new
+        if (!connectionIds.add(connectionId, allocation, peerChannel))
+            return false;
         FiveTuple peerTuple =
             new FiveTuple(peerAddress,allocation.getRelayAddress(),
                 Transport.TCP);
-        this.unAcknowledgedConnId.add(connectionId);
-        this.peerConnToConnIdMap.put(
-            peerTuple, connectionId);
-        this.connIdToAllocMap.put(
-            connectionId, allocation);
+        this.allocations.addPeerConnection(connectionId, peerTuple);
         allocation.addPeerTCPConnection(
             connectionId, peerTuple);
         logger.finest("Adding connectionId-" + connectionId + " for peerTuple-"
             + peerTuple + " at allocation-" + allocation);
+        return true;
+    }
+
+    /**
+     * Adds a new ConnectionId for a peer connection whose bytes are relayed
+     * by the {@link TcpSpliceEngine} once the client data connection is
+     * bound. Until then the connection is not read from.
+     * 
+     * @param connectionId the connectionId created.
+     * @param peerChannel the connected channel of the peer connection.
+     * @param allocation the allocation corresponding to the relay address
+     *            through which the peer is connected.
+     * @return <tt>false</tt> if the allocation has been released or the
+     *         ConnectionId is already in use, in which case the peer channel
+     *         has been closed.
+     */
+    public boolean addUnAcknowlededConnectionId(int connectionId,
+        SocketChannel peerChannel, Allocation allocation)
+    {
+        Socket socket = peerChannel.socket();
+        if (!allocations.contains(allocation)
+            || !addConnectionId(connectionId,
+                new TransportAddress(socket.getInetAddress(), socket.getPort(),
+                    Transport.TCP),
+                peerChannel, allocation))
+        {
+            closePeerChannel(peerChannel);
+            return false;
+        }
+        // the allocation may have been released while the ConnectionId was
+        // being added, before its release could see it
+        if (!allocations.contains(allocation))
+        {
+            releaseConnectionId(connectionId, allocation);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Hands a client data connection whose ConnectionBind request has just
+     * been answered with a success over to the {@link TcpSpliceEngine},
+     * paired with the peer connection of its Connection Id. If either
+     * connection cannot be handed over, both remain with the stack; if the
+     * splice itself fails, both are closed.
+     * 
+     * @param connectionId the Connection Id the data connection is bound to.
+     * @param localAddress the local address of the client data connection.
+     * @param remoteAddress the remote address of the client data connection.
+     * @return <tt>true</tt> if the connections are spliced.
+     */
+    public boolean spliceDataConnection(int connectionId,
+        TransportAddress localAddress, TransportAddress remoteAddress)
+    {
+        IceTcpEventizedSocketWrapper dataConnection =
+            getTcpConnection(localAddress, remoteAddress);
+        if (dataConnection == null)
+            return false;
+        SocketChannel peerChannel = (dataConnection.getChannel() == null)
+            ? null
+            : connectionIds.takePeerChannel(connectionId);
+        if (peerChannel == null)
+        {
+            dataConnection.resume();
+            return false;
+        }
+        SocketChannel clientChannel = dataConnection.detach();
+        // the stack no longer reads nor closes the detached connection
+        this.removeSocket(localAddress, remoteAddress);
+        try
+        {
+            TcpSpliceEngine.Splice splice = spliceEngine.splice(
+                clientChannel, peerChannel,
+                new TcpConnectionCloseListener(this));
+            if (!connectionIds.setSplice(connectionId, splice))
+                return false;
+            logger.finest("Spliced connectionId-" + connectionId);
+            return true;
+        }
+        catch (IOException e)
+        {
+            logger.log(Level.INFO, "Unable to splice connectionId-"
+                + connectionId, e);
+            closePeerChannel(clientChannel);
+            closePeerChannel(peerChannel);
+            tcpConnectionClosed(localAddress, remoteAddress);
+            return false;
+        }
+    }
+
+    /**
+     * Resumes reading from a client connection whose ConnectionBind request
+     * has failed.
+     * 
+     * @param localAddress the local address of the connection.
+     * @param remoteAddress the remote address of the connection.
+     */
+    public void resumeDataConnection(TransportAddress localAddress,
+        TransportAddress remoteAddress)
+    {
+        IceTcpEventizedSocketWrapper connection =
+            getTcpConnection(localAddress, remoteAddress);
+        if (connection != null)
+            connection.resume();
+    }
+
+    /**
+     * Finds a client connection accepted by one of the
+     * {@link #tcpServerSockets}.
+     */
+    private IceTcpEventizedSocketWrapper getTcpConnection(
+        TransportAddress localAddress, TransportAddress remoteAddress)
+    {
+        for (IceTcpEventizedServerSockerWrapper serverSocket
+                : tcpServerSockets)
+        {
+            if (serverSocket.getLocalPort() != localAddress.getPort())
+                continue;
+            IceTcpEventizedSocketWrapper connection =
+                serverSocket.getConnection(new InetSocketAddress(
+                    remoteAddress.getAddress(), remoteAddress.getPort()));
+            if (connection != null)
+                return connection;
+        }
+        return null;
     }
 
     /**
@@ -599,17 +1503,19 @@ public class TurnStack
     public void acknowledgeConnectionId(int connectionId,
         FiveTuple clientDataConnectionTuple)
     {
-        if (!this.unAcknowledgedConnId.contains(connectionId))
+        // stops the bind deadline, unless it has just passed
+        Allocation allocation = connectionIds.bind(connectionId)
+            ? connectionIds.getAllocation(connectionId)
+            : null;
+        if (allocation == null)
         {
             throw new IllegalArgumentException("No such connectionId:"
                 + connectionId + " exists");
         }
         else
         {
-            this.unAcknowledgedConnId.remove(connectionId);
-            this.dataConnToConnIdMap.put(
-                clientDataConnectionTuple, connectionId);
-            Allocation allocation = this.connIdToAllocMap.get(connectionId);
+            this.allocations.addDataConnection(
+                connectionId, clientDataConnectionTuple);
             allocation.addDataConnection(
                 connectionId, clientDataConnectionTuple);
             logger.finest("Acknowledging connectiodId-" + connectionId
@@ -623,159 +1529,34 @@ public class TurnStack
      * @return true if the specified connectionID is acknowledged, else false.
      */
     public boolean isUnacknowledged(int connectionID){
-        return this.unAcknowledgedConnId.contains(connectionID);
+        return connectionIds.isPending(connectionID);
     }
     
     /**
      * Returns the Connection associated with the specified peerFiveTuple.
      * 
      * @param peerFiveTuple the peerFiveTuple for which to get the ConnectionID.
-     * @return connectionID associated with the specified peerFiveTuple.
+     * @return connectionID associated with the specified peerFiveTuple or
+     *         <tt>null</tt> if the peer connection has none, for instance
+     *         because it has just been released.
      */
-    public int getConnectionIdForPeer(FiveTuple peerFiveTuple)
+    public Integer getConnectionIdForPeer(FiveTuple peerFiveTuple)
     {
-        return this.peerConnToConnIdMap.get(peerFiveTuple);
+        return this.allocations.getConnectionIdForPeer(peerFiveTuple);
     }
 
     /**
      * Returns the ConnectionID associated with the specified
      * 
      * @param dataConnTuple the five tuple of the data connection.
-     * @return the connectionId associated with the given data connection if
-     *         exists.
-     */
-    public int getConnectionIdForDataConn(FiveTuple dataConnTuple)
-    {
-        return this.dataConnToConnIdMap.get(dataConnTuple);
-    }
-    
-    /**
-     * Initialises and starts {@link #serverAllocationExpireThread} if
-     * necessary.
-     */
-    public void maybeStartServerAllocationExpireThread()
-    {
-        synchronized (serverAllocations)
-        {
-            if (!serverAllocations.isEmpty()
-                && (serverAllocationExpireThread == null))
-            {
-                Thread t = new Thread()
-                {
-                    @Override
-                    public void run()
-                    {
-                        runInServerAllocationExpireThread();
-                    }
-                };
-
-                t.setDaemon(true);
-                t.setName(getClass().getName()
-                    + ".serverAllocationExpireThread");
-
-                boolean started = false;
-
-                serverAllocationExpireThread = t;
-                try
-                {
-                    t.start();
-                    started = true;
-                }
-                finally
-                {
-                    if (!started && (serverAllocationExpireThread == t))
-                        serverAllocationExpireThread = null;
-                }
-            }
-        }
-    }
-
-    /**
-     * Runs in {@link #serverAllocationExpireThread} and expires the
-     * <tt>Allocation</tt>s of this <tt>TurnStack</tt> and removes
-     * them from {@link #serverAllocations}.
+     * @return the connectionId associated with the given data connection or
+     *         <tt>null</tt> if it has none, for instance because it has just
+     *         been released.
      */
-    private void runInServerAllocationExpireThread()
+    public Integer getConnectionIdForDataConn(FiveTuple dataConnTuple)
     {
-        try
-        {
-            long idleStartTime = -1;
-
-            do
-            {
-                synchronized (serverAllocations)
-                {
-                    try
-                    {
-                        serverAllocations.wait(Allocation.DEFAULT_LIFETIME);
-                    }
-                    catch (InterruptedException ie)
-                    {
-                    }
-
-                    /*
-                     * Is the current Thread still designated to expire the
-                     * Allocations of this TurnStack?
-                     */
-                    if (Thread.currentThread() != serverAllocationExpireThread)
-                        break;
-
-                    long now = System.currentTimeMillis();
-
-                    /*
-                     * Has the current Thread been idle long enough to merit
-                     * disposing of it?
-                     */
-                    if (serverAllocations.isEmpty())
-                    {
-                        if (idleStartTime == -1)
-                            idleStartTime = now;
-                        else if (now - idleStartTime > 60 * 1000)
-                            break;
-                    }
-                    else
-                    {
-                        // Expire the Allocations of this TurnStack.
-
-                        idleStartTime = -1;
-
-                        for (Iterator<Allocation> i =
-                            serverAllocations.values().iterator(); i.hasNext();)
-                        {
-                            Allocation allocation = i.next();
-
-                            if (allocation == null)
-                            {
-                                i.remove();
-                            }
-                            else if (allocation.isExpired(now))
-                            {
-                                logger.finer("allocation "+allocation+" expired");
-                                i.remove();
-                                allocation.expire();
-                            }
-                        }
-                    }
-                }
-            }
-            while (true);
-        }
-        finally
-        {
-            synchronized (serverAllocations)
-            {
-                if (serverAllocationExpireThread == Thread.currentThread())
-                    serverAllocationExpireThread = null;
-                /*
-                 * If serverAllocationExpireThread dies unexpectedly and yet it
-                 * is still necessary, resurrect it.
-                 */
-                if (serverAllocationExpireThread == null)
-                    maybeStartServerAllocationExpireThread();
-            }
-        }
+        return this.allocations.getConnectionIdForDataConn(dataConnTuple);
     }
-
     
     /**
      * Method to check if the given message method is of Turn method.
@@ -787,8 +1568,11 @@ public class TurnStack
     {
         char method = message.getMessageType();
         method = (char) (method & 0xfeef); // ignore the class
-	logger.finest("method extracted from "
-		+ (int) message.getMessageType() + " is : " + (int) method);
+        if (logger.isLoggable(Level.FINEST))
+        {
+            logger.finest("method extracted from "
+                + (int) message.getMessageType() + " is : " + (int) method);
+        }
         boolean isTurnMessage = false;
         switch (method)
         {
@@ -938,7 +1722,7 @@ public class TurnStack
      */
     public Allocation getAllocationFromConnectionId(int connectionId)
     {
-        return this.connIdToAllocMap.get(connectionId);
+        return connectionIds.getAllocation(connectionId);
     }
     
 }
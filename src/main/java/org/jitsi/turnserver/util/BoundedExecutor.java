@@ -0,0 +1,229 @@
+/*
+ * TurnServer, the OpenSource Java Solution for TURN protocol. Maintained by the
+ * Jitsi community (http://jitsi.org).
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jitsi.turnserver.util;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.logging.*;
+
+/**
+ * An <tt>Executor</tt> with a fixed number of daemon threads and a bounded
+ * queue, which rejects the tasks submitted while the queue is full instead of
+ * blocking the submitting thread or growing without bound. It keeps the
+ * number of submitted, rejected and completed tasks and the time the tasks
+ * waited in the queue.
+ */
+public class BoundedExecutor
+    implements Executor
+{
+    /**
+     * The <tt>Logger</tt> used by the <tt>BoundedExecutor</tt> class and its
+     * instances for logging output.
+     */
+    private static final Logger logger
+        = Logger.getLogger(BoundedExecutor.class.getName());
+
+    /**
+     * The executor running the tasks.
+     */
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * The capacity of the queue.
+     */
+    private final int queueCapacity;
+
+    private final AtomicLong submitted = new AtomicLong();
+
+    private final AtomicLong rejected = new AtomicLong();
+
+    private final AtomicLong completed = new AtomicLong();
+
+    /**
+     * The sum of the times the completed tasks waited in the queue, in
+     * nanoseconds.
+     */
+    private final AtomicLong totalQueueNanos = new AtomicLong();
+
+    /**
+     * The longest time a task waited in the queue, in nanoseconds.
+     */
+    private final AtomicLong maxQueueNanos = new AtomicLong();
+
+    /**
+     * Creates an executor and starts its threads.
+     * 
+     * @param name the prefix of the names of the threads.
+     * @param threads the number of threads.
+     * @param queueCapacity the maximum number of tasks waiting for a thread.
+     */
+    public BoundedExecutor(final String name, int threads, int queueCapacity)
+    {
+        if (threads <= 0)
+            throw new IllegalArgumentException("threads must be positive");
+        if (queueCapacity <= 0)
+        {
+            throw new IllegalArgumentException(
+                "queueCapacity must be positive");
+        }
+        this.queueCapacity = queueCapacity;
+        this.executor = new ThreadPoolExecutor(threads, threads,
+            0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<Runnable>(queueCapacity),
+            new ThreadFactory()
+            {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r)
+                {
+                    Thread t = new Thread(r,
+                        name + "-" + count.getAndIncrement());
+                    t.setDaemon(true);
+                    return t;
+                }
+            },
+            new ThreadPoolExecutor.AbortPolicy());
+        this.executor.prestartAllCoreThreads();
+    }
+
+    /**
+     * Runs a task on one of the threads of this executor.
+     * 
+     * @param task the task to run.
+     * @throws RejectedExecutionException if the queue is full or the
+     *             executor has been shut down.
+     */
+    @Override
+    public void execute(final Runnable task)
+    {
+        final long queuedAt = System.nanoTime();
+        submitted.incrementAndGet();
+        try
+        {
+            executor.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    long waited = System.nanoTime() - queuedAt;
+                    totalQueueNanos.addAndGet(waited);
+                    long max;
+                    while (waited > (max = maxQueueNanos.get())
+                        && !maxQueueNanos.compareAndSet(max, waited))
+                        ;
+                    try
+                    {
+                        task.run();
+                    }
+                    catch (Throwable t)
+                    {
+                        if (t instanceof ThreadDeath)
+                            throw (ThreadDeath) t;
+                        logger.log(Level.WARNING, "Task failed", t);
+                    }
+                    finally
+                    {
+                        completed.incrementAndGet();
+                    }
+                }
+            });
+        }
+        catch (RejectedExecutionException e)
+        {
+            rejected.incrementAndGet();
+            throw e;
+        }
+    }
+
+    /**
+     * Stops the threads once the queued tasks have run.
+     */
+    public void shutDown()
+    {
+        executor.shutdown();
+    }
+
+    /**
+     * Returns the number of tasks waiting for a thread.
+     */
+    public int getQueueSize()
+    {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * Returns the maximum number of tasks waiting for a thread.
+     */
+    public int getQueueCapacity()
+    {
+        return queueCapacity;
+    }
+
+    /**
+     * Returns the number of threads currently running a task.
+     */
+    public int getActiveCount()
+    {
+        return executor.getActiveCount();
+    }
+
+    /**
+     * Returns the number of tasks submitted, including the rejected ones.
+     */
+    public long getSubmitted()
+    {
+        return submitted.get();
+    }
+
+    /**
+     * Returns the number of tasks rejected because the queue was full.
+     */
+    public long getRejected()
+    {
+        return rejected.get();
+    }
+
+    /**
+     * Returns the number of tasks which have run.
+     */
+    public long getCompleted()
+    {
+        return completed.get();
+    }
+
+    /**
+     * Returns the average time in microseconds the tasks waited in the
+     * queue.
+     */
+    public long getAverageQueueTime()
+    {
+        long n = completed.get();
+        return (n == 0) ? 0 : (totalQueueNanos.get() / n) / 1000;
+    }
+
+    /**
+     * Returns the longest time in microseconds a task waited in the queue.
+     */
+    public long getMaxQueueTime()
+    {
+        return maxQueueNanos.get() / 1000;
+    }
+}
@@ -0,0 +1,270 @@
+/*
+ * TurnServer, the OpenSource Java Solution for TURN protocol. Maintained by the
+ * Jitsi community (http://jitsi.org).
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jitsi.turnserver.util;
+
+/**
+ * A concurrent hash table from primitive <tt>int</tt> keys to objects, such
+ * as the Connection Ids of the TCP relays, which neither boxes the keys nor
+ * allocates an entry per mapping. The keys are spread over a fixed number of
+ * segments, each an open-addressing table with linear probing guarded by its
+ * own lock, so that operations on keys of different segments do not contend.
+ * Values cannot be <tt>null</tt>.
+ * 
+ * @param <V> the type of the values.
+ */
+public class IntObjectTable<V>
+{
+    /**
+     * The number of segments, a power of two.
+     */
+    private static final int SEGMENTS = 64;
+
+    /**
+     * The initial capacity of a segment, a power of two.
+     */
+    private static final int INITIAL_CAPACITY = 8;
+
+    /**
+     * The segments.
+     */
+    private final Segment[] segments = new Segment[SEGMENTS];
+
+    /**
+     * Creates an empty table.
+     */
+    public IntObjectTable()
+    {
+        for (int i = 0; i < SEGMENTS; i++)
+            segments[i] = new Segment();
+    }
+
+    /**
+     * Spreads the bits of a key so that sequential and random keys alike are
+     * evenly distributed over the segments and slots.
+     */
+    private static int hash(int key)
+    {
+        int h = key * 0x9e3779b9;
+        return h ^ (h >>> 16);
+    }
+
+    private Segment segment(int hash)
+    {
+        return segments[hash & (SEGMENTS - 1)];
+    }
+
+    /**
+     * Returns the value of a key.
+     * 
+     * @param key the key.
+     * @return the value or <tt>null</tt> if there is none.
+     */
+    @SuppressWarnings("unchecked")
+    public V get(int key)
+    {
+        int hash = hash(key);
+        return (V) segment(hash).get(key, hash);
+    }
+
+    /**
+     * Determines whether a key has a value.
+     * 
+     * @param key the key.
+     * @return <tt>true</tt> if the key has a value.
+     */
+    public boolean containsKey(int key)
+    {
+        return get(key) != null;
+    }
+
+    /**
+     * Sets the value of a key.
+     * 
+     * @param key the key.
+     * @param value the value.
+     * @return the previous value or <tt>null</tt> if there was none.
+     */
+    @SuppressWarnings("unchecked")
+    public V put(int key, V value)
+    {
+        if (value == null)
+            throw new NullPointerException("value");
+        int hash = hash(key);
+        return (V) segment(hash).put(key, hash, value, false);
+    }
+
+    /**
+     * Sets the value of a key unless it already has one.
+     * 
+     * @param key the key.
+     * @param value the value.
+     * @return the current value or <tt>null</tt> if the key had none and
+     *         has been given <tt>value</tt>.
+     */
+    @SuppressWarnings("unchecked")
+    public V putIfAbsent(int key, V value)
+    {
+        if (value == null)
+            throw new NullPointerException("value");
+        int hash = hash(key);
+        return (V) segment(hash).put(key, hash, value, true);
+    }
+
+    /**
+     * Removes the value of a key.
+     * 
+     * @param key the key.
+     * @return the removed value or <tt>null</tt> if there was none.
+     */
+    @SuppressWarnings("unchecked")
+    public V remove(int key)
+    {
+        int hash = hash(key);
+        return (V) segment(hash).remove(key, hash, null);
+    }
+
+    /**
+     * Removes the value of a key if it is the specified one.
+     * 
+     * @param key the key.
+     * @param value the expected value, compared by reference.
+     * @return <tt>true</tt> if the value has been removed.
+     */
+    public boolean remove(int key, V value)
+    {
+        int hash = hash(key);
+        return value != null && segment(hash).remove(key, hash, value) != null;
+    }
+
+    /**
+     * @return the number of keys with a value.
+     */
+    public int size()
+    {
+        int size = 0;
+        for (Segment segment : segments)
+        {
+            synchronized (segment)
+            {
+                size += segment.size;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * An open-addressing table. Empty slots have a <tt>null</tt> value and
+     * removals shift the following entries of the probe sequence back, so
+     * there are no tombstones.
+     */
+    private static class Segment
+    {
+        private int[] keys = new int[INITIAL_CAPACITY];
+
+        private Object[] values = new Object[INITIAL_CAPACITY];
+
+        private int size;
+
+        synchronized Object get(int key, int hash)
+        {
+            int mask = keys.length - 1;
+            for (int i = (hash >>> 6) & mask; values[i] != null;
+                    i = (i + 1) & mask)
+            {
+                if (keys[i] == key)
+                    return values[i];
+            }
+            return null;
+        }
+
+        synchronized Object put(int key, int hash, Object value,
+            boolean onlyIfAbsent)
+        {
+            int mask = keys.length - 1;
+            int i = (hash >>> 6) & mask;
+            for (; values[i] != null; i = (i + 1) & mask)
+            {
+                if (keys[i] == key)
+                {
+                    Object previous = values[i];
+                    if (!onlyIfAbsent)
+                        values[i] = value;
+                    return previous;
+                }
+            }
+            keys[i] = key;
+            values[i] = value;
+            if (++size > keys.length / 2)
+                resize(keys.length * 2);
+            return null;
+        }
+
+        synchronized Object remove(int key, int hash, Object expected)
+        {
+            int mask = keys.length - 1;
+            int i = (hash >>> 6) & mask;
+            for (; values[i] != null; i = (i + 1) & mask)
+            {
+                if (keys[i] == key)
+                    break;
+            }
+            Object removed = values[i];
+            if (removed == null || (expected != null && removed != expected))
+                return null;
+
+            // shift back the entries which probed past the freed slot
+            int free = i;
+            for (int j = (i + 1) & mask; values[j] != null; j = (j + 1) & mask)
+            {
+                int home = (hash(keys[j]) >>> 6) & mask;
+                if (((j - home) & mask) >= ((j - free) & mask))
+                {
+                    keys[free] = keys[j];
+                    values[free] = values[j];
+                    free = j;
+                }
+            }
+            values[free] = null;
+            size--;
+            if (keys.length > INITIAL_CAPACITY && size < keys.length / 8)
+                resize(keys.length / 2);
+            return removed;
+        }
+
+        private void resize(int capacity)
+        {
+            int[] oldKeys = keys;
+            Object[] oldValues = values;
+            keys = new int[capacity];
+            values = new Object[capacity];
+            int mask = capacity - 1;
+            for (int j = 0; j < oldKeys.length; j++)
+            {
+                if (oldValues[j] == null)
+                    continue;
+                int i = (hash(oldKeys[j]) >>> 6) & mask;
+                while (values[i] != null)
+                    i = (i + 1) & mask;
+                keys[i] = oldKeys[j];
+                values[i] = oldValues[j];
+            }
+        }
+    }
+}
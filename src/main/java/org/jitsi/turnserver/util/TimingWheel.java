@@ -0,0 +1,498 @@
+/*
+ * TurnServer, the OpenSource Java Solution for TURN protocol. Maintained by the
+ * Jitsi community (http://jitsi.org).
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jitsi.turnserver.util;
+
+import java.util.*;
+import java.util.logging.*;
+
+/**
+ * A hierarchical hashed timing wheel which runs the tasks scheduled on it at
+ * their deadline from a single daemon thread. Scheduling, rescheduling and
+ * cancelling a {@link Timeout} are O(1); a task runs at most one tick after
+ * its deadline (plus the time spent by the tasks due before it).
+ * <p>
+ * The first level has 256 slots of one tick each, every further level has 64
+ * slots each covering a whole turn of the level below. Timeouts which are
+ * too far away for the top level are parked in its farthest slot and
+ * re-cascaded until they come within range.
+ * </p>
+ * Deadlines are expressed in <tt>System.currentTimeMillis()</tt> like the
+ * expiration times of Allocations, Permissions and ChannelBinds.
+ */
+public class TimingWheel
+{
+    /**
+     * The <tt>Logger</tt> used by the <tt>TimingWheel</tt> class and its
+     * instances for logging output.
+     */
+    private static final Logger logger
+        = Logger.getLogger(TimingWheel.class.getName());
+
+    /**
+     * The default length of a tick in milliseconds.
+     */
+    public static final long DEFAULT_TICK = 100;
+
+    /**
+     * The number of bits of the slot index in the first level.
+     */
+    private static final int ROOT_BITS = 8;
+
+    /**
+     * The number of bits of the slot index in the other levels.
+     */
+    private static final int LEVEL_BITS = 6;
+
+    /**
+     * The number of levels.
+     */
+    private static final int LEVELS = 4;
+
+    private static final int ROOT_SIZE = 1 << ROOT_BITS;
+
+    private static final int LEVEL_SIZE = 1 << LEVEL_BITS;
+
+    /**
+     * The largest distance in ticks that the top level can hold.
+     */
+    private static final long MAX_DELTA
+        = 1L << (ROOT_BITS + (LEVELS - 1) * LEVEL_BITS);
+
+    /**
+     * The length of a tick in milliseconds.
+     */
+    private final long tick;
+
+    /**
+     * The name of the thread running the wheel.
+     */
+    private final String name;
+
+    /**
+     * The slots of all levels, each one being the sentinel of a circular
+     * doubly linked list of <tt>Timeout</tt>s.
+     */
+    private final Timeout[][] levels = new Timeout[LEVELS][];
+
+    /**
+     * The last tick which has been processed.
+     */
+    private long currentTick;
+
+    /**
+     * The number of scheduled timeouts.
+     */
+    private int size;
+
+    /**
+     * The thread advancing the wheel or <tt>null</tt> if it is not running.
+     */
+    private Thread thread;
+
+    /**
+     * Creates a wheel with the {@link #DEFAULT_TICK}.
+     *
+     * @param name the name of the thread running the wheel.
+     */
+    public TimingWheel(String name)
+    {
+        this(name, DEFAULT_TICK);
+    }
+
+    /**
+     * Creates a wheel.
+     *
+     * @param name the name of the thread running the wheel.
+     * @param tick the length of a tick in milliseconds, which is also the
+     *            maximum lateness of a task.
+     */
+    public TimingWheel(String name, long tick)
+    {
+        if (tick <= 0)
+            throw new IllegalArgumentException("tick must be positive");
+        this.name = name;
+        this.tick = tick;
+        for (int level = 0; level < LEVELS; level++)
+        {
+            int slots = (level == 0) ? ROOT_SIZE : LEVEL_SIZE;
+            levels[level] = new Timeout[slots];
+            for (int i = 0; i < slots; i++)
+                levels[level][i] = new Timeout(this, null);
+        }
+        this.currentTick = System.currentTimeMillis() / tick;
+    }
+
+    /**
+     * Schedules a task to be run at the specified deadline.
+     *
+     * @param task the task to run.
+     * @param deadline the time in milliseconds at which to run the task.
+     * @return the <tt>Timeout</tt> through which the task can be rescheduled
+     *         or cancelled.
+     */
+    public Timeout schedule(Runnable task, long deadline)
+    {
+        if (task == null)
+            throw new NullPointerException("task");
+        Timeout timeout = new Timeout(this, task);
+        timeout.reschedule(deadline);
+        return timeout;
+    }
+
+    /**
+     * @return the number of timeouts currently scheduled.
+     */
+    public synchronized int size()
+    {
+        return size;
+    }
+
+    /**
+     * Starts the thread advancing this wheel. Does nothing if it is already
+     * running.
+     */
+    public synchronized void start()
+    {
+        if (thread != null)
+            return;
+
+        Thread t = new Thread(name)
+        {
+            @Override
+            public void run()
+            {
+                runInWheelThread();
+            }
+        };
+        t.setDaemon(true);
+        thread = t;
+        t.start();
+    }
+
+    /**
+     * Stops the thread advancing this wheel. Timeouts remain scheduled and
+     * will run if the wheel is started again.
+     */
+    public synchronized void stop()
+    {
+        Thread t = thread;
+        thread = null;
+        if (t != null)
+            t.interrupt();
+    }
+
+    /**
+     * Puts a timeout in the slot matching its deadline. Must be called with
+     * the lock held.
+     */
+    private void link(Timeout timeout)
+    {
+        long deadlineTick = (timeout.deadline + tick - 1) / tick;
+        long delta = deadlineTick - currentTick;
+        Timeout slot;
+
+        if (delta <= 0)
+        {
+            // Already due, run it on the next tick.
+            slot = levels[0][(int) ((currentTick + 1) & (ROOT_SIZE - 1))];
+        }
+        else if (delta < ROOT_SIZE)
+        {
+            slot = levels[0][(int) (deadlineTick & (ROOT_SIZE - 1))];
+        }
+        else
+        {
+            if (delta >= MAX_DELTA)
+                deadlineTick = currentTick + MAX_DELTA - 1;
+
+            int level = 1;
+            int shift = ROOT_BITS;
+            while (level < LEVELS - 1
+                && (deadlineTick >>> (shift + LEVEL_BITS))
+                    != (currentTick >>> (shift + LEVEL_BITS)))
+            {
+                level++;
+                shift += LEVEL_BITS;
+            }
+            slot =
+                levels[level][(int) ((deadlineTick >>> shift)
+                    & (LEVEL_SIZE - 1))];
+        }
+
+        timeout.prev = slot.prev;
+        timeout.next = slot;
+        slot.prev.next = timeout;
+        slot.prev = timeout;
+        timeout.state = Timeout.SCHEDULED;
+    }
+
+    /**
+     * Removes a timeout from its slot. Must be called with the lock held.
+     */
+    private static void unlink(Timeout timeout)
+    {
+        timeout.prev.next = timeout.next;
+        timeout.next.prev = timeout.prev;
+        timeout.prev = null;
+        timeout.next = null;
+    }
+
+    /**
+     * Moves all the timeouts of a slot of a higher level down to the levels
+     * matching their remaining time. Must be called with the lock held.
+     *
+     * @return the index of the cascaded slot.
+     */
+    private int cascade(int level)
+    {
+        int shift = ROOT_BITS + (level - 1) * LEVEL_BITS;
+        int index = (int) ((currentTick >>> shift) & (LEVEL_SIZE - 1));
+        Timeout slot = levels[level][index];
+
+        Timeout timeout = slot.next;
+        slot.next = slot;
+        slot.prev = slot;
+        while (timeout != slot)
+        {
+            Timeout next = timeout.next;
+            link(timeout);
+            timeout = next;
+        }
+        return index;
+    }
+
+    /**
+     * Advances the wheel to the tick of the specified time and collects the
+     * timeouts which became due into <tt>due</tt>. Must be called with the
+     * lock held.
+     */
+    private void advance(long now, List<Timeout> due)
+    {
+        long nowTick = now / tick;
+
+        while (currentTick < nowTick)
+        {
+            currentTick++;
+
+            int index = (int) (currentTick & (ROOT_SIZE - 1));
+            if (index == 0)
+            {
+                for (int level = 1; level < LEVELS; level++)
+                {
+                    if (cascade(level) != 0)
+                        break;
+                }
+            }
+
+            Timeout slot = levels[0][index];
+            Timeout timeout = slot.next;
+            slot.next = slot;
+            slot.prev = slot;
+            while (timeout != slot)
+            {
+                Timeout next = timeout.next;
+                if (timeout.deadline > now)
+                {
+                    // Parked because it was beyond the top level.
+                    link(timeout);
+                }
+                else
+                {
+                    timeout.prev = null;
+                    timeout.next = null;
+                    timeout.state = Timeout.DUE;
+                    due.add(timeout);
+                    size--;
+                }
+                timeout = next;
+            }
+        }
+    }
+
+    /**
+     * Runs in {@link #thread} and runs the tasks of the timeouts which are
+     * due.
+     */
+    private void runInWheelThread()
+    {
+        List<Timeout> due = new ArrayList<Timeout>();
+
+        while (true)
+        {
+            synchronized (this)
+            {
+                if (thread != Thread.currentThread())
+                    break;
+                advance(System.currentTimeMillis(), due);
+            }
+
+            for (int i = 0; i < due.size(); i++)
+            {
+                Timeout timeout = due.get(i);
+                synchronized (this)
+                {
+                    // It may have been cancelled or rescheduled meanwhile.
+                    if (timeout.state != Timeout.DUE)
+                        continue;
+                    timeout.state = Timeout.IDLE;
+                }
+                try
+                {
+                    timeout.task.run();
+                }
+                catch (Throwable t)
+                {
+                    if (t instanceof ThreadDeath)
+                        throw (ThreadDeath) t;
+                    logger.log(Level.WARNING, "Timeout task failed", t);
+                }
+            }
+            due.clear();
+
+            long now = System.currentTimeMillis();
+            long sleep = tick - (now % tick);
+            try
+            {
+                Thread.sleep(sleep);
+            }
+            catch (InterruptedException ie)
+            {
+            }
+        }
+    }
+
+    /**
+     * A task scheduled on a <tt>TimingWheel</tt>.
+     */
+    public static class Timeout
+    {
+        /**
+         * The state of a timeout which is not in the wheel.
+         */
+        private static final int IDLE = 0;
+
+        /**
+         * The state of a timeout which waits in a slot for its deadline.
+         */
+        private static final int SCHEDULED = 1;
+
+        /**
+         * The state of a timeout which has been taken out of the wheel and
+         * whose task is about to run.
+         */
+        private static final int DUE = 2;
+
+        /**
+         * The wheel this timeout belongs to.
+         */
+        private final TimingWheel wheel;
+
+        /**
+         * The task to run, <tt>null</tt> for the sentinels of the slots.
+         */
+        private final Runnable task;
+
+        /**
+         * The time in milliseconds at which to run the task.
+         */
+        private long deadline;
+
+        private Timeout prev = this;
+
+        private Timeout next = this;
+
+        /**
+         * One of {@link #IDLE}, {@link #SCHEDULED} and {@link #DUE}.
+         */
+        private int state = IDLE;
+
+        private Timeout(TimingWheel wheel, Runnable task)
+        {
+            this.wheel = wheel;
+            this.task = task;
+        }
+
+        /**
+         * @return the time in milliseconds at which the task will run.
+         */
+        public long getDeadline()
+        {
+            synchronized (wheel)
+            {
+                return deadline;
+            }
+        }
+
+        /**
+         * @return <tt>true</tt> if the task is still waiting for its
+         *         deadline.
+         */
+        public boolean isPending()
+        {
+            synchronized (wheel)
+            {
+                return state != IDLE;
+            }
+        }
+
+        /**
+         * Moves the deadline of this timeout. If the task has already run or
+         * has been cancelled it is scheduled again.
+         *
+         * @param deadline the new time in milliseconds at which to run the
+         *            task.
+         */
+        public void reschedule(long deadline)
+        {
+            synchronized (wheel)
+            {
+                if (state == SCHEDULED)
+                    unlink(this);
+                else
+                    wheel.size++;
+                this.deadline = deadline;
+                wheel.link(this);
+            }
+        }
+
+        /**
+         * Cancels this timeout.
+         *
+         * @return <tt>true</tt> if the task was still waiting and will not
+         *         run; <tt>false</tt> if it has already run or been
+         *         cancelled.
+         */
+        public boolean cancel()
+        {
+            synchronized (wheel)
+            {
+                if (state == IDLE)
+                    return false;
+                if (state == SCHEDULED)
+                {
+                    unlink(this);
+                    wheel.size--;
+                }
+                state = IDLE;
+                return true;
+            }
+        }
+    }
+}
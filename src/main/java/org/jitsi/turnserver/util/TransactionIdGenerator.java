@@ -0,0 +1,99 @@
+/*
+ * TurnServer, the OpenSource Java Solution for TURN protocol. Maintained by the
+ * Jitsi community (http://jitsi.org).
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jitsi.turnserver.util;
+
+import java.nio.*;
+import java.security.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Generates unique 96-bit STUN transaction IDs without locking or drawing from
+ * a <tt>SecureRandom</tt> for every message. Each ID is a random prefix fixed
+ * per generator followed by a scrambled 64-bit counter which starts at a
+ * random value, so IDs do not repeat before 2^64 messages and do not reveal
+ * how many were sent. They are meant for indications, for which the
+ * transaction ID is not a security measure.
+ */
+public class TransactionIdGenerator
+{
+    /**
+     * The length in bytes of a transaction ID.
+     */
+    public static final int LENGTH = 12;
+
+    /**
+     * The first 4 bytes of every ID.
+     */
+    private final int prefix;
+
+    /**
+     * The counter scrambled into the last 8 bytes.
+     */
+    private final AtomicLong counter;
+
+    /**
+     * Creates a generator seeded from a <tt>SecureRandom</tt>.
+     */
+    public TransactionIdGenerator()
+    {
+        SecureRandom random = new SecureRandom();
+        this.prefix = random.nextInt();
+        this.counter = new AtomicLong(random.nextLong());
+    }
+
+    /**
+     * Writes the next transaction ID into a buffer without moving its
+     * position.
+     * 
+     * @param dst the buffer to write to.
+     * @param index the index at which to write the 12 bytes.
+     */
+    public void next(ByteBuffer dst, int index)
+    {
+        dst.putInt(index, prefix);
+        dst.putLong(index + 4, scramble(counter.getAndIncrement()));
+    }
+
+    /**
+     * Returns the next transaction ID.
+     * 
+     * @return a new array with the 12 bytes of the ID.
+     */
+    public byte[] next()
+    {
+        byte[] id = new byte[LENGTH];
+        next(ByteBuffer.wrap(id), 0);
+        return id;
+    }
+
+    /**
+     * The 64-bit finalizer of MurmurHash3, a bijection which spreads every
+     * input bit over the whole result.
+     */
+    private static long scramble(long h)
+    {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ * TurnServer, the OpenSource Java Solution for TURN protocol. Maintained by the
+ * Jitsi community (http://jitsi.org).
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.jitsi.turnserver.listeners;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.net.*;
+import java.nio.channels.*;
+import java.util.concurrent.*;
+
+import org.ice4j.*;
+import org.ice4j.attribute.*;
+import org.ice4j.message.*;
+import org.ice4j.stack.*;
+import org.jitsi.turnserver.socket.*;
+import org.jitsi.turnserver.stack.*;
+import org.junit.*;
+
+/**
+ * Tests the answers of the {@link ConnectRequestListener} and the hand-over
+ * of the peer connection to the <tt>TurnStack</tt>.
+ */
+public class ConnectRequestListenerTest
+{
+    /**
+     * How long the server transaction of a request lives in ice4j. A
+     * response sent later never reaches the client.
+     */
+    private static final long SERVER_TRANSACTION_LIFETIME = 16000;
+
+    private RecordingTurnStack turnStack;
+
+    private ConnectRequestListener listener;
+
+    private Allocation allocation;
+
+    private TransportAddress clientAddress;
+
+    private TransportAddress serverAddress;
+
+    private ServerSocketChannel peer;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        InetAddress loopback = InetAddress.getByName("127.0.0.1");
+        turnStack = new RecordingTurnStack();
+        listener = new ConnectRequestListener(turnStack);
+        clientAddress = new TransportAddress(loopback, 40000, Transport.TCP);
+        serverAddress = new TransportAddress(loopback, 3478, Transport.TCP);
+        allocation = new Allocation(
+            new TransportAddress(loopback, 0, Transport.TCP),
+            new FiveTuple(clientAddress, serverAddress, Transport.TCP));
+        assertTrue(turnStack.addNewServerAllocation(allocation));
+        allocation.addNewPermission(
+            new TransportAddress(loopback, 0, Transport.TCP));
+        peer = ServerSocketChannel.open();
+        peer.bind(new InetSocketAddress(loopback, 0));
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        turnStack.shutDown();
+        peer.close();
+    }
+
+    @Test
+    public void testUnansweredPeerGets447BeforeTransactionEnds()
+        throws Exception
+    {
+        UnansweredPeer unanswered = new UnansweredPeer();
+        try
+        {
+            long start = System.currentTimeMillis();
+            listener.processRequest(connectRequest(unanswered.getAddress()));
+
+            Response response = turnStack.responses.poll(
+                SERVER_TRANSACTION_LIFETIME, TimeUnit.MILLISECONDS);
+            assertNotNull("no response within the transaction", response);
+            assertTrue(System.currentTimeMillis() - start
+                < SERVER_TRANSACTION_LIFETIME);
+            assertErrorCode(
+                ErrorCodeAttribute.CONNECTION_TIMEOUT_OR_FAILURE, response);
+        }
+        finally
+        {
+            unanswered.close();
+        }
+    }
+
+    @Test
+    public void testConnectedPeerGetsConnectionId() throws Exception
+    {
+        listener.processRequest(connectRequest(
+            (InetSocketAddress) peer.getLocalAddress()));
+
+        Response response = turnStack.responses.poll(5, TimeUnit.SECONDS);
+        assertNotNull(response);
+        assertEquals(Message.CONNECT_REQUEST | Message.STUN_SUCCESS_RESP,
+            response.getMessageType());
+        int connectionId = ((ConnectionIdAttribute) response
+            .getAttribute(Attribute.CONNECTION_ID)).getConnectionIdValue();
+        assertTrue(turnStack.isUnacknowledged(connectionId));
+        assertSame(allocation,
+            turnStack.getAllocationFromConnectionId(connectionId));
+    }
+
+    @Test
+    public void testForbiddenPeer() throws Exception
+    {
+        listener.processRequest(connectRequest(
+            new InetSocketAddress(InetAddress.getByName("127.0.0.2"), 9)));
+
+        Response response = turnStack.responses.poll(5, TimeUnit.SECONDS);
+        assertErrorCode(ErrorCodeAttribute.FORBIDDEN, response);
+    }
+
+    @Test
+    public void testPeerConnectedAfterReleaseIsClosed() throws Exception
+    {
+        SocketChannel channel = connectToPeer();
+        turnStack.deleteServerAllocation(allocation);
+
+        assertFalse(
+            turnStack.addUnAcknowlededConnectionId(1, channel, allocation));
+        assertFalse(channel.isOpen());
+        assertFalse(turnStack.isUnacknowledged(1));
+    }
+
+    @Test
+    public void testDuplicateConnectionIdIsClosed() throws Exception
+    {
+        SocketChannel first = connectToPeer();
+        SocketChannel second = connectToPeer();
+
+        assertTrue(
+            turnStack.addUnAcknowlededConnectionId(1, first, allocation));
+        assertFalse(
+            turnStack.addUnAcknowlededConnectionId(1, second, allocation));
+        assertFalse(second.isOpen());
+        assertTrue(first.isOpen());
+        assertTrue(turnStack.isUnacknowledged(1));
+    }
+
+    private SocketChannel connectToPeer()
+        throws IOException
+    {
+        SocketChannel channel = SocketChannel.open(peer.getLocalAddress());
+        channel.configureBlocking(false);
+        return channel;
+    }
+
+    private StunMessageEvent connectRequest(InetSocketAddress peerAddress)
+    {
+        TransactionID tid = TransactionID.createNewTransactionID();
+        Request request = MessageFactory.createConnectRequest(
+            new TransportAddress(peerAddress, Transport.TCP), tid.getBytes());
+        try
+        {
+            request.setTransactionID(tid.getBytes());
+        }
+        catch (StunException e)
+        {
+            throw new IllegalStateException(e);
+        }
+        return new StunMessageEvent(turnStack,
+            RawMessage.build(new byte[0], 0, clientAddress, serverAddress),
+            request);
+    }
+
+    private static void assertErrorCode(char errorCode, Response response)
+    {
+        assertNotNull(response);
+        assertEquals(Message.CONNECT_REQUEST | Message.STUN_ERROR_RESP,
+            response.getMessageType());
+        assertEquals(errorCode, ((ErrorCodeAttribute) response
+            .getAttribute(Attribute.ERROR_CODE)).getErrorCode());
+    }
+
+    /**
+     * A <tt>TurnStack</tt> which records the responses instead of sending
+     * them.
+     */
+    private static class RecordingTurnStack
+        extends TurnStack
+    {
+        final BlockingQueue<Response> responses
+            = new LinkedBlockingQueue<Response>();
+
+        @Override
+        public void sendResponse(byte[] transactionID, Response response,
+            TransportAddress sendThrough, TransportAddress sendTo)
+        {
+            responses.add(response);
+        }
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * TurnServer, the OpenSource Java Solution for TURN protocol. Maintained by the
+ * Jitsi community (http://jitsi.org).
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.jitsi.turnserver.socket;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.net.*;
+import java.util.concurrent.atomic.*;
+
+import org.junit.*;
+
+/**
+ * Tests the accept loop of the {@link IceTcpEventizedServerSockerWrapper}
+ * when accepting fails and when it is closed right away.
+ */
+public class IceTcpEventizedServerSockerWrapperTest
+{
+    @Test
+    public void testFailedAcceptsBackOff() throws Exception
+    {
+        FailingServerSocket serverSocket = new FailingServerSocket();
+        IceTcpEventizedServerSockerWrapper wrapper =
+            new IceTcpEventizedServerSockerWrapper(serverSocket, null);
+        try
+        {
+            Thread.sleep(500);
+            // about one accept every 100 ms, thousands without a backoff
+            int calls = serverSocket.calls.get();
+            assertTrue(calls + " accepts in 500 ms", calls >= 1 && calls <= 10);
+        }
+        finally
+        {
+            wrapper.close();
+        }
+    }
+
+    @Test
+    public void testCloseRightAfterConstruction() throws Exception
+    {
+        FailingServerSocket serverSocket = new FailingServerSocket();
+        new IceTcpEventizedServerSockerWrapper(serverSocket, null).close();
+
+        Thread.sleep(300);
+        int calls = serverSocket.calls.get();
+        Thread.sleep(300);
+        assertTrue(calls <= 1);
+        assertEquals(calls, serverSocket.calls.get());
+    }
+
+    /**
+     * A server socket whose accepts fail as when the process is out of file
+     * descriptors, until it is closed.
+     */
+    private static class FailingServerSocket
+        extends ServerSocket
+    {
+        final AtomicInteger calls = new AtomicInteger();
+
+        FailingServerSocket()
+            throws IOException
+        {
+        }
+
+        @Override
+        public Socket accept()
+            throws IOException
+        {
+            calls.incrementAndGet();
+            if (isClosed())
+                throw new SocketException("Socket is closed");
+            throw new IOException("Too many open files");
+        }
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * TurnServer, the OpenSource Java Solution for TURN protocol. Maintained by the
+ * Jitsi community (http://jitsi.org).
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.jitsi.turnserver.socket;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.net.*;
+import java.nio.channels.*;
+import java.util.concurrent.*;
+
+import org.junit.*;
+
+/**
+ * Tests that the {@link TcpConnector} reports the outcome of every connect
+ * exactly once, on its own thread, including when it is stopped.
+ */
+public class TcpConnectorTest
+{
+    private static final String NAME = "TcpConnectorTest";
+
+    private TcpConnector connector;
+
+    private ServerSocketChannel server;
+
+    private UnansweredPeer unanswered;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        connector = new TcpConnector(NAME);
+        connector.start();
+        server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress("127.0.0.1", 0));
+        unanswered = new UnansweredPeer();
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        connector.stop();
+        server.close();
+        unanswered.close();
+    }
+
+    @Test
+    public void testConnectedOnConnectorThread() throws Exception
+    {
+        RecordingCallback callback = new RecordingCallback();
+        connector.connect(null, (InetSocketAddress) server.getLocalAddress(),
+            60000, callback);
+
+        SocketChannel channel = callback.channel.poll(5, TimeUnit.SECONDS);
+        assertNotNull(channel);
+        assertTrue(channel.isConnected());
+        assertEquals(NAME, callback.thread);
+        assertEquals(0, connector.getConnectingCount());
+        assertEquals(1, connector.getConnectedCount());
+        channel.close();
+    }
+
+    @Test
+    public void testUnansweredConnectTimesOut() throws Exception
+    {
+        RecordingCallback callback = new RecordingCallback();
+        long start = System.currentTimeMillis();
+        connector.connect(null, unanswered.getAddress(), 300, callback);
+
+        IOException cause = callback.cause.poll(5, TimeUnit.SECONDS);
+        assertTrue(String.valueOf(cause),
+            cause instanceof SocketTimeoutException);
+        assertTrue(System.currentTimeMillis() - start >= 300);
+        assertEquals(NAME, callback.thread);
+        assertEquals(0, connector.getConnectingCount());
+        assertEquals(1, connector.getTimedOutCount());
+    }
+
+    @Test
+    public void testStopFailsConnectsInProgress() throws Exception
+    {
+        RecordingCallback callback = new RecordingCallback();
+        connector.connect(null, unanswered.getAddress(), 60000, callback);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (connector.getConnectingCount() == 0
+            && System.currentTimeMillis() < deadline)
+        {
+            Thread.sleep(10);
+        }
+        assertEquals(1, connector.getConnectingCount());
+
+        connector.stop();
+        IOException cause = callback.cause.poll(5, TimeUnit.SECONDS);
+        assertTrue(String.valueOf(cause),
+            cause instanceof ClosedChannelException);
+        assertEquals(0, connector.getConnectingCount());
+    }
+
+    @Test
+    public void testStopFailsQueuedConnects() throws Exception
+    {
+        TcpConnector idle = new TcpConnector(NAME + "-idle");
+        RecordingCallback callback = new RecordingCallback();
+        idle.connect(null, unanswered.getAddress(), 60000, callback);
+
+        idle.stop();
+        assertTrue(callback.cause.poll(5, TimeUnit.SECONDS)
+            instanceof ClosedChannelException);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testConnectAfterStopIsRejected() throws Exception
+    {
+        connector.stop();
+        connector.connect(null, unanswered.getAddress(), 60000,
+            new RecordingCallback());
+    }
+
+    private static class RecordingCallback
+        implements TcpConnector.Callback
+    {
+        final BlockingQueue<SocketChannel> channel
+            = new LinkedBlockingQueue<SocketChannel>();
+
+        final BlockingQueue<IOException> cause
+            = new LinkedBlockingQueue<IOException>();
+
+        volatile String thread;
+
+        @Override
+        public void connected(SocketChannel channel)
+        {
+            thread = Thread.currentThread().getName();
+            this.channel.add(channel);
+        }
+
+        @Override
+        public void failed(IOException cause)
+        {
+            thread = Thread.currentThread().getName();
+            this.cause.add(cause);
+        }
+    }
+}
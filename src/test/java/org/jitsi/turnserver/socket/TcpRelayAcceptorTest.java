@@ -0,0 +1,246 @@
+/*
+ * TurnServer, the OpenSource Java Solution for TURN protocol. Maintained by the
+ * Jitsi community (http://jitsi.org).
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.turnserver.socket;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.net.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.ice4j.*;
+import org.junit.*;
+
+/**
+ * Tests that the {@link TcpRelayAcceptor} accepts the connections of many
+ * relay ports on its single thread, reports them with the addresses of both
+ * ends and releases the ports it closes.
+ */
+public class TcpRelayAcceptorTest
+{
+    private static final String NAME = "TcpRelayAcceptorTest";
+
+    private TcpRelayAcceptor acceptor;
+
+    private final List<SocketChannel> channels = new ArrayList<SocketChannel>();
+
+    @Before
+    public void setUp() throws Exception
+    {
+        acceptor = new TcpRelayAcceptor(NAME);
+        acceptor.start();
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        acceptor.stop();
+        for (SocketChannel channel : channels)
+            channel.close();
+    }
+
+    private SocketChannel connect(ServerSocketChannel port)
+        throws IOException
+    {
+        SocketChannel channel = SocketChannel.open(port.getLocalAddress());
+        channels.add(channel);
+        return channel;
+    }
+
+    /**
+     * Opens a listening port on an ephemeral port of a local address for a
+     * relay address which differs from it, as it does behind a NAT.
+     */
+    private ServerSocketChannel open(InetAddress address,
+        TransportAddress relayAddress, TcpConnectEventListener listener)
+        throws IOException
+    {
+        return acceptor.open(new InetSocketAddress(address, 0),
+            relayAddress, listener);
+    }
+
+    private static TransportAddress relayAddress(int port)
+    {
+        return new TransportAddress("192.0.2.1", port, Transport.TCP);
+    }
+
+    private static TransportAddress remoteAddress(SocketChannel client)
+        throws IOException
+    {
+        return new TransportAddress(
+            (InetSocketAddress) client.getLocalAddress(), Transport.TCP);
+    }
+
+    @Test
+    public void testOneThreadAcceptsOnManyPorts() throws Exception
+    {
+        InetAddress loopback = InetAddress.getByName("127.0.0.1");
+        RecordingListener listener = new RecordingListener();
+        List<ServerSocketChannel> ports = new ArrayList<ServerSocketChannel>();
+        for (int i = 0; i < 20; i++)
+            ports.add(open(loopback, relayAddress(50000 + i), listener));
+        assertEquals(20, acceptor.getOpenCount());
+
+        for (int i = 0; i < ports.size(); i++)
+        {
+            SocketChannel client = connect(ports.get(i));
+            TcpConnectEvent event = listener.events.poll(5, TimeUnit.SECONDS);
+            assertNotNull(event);
+            assertEquals(relayAddress(50000 + i), event.getLocalAdress());
+            assertEquals(remoteAddress(client), event.getRemoteAdress());
+            assertTrue(event.getChannel().isConnected());
+            channels.add(event.getChannel());
+        }
+        assertEquals(Collections.singleton(NAME), listener.threads);
+        assertEquals(20, acceptor.getAcceptedCount());
+    }
+
+    @Test
+    public void testAcceptsOnIpv6() throws Exception
+    {
+        InetAddress loopback = InetAddress.getByName("::1");
+        Assume.assumeTrue(isBindable(loopback));
+        RecordingListener listener = new RecordingListener();
+        TransportAddress relayAddress =
+            new TransportAddress("2001:db8::1", 50000, Transport.TCP);
+        ServerSocketChannel port = open(loopback, relayAddress, listener);
+
+        SocketChannel client = connect(port);
+        TcpConnectEvent event = listener.events.poll(5, TimeUnit.SECONDS);
+        assertNotNull(event);
+        assertEquals(relayAddress, event.getLocalAdress());
+        assertEquals(remoteAddress(client), event.getRemoteAdress());
+        assertTrue(event.getRemoteAdress().getAddress()
+            instanceof Inet6Address);
+        channels.add(event.getChannel());
+    }
+
+    @Test
+    public void testCloseReleasesThePort() throws Exception
+    {
+        RecordingListener listener = new RecordingListener();
+        ServerSocketChannel port =
+            open(InetAddress.getByName("127.0.0.1"), relayAddress(50000),
+                listener);
+        InetSocketAddress address = (InetSocketAddress) port.getLocalAddress();
+
+        acceptor.close(port);
+        acceptor.close(port);
+        assertFalse(port.isOpen());
+        assertEquals(0, acceptor.getOpenCount());
+
+        // the port can be bound again right away
+        ServerSocketChannel again = ServerSocketChannel.open();
+        try
+        {
+            again.bind(address);
+        }
+        finally
+        {
+            again.close();
+        }
+        try
+        {
+            SocketChannel.open(address).close();
+            fail("connected to a closed port");
+        }
+        catch (ConnectException e)
+        {
+        }
+        assertNull(listener.events.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testFailingListenerClosesTheConnection() throws Exception
+    {
+        ServerSocketChannel port = open(InetAddress.getByName("127.0.0.1"),
+            relayAddress(50000), new TcpConnectEventListener()
+            {
+                @Override
+                public void onConnect(TcpConnectEvent event)
+                {
+                    throw new IllegalStateException();
+                }
+            });
+
+        SocketChannel client = connect(port);
+        client.socket().setSoTimeout(5000);
+        assertEquals(-1, client.socket().getInputStream().read());
+
+        // the port keeps accepting
+        connect(port);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (acceptor.getAcceptedCount() < 2)
+        {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    @Test
+    public void testStopClosesThePorts() throws Exception
+    {
+        ServerSocketChannel port = open(InetAddress.getByName("127.0.0.1"),
+            relayAddress(50000), new RecordingListener());
+
+        acceptor.stop();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (port.isOpen())
+        {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+        assertEquals(0, acceptor.getOpenCount());
+    }
+
+    private static boolean isBindable(InetAddress address)
+    {
+        try
+        {
+            new ServerSocket(0, 1, address).close();
+            return true;
+        }
+        catch (IOException e)
+        {
+            return false;
+        }
+    }
+
+    /**
+     * Records the events and the threads they are delivered on.
+     */
+    private static class RecordingListener
+        implements TcpConnectEventListener
+    {
+        final BlockingQueue<TcpConnectEvent> events =
+            new LinkedBlockingQueue<TcpConnectEvent>();
+
+        final Set<String> threads = Collections.synchronizedSet(
+            new HashSet<String>());
+
+        @Override
+        public void onConnect(TcpConnectEvent event)
+        {
+            threads.add(Thread.currentThread().getName());
+            events.add(event);
+        }
+    }
+}
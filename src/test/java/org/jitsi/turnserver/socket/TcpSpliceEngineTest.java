@@ -0,0 +1,340 @@
+/*
+ * TurnServer, the OpenSource Java Solution for TURN protocol. Maintained by the
+ * Jitsi community (http://jitsi.org).
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.turnserver.socket;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.concurrent.*;
+
+import org.ice4j.*;
+import org.junit.*;
+
+/**
+ * Tests that the {@link TcpSpliceEngine} relays the bytes of a client data
+ * connection and of its peer connection both ways, stops reading a sender
+ * while the ring of its direction is full and closes both connections when
+ * either ends.
+ */
+public class TcpSpliceEngineTest
+{
+    private TcpSpliceEngine engine;
+
+    private ServerSocketChannel server;
+
+    /**
+     * The client end of the client data connection.
+     */
+    private SocketChannel client;
+
+    /**
+     * The peer end of the peer connection.
+     */
+    private SocketChannel peer;
+
+    /**
+     * The server ends of the two connections, spliced by the engine.
+     */
+    private SocketChannel serverClient;
+
+    private SocketChannel serverPeer;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress("127.0.0.1", 0));
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        if (engine != null)
+            engine.stop();
+        server.close();
+        closeQuietly(client);
+        closeQuietly(peer);
+    }
+
+    private void connect(int socketBufferSize) throws IOException
+    {
+        client = SocketChannel.open();
+        peer = SocketChannel.open();
+        if (socketBufferSize > 0)
+        {
+            client.socket().setReceiveBufferSize(socketBufferSize);
+            peer.socket().setSendBufferSize(socketBufferSize);
+        }
+        client.connect(server.getLocalAddress());
+        serverClient = server.accept();
+        peer.connect(server.getLocalAddress());
+        serverPeer = server.accept();
+    }
+
+    private static void closeQuietly(SocketChannel channel)
+    {
+        try
+        {
+            if (channel != null)
+                channel.close();
+        }
+        catch (IOException e)
+        {
+        }
+    }
+
+    private static void writeFully(SocketChannel channel, byte[] bytes)
+        throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+    }
+
+    private static byte[] readFully(SocketChannel channel, int length)
+        throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining())
+        {
+            if (channel.read(buffer) < 0)
+                throw new EOFException("after " + buffer.position());
+        }
+        return buffer.array();
+    }
+
+    private static byte[] pattern(int length, int seed)
+    {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++)
+            bytes[i] = (byte) (i * 31 + seed);
+        return bytes;
+    }
+
+    private static void waitFor(Callable<Boolean> condition)
+        throws Exception
+    {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.call())
+        {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    @Test
+    public void testRelaysBothWays() throws Exception
+    {
+        engine = new TcpSpliceEngine("splice", 2);
+        engine.start();
+        connect(0);
+        final TcpSpliceEngine.Splice splice
+            = engine.splice(serverClient, serverPeer, null);
+        assertEquals(1, engine.getSpliceCount());
+        assertTrue(splice.isTcpNoDelay());
+
+        // more than the ring of one direction, so it wraps around
+        byte[] toPeer = pattern(3 * TcpSpliceEngine.DEFAULT_BUFFER_SIZE, 1);
+        byte[] toClient = pattern(1000, 7);
+        writeFully(client, toPeer);
+        writeFully(peer, toClient);
+        assertArrayEquals(toPeer, readFully(peer, toPeer.length));
+        assertArrayEquals(toClient, readFully(client, toClient.length));
+
+        waitFor(new Callable<Boolean>()
+        {
+            @Override
+            public Boolean call()
+            {
+                return splice.getBytesToPeer() == 3
+                    * TcpSpliceEngine.DEFAULT_BUFFER_SIZE
+                    && splice.getBytesToClient() == 1000;
+            }
+        });
+        assertEquals(0, splice.getToPeer().getBuffered());
+        assertEquals(0, splice.getToClient().getBuffered());
+        assertEquals(new TransportAddress(
+            (InetSocketAddress) client.getLocalAddress(), Transport.TCP),
+            splice.getRemoteAddress());
+    }
+
+    @Test
+    public void testEndOfStreamIsPassedOnAndClosesBoth() throws Exception
+    {
+        engine = new TcpSpliceEngine("splice", 1);
+        engine.start();
+        connect(0);
+        final BlockingQueue<TransportAddress> closed
+            = new LinkedBlockingQueue<TransportAddress>();
+        TcpSpliceEngine.Splice splice = engine.splice(serverClient,
+            serverPeer, new TcpCloseEventListener()
+            {
+                @Override
+                public void onClose(TransportAddress localAddress,
+                    TransportAddress remoteAddress)
+                {
+                    closed.add(remoteAddress);
+                }
+            });
+
+        // what the peer sent just before closing still reaches the client
+        byte[] last = pattern(10000, 3);
+        writeFully(peer, last);
+        peer.close();
+        assertArrayEquals(last, readFully(client, last.length));
+        assertEquals(-1, client.read(ByteBuffer.allocate(1)));
+
+        assertEquals(splice.getRemoteAddress(),
+            closed.poll(5, TimeUnit.SECONDS));
+        assertTrue(splice.isClosed());
+        assertFalse(serverClient.isOpen());
+        assertFalse(serverPeer.isOpen());
+        assertEquals(0, engine.getSpliceCount());
+    }
+
+    @Test
+    public void testCloseDoesNotNotify() throws Exception
+    {
+        engine = new TcpSpliceEngine("splice", 1);
+        engine.start();
+        connect(0);
+        final BlockingQueue<TransportAddress> closed
+            = new LinkedBlockingQueue<TransportAddress>();
+        TcpSpliceEngine.Splice splice = engine.splice(serverClient,
+            serverPeer, new TcpCloseEventListener()
+            {
+                @Override
+                public void onClose(TransportAddress localAddress,
+                    TransportAddress remoteAddress)
+                {
+                    closed.add(remoteAddress);
+                }
+            });
+
+        splice.close();
+        splice.close();
+        assertEquals(-1, client.read(ByteBuffer.allocate(1)));
+        assertEquals(-1, peer.read(ByteBuffer.allocate(1)));
+        assertEquals(0, engine.getSpliceCount());
+        assertNull(closed.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testStopClosesSplices() throws Exception
+    {
+        engine = new TcpSpliceEngine("splice", 1);
+        engine.start();
+        connect(0);
+        TcpSpliceEngine.Splice splice
+            = engine.splice(serverClient, serverPeer, null);
+        writeFully(client, pattern(10, 0));
+        readFully(peer, 10);
+
+        engine.stop();
+        assertEquals(-1, client.read(ByteBuffer.allocate(1)));
+        assertTrue(splice.isClosed());
+        assertEquals(0, engine.getSpliceCount());
+    }
+
+    @Test
+    public void testFullRingPushesBackOnTheSender() throws Exception
+    {
+        final int bufferSize = 4096;
+        final int socketBufferSize = 8192;
+        final int length = 4 << 20;
+        engine = new TcpSpliceEngine("splice", 1, bufferSize, true,
+            socketBufferSize);
+        engine.start();
+        connect(socketBufferSize);
+        TcpSpliceEngine.Splice splice
+            = engine.splice(serverClient, serverPeer, null);
+        final TcpSpliceEngine.Flow flow = splice.getToClient();
+
+        final byte[] bytes = pattern(length, 5);
+        final long[] sent = new long[1];
+        Thread sender = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                ByteBuffer buffer = ByteBuffer.wrap(bytes);
+                try
+                {
+                    while (buffer.hasRemaining())
+                    {
+                        peer.write(buffer);
+                        synchronized (sent)
+                        {
+                            sent[0] = buffer.position();
+                        }
+                    }
+                }
+                catch (IOException e)
+                {
+                }
+            }
+        };
+        sender.setDaemon(true);
+        sender.start();
+
+        // the client does not read, so once its socket buffers are full the
+        // ring fills up, is not read into any more and the sender blocks
+        waitFor(new Callable<Boolean>()
+        {
+            private long lastSent = -1;
+
+            @Override
+            public Boolean call() throws Exception
+            {
+                long sentNow;
+                synchronized (sent)
+                {
+                    sentNow = sent[0];
+                }
+                boolean blocked = (sentNow == lastSent) && flow.isStalled();
+                lastSent = sentNow;
+                if (!blocked)
+                    Thread.sleep(50);
+                return blocked;
+            }
+        });
+        assertEquals(bufferSize, flow.getBuffered());
+        assertEquals(bufferSize, flow.getMaxBuffered());
+        assertTrue(flow.getStalls() >= 1);
+        long stallTime = flow.getStallTime();
+        Thread.sleep(100);
+        assertTrue(flow.isStalled());
+        assertTrue(flow.getStallTime() - stallTime >= 99);
+        synchronized (sent)
+        {
+            assertTrue(sent[0] < length);
+        }
+
+        assertArrayEquals(bytes, readFully(client, length));
+        sender.join(5000);
+        assertFalse(flow.isStalled());
+        assertTrue(flow.getStalls() >= 1);
+        assertTrue(flow.getMaxBuffered() <= bufferSize);
+        assertEquals(length, flow.getBytes());
+        assertEquals(0, splice.getToPeer().getStalls());
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * TurnServer, the OpenSource Java Solution for TURN protocol. Maintained by the
+ * Jitsi community (http://jitsi.org).
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.jitsi.turnserver.socket;
+
+import static org.junit.Assert.*;
+
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.junit.*;
+
+/**
+ * Tests that the {@link UdpRelayEngine} handles every datagram of a pinned
+ * channel on the event loop of its shard when several shards receive at the
+ * same time.
+ */
+public class UdpRelayEngineTest
+{
+    private static final int SHARDS = 4;
+
+    private static final int CHANNELS = 16;
+
+    private static final int SENDERS = 4;
+
+    private static final int DATAGRAMS_PER_CHANNEL = 200;
+
+    private static final int DATAGRAM_SIZE = 100;
+
+    private UdpRelayEngine engine;
+
+    private final List<DatagramChannel> channels
+        = new ArrayList<DatagramChannel>();
+
+    @Before
+    public void setUp() throws Exception
+    {
+        engine = new UdpRelayEngine("UdpRelayEngineTest", SHARDS,
+            new CountingHandler());
+        engine.start();
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        engine.stop();
+    }
+
+    @Test
+    public void testShardsOwnTheirChannels() throws Exception
+    {
+        InetAddress loopback = InetAddress.getByName("127.0.0.1");
+        final List<Counter> counters = new ArrayList<Counter>();
+        Set<Integer> shards = new HashSet<Integer>();
+        for (int i = 0; i < CHANNELS; i++)
+        {
+            DatagramChannel channel = DatagramChannel.open();
+            channel.bind(new InetSocketAddress(loopback, 0));
+            int shard = engine.shardOf(channel.socket().getLocalPort());
+            Counter counter = new Counter(shard);
+            engine.register(channel, counter, shard);
+            channels.add(channel);
+            counters.add(counter);
+            shards.add(shard);
+        }
+        assertTrue("all the channels are in one shard", shards.size() > 1);
+
+        // every sender sends its share of the datagrams of every channel, so
+        // all the shards receive concurrently
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService senders = Executors.newFixedThreadPool(SENDERS);
+        List<Future<?>> sent = new ArrayList<Future<?>>();
+        for (int s = 0; s < SENDERS; s++)
+        {
+            sent.add(senders.submit(new Callable<Void>()
+            {
+                @Override
+                public Void call() throws Exception
+                {
+                    DatagramChannel sender = DatagramChannel.open();
+                    ByteBuffer datagram = ByteBuffer.allocate(DATAGRAM_SIZE);
+                    start.await();
+                    for (int n = 0; n < DATAGRAMS_PER_CHANNEL / SENDERS; n++)
+                    {
+                        for (DatagramChannel channel : channels)
+                        {
+                            datagram.clear();
+                            sender.send(datagram,
+                                channel.socket().getLocalSocketAddress());
+                        }
+                        if (n % 10 == 9)
+                            Thread.sleep(1);
+                    }
+                    sender.close();
+                    return null;
+                }
+            }));
+        }
+        start.countDown();
+        for (Future<?> f : sent)
+            f.get(10, TimeUnit.SECONDS);
+        senders.shutdown();
+
+        long deadline = System.currentTimeMillis() + 5000;
+        for (Counter counter : counters)
+        {
+            while (counter.packets < DATAGRAMS_PER_CHANNEL
+                && System.currentTimeMillis() < deadline)
+            {
+                Thread.sleep(10);
+            }
+        }
+
+        Map<Integer, Thread> threads = new HashMap<Integer, Thread>();
+        for (Counter counter : counters)
+        {
+            assertEquals(DATAGRAMS_PER_CHANNEL, counter.packets);
+            assertEquals(
+                (long) DATAGRAMS_PER_CHANNEL * DATAGRAM_SIZE, counter.bytes);
+            assertFalse("handled by more than one thread", counter.shared);
+            assertTrue(counter.owner.getName().endsWith("-" + counter.shard));
+            Thread previous = threads.put(counter.shard, counter.owner);
+            assertTrue(previous == null || previous == counter.owner);
+        }
+        assertEquals(shards.size(), new HashSet<Thread>(threads.values())
+            .size());
+    }
+
+    @Test
+    public void testStopClosesChannels() throws Exception
+    {
+        InetAddress loopback = InetAddress.getByName("127.0.0.1");
+        for (int i = 0; i < SHARDS; i++)
+        {
+            channels.add(engine.open(new InetSocketAddress(loopback, 0),
+                new Counter(i), i));
+        }
+        assertEquals(SHARDS, engine.getChannelCount());
+
+        engine.stop();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (engine.getChannelCount() > 0
+            && System.currentTimeMillis() < deadline)
+        {
+            Thread.sleep(10);
+        }
+        assertEquals(0, engine.getChannelCount());
+        for (DatagramChannel channel : channels)
+            assertFalse(channel.isOpen());
+    }
+
+    /**
+     * The traffic of one channel, written by the thread which handles its
+     * datagrams only.
+     */
+    private static class Counter
+    {
+        final int shard;
+
+        volatile Thread owner;
+
+        volatile boolean shared;
+
+        volatile long packets;
+
+        volatile long bytes;
+
+        Counter(int shard)
+        {
+            this.shard = shard;
+        }
+    }
+
+    private static class CountingHandler
+        implements DatagramRelayHandler
+    {
+        @Override
+        public void handleDatagram(Object attachment,
+            InetSocketAddress source, ByteBuffer data)
+        {
+            Counter counter = (Counter) attachment;
+            Thread current = Thread.currentThread();
+            if (counter.owner == null)
+                counter.owner = current;
+            else if (counter.owner != current)
+                counter.shared = true;
+            counter.packets++;
+            counter.bytes += data.remaining();
+        }
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * TurnServer, the OpenSource Java Solution for TURN protocol. Maintained by the
+ * Jitsi community (http://jitsi.org).
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.jitsi.turnserver.socket;
+
+import java.io.*;
+import java.net.*;
+import java.nio.channels.*;
+import java.util.*;
+
+/**
+ * A loopback TCP address which never answers a connect, standing in for a
+ * non-routable peer: its listening socket is never accepted from and its
+ * backlog is filled, so the SYNs of further connects are dropped.
+ */
+public class UnansweredPeer
+{
+    private final ServerSocketChannel server;
+
+    private final List<SocketChannel> backlog = new ArrayList<SocketChannel>();
+
+    private final InetSocketAddress address;
+
+    public UnansweredPeer()
+        throws IOException
+    {
+        server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress("127.0.0.1", 0), 1);
+        address = (InetSocketAddress) server.getLocalAddress();
+        for (int i = 0; i < 16; i++)
+        {
+            SocketChannel channel = SocketChannel.open();
+            try
+            {
+                channel.socket().connect(address, 200);
+            }
+            catch (SocketTimeoutException e)
+            {
+                channel.close();
+                return;
+            }
+            backlog.add(channel);
+        }
+        close();
+        throw new IOException("the backlog of " + address + " never fills");
+    }
+
+    /**
+     * @return the address which never answers.
+     */
+    public InetSocketAddress getAddress()
+    {
+        return address;
+    }
+
+    public void close()
+        throws IOException
+    {
+        for (SocketChannel channel : backlog)
+            channel.close();
+        server.close();
+    }
+}
@@ -0,0 +1,248 @@
+/*
+ * TurnServer, the OpenSource Java Solution for TURN protocol. Maintained by the
+ * Jitsi community (http://jitsi.org).
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jitsi.turnserver.stack;
+
+import static org.junit.Assert.*;
+
+import java.net.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import org.ice4j.*;
+import org.junit.*;
+
+/**
+ * Tests that the indexes of an {@link AllocationRegistry} stay consistent
+ * when it is used from several threads at once: every thread adds its own
+ * Allocations, looks up its own and its neighbour's by five tuple and by
+ * relay address, Connection Ids come and go, and then half of the
+ * Allocations are expired concurrently with the lookups of the other half.
+ */
+public class AllocationRegistryTest
+{
+    private static final int THREADS = 4;
+
+    private static final int PER_THREAD = 5000;
+
+    @Test
+    public void testConcurrentUseLosesNoEntry() throws Exception
+    {
+        run(THREADS, PER_THREAD);
+    }
+
+    @Test
+    public void testRefusesTakenRelayAddressAndFullRegistry()
+        throws Exception
+    {
+        AllocationRegistry registry = new AllocationRegistry(2);
+        InetAddress relayIp = InetAddress.getByName("10.1.0.1");
+        TransportAddress server =
+            new TransportAddress("10.0.0.1", 3478, Transport.UDP);
+        Allocation first = allocation(relayIp, 1000, "100.0.0.1", server);
+        Allocation sameRelay = allocation(relayIp, 1000, "100.0.0.2", server);
+        Allocation second = allocation(relayIp, 1001, "100.0.0.3", server);
+        Allocation third = allocation(relayIp, 1002, "100.0.0.4", server);
+
+        assertTrue(registry.add(first));
+        assertFalse(registry.add(sameRelay));
+        assertNull(registry.get(sameRelay.getFiveTuple().getKey()));
+        assertTrue(registry.add(second));
+        assertFalse(registry.hasCapacity());
+        assertFalse(registry.add(third));
+        assertEquals(2, registry.size());
+
+        assertTrue(registry.remove(first));
+        assertFalse(registry.remove(first));
+        assertNull(registry.getByRelayAddress(first.getRelayAddress()));
+        assertTrue(registry.add(sameRelay));
+        assertSame(sameRelay,
+            registry.getByRelayAddress(first.getRelayAddress()));
+    }
+
+    private static Allocation allocation(InetAddress relayIp, int relayPort,
+        String clientIp, TransportAddress server)
+    {
+        return new Allocation(
+            new TransportAddress(relayIp, relayPort, Transport.UDP),
+            new FiveTuple(new TransportAddress(clientIp, 5000, Transport.UDP),
+                server, Transport.UDP));
+    }
+
+    private static void run(final int threads, final int perThread)
+        throws Exception
+    {
+        final AllocationRegistry registry =
+            new AllocationRegistry(threads * perThread);
+        final Allocation[][] allocations = new Allocation[threads][];
+        TransportAddress server = new TransportAddress(
+            InetAddress.getByAddress(new byte[] { 10, 0, 0, 1 }), 3478,
+            Transport.UDP);
+        for (int t = 0; t < threads; t++)
+        {
+            allocations[t] = new Allocation[perThread];
+            InetAddress relayIp =
+                InetAddress.getByAddress(new byte[] { 10, 1, 0, (byte) t });
+            for (int i = 0; i < perThread; i++)
+            {
+                InetAddress clientIp = InetAddress.getByAddress(new byte[] {
+                    (byte) 100, (byte) t, (byte) (i >>> 8), (byte) i });
+                allocations[t][i] = new Allocation(
+                    new TransportAddress(relayIp, i, Transport.UDP),
+                    new FiveTuple(
+                        new TransportAddress(clientIp, 1024 + (i & 0x3ff),
+                            Transport.UDP),
+                        server, Transport.UDP));
+            }
+        }
+
+        final AtomicLong failures = new AtomicLong();
+        phase(threads, new Phase()
+        {
+            public void run(int t)
+            {
+                Allocation[] own = allocations[t];
+                for (int i = 0; i < own.length; i++)
+                {
+                    if (!registry.add(own[i]))
+                        failures.incrementAndGet();
+                    // the same five tuple must be refused
+                    if (registry.add(own[i]))
+                        failures.incrementAndGet();
+                    registry.addPeerConnection(
+                        t * perThread + i, own[i].getFiveTuple());
+                }
+            }
+        });
+
+        phase(threads, new Phase()
+        {
+            public void run(int t)
+            {
+                Allocation[] own = allocations[t];
+                Allocation[] other = allocations[(t + 1) % threads];
+                for (int i = 0; i < own.length; i++)
+                {
+                    if (registry.get(own[i].getFiveTuple().getKey()) != own[i]
+                        || registry.getByRelayAddress(
+                                other[i].getRelayAddress()) != other[i])
+                    {
+                        failures.incrementAndGet();
+                    }
+                }
+            }
+        });
+
+        phase(threads, new Phase()
+        {
+            public void run(int t)
+            {
+                Allocation[] own = allocations[t];
+                for (int i = 0; i < own.length; i++)
+                {
+                    int connectionId = t * perThread + i;
+                    if ((i & 1) == 0)
+                    {
+                        registry.removeConnectionId(
+                            connectionId, own[i].getFiveTuple(), null);
+                        if (!registry.remove(own[i])
+                            || registry.getConnectionIdForPeer(
+                                own[i].getFiveTuple()) != null)
+                        {
+                            failures.incrementAndGet();
+                        }
+                    }
+                    else
+                    {
+                        registry.addDataConnection(
+                            connectionId, own[i].getFiveTuple());
+                        if (!Integer.valueOf(connectionId).equals(
+                                registry.getConnectionIdForDataConn(
+                                    own[i].getFiveTuple()))
+                            || registry.get(own[i].getFiveTuple().getKey())
+                                != own[i])
+                        {
+                            failures.incrementAndGet();
+                        }
+                    }
+                }
+            }
+        });
+
+        int expected = threads * perThread / 2;
+        for (Allocation[] own : allocations)
+        {
+            for (int i = 0; i < own.length; i++)
+            {
+                boolean live = (i & 1) != 0;
+                if ((registry.get(own[i].getFiveTuple().getKey()) != null)
+                        != live
+                    || (registry.getByRelayAddress(own[i].getRelayAddress())
+                        != null) != live)
+                {
+                    failures.incrementAndGet();
+                }
+            }
+        }
+        assertEquals(0, failures.get());
+        assertEquals(expected, registry.size());
+    }
+
+    /**
+     * The work of one thread in a phase of the test.
+     */
+    private interface Phase
+    {
+        void run(int thread);
+    }
+
+    /**
+     * Runs a phase on the specified number of threads started together.
+     */
+    private static void phase(int threads, final Phase phase)
+        throws Exception
+    {
+        final CyclicBarrier barrier = new CyclicBarrier(threads + 1);
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++)
+        {
+            final int thread = t;
+            workers[t] = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        barrier.await();
+                    }
+                    catch (Exception e)
+                    {
+                        return;
+                    }
+                    phase.run(thread);
+                }
+            };
+            workers[t].start();
+        }
+        barrier.await();
+        for (Thread worker : workers)
+            worker.join();
+    }
+}
@@ -0,0 +1,257 @@
+/*
+ * TurnServer, the OpenSource Java Solution for TURN protocol. Maintained by the
+ * Jitsi community (http://jitsi.org).
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jitsi.turnserver.stack;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.atomic.*;
+
+import org.ice4j.*;
+import org.junit.*;
+
+/**
+ * Tests the indexes of the {@link ChannelTable} and that readers see a
+ * consistent table while it is changed.
+ */
+public class ChannelTableTest
+{
+    private static TransportAddress peer(int i)
+    {
+        return new TransportAddress("10.0." + (i >> 8) + "." + (i & 0xff),
+            40000 + i, Transport.UDP);
+    }
+
+    @Test
+    public void testPutAndGet()
+    {
+        ChannelTable table = new ChannelTable();
+        ChannelBind first = new ChannelBind(peer(1), (char) 0x4000);
+        ChannelBind last = new ChannelBind(peer(2), ChannelTable.MAX_CHANNEL);
+
+        assertNull(table.put(first));
+        assertNull(table.put(last));
+        assertEquals(2, table.size());
+        assertSame(first, table.get((char) 0x4000));
+        assertSame(last, table.get(ChannelTable.MAX_CHANNEL));
+        assertEquals(0x4000, table.getChannel(peer(1)));
+        assertEquals(ChannelTable.MAX_CHANNEL, table.getChannel(peer(2)));
+        assertEquals(2, table.values().size());
+    }
+
+    @Test
+    public void testUnknownChannelsAndPeers()
+    {
+        ChannelTable table = new ChannelTable();
+        table.put(new ChannelBind(peer(1), (char) 0x4000));
+
+        assertNull(table.get((char) 0x4001));
+        assertNull(table.get((char) 0x3FFF));
+        assertNull(table.get((char) 0x8000));
+        assertEquals(ChannelTable.NO_CHANNEL, table.getChannel(peer(2)));
+        // same IP address, other port
+        assertEquals(ChannelTable.NO_CHANNEL, table.getChannel(
+            new TransportAddress("10.0.0.1", 1, Transport.UDP)));
+    }
+
+    @Test
+    public void testPutReplacesChannelAndPeer()
+    {
+        ChannelTable table = new ChannelTable();
+        ChannelBind first = new ChannelBind(peer(1), (char) 0x4000);
+        table.put(first);
+
+        // the channel moves to another peer
+        ChannelBind moved = new ChannelBind(peer(2), (char) 0x4000);
+        assertSame(first, table.put(moved));
+        assertEquals(1, table.size());
+        assertEquals(ChannelTable.NO_CHANNEL, table.getChannel(peer(1)));
+        assertEquals(0x4000, table.getChannel(peer(2)));
+
+        // the peer moves to another channel
+        ChannelBind rebound = new ChannelBind(peer(2), (char) 0x4001);
+        assertNull(table.put(rebound));
+        assertEquals(1, table.size());
+        assertNull(table.get((char) 0x4000));
+        assertSame(rebound, table.get((char) 0x4001));
+        assertEquals(0x4001, table.getChannel(peer(2)));
+    }
+
+    @Test
+    public void testRemove()
+    {
+        ChannelTable table = new ChannelTable();
+        ChannelBind channelBind = new ChannelBind(peer(1), (char) 0x4000);
+        table.put(channelBind);
+
+        assertNull(table.remove((char) 0x4001));
+        assertSame(channelBind, table.remove((char) 0x4000));
+        assertNull(table.remove((char) 0x4000));
+        assertEquals(0, table.size());
+        assertNull(table.get((char) 0x4000));
+        assertEquals(ChannelTable.NO_CHANNEL, table.getChannel(peer(1)));
+        assertTrue(table.values().isEmpty());
+    }
+
+    @Test
+    public void testReadersSeeConsistentTable() throws Exception
+    {
+        final ChannelTable table = new ChannelTable();
+        final ChannelBind stable = new ChannelBind(peer(0), (char) 0x4000);
+        table.put(stable);
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicInteger failures = new AtomicInteger();
+
+        Thread reader = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                while (!done.get())
+                {
+                    if (table.get((char) 0x4000) != stable
+                        || table.getChannel(peer(0)) != 0x4000)
+                    {
+                        failures.incrementAndGet();
+                    }
+                }
+            }
+        };
+        reader.start();
+        try
+        {
+            for (int round = 0; round < 20; round++)
+            {
+                for (int i = 1; i < 300; i++)
+                    table.put(new ChannelBind(peer(i), (char) (0x4000 + i)));
+                for (int i = 1; i < 300; i++)
+                    table.remove((char) (0x4000 + i));
+            }
+        }
+        finally
+        {
+            done.set(true);
+            reader.join();
+        }
+        assertEquals(0, failures.get());
+        assertEquals(1, table.size());
+    }
+
+    @Test
+    public void testPublishedIndexDoesNotChange()
+    {
+        ChannelTable table = new ChannelTable();
+        ChannelBind channelBind = new ChannelBind(peer(1), (char) 0x4000);
+        table.put(channelBind);
+        ChannelTable.Index index = table.getIndex();
+
+        table.remove((char) 0x4000);
+        table.put(new ChannelBind(peer(2), (char) 0x4001));
+
+        assertSame(channelBind, index.get((char) 0x4000));
+        assertNull(index.get((char) 0x4001));
+        assertEquals(0x4000, index.getChannel(peer(1)));
+        assertEquals(ChannelTable.NO_CHANNEL, index.getChannel(peer(2)));
+        assertNull(table.getIndex().get((char) 0x4000));
+    }
+
+    @Test
+    public void testIndexHonoursDeadlines()
+    {
+        ChannelTable table = new ChannelTable();
+        ChannelBind channelBind =
+            new ChannelBind(peer(1), (char) 0x4000, 10);
+        table.put(channelBind);
+        long deadline = channelBind.getExpirationTime();
+        ChannelTable.Index index = table.getIndex();
+
+        assertEquals(peer(1), index.getPeer((char) 0x4000, deadline));
+        assertEquals(0x4000, index.getChannel(peer(1), deadline));
+        assertNull(index.getPeer((char) 0x4000, deadline + 1));
+        assertEquals(ChannelTable.NO_CHANNEL,
+            index.getChannel(peer(1), deadline + 1));
+        assertNull(index.getPeer((char) 0x4001, 0));
+        assertNull(index.getPeer((char) 0x3FFF, 0));
+
+        // a refresh is published by a new index
+        channelBind.setLifetime(600);
+        table.refresh(channelBind);
+        assertNull(index.getPeer((char) 0x4000, deadline + 1));
+        assertEquals(peer(1),
+            table.getIndex().getPeer((char) 0x4000, deadline + 1));
+        assertEquals(0x4000,
+            table.getIndex().getChannel(peer(1), deadline + 1));
+
+        // ChannelBinds no longer in the table are not published
+        ChannelTable.Index refreshed = table.getIndex();
+        table.refresh(new ChannelBind(peer(1), (char) 0x4000));
+        assertSame(refreshed, table.getIndex());
+    }
+
+    @Test
+    public void testIndexesAgreeWhileChannelsMove() throws Exception
+    {
+        final ChannelTable table = new ChannelTable();
+        table.put(new ChannelBind(peer(1), (char) 0x4000));
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicInteger failures = new AtomicInteger();
+
+        Thread reader = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                while (!done.get())
+                {
+                    ChannelTable.Index index = table.getIndex();
+                    for (int i = 0; i < 2; i++)
+                    {
+                        ChannelBind channelBind =
+                            index.get((char) (0x4000 + i));
+                        if (channelBind != null
+                            && index.getChannel(channelBind.getPeerAddress())
+                                != channelBind.getChannelNo())
+                        {
+                            failures.incrementAndGet();
+                        }
+                    }
+                    if (index.getChannel(peer(1)) == ChannelTable.NO_CHANNEL)
+                        failures.incrementAndGet();
+                }
+            }
+        };
+        reader.start();
+        try
+        {
+            // the peer moves back and forth between two channels
+            for (int round = 0; round < 20000; round++)
+            {
+                table.put(new ChannelBind(peer(1),
+                    (char) (0x4000 + ((round + 1) & 1))));
+            }
+        }
+        finally
+        {
+            done.set(true);
+            reader.join();
+        }
+        assertEquals(0, failures.get());
+        assertEquals(1, table.size());
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * TurnServer, the OpenSource Java Solution for TURN protocol. Maintained by the
+ * Jitsi community (http://jitsi.org).
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jitsi.turnserver.stack;
+
+import static org.junit.Assert.*;
+
+import java.nio.channels.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import org.ice4j.*;
+import org.jitsi.turnserver.util.*;
+import org.junit.*;
+
+/**
+ * Tests the transitions of the Connection Ids of a
+ * {@link ConnectionIdManager} between pending, bound, expired and released.
+ */
+public class ConnectionIdManagerTest
+{
+    /**
+     * The bind timeout of the tests which let Connection Ids expire.
+     */
+    private static final long BIND_TIMEOUT = 50;
+
+    private TimingWheel timer;
+
+    private Allocation allocation;
+
+    private final AtomicInteger expiredId = new AtomicInteger();
+
+    private final CountDownLatch expired = new CountDownLatch(1);
+
+    private final ConnectionIdManager.ExpiryListener listener
+        = new ConnectionIdManager.ExpiryListener()
+        {
+            @Override
+            public void connectionIdExpired(int connectionId,
+                Allocation allocation)
+            {
+                assertSame(ConnectionIdManagerTest.this.allocation,
+                    allocation);
+                expiredId.set(connectionId);
+                expired.countDown();
+            }
+        };
+
+    @Before
+    public void setUp()
+    {
+        timer = new TimingWheel("ConnectionIdManagerTest", 10);
+        timer.start();
+        TransportAddress client =
+            new TransportAddress("192.0.2.1", 40000, Transport.TCP);
+        TransportAddress server =
+            new TransportAddress("192.0.2.2", 3478, Transport.TCP);
+        allocation = new Allocation(
+            new TransportAddress("192.0.2.2", 50000, Transport.TCP),
+            new FiveTuple(client, server, Transport.TCP));
+    }
+
+    @After
+    public void tearDown()
+    {
+        timer.stop();
+    }
+
+    @Test
+    public void testBindAndRelease()
+    {
+        ConnectionIdManager manager =
+            new ConnectionIdManager(timer, 30000, listener);
+
+        assertTrue(manager.add(1, allocation, null));
+        assertFalse(manager.add(1, allocation, null));
+        assertTrue(manager.isPending(1));
+        assertSame(allocation, manager.getAllocation(1));
+        assertEquals(1, manager.getPendingCount());
+        assertEquals(1, timer.size());
+
+        assertTrue(manager.bind(1));
+        assertFalse(manager.bind(1));
+        assertFalse(manager.isPending(1));
+        assertSame(allocation, manager.getAllocation(1));
+        assertEquals(0, manager.getPendingCount());
+        assertEquals(1, manager.getBoundCount());
+        assertEquals(0, timer.size());
+
+        manager.release(1);
+        assertNull(manager.getAllocation(1));
+        assertEquals(0, manager.size());
+        assertEquals(0, manager.getBoundCount());
+        assertFalse(manager.bind(1));
+    }
+
+    @Test
+    public void testUnknownConnectionId()
+    {
+        ConnectionIdManager manager =
+            new ConnectionIdManager(timer, 30000, listener);
+
+        assertFalse(manager.bind(1));
+        assertFalse(manager.isPending(1));
+        assertNull(manager.getAllocation(1));
+        assertNull(manager.takePeerChannel(1));
+        assertNull(manager.getSplice(1));
+        manager.release(1);
+        assertEquals(0, manager.size());
+    }
+
+    @Test
+    public void testPendingConnectionIdExpires() throws Exception
+    {
+        ConnectionIdManager manager =
+            new ConnectionIdManager(timer, BIND_TIMEOUT, listener);
+        SocketChannel peerChannel = SocketChannel.open();
+
+        manager.add(7, allocation, peerChannel);
+        assertTrue(expired.await(5, TimeUnit.SECONDS));
+        assertEquals(7, expiredId.get());
+        assertFalse(peerChannel.isOpen());
+        assertEquals(1, manager.getExpiredCount());
+        assertEquals(0, manager.getPendingCount());
+        assertEquals(0, manager.size());
+        assertFalse(manager.bind(7));
+    }
+
+    @Test
+    public void testBoundConnectionIdDoesNotExpire() throws Exception
+    {
+        ConnectionIdManager manager =
+            new ConnectionIdManager(timer, BIND_TIMEOUT, listener);
+        SocketChannel peerChannel = SocketChannel.open();
+
+        manager.add(7, allocation, peerChannel);
+        assertTrue(manager.bind(7));
+        assertFalse(expired.await(BIND_TIMEOUT * 4, TimeUnit.MILLISECONDS));
+        assertTrue(peerChannel.isOpen());
+        assertEquals(0, manager.getExpiredCount());
+        assertEquals(1, manager.size());
+
+        manager.release(7);
+        assertFalse(peerChannel.isOpen());
+    }
+
+    @Test
+    public void testReleasedConnectionIdDoesNotExpire() throws Exception
+    {
+        ConnectionIdManager manager =
+            new ConnectionIdManager(timer, BIND_TIMEOUT, listener);
+        SocketChannel peerChannel = SocketChannel.open();
+
+        manager.add(7, allocation, peerChannel);
+        manager.release(7);
+        assertFalse(peerChannel.isOpen());
+        assertEquals(0, manager.getPendingCount());
+        assertFalse(expired.await(BIND_TIMEOUT * 4, TimeUnit.MILLISECONDS));
+        assertEquals(0, manager.getExpiredCount());
+    }
+
+    @Test
+    public void testTakenPeerChannelIsNotClosed() throws Exception
+    {
+        ConnectionIdManager manager =
+            new ConnectionIdManager(timer, 30000, listener);
+        SocketChannel peerChannel = SocketChannel.open();
+
+        manager.add(7, allocation, peerChannel);
+        manager.bind(7);
+        assertSame(peerChannel, manager.takePeerChannel(7));
+        assertNull(manager.takePeerChannel(7));
+
+        // the channel belongs to whoever took it
+        manager.release(7);
+        assertTrue(peerChannel.isOpen());
+        peerChannel.close();
+    }
+}
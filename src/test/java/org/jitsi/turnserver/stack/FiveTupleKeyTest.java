@@ -0,0 +1,155 @@
+/*
+ * TurnServer, the OpenSource Java Solution for TURN protocol. Maintained by the
+ * Jitsi community (http://jitsi.org).
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.turnserver.stack;
+
+import static org.junit.Assert.*;
+
+import java.net.*;
+import java.util.*;
+
+import org.ice4j.*;
+import org.junit.*;
+
+/**
+ * Tests that a {@link FiveTupleKey} equals exactly the keys of the same five
+ * tuple, however it has been built, and that the keys of allocations made on
+ * the same server address spread over distinct hashes.
+ */
+public class FiveTupleKeyTest
+{
+    private static final byte[] SERVER_IP = { 10, 0, 0, 1 };
+
+    private static TransportAddress address(byte[] ip, int port,
+        Transport transport) throws Exception
+    {
+        return new TransportAddress(InetAddress.getByAddress(ip), port,
+            transport);
+    }
+
+    @Test
+    public void testEqualTuplesHaveEqualKeys() throws Exception
+    {
+        byte[] clientIp = { 100, 1, 2, 3 };
+        FiveTuple tuple = new FiveTuple(
+            address(clientIp, 5000, Transport.UDP),
+            address(SERVER_IP, 3478, Transport.UDP), Transport.UDP);
+        FiveTuple same = new FiveTuple(
+            address(clientIp, 5000, Transport.UDP),
+            address(SERVER_IP, 3478, Transport.UDP), Transport.UDP);
+        FiveTupleKey fromBytes = FiveTupleKey.of(
+            clientIp, 5000, SERVER_IP, 3478, Transport.UDP);
+
+        assertEquals(tuple.getKey(), same.getKey());
+        assertEquals(tuple.getKey(), fromBytes);
+        assertEquals(tuple.getKey().hashCode(), fromBytes.hashCode());
+        assertEquals(5000, fromBytes.getClientPort());
+        assertEquals(3478, fromBytes.getServerPort());
+        assertEquals(Transport.UDP, fromBytes.getTransport());
+    }
+
+    @Test
+    public void testKeysDifferInEveryField() throws Exception
+    {
+        byte[] clientIp = { 100, 1, 2, 3 };
+        FiveTupleKey key = FiveTupleKey.of(
+            clientIp, 5000, SERVER_IP, 3478, Transport.UDP);
+
+        assertFalse(key.equals(FiveTupleKey.of(
+            new byte[] { 100, 1, 2, 4 }, 5000, SERVER_IP, 3478,
+            Transport.UDP)));
+        assertFalse(key.equals(FiveTupleKey.of(
+            clientIp, 5001, SERVER_IP, 3478, Transport.UDP)));
+        assertFalse(key.equals(FiveTupleKey.of(
+            clientIp, 5000, new byte[] { 10, 0, 0, 2 }, 3478,
+            Transport.UDP)));
+        assertFalse(key.equals(FiveTupleKey.of(
+            clientIp, 5000, SERVER_IP, 3479, Transport.UDP)));
+        assertFalse(key.equals(FiveTupleKey.of(
+            clientIp, 5000, SERVER_IP, 3478, Transport.TCP)));
+        // the ports are not interchangeable
+        assertFalse(key.equals(FiveTupleKey.of(
+            clientIp, 3478, SERVER_IP, 5000, Transport.UDP)));
+    }
+
+    @Test
+    public void testIPv4AndIPv6Keys() throws Exception
+    {
+        byte[] mapped = new byte[16];
+        mapped[10] = (byte) 0xff;
+        mapped[11] = (byte) 0xff;
+        System.arraycopy(SERVER_IP, 0, mapped, 12, 4);
+        byte[] ipv6 = InetAddress.getByName("2001:db8::1").getAddress();
+
+        // IPv4 addresses are keyed by their IPv4-mapped IPv6 form
+        assertEquals(
+            FiveTupleKey.of(SERVER_IP, 1, SERVER_IP, 2, Transport.UDP),
+            FiveTupleKey.of(mapped, 1, mapped, 2, Transport.UDP));
+
+        FiveTuple tuple = new FiveTuple(
+            address(ipv6, 5000, Transport.UDP),
+            address(SERVER_IP, 3478, Transport.UDP), Transport.UDP);
+        assertEquals(tuple.getKey(), FiveTupleKey.of(
+            ipv6, 5000, SERVER_IP, 3478, Transport.UDP));
+        assertFalse(tuple.getKey().equals(FiveTupleKey.of(
+            SERVER_IP, 5000, SERVER_IP, 3478, Transport.UDP)));
+    }
+
+    @Test
+    public void testLookupsOnOneServerAddress() throws Exception
+    {
+        int allocations = 100000;
+        TransportAddress server = address(SERVER_IP, 3478, Transport.UDP);
+        Random random = new Random(42);
+        Map<FiveTupleKey, FiveTuple> table =
+            new HashMap<FiveTupleKey, FiveTuple>();
+        Set<Integer> hashes = new HashSet<Integer>();
+        List<byte[]> ips = new ArrayList<byte[]>();
+        List<Integer> ports = new ArrayList<Integer>();
+
+        while (table.size() < allocations)
+        {
+            byte[] ip = new byte[4];
+            random.nextBytes(ip);
+            int port = 1024 + random.nextInt(64511);
+            FiveTuple tuple = new FiveTuple(
+                address(ip, port, Transport.UDP), server, Transport.UDP);
+            if (table.put(tuple.getKey(), tuple) == null)
+            {
+                hashes.add(tuple.getKey().hashCode());
+                ips.add(ip);
+                ports.add(port);
+            }
+        }
+        // 32-bit hashes of 100000 keys collide only a few times
+        assertTrue("distinct hashes: " + hashes.size(),
+            hashes.size() > allocations - 10);
+
+        for (int i = 0; i < allocations; i++)
+        {
+            // probes are distinct but equal instances as on the wire
+            FiveTuple probe = new FiveTuple(
+                address(ips.get(i), ports.get(i), Transport.UDP), server,
+                Transport.UDP);
+            FiveTuple found = table.get(probe.getKey());
+            assertNotNull(found);
+            assertSame(found, table.get(FiveTupleKey.of(ips.get(i),
+                ports.get(i), SERVER_IP, 3478, Transport.UDP)));
+        }
+    }
+}
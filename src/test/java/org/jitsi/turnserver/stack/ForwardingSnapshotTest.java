@@ -0,0 +1,163 @@
+/*
+ * TurnServer, the OpenSource Java Solution for TURN protocol. Maintained by the
+ * Jitsi community (http://jitsi.org).
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.turnserver.stack;
+
+import static org.junit.Assert.*;
+
+import java.net.*;
+import java.util.concurrent.atomic.*;
+
+import org.ice4j.*;
+import org.junit.*;
+
+/**
+ * Tests that an {@link Allocation} publishes a new {@link ForwardingSnapshot}
+ * on every change of its Permissions and ChannelBinds, that a published
+ * snapshot never changes and that it honours the expiration times.
+ */
+public class ForwardingSnapshotTest
+{
+    private static final char CHANNEL = 0x4000;
+
+    private TransportAddress clientAddress;
+
+    private TransportAddress peer;
+
+    private Allocation allocation;
+
+    @Before
+    public void setUp()
+    {
+        clientAddress = new TransportAddress("100.0.0.1", 5000, Transport.UDP);
+        peer = new TransportAddress("192.0.2.1", 40000, Transport.UDP);
+        allocation = new Allocation(
+            new TransportAddress("10.1.0.1", 50000, Transport.UDP),
+            new FiveTuple(clientAddress,
+                new TransportAddress("10.0.0.1", 3478, Transport.UDP),
+                Transport.UDP));
+    }
+
+    @Test
+    public void testChangesPublishNewSnapshots()
+    {
+        long now = System.currentTimeMillis();
+        ForwardingSnapshot empty = allocation.getForwarding();
+        assertEquals(clientAddress, empty.getClientAddress());
+        assertNull(empty.getClientSocket());
+        assertNull(empty.getXorPeerAddress(peer.getAddress(), now));
+
+        allocation.addNewPermission(new Permission(peer));
+        ForwardingSnapshot permitted = allocation.getForwarding();
+        assertNotSame(empty, permitted);
+        assertNotNull(permitted.getXorPeerAddress(peer.getAddress(), now));
+        assertEquals(ForwardingSnapshot.NO_CHANNEL_HEADER,
+            permitted.getChannelHeader(peer, now));
+        assertNull(empty.getXorPeerAddress(peer.getAddress(), now));
+
+        allocation.addChannelBind(new ChannelBind(peer, CHANNEL));
+        ForwardingSnapshot bound = allocation.getForwarding();
+        assertEquals(peer, bound.getChannelPeer(CHANNEL, now));
+        assertEquals(CHANNEL << 16, bound.getChannelHeader(peer, now));
+        assertNull(permitted.getChannelPeer(CHANNEL, now));
+
+        allocation.removeChannelBind(CHANNEL);
+        ForwardingSnapshot unbound = allocation.getForwarding();
+        assertNull(unbound.getChannelPeer(CHANNEL, now));
+        assertEquals(ForwardingSnapshot.NO_CHANNEL_HEADER,
+            unbound.getChannelHeader(peer, now));
+        assertNotNull(unbound.getXorPeerAddress(peer.getAddress(), now));
+        assertEquals(peer, bound.getChannelPeer(CHANNEL, now));
+    }
+
+    @Test
+    public void testSnapshotHonoursExpirationTimes()
+    {
+        allocation.addChannelBind(new ChannelBind(peer, CHANNEL, 60));
+        ForwardingSnapshot snapshot = allocation.getForwarding();
+        long now = System.currentTimeMillis();
+        // a Permission lasts 300 s, longer than the ChannelBind
+        long later = now + 120 * 1000;
+
+        assertEquals(peer, snapshot.getChannelPeer(CHANNEL, now));
+        assertNull(snapshot.getChannelPeer(CHANNEL, later));
+        assertEquals(ForwardingSnapshot.NO_CHANNEL_HEADER,
+            snapshot.getChannelHeader(peer, later));
+        assertNotNull(snapshot.getXorPeerAddress(peer.getAddress(), later));
+        assertNull(snapshot.getXorPeerAddress(
+            peer.getAddress(), now + 3600 * 1000));
+    }
+
+    @Test
+    public void testPermittedPeerFromPackedAddress()
+    {
+        allocation.addNewPermission(new Permission(peer));
+        ForwardingSnapshot snapshot = allocation.getForwarding();
+        long now = System.currentTimeMillis();
+        InetAddress address = peer.getAddress();
+
+        InetSocketAddress permitted = snapshot.getPermittedPeer(
+            PackedAddress.high(address), PackedAddress.low(address), 40001,
+            now);
+        assertEquals(new InetSocketAddress(address, 40001), permitted);
+        assertNull(snapshot.getPermittedPeer(
+            0, PackedAddress.packIPv4(0xc0000202), 40001, now));
+    }
+
+    @Test
+    public void testReadersSeeChannelsWithTheirPermission() throws Exception
+    {
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicInteger failures = new AtomicInteger();
+        final InetAddress peerIp = peer.getAddress();
+
+        Thread reader = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                while (!done.get())
+                {
+                    ForwardingSnapshot snapshot = allocation.getForwarding();
+                    long now = System.currentTimeMillis();
+                    // a ChannelBind installs the Permission of its peer
+                    if (snapshot.getChannelPeer(CHANNEL, now) != null
+                        && snapshot.getXorPeerAddress(peerIp, now) == null)
+                    {
+                        failures.incrementAndGet();
+                    }
+                }
+            }
+        };
+        reader.start();
+        try
+        {
+            for (int i = 0; i < 5000; i++)
+            {
+                allocation.addChannelBind(new ChannelBind(peer, CHANNEL));
+                allocation.removeChannelBind(CHANNEL);
+            }
+        }
+        finally
+        {
+            done.set(true);
+            reader.join();
+        }
+        assertEquals(0, failures.get());
+    }
+}
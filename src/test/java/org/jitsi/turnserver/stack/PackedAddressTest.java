@@ -0,0 +1,78 @@
+/*
+ * TurnServer, the OpenSource Java Solution for TURN protocol. Maintained by the
+ * Jitsi community (http://jitsi.org).
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.turnserver.stack;
+
+import static org.junit.Assert.*;
+
+import java.net.*;
+
+import org.junit.*;
+
+/**
+ * Tests that {@link PackedAddress} packs address objects as their bytes,
+ * whether or not their packed form is cached.
+ */
+public class PackedAddressTest
+{
+    @Test
+    public void testIPv4() throws Exception
+    {
+        InetAddress address = InetAddress.getByName("192.0.2.1");
+
+        assertEquals(0, PackedAddress.high(address));
+        assertEquals(0xffffc0000201L, PackedAddress.low(address));
+        // cached
+        assertEquals(0xffffc0000201L, PackedAddress.low(address));
+        assertEquals(PackedAddress.low(address.getAddress()),
+            PackedAddress.low(InetAddress.getByName("192.0.2.1")));
+    }
+
+    @Test
+    public void testIPv6() throws Exception
+    {
+        InetAddress address = InetAddress.getByName("2001:db8::1:2");
+
+        assertEquals(0x20010db800000000L, PackedAddress.high(address));
+        assertEquals(0x0000000000010002L, PackedAddress.low(address));
+        assertEquals(0x20010db800000000L, PackedAddress.high(address));
+        assertEquals(0x0000000000010002L, PackedAddress.low(address));
+    }
+
+    @Test
+    public void testNull()
+    {
+        assertEquals(0, PackedAddress.high((InetAddress) null));
+        assertEquals(0, PackedAddress.low((InetAddress) null));
+        assertEquals(0, PackedAddress.high((byte[]) null));
+        assertEquals(0, PackedAddress.low((byte[]) null));
+    }
+
+    @Test
+    public void testManyAddresses() throws Exception
+    {
+        // more addresses than cache slots, so that slots are replaced
+        for (int i = 0; i < 10000; i++)
+        {
+            byte[] bytes = { 10, (byte) (i >> 16), (byte) (i >> 8), (byte) i };
+            InetAddress address = InetAddress.getByAddress(bytes);
+            assertEquals(PackedAddress.low(bytes), PackedAddress.low(address));
+            assertEquals(0, PackedAddress.high(address));
+        }
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * TurnServer, the OpenSource Java Solution for TURN protocol. Maintained by the
+ * Jitsi community (http://jitsi.org).
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jitsi.turnserver.stack;
+
+import static org.junit.Assert.*;
+
+import java.net.*;
+import java.util.concurrent.atomic.*;
+
+import org.ice4j.*;
+import org.junit.*;
+
+/**
+ * Tests the lookups and the expiration times of the {@link PermissionSet}
+ * and that readers see a consistent set while it is changed.
+ */
+public class PermissionSetTest
+{
+    private static TransportAddress peer(String address)
+    {
+        return new TransportAddress(address, 40000, Transport.UDP);
+    }
+
+    private static InetAddress address(String address) throws Exception
+    {
+        return InetAddress.getByName(address);
+    }
+
+    @Test
+    public void testPutAndGet() throws Exception
+    {
+        PermissionSet set = new PermissionSet();
+        Permission v4 = new Permission(peer("192.0.2.1"));
+        Permission v6 = new Permission(peer("2001:db8::1"));
+
+        assertNull(set.put(v4));
+        assertNull(set.put(v6));
+        assertEquals(2, set.size());
+        // the port of the peer does not matter
+        assertSame(v4, set.get(address("192.0.2.1")));
+        assertSame(v6, set.getPermitted(address("2001:db8::1")));
+        assertTrue(set.isPermitted(address("192.0.2.1")));
+        assertFalse(set.isPermitted(address("192.0.2.2")));
+        assertFalse(set.isPermitted(address("2001:db8::2")));
+        assertEquals(2, set.values().size());
+    }
+
+    @Test
+    public void testPutReplacesSameAddress() throws Exception
+    {
+        PermissionSet set = new PermissionSet();
+        Permission first = new Permission(peer("192.0.2.1"));
+        Permission second = new Permission(peer("192.0.2.1"));
+
+        set.put(first);
+        assertSame(first, set.put(second));
+        assertEquals(1, set.size());
+        assertSame(second, set.get(address("192.0.2.1")));
+    }
+
+    @Test
+    public void testExpirationTimeIsPublishedByPut() throws Exception
+    {
+        PermissionSet set = new PermissionSet();
+        Permission permission = new Permission(peer("192.0.2.1"), 0);
+        set.put(permission);
+        Thread.sleep(5);
+
+        assertFalse(set.isPermitted(address("192.0.2.1")));
+        assertNull(set.getPermitted(address("192.0.2.1")));
+        assertSame(permission, set.get(address("192.0.2.1")));
+
+        // the set holds the expiration time it was given last
+        permission.refresh();
+        assertFalse(set.isPermitted(address("192.0.2.1")));
+        assertSame(permission, set.put(permission));
+        assertTrue(set.isPermitted(address("192.0.2.1")));
+    }
+
+    @Test
+    public void testRemove() throws Exception
+    {
+        PermissionSet set = new PermissionSet();
+        Permission permission = new Permission(peer("192.0.2.1"));
+        set.put(permission);
+
+        assertFalse(set.remove(new Permission(peer("192.0.2.1"))));
+        assertTrue(set.remove(permission));
+        assertFalse(set.remove(permission));
+        assertEquals(0, set.size());
+        assertNull(set.get(address("192.0.2.1")));
+        assertTrue(set.values().isEmpty());
+    }
+
+    @Test
+    public void testReadersSeeConsistentSet() throws Exception
+    {
+        final PermissionSet set = new PermissionSet();
+        final InetAddress stable = address("192.0.2.1");
+        set.put(new Permission(peer("192.0.2.1")));
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicInteger failures = new AtomicInteger();
+
+        Thread reader = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                while (!done.get())
+                {
+                    if (!set.isPermitted(stable))
+                        failures.incrementAndGet();
+                }
+            }
+        };
+        reader.start();
+        try
+        {
+            Permission[] others = new Permission[200];
+            for (int i = 0; i < others.length; i++)
+                others[i] = new Permission(peer("198.51.100." + i));
+            for (int round = 0; round < 20; round++)
+            {
+                for (Permission permission : others)
+                    set.put(permission);
+                for (Permission permission : others)
+                    set.remove(permission);
+            }
+        }
+        finally
+        {
+            done.set(true);
+            reader.join();
+        }
+        assertEquals(0, failures.get());
+        assertEquals(1, set.size());
+    }
+
+    @Test
+    public void testLookupsOfActivePeersDoNotAllocate() throws Exception
+    {
+        Assume.assumeTrue(RelayFixture.allocatedBytes() >= 0);
+        PermissionSet set = new PermissionSet();
+        set.put(new Permission(peer("192.0.2.1")));
+        set.put(new Permission(peer("2001:db8::1")));
+        // as handed out for the datagrams of two peers
+        InetAddress[] peers = {
+            address("192.0.2.1"), address("2001:db8::1") };
+
+        for (int round = 0; round < 2; round++)
+        {
+            // the first round warms the lookups up
+            long allocated = RelayFixture.allocatedBytes();
+            for (int i = 0; i < 20000; i++)
+            {
+                for (InetAddress peer : peers)
+                    assertNotNull(set.getPermitted(peer));
+            }
+            allocated = RelayFixture.allocatedBytes() - allocated;
+            if (round == 1)
+                assertTrue("allocated " + allocated, allocated < 20000);
+        }
+    }
+}
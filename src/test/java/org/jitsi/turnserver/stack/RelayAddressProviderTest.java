@@ -0,0 +1,209 @@
+/*
+ * TurnServer, the OpenSource Java Solution for TURN protocol. Maintained by the
+ * Jitsi community (http://jitsi.org).
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.turnserver.stack;
+
+import static org.junit.Assert.*;
+
+import java.net.*;
+import java.nio.channels.*;
+import java.util.*;
+
+import org.ice4j.*;
+import org.junit.*;
+
+/**
+ * Tests how a {@link RelayAddressProvider} spreads the relay addresses over
+ * its relay IP addresses, falls back to the other family, hands out pooled
+ * sockets and gets its ports back.
+ */
+public class RelayAddressProviderTest
+{
+    private static final int MIN_PORT = 47200;
+
+    private static InetAddress address(String address) throws Exception
+    {
+        return InetAddress.getByName(address);
+    }
+
+    private static RelayAddressProvider provider(
+        RelayAddressProvider.Selection selection, int ports,
+        String... addresses) throws Exception
+    {
+        List<InetAddress> relayIps = new ArrayList<InetAddress>();
+        for (String address : addresses)
+            relayIps.add(address(address));
+        return new RelayAddressProvider(relayIps, selection, MIN_PORT,
+            MIN_PORT + ports - 1, 0, 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNeedsAnAddress()
+    {
+        new RelayAddressProvider(new ArrayList<InetAddress>(),
+            RelayAddressProvider.Selection.LEAST_LOADED, MIN_PORT,
+            MIN_PORT + 9, 0, 0);
+    }
+
+    @Test
+    public void testParseSelection()
+    {
+        assertEquals(RelayAddressProvider.Selection.ROUND_ROBIN,
+            RelayAddressProvider.Selection.parse(" round_robin ",
+                RelayAddressProvider.Selection.LEAST_LOADED));
+        assertEquals(RelayAddressProvider.Selection.LEAST_LOADED,
+            RelayAddressProvider.Selection.parse("fastest",
+                RelayAddressProvider.Selection.LEAST_LOADED));
+        assertEquals(RelayAddressProvider.Selection.LEAST_LOADED,
+            RelayAddressProvider.Selection.parse(null,
+                RelayAddressProvider.Selection.LEAST_LOADED));
+    }
+
+    @Test
+    public void testRoundRobin() throws Exception
+    {
+        RelayAddressProvider provider = provider(
+            RelayAddressProvider.Selection.ROUND_ROBIN, 100,
+            "10.1.0.1", "10.1.0.2", "10.1.0.2");
+        assertEquals(2, provider.getAddresses().size());
+
+        InetAddress first = provider.allocate(false, false, false,
+            Transport.TCP).getAddress();
+        for (int i = 0; i < 10; i++)
+        {
+            InetAddress next = provider.allocate(false, false, false,
+                Transport.TCP).getAddress();
+            assertFalse(next.equals(first));
+            first = next;
+        }
+    }
+
+    @Test
+    public void testLeastLoaded() throws Exception
+    {
+        RelayAddressProvider provider = provider(
+            RelayAddressProvider.Selection.LEAST_LOADED, 100,
+            "10.1.0.1", "10.1.0.2");
+        // load the first address
+        RelayPortAllocator loaded =
+            provider.getPortAllocator(address("10.1.0.1"));
+        for (int i = 0; i < 10; i++)
+            loaded.allocate(false, false);
+
+        for (int i = 0; i < 10; i++)
+        {
+            assertEquals(address("10.1.0.2"), provider.allocate(
+                false, false, false, Transport.UDP).getAddress());
+        }
+        // both are now as loaded, so they are used in turn
+        Map<InetAddress, Integer> counts = new HashMap<InetAddress, Integer>();
+        for (int i = 0; i < 20; i++)
+        {
+            InetAddress relayIp = provider.allocate(
+                false, false, false, Transport.UDP).getAddress();
+            Integer count = counts.get(relayIp);
+            counts.put(relayIp, (count == null) ? 1 : count + 1);
+        }
+        assertEquals(Integer.valueOf(10), counts.get(address("10.1.0.1")));
+        assertEquals(Integer.valueOf(10), counts.get(address("10.1.0.2")));
+    }
+
+    @Test
+    public void testFamiliesAndFallback() throws Exception
+    {
+        RelayAddressProvider both = provider(
+            RelayAddressProvider.Selection.LEAST_LOADED, 100,
+            "10.1.0.1", "2001:db8::1");
+        assertTrue(both.allocate(true, false, false, Transport.UDP)
+            .getAddress() instanceof Inet6Address);
+        assertTrue(both.allocate(false, false, false, Transport.UDP)
+            .getAddress() instanceof Inet4Address);
+
+        RelayAddressProvider ipv4Only = provider(
+            RelayAddressProvider.Selection.LEAST_LOADED, 100, "10.1.0.1");
+        assertEquals(address("10.1.0.1"),
+            ipv4Only.allocate(true, false, false, Transport.UDP)
+                .getAddress());
+    }
+
+    @Test
+    public void testEveryAddressAddsItsPorts() throws Exception
+    {
+        RelayAddressProvider provider = provider(
+            RelayAddressProvider.Selection.LEAST_LOADED, 4,
+            "10.1.0.1", "10.1.0.2");
+        Set<TransportAddress> relayAddresses = new HashSet<TransportAddress>();
+        TransportAddress relayAddress;
+        while ((relayAddress = provider.allocate(
+            false, false, false, Transport.UDP)) != null)
+        {
+            assertTrue(relayAddresses.add(relayAddress));
+        }
+        assertEquals(8, relayAddresses.size());
+
+        // a released port is handed out again
+        TransportAddress released = relayAddresses.iterator().next();
+        provider.release(released);
+        assertEquals(released,
+            provider.allocate(false, false, false, Transport.UDP));
+    }
+
+    @Test
+    public void testPooledSockets() throws Exception
+    {
+        InetAddress loopback = address("127.0.0.1");
+        RelayAddressProvider provider = new RelayAddressProvider(
+            Collections.singletonList(loopback),
+            RelayAddressProvider.Selection.LEAST_LOADED, MIN_PORT,
+            MIN_PORT + 99, 0, 2);
+        provider.start();
+        try
+        {
+            RelaySocketPool pool = provider.getSocketPools().iterator().next();
+            long deadline = System.currentTimeMillis() + 5000;
+            while (pool.getSize() < 2
+                && System.currentTimeMillis() < deadline)
+            {
+                Thread.sleep(10);
+            }
+            assertEquals(2, pool.getSize());
+
+            TransportAddress taken =
+                provider.allocate(false, false, false, Transport.UDP);
+            DatagramChannel channel = provider.takeChannel(taken);
+            assertNotNull(channel);
+            assertEquals(taken.getPort(), channel.socket().getLocalPort());
+            assertNull(provider.takeChannel(taken));
+            channel.close();
+
+            // the socket of an address released before it is taken is closed
+            TransportAddress unused =
+                provider.allocate(false, false, false, Transport.UDP);
+            provider.release(unused);
+            assertNull(provider.takeChannel(unused));
+
+            // TCP relay addresses never come from the pool
+            assertNull(provider.takeChannel(
+                provider.allocate(false, false, false, Transport.TCP)));
+        }
+        finally
+        {
+            provider.stop();
+        }
+    }
+}
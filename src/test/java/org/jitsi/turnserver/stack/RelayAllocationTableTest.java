@@ -0,0 +1,120 @@
+/*
+ * TurnServer, the OpenSource Java Solution for TURN protocol. Maintained by the
+ * Jitsi community (http://jitsi.org).
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.turnserver.stack;
+
+import static org.junit.Assert.*;
+
+import java.net.*;
+
+import org.ice4j.*;
+import org.junit.*;
+
+/**
+ * Tests that the {@link RelayAllocationTable} keeps the Allocations of every
+ * relay IP address and transport apart and finds them without allocating.
+ */
+public class RelayAllocationTableTest
+{
+    private static final TransportAddress SERVER =
+        new TransportAddress("10.0.0.1", 3478, Transport.UDP);
+
+    private static Allocation allocation(TransportAddress relayAddress)
+    {
+        return new Allocation(relayAddress,
+            new FiveTuple(new TransportAddress("100.0.0.1",
+                relayAddress.getPort(), Transport.UDP), SERVER,
+                Transport.UDP));
+    }
+
+    @Test
+    public void testTransportsAreDistinct()
+    {
+        RelayAllocationTable table = new RelayAllocationTable();
+        TransportAddress udp =
+            new TransportAddress("10.1.0.1", 50000, Transport.UDP);
+        TransportAddress tcp =
+            new TransportAddress("10.1.0.1", 50000, Transport.TCP);
+        Allocation udpAllocation = allocation(udp);
+        Allocation tcpAllocation = allocation(tcp);
+
+        assertTrue(table.putIfAbsent(udp, udpAllocation));
+        assertNull(table.get(tcp));
+        assertTrue(table.putIfAbsent(tcp, tcpAllocation));
+        assertEquals(2, table.size());
+        assertSame(udpAllocation, table.get(udp));
+        assertSame(tcpAllocation, table.get(tcp));
+
+        assertFalse(table.remove(tcp, udpAllocation));
+        assertTrue(table.remove(tcp, tcpAllocation));
+        assertNull(table.get(tcp));
+        assertSame(udpAllocation, table.get(udp));
+        assertEquals(1, table.size());
+    }
+
+    @Test
+    public void testManyRelayIps() throws Exception
+    {
+        RelayAllocationTable table = new RelayAllocationTable();
+        TransportAddress[] relayAddresses = new TransportAddress[64];
+        for (int i = 0; i < relayAddresses.length; i++)
+        {
+            String ip = (i % 2 == 0) ? "10.1.0." + i : "2001:db8::" + i;
+            relayAddresses[i] =
+                new TransportAddress(ip, 40000 + i, Transport.UDP);
+            assertNull(table.put(relayAddresses[i],
+                allocation(relayAddresses[i])));
+        }
+        for (TransportAddress relayAddress : relayAddresses)
+        {
+            assertSame(relayAddress, table.get(relayAddress)
+                .getRelayAddress());
+            assertNull(table.get(relayAddress.getAddress(),
+                relayAddress.getPort() + 1, Transport.UDP));
+        }
+        assertNull(table.get(
+            new TransportAddress("10.2.0.1", 40000, Transport.UDP)));
+        assertEquals(relayAddresses.length, table.size());
+    }
+
+    @Test
+    public void testLookupsDoNotAllocate() throws Exception
+    {
+        Assume.assumeTrue(RelayFixture.allocatedBytes() >= 0);
+        RelayAllocationTable table = new RelayAllocationTable();
+        TransportAddress[] relayAddresses = {
+            new TransportAddress("10.1.0.1", 40000, Transport.UDP),
+            new TransportAddress("2001:db8::1", 40000, Transport.UDP) };
+        for (TransportAddress relayAddress : relayAddresses)
+            table.put(relayAddress, allocation(relayAddress));
+
+        for (int round = 0; round < 2; round++)
+        {
+            // the first round warms the lookups up
+            long allocated = RelayFixture.allocatedBytes();
+            for (int i = 0; i < 20000; i++)
+            {
+                for (TransportAddress relayAddress : relayAddresses)
+                    assertNotNull(table.get(relayAddress));
+            }
+            allocated = RelayFixture.allocatedBytes() - allocated;
+            if (round == 1)
+                assertTrue("allocated " + allocated, allocated < 20000);
+        }
+    }
+}
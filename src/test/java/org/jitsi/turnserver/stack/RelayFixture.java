@@ -0,0 +1,132 @@
+/*
+ * TurnServer, the OpenSource Java Solution for TURN protocol. Maintained by the
+ * Jitsi community (http://jitsi.org).
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jitsi.turnserver.stack;
+
+import java.io.*;
+import java.lang.management.*;
+import java.net.*;
+import java.nio.channels.*;
+
+import org.ice4j.*;
+
+import org.jitsi.turnserver.socket.*;
+
+/**
+ * A UDP Allocation served by the relay engine of a {@link TurnStack}, with a
+ * client and two peers on loopback sockets: {@link #channelPeer} is bound to
+ * channel {@link #CHANNEL} and {@link #indicationPeer} only has a Permission.
+ * Shared by the forwarding tests and benchmarks.
+ */
+class RelayFixture
+{
+    /**
+     * The channel number bound to {@link #channelPeer}.
+     */
+    static final char CHANNEL = 0x4000;
+
+    final TurnStack turnStack;
+
+    final DatagramChannel client;
+
+    final DatagramChannel channelPeer;
+
+    final DatagramChannel indicationPeer;
+
+    final DatagramChannel relay;
+
+    final IceUdpChannelSocketWrapper clientSock;
+
+    final TransportAddress clientAddress;
+
+    final TransportAddress channelPeerAddress;
+
+    final TransportAddress indicationPeerAddress;
+
+    final Allocation allocation;
+
+    RelayFixture()
+        throws IOException
+    {
+        InetAddress loopback = InetAddress.getByName("127.0.0.1");
+
+        turnStack = new TurnStack();
+        client = open(loopback);
+        channelPeer = open(loopback);
+        indicationPeer = open(loopback);
+        relay = open(loopback);
+        clientSock = turnStack.openClientUdpSocket(
+            new TransportAddress(loopback, 0, Transport.UDP));
+
+        clientAddress = new TransportAddress(
+            loopback, client.socket().getLocalPort(), Transport.UDP);
+        channelPeerAddress = new TransportAddress(
+            loopback, channelPeer.socket().getLocalPort(), Transport.UDP);
+        indicationPeerAddress = new TransportAddress(
+            loopback, indicationPeer.socket().getLocalPort(), Transport.UDP);
+        TransportAddress serverAddress = new TransportAddress(
+            loopback, clientSock.getChannel().socket().getLocalPort(),
+            Transport.UDP);
+        TransportAddress relayAddress = new TransportAddress(
+            loopback, relay.socket().getLocalPort(), Transport.UDP);
+
+        allocation = new Allocation(relayAddress,
+            new FiveTuple(clientAddress, serverAddress, Transport.UDP));
+        allocation.setRelayChannel(relay);
+        turnStack.getRelayEngine().register(relay, allocation);
+        allocation.addChannelBind(new ChannelBind(channelPeerAddress, CHANNEL));
+        allocation.addNewPermission(new Permission(indicationPeerAddress));
+        allocation.setClientSocket(clientSock);
+        clientSock.addClient(clientAddress, allocation);
+    }
+
+    /**
+     * Shuts the stack down and closes the sockets of the client and the
+     * peers.
+     */
+    void close()
+        throws IOException
+    {
+        turnStack.shutDown();
+        client.close();
+        channelPeer.close();
+        indicationPeer.close();
+    }
+
+    /**
+     * Returns the number of bytes allocated so far by the current thread or
+     * -1 if the JVM does not measure it.
+     */
+    static long allocatedBytes()
+    {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean)
+        {
+            return ((com.sun.management.ThreadMXBean) threads)
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    private static DatagramChannel open(InetAddress address)
+        throws IOException
+    {
+        return DatagramChannel.open().bind(new InetSocketAddress(address, 0));
+    }
+}
@@ -0,0 +1,267 @@
+/*
+ * TurnServer, the OpenSource Java Solution for TURN protocol. Maintained by the
+ * Jitsi community (http://jitsi.org).
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jitsi.turnserver.stack;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+import org.jitsi.turnserver.socket.*;
+import org.junit.*;
+
+/**
+ * Tests the forwarding of ChannelData and Send indications from the client
+ * to the peers and of peer datagrams to the client, on the wire and in the
+ * heap allocated per packet.
+ */
+public class RelayForwardingTest
+{
+    private static final int PAYLOAD_SIZE = 1200;
+
+    private static final int MAGIC_COOKIE = 0x2112A442;
+
+    private RelayFixture fixture;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        fixture = new RelayFixture();
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        fixture.close();
+    }
+
+    @Test
+    public void testChannelDataToPeer() throws Exception
+    {
+        ServerChannelDataEventHandler handler =
+            new ServerChannelDataEventHandler(fixture.turnStack);
+        handler.handleDatagram(fixture.clientSock, fixture.clientAddress,
+            channelData(payload(1)));
+
+        assertArrayEquals(payload(1), receive(fixture.channelPeer));
+        assertEquals(1, fixture.allocation.getPacketsToPeer());
+        assertEquals(PAYLOAD_SIZE, fixture.allocation.getBytesToPeer());
+    }
+
+    @Test
+    public void testSendIndicationToPeer() throws Exception
+    {
+        ServerChannelDataEventHandler handler =
+            new ServerChannelDataEventHandler(fixture.turnStack);
+        // an unknown comprehension-required attribute, must be dropped
+        handler.handleDatagram(fixture.clientSock, fixture.clientAddress,
+            sendIndication(fixture.indicationPeerAddress, payload(1),
+                (char) 0x7FF0));
+        handler.handleDatagram(fixture.clientSock, fixture.clientAddress,
+            sendIndication(fixture.indicationPeerAddress, payload(2),
+                (char) 0x8028));
+
+        assertArrayEquals(payload(2), receive(fixture.indicationPeer));
+    }
+
+    @Test
+    public void testChannelDataToClient() throws Exception
+    {
+        ServerPeerUdpEventHandler handler =
+            new ServerPeerUdpEventHandler(fixture.turnStack);
+        handler.handleDatagram(fixture.allocation,
+            fixture.channelPeerAddress, peerDatagram(payload(3)));
+
+        ByteBuffer message = ByteBuffer.wrap(receive(fixture.client));
+        assertEquals(RelayFixture.CHANNEL, message.getChar());
+        assertEquals(PAYLOAD_SIZE, message.getChar());
+        assertArrayEquals(payload(3), remaining(message, PAYLOAD_SIZE));
+        assertEquals(1, fixture.allocation.getPacketsToClient());
+        assertEquals(PAYLOAD_SIZE, fixture.allocation.getBytesToClient());
+    }
+
+    @Test
+    public void testDataIndicationToClient() throws Exception
+    {
+        ServerPeerUdpEventHandler handler =
+            new ServerPeerUdpEventHandler(fixture.turnStack);
+        handler.handleDatagram(fixture.allocation,
+            fixture.indicationPeerAddress, peerDatagram(payload(4)));
+
+        ByteBuffer message = ByteBuffer.wrap(receive(fixture.client));
+        assertEquals(0x0017, message.getChar());
+        assertEquals(message.limit() - 20, message.getChar());
+        assertEquals(MAGIC_COOKIE, message.getInt());
+        message.position(20);
+
+        InetSocketAddress peer = null;
+        byte[] data = null;
+        while (message.remaining() >= 4)
+        {
+            char type = message.getChar();
+            int length = message.getChar();
+            int next = message.position() + ((length + 3) & ~3);
+            if (type == 0x0012)
+            {
+                assertEquals(8, length);
+                message.get();
+                assertEquals(0x01, message.get());
+                int port = message.getChar() ^ (MAGIC_COOKIE >>> 16);
+                byte[] address = ByteBuffer.allocate(4)
+                    .putInt(message.getInt() ^ MAGIC_COOKIE).array();
+                peer = new InetSocketAddress(
+                    InetAddress.getByAddress(address), port);
+            }
+            else if (type == 0x0013)
+            {
+                data = remaining(message, length);
+            }
+            message.position(Math.min(next, message.limit()));
+        }
+        assertEquals(fixture.indicationPeerAddress, peer);
+        assertArrayEquals(payload(4), data);
+    }
+
+    @Test
+    public void testForwardingCopiesNoPayload() throws Exception
+    {
+        Assume.assumeTrue(RelayFixture.allocatedBytes() >= 0);
+        int packets = 20000;
+        ServerChannelDataEventHandler clientHandler =
+            new ServerChannelDataEventHandler(fixture.turnStack);
+        ServerPeerUdpEventHandler peerHandler =
+            new ServerPeerUdpEventHandler(fixture.turnStack);
+        ByteBuffer frame = channelData(payload(5));
+        ByteBuffer datagram = peerDatagram(payload(5));
+        InetSocketAddress[] peers = new InetSocketAddress[] {
+            fixture.channelPeerAddress, fixture.indicationPeerAddress };
+
+        for (int round = 0; round < 2; round++)
+        {
+            // the first round warms the paths up
+            long allocated = RelayFixture.allocatedBytes();
+            for (int i = 0; i < packets; i++)
+            {
+                frame.limit(frame.capacity()).position(0);
+                clientHandler.handleDatagram(
+                    fixture.clientSock, fixture.clientAddress, frame);
+                for (InetSocketAddress peer : peers)
+                {
+                    datagram.limit(UdpRelayEngine.HEADROOM + PAYLOAD_SIZE);
+                    datagram.position(UdpRelayEngine.HEADROOM);
+                    peerHandler.handleDatagram(
+                        fixture.allocation, peer, datagram);
+                }
+            }
+            allocated = RelayFixture.allocatedBytes() - allocated;
+            if (round > 0)
+            {
+                assertTrue("allocated " + allocated + " bytes for "
+                    + packets + " packets", allocated / packets < PAYLOAD_SIZE);
+            }
+        }
+    }
+
+    private static byte[] payload(int seed)
+    {
+        byte[] payload = new byte[PAYLOAD_SIZE];
+        for (int i = 0; i < payload.length; i++)
+            payload[i] = (byte) (seed + i);
+        return payload;
+    }
+
+    private static ByteBuffer channelData(byte[] payload)
+    {
+        ByteBuffer frame = ByteBuffer.allocateDirect(4 + payload.length);
+        frame.putChar(RelayFixture.CHANNEL).putChar((char) payload.length)
+            .put(payload);
+        frame.flip();
+        return frame;
+    }
+
+    /**
+     * Builds a Send indication to an IPv4 peer with an additional attribute
+     * of a given type and four bytes of value.
+     */
+    private static ByteBuffer sendIndication(InetSocketAddress peer,
+        byte[] payload, char extraType)
+    {
+        ByteBuffer message = ByteBuffer.allocate(48 + payload.length + 3);
+        message.putChar((char) 0x0016).putChar((char) 0).putInt(MAGIC_COOKIE);
+        for (int i = 0; i < 12; i++)
+            message.put((byte) i);
+        message.putChar((char) 0x0012).putChar((char) 8).put((byte) 0)
+            .put((byte) 0x01)
+            .putChar((char) (peer.getPort() ^ (MAGIC_COOKIE >>> 16)))
+            .putInt(ByteBuffer.wrap(peer.getAddress().getAddress()).getInt()
+                ^ MAGIC_COOKIE);
+        message.putChar(extraType).putChar((char) 4).putInt(0);
+        message.putChar((char) 0x0013).putChar((char) payload.length)
+            .put(payload);
+        while ((message.position() & 3) != 0)
+            message.put((byte) 0);
+        message.putChar(2, (char) (message.position() - 20));
+        message.flip();
+        return message;
+    }
+
+    private static ByteBuffer peerDatagram(byte[] payload)
+    {
+        ByteBuffer datagram = ByteBuffer.allocateDirect(
+            UdpRelayEngine.HEADROOM + payload.length
+                + UdpRelayEngine.TAILROOM);
+        datagram.position(UdpRelayEngine.HEADROOM);
+        datagram.put(payload);
+        datagram.flip();
+        datagram.position(UdpRelayEngine.HEADROOM);
+        return datagram;
+    }
+
+    private static byte[] remaining(ByteBuffer buffer, int length)
+    {
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Receives a datagram, failing after five seconds.
+     */
+    private static byte[] receive(DatagramChannel channel) throws IOException
+    {
+        channel.configureBlocking(false);
+        Selector selector = Selector.open();
+        try
+        {
+            channel.register(selector, SelectionKey.OP_READ);
+            assertTrue("no datagram received", selector.select(5000) > 0);
+            ByteBuffer buffer = ByteBuffer.allocate(65536);
+            channel.receive(buffer);
+            buffer.flip();
+            return remaining(buffer, buffer.remaining());
+        }
+        finally
+        {
+            selector.close();
+        }
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * TurnServer, the OpenSource Java Solution for TURN protocol. Maintained by the
+ * Jitsi community (http://jitsi.org).
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jitsi.turnserver.stack;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+import org.junit.*;
+
+/**
+ * Tests the port bitmap, the even port pairs, the quarantine and the shards
+ * of the {@link RelayPortAllocator}.
+ */
+public class RelayPortAllocatorTest
+{
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidRange()
+    {
+        new RelayPortAllocator(50010, 50000, 0);
+    }
+
+    @Test
+    public void testAllocatesWholeRange()
+    {
+        RelayPortAllocator ports = new RelayPortAllocator(50000, 50099, 0);
+        Set<Integer> allocated = new HashSet<Integer>();
+        for (int i = 0; i < 100; i++)
+        {
+            int port = ports.allocate(false, false);
+            assertTrue(port >= 50000 && port <= 50099);
+            assertTrue(allocated.add(port));
+        }
+        assertEquals(0, ports.getAvailable());
+        assertEquals(RelayPortAllocator.NO_PORT, ports.allocate(false, false));
+    }
+
+    @Test
+    public void testEvenPorts()
+    {
+        RelayPortAllocator ports = new RelayPortAllocator(50001, 50010, 0);
+        for (int i = 0; i < 5; i++)
+            assertEquals(0, ports.allocate(true, false) % 2);
+        assertEquals(RelayPortAllocator.NO_PORT, ports.allocate(true, false));
+        assertEquals(5, ports.getAvailable());
+    }
+
+    @Test
+    public void testPairs()
+    {
+        // 50010 is even but 50011 is out of the range
+        RelayPortAllocator ports = new RelayPortAllocator(50001, 50010, 0);
+        Set<Integer> allocated = new HashSet<Integer>();
+        for (int i = 0; i < 4; i++)
+        {
+            int port = ports.allocate(true, true);
+            assertEquals(0, port % 2);
+            assertTrue(allocated.add(port));
+            assertTrue(allocated.add(port + 1));
+        }
+        assertEquals(RelayPortAllocator.NO_PORT, ports.allocate(true, true));
+        assertEquals(2, ports.getAvailable());
+
+        int first = ports.allocate(false, false);
+        int second = ports.allocate(false, false);
+        assertEquals(new HashSet<Integer>(Arrays.asList(50001, 50010)),
+            new HashSet<Integer>(Arrays.asList(first, second)));
+    }
+
+    @Test
+    public void testPairNeedsBothPortsFree()
+    {
+        RelayPortAllocator ports = new RelayPortAllocator(50000, 50003, 0);
+        assertEquals(50000, ports.allocate(false, false));
+        assertEquals(50002, ports.allocate(true, true));
+        // 50001 is free but 50000 is not
+        assertEquals(RelayPortAllocator.NO_PORT, ports.allocate(true, true));
+        assertEquals(50001, ports.allocate(false, false));
+    }
+
+    @Test
+    public void testQuarantine() throws Exception
+    {
+        RelayPortAllocator ports = new RelayPortAllocator(50000, 50000, 100);
+        int port = ports.allocate(false, false);
+        assertEquals(50000, port);
+
+        ports.release(port);
+        assertEquals(1, ports.getQuarantined());
+        assertEquals(0, ports.getAvailable());
+        assertEquals(RelayPortAllocator.NO_PORT, ports.allocate(false, false));
+
+        Thread.sleep(150);
+        assertEquals(port, ports.allocate(false, false));
+        assertEquals(0, ports.getQuarantined());
+    }
+
+    @Test
+    public void testRelease()
+    {
+        RelayPortAllocator ports = new RelayPortAllocator(50000, 50001, 0);
+        int port = ports.allocate(false, false);
+        assertEquals(1, ports.getAvailable());
+
+        ports.release(port);
+        ports.release(port);
+        ports.release(49999);
+        ports.release(50002);
+        assertEquals(2, ports.getAvailable());
+        assertEquals(0, ports.getQuarantined());
+    }
+
+    @Test
+    public void testConcurrentAllocationsAreDistinct() throws Exception
+    {
+        final RelayPortAllocator ports =
+            new RelayPortAllocator(10000, 59999, 0);
+        final int[][] allocated = new int[8][];
+        final AtomicInteger failures = new AtomicInteger();
+        Thread[] threads = new Thread[allocated.length];
+
+        for (int t = 0; t < threads.length; t++)
+        {
+            final int[] own = allocated[t] = new int[50000 / threads.length];
+            threads[t] = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    for (int i = 0; i < own.length; i++)
+                    {
+                        own[i] = ports.allocate(false, false);
+                        if (own[i] == RelayPortAllocator.NO_PORT)
+                            failures.incrementAndGet();
+                    }
+                }
+            };
+        }
+        for (Thread thread : threads)
+            thread.start();
+        for (Thread thread : threads)
+            thread.join();
+
+        assertEquals(0, failures.get());
+        BitSet seen = new BitSet();
+        for (int[] own : allocated)
+        {
+            for (int port : own)
+            {
+                assertTrue(port >= 10000 && port <= 59999);
+                assertFalse("port " + port + " allocated twice",
+                    seen.get(port));
+                seen.set(port);
+            }
+        }
+        assertEquals(50000, seen.cardinality());
+        assertEquals(0, ports.getAvailable());
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * TurnServer, the OpenSource Java Solution for TURN protocol. Maintained by the
+ * Jitsi community (http://jitsi.org).
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.turnserver.stack;
+
+import static org.junit.Assert.*;
+
+import java.net.*;
+import java.nio.channels.*;
+import java.util.*;
+
+import org.junit.*;
+
+/**
+ * Tests that a {@link RelaySocketPool} is refilled to its target size after
+ * every take, counts its hits and misses and gives all its sockets and ports
+ * back when it is stopped.
+ */
+public class RelaySocketPoolTest
+{
+    private static final int MIN_PORT = 47000;
+
+    private static final int MAX_PORT = 47099;
+
+    private InetAddress loopback;
+
+    private RelayPortAllocator ports;
+
+    private RelaySocketPool pool;
+
+    private final List<DatagramChannel> taken = new ArrayList<DatagramChannel>();
+
+    @Before
+    public void setUp() throws Exception
+    {
+        loopback = InetAddress.getByName("127.0.0.1");
+        ports = new RelayPortAllocator(MIN_PORT, MAX_PORT, 0);
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        if (pool != null)
+            pool.stop();
+        for (DatagramChannel channel : taken)
+            channel.close();
+    }
+
+    /**
+     * Waits up to 5 seconds for the pool to hold a number of sockets.
+     */
+    private void awaitSize(int size) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (pool.getSize() != size
+            && System.currentTimeMillis() < deadline)
+        {
+            Thread.sleep(10);
+        }
+        assertEquals(size, pool.getSize());
+    }
+
+    private DatagramChannel take()
+    {
+        DatagramChannel channel = pool.take();
+        if (channel != null)
+            taken.add(channel);
+        return channel;
+    }
+
+    @Test
+    public void testEmptyPoolMisses()
+    {
+        pool = new RelaySocketPool(loopback, ports, 4);
+
+        assertNull(take());
+        assertEquals(0, pool.getHits());
+        assertEquals(1, pool.getMisses());
+        assertEquals(0, pool.getHitRate(), 0);
+    }
+
+    @Test
+    public void testRefillsAfterEveryTake() throws Exception
+    {
+        pool = new RelaySocketPool(loopback, ports, 4);
+        assertEquals(1, pool.getHitRate(), 0);
+        pool.start();
+        awaitSize(4);
+
+        for (int i = 0; i < 10; i++)
+        {
+            DatagramChannel channel = take();
+            assertNotNull(channel);
+            assertTrue(channel.isOpen());
+            InetSocketAddress local =
+                (InetSocketAddress) channel.socket().getLocalSocketAddress();
+            assertEquals(loopback, local.getAddress());
+            assertTrue(local.getPort() >= MIN_PORT
+                && local.getPort() <= MAX_PORT);
+            awaitSize(4);
+        }
+        assertEquals(10, pool.getHits());
+        assertEquals(0, pool.getMisses());
+        assertEquals(1, pool.getHitRate(), 0);
+        assertTrue(pool.getRefillLag() >= 0);
+        // the pooled sockets and the taken ones hold their ports
+        assertEquals(MAX_PORT - MIN_PORT + 1 - 14, ports.getAvailable());
+    }
+
+    @Test
+    public void testStopClosesPooledSocketsAndReleasesPorts()
+        throws Exception
+    {
+        pool = new RelaySocketPool(loopback, ports, 8);
+        pool.start();
+        awaitSize(8);
+        DatagramChannel kept = take();
+        awaitSize(8);
+
+        pool.stop();
+
+        assertEquals(0, pool.getSize());
+        // only the taken socket still holds its port
+        assertEquals(MAX_PORT - MIN_PORT, ports.getAvailable());
+        assertTrue(kept.isOpen());
+        // nothing refills a stopped pool
+        assertNull(take());
+        Thread.sleep(200);
+        assertEquals(0, pool.getSize());
+        // a stopped pool can be stopped again
+        pool.stop();
+    }
+
+    @Test
+    public void testExhaustedRangeFillsWhatItCan() throws Exception
+    {
+        ports = new RelayPortAllocator(MIN_PORT, MIN_PORT + 2, 0);
+        pool = new RelaySocketPool(loopback, ports, 8);
+        pool.start();
+        awaitSize(3);
+        assertEquals(0, ports.getAvailable());
+
+        // a port given back refills the pool once the refiller retries
+        DatagramChannel channel = take();
+        int port = channel.socket().getLocalPort();
+        channel.close();
+        ports.release(port);
+        awaitSize(3);
+
+        long start = System.currentTimeMillis();
+        pool.stop();
+        assertTrue(System.currentTimeMillis() - start < 1000);
+        assertEquals(3, ports.getAvailable());
+    }
+}
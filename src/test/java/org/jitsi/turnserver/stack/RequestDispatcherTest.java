@@ -0,0 +1,226 @@
+/*
+ * TurnServer, the OpenSource Java Solution for TURN protocol. Maintained by the
+ * Jitsi community (http://jitsi.org).
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.turnserver.stack;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.ice4j.*;
+import org.ice4j.attribute.*;
+import org.ice4j.message.*;
+import org.ice4j.stack.*;
+import org.junit.*;
+
+/**
+ * Tests that the {@link RequestDispatcher} passes every request to the
+ * handler of its message type and answers the requests whose handler throws
+ * with an error response of their own method.
+ */
+public class RequestDispatcherTest
+{
+    private static final TransportAddress CLIENT =
+        new TransportAddress("100.0.0.1", 5000, Transport.UDP);
+
+    private static final TransportAddress SERVER =
+        new TransportAddress("10.0.0.1", 3478, Transport.UDP);
+
+    /**
+     * Runs the handlers on the thread dispatching the requests.
+     */
+    private static final Executor DIRECT = new Executor()
+    {
+        @Override
+        public void execute(Runnable command)
+        {
+            command.run();
+        }
+    };
+
+    private final List<Response> responses = new ArrayList<Response>();
+
+    private final StunStack stunStack = new StunStack()
+    {
+        @Override
+        public void sendResponse(byte[] transactionID, Response response,
+            TransportAddress sendThrough, TransportAddress sendTo)
+        {
+            responses.add(response);
+        }
+    };
+
+    private static StunMessageEvent event(StunStack stunStack,
+        Request request) throws StunException
+    {
+        request.setTransactionID(
+            TransactionID.createNewTransactionID().getBytes());
+        return new StunMessageEvent(stunStack,
+            RawMessage.build(new byte[0], 0, CLIENT, SERVER), request);
+    }
+
+    private static RequestListener throwing(final RuntimeException e)
+    {
+        return new RequestListener()
+        {
+            @Override
+            public void processRequest(StunMessageEvent evt)
+            {
+                throw e;
+            }
+        };
+    }
+
+    @Test
+    public void testEveryMessageTypeHasItsOwnIndex()
+    {
+        char[] methods = {
+            Message.STUN_METHOD_BINDING, Message.TURN_METHOD_ALLOCATE,
+            Message.TURN_METHOD_REFRESH, Message.TURN_METHOD_SEND,
+            Message.TURN_METHOD_DATA, Message.TURN_METHOD_CREATEPERMISSION,
+            Message.TURN_METHOD_CHANNELBIND, Message.TURN_METHOD_CONNECT,
+            Message.TURN_METHOD_CONNECTION_BIND,
+            Message.TURN_METHOD_CONNECTION_ATTEMPT };
+        char[] classes = {
+            Message.STUN_REQUEST, Message.STUN_INDICATION,
+            Message.STUN_SUCCESS_RESP, Message.STUN_ERROR_RESP };
+        Set<Integer> indexes = new HashSet<Integer>();
+        for (char method : methods)
+        {
+            for (char messageClass : classes)
+            {
+                int index = RequestDispatcher.index(
+                    (char) (method | messageClass));
+                assertTrue(index >= 0);
+                assertTrue(indexes.add(index));
+            }
+        }
+        assertEquals(RequestDispatcher.index(Message.ALLOCATE_REQUEST),
+            RequestDispatcher.index(
+                (char) (Message.TURN_METHOD_ALLOCATE | Message.STUN_REQUEST)));
+        // methods above the table have no handler
+        assertEquals(-1, RequestDispatcher.index((char) 0x0020));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsHandlersOfUnsupportedMethods()
+    {
+        new RequestDispatcher().setHandler((char) 0x0200,
+            throwing(new IllegalStateException()));
+    }
+
+    @Test
+    public void testHandlersOfOtherMethodsAreKept()
+    {
+        RequestDispatcher dispatcher = new RequestDispatcher();
+        RequestListener allocate = throwing(new IllegalStateException());
+        RequestListener refresh = throwing(new IllegalStateException());
+        dispatcher.setHandler(Message.ALLOCATE_REQUEST, allocate);
+        dispatcher.setHandler(Message.REFRESH_REQUEST, refresh);
+
+        // another handler is only removed by its own registration
+        dispatcher.removeHandler(Message.ALLOCATE_REQUEST, refresh);
+        assertSame(allocate,
+            dispatcher.getHandler(Message.ALLOCATE_REQUEST));
+        dispatcher.removeHandler(Message.ALLOCATE_REQUEST, allocate);
+        assertNull(dispatcher.getHandler(Message.ALLOCATE_REQUEST));
+        assertSame(refresh, dispatcher.getHandler(Message.REFRESH_REQUEST));
+        // the success response of a method has no handler of its request
+        assertNull(dispatcher.getHandler(
+            (char) (Message.REFRESH_REQUEST | Message.STUN_SUCCESS_RESP)));
+    }
+
+    @Test
+    public void testErrorResponseTypes()
+    {
+        assertEquals(0x0111,
+            RequestDispatcher.errorResponseType(Message.BINDING_REQUEST));
+        assertEquals(0x0113,
+            RequestDispatcher.errorResponseType(Message.ALLOCATE_REQUEST));
+        assertEquals(0x0114,
+            RequestDispatcher.errorResponseType(Message.REFRESH_REQUEST));
+        assertEquals(0x0118, RequestDispatcher.errorResponseType(
+            Message.CREATEPERMISSION_REQUEST));
+        assertEquals(0x0119,
+            RequestDispatcher.errorResponseType(Message.CHANNELBIND_REQUEST));
+        assertEquals(0x011a,
+            RequestDispatcher.errorResponseType(Message.CONNECT_REQUEST));
+        assertEquals(0x011b, RequestDispatcher.errorResponseType(
+            Message.CONNECTION_BIND_REQUEST));
+    }
+
+    @Test
+    public void testDispatchesByMessageType() throws Exception
+    {
+        RequestDispatcher dispatcher = new RequestDispatcher();
+        final List<StunMessageEvent> refreshes =
+            new ArrayList<StunMessageEvent>();
+        RequestListener handler = new RequestListener()
+        {
+            @Override
+            public void processRequest(StunMessageEvent evt)
+            {
+                refreshes.add(evt);
+            }
+        };
+        dispatcher.setHandler(Message.REFRESH_REQUEST, handler);
+
+        StunMessageEvent refresh =
+            event(stunStack, MessageFactory.createRefreshRequest(600));
+        dispatcher.processRequest(refresh);
+        dispatcher.processRequest(event(stunStack,
+            MessageFactory.createConnectRequest(CLIENT, new byte[12])));
+        assertEquals(Collections.singletonList(refresh), refreshes);
+        assertSame(handler, dispatcher.getHandler(Message.REFRESH_REQUEST));
+        assertNull(dispatcher.getHandler(Message.CONNECT_REQUEST));
+
+        dispatcher.removeHandler(Message.REFRESH_REQUEST, handler);
+        dispatcher.processRequest(refresh);
+        assertEquals(1, refreshes.size());
+    }
+
+    @Test
+    public void testThrowingHandlersAreAnsweredWithTheirMethod()
+        throws Exception
+    {
+        RequestDispatcher dispatcher =
+            new RequestDispatcher(stunStack, DIRECT);
+        dispatcher.setHandler(Message.REFRESH_REQUEST,
+            throwing(new IllegalArgumentException("bad lifetime")));
+        dispatcher.setHandler(Message.CONNECT_REQUEST,
+            throwing(new IllegalStateException("broken")));
+
+        dispatcher.processRequest(
+            event(stunStack, MessageFactory.createRefreshRequest(600)));
+        dispatcher.processRequest(event(stunStack,
+            MessageFactory.createConnectRequest(CLIENT, new byte[12])));
+
+        assertEquals(2, responses.size());
+        Response refreshError = responses.get(0);
+        assertEquals(0x0114, refreshError.getMessageType());
+        assertEquals(ErrorCodeAttribute.BAD_REQUEST,
+            ((ErrorCodeAttribute) refreshError.getAttribute(
+                Attribute.ERROR_CODE)).getErrorCode());
+        Response connectError = responses.get(1);
+        assertEquals(0x011a, connectError.getMessageType());
+        assertEquals(ErrorCodeAttribute.SERVER_ERROR,
+            ((ErrorCodeAttribute) connectError.getAttribute(
+                Attribute.ERROR_CODE)).getErrorCode());
+    }
+}
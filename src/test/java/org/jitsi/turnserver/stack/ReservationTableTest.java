@@ -0,0 +1,119 @@
+/*
+ * TurnServer, the OpenSource Java Solution for TURN protocol. Maintained by the
+ * Jitsi community (http://jitsi.org).
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jitsi.turnserver.stack;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import org.ice4j.*;
+import org.jitsi.turnserver.util.*;
+import org.junit.*;
+
+/**
+ * Tests the tokens, the claiming and the expiry of the reservations of a
+ * {@link ReservationTable}.
+ */
+public class ReservationTableTest
+{
+    private static final TransportAddress RELAY_ADDRESS =
+        new TransportAddress("192.0.2.1", 50000, Transport.UDP);
+
+    @Test
+    public void testClaim()
+    {
+        ReservationTable table = new ReservationTable();
+        ReservationTable.Reservation reservation =
+            table.add(RELAY_ADDRESS, null);
+        byte[] token = reservation.getToken();
+
+        assertEquals(ReservationTable.TOKEN_LENGTH, token.length);
+        assertEquals(1, table.size());
+        assertSame(reservation, table.claim(token));
+        assertSame(RELAY_ADDRESS, reservation.getRelayAddress());
+        assertEquals(0, table.size());
+        // a token can only be claimed once
+        assertNull(table.claim(token));
+    }
+
+    @Test
+    public void testInvalidTokens()
+    {
+        ReservationTable table = new ReservationTable();
+        byte[] token = table.add(RELAY_ADDRESS, null).getToken();
+        byte[] other = token.clone();
+        other[7] ^= 1;
+
+        assertNull(table.claim(null));
+        assertNull(table.claim(new byte[4]));
+        assertNull(table.claim(Arrays.copyOf(token, 9)));
+        assertNull(table.claim(other));
+        assertEquals(1, table.size());
+    }
+
+    @Test
+    public void testTokensAreUnique()
+    {
+        ReservationTable table = new ReservationTable();
+        Set<String> tokens = new HashSet<String>();
+        for (int i = 0; i < 1000; i++)
+        {
+            assertTrue(tokens.add(
+                Arrays.toString(table.add(RELAY_ADDRESS, null).getToken())));
+        }
+        assertEquals(1000, table.size());
+    }
+
+    @Test
+    public void testRemoveExpired()
+    {
+        ReservationTable table = new ReservationTable();
+        ReservationTable.Reservation expired = table.add(RELAY_ADDRESS, null);
+        ReservationTable.Reservation claimed = table.add(RELAY_ADDRESS, null);
+
+        assertTrue(table.remove(expired));
+        assertNull(table.claim(expired.getToken()));
+
+        // an expiry racing with the claim does nothing
+        assertSame(claimed, table.claim(claimed.getToken()));
+        assertFalse(table.remove(claimed));
+        assertEquals(0, table.size());
+    }
+
+    @Test
+    public void testClaimCancelsExpiry()
+    {
+        ReservationTable table = new ReservationTable();
+        ReservationTable.Reservation reservation =
+            table.add(RELAY_ADDRESS, null);
+        TimingWheel wheel = new TimingWheel("ReservationTableTest");
+        TimingWheel.Timeout timeout = wheel.schedule(new Runnable()
+        {
+            public void run()
+            {
+            }
+        }, System.currentTimeMillis() + ReservationTable.LIFETIME);
+        reservation.setExpiryTimeout(timeout);
+
+        table.claim(reservation.getToken());
+        assertFalse(timeout.isPending());
+        assertEquals(0, wheel.size());
+    }
+}
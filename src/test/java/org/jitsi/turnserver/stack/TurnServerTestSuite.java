@@ -20,6 +20,9 @@
 package org.jitsi.turnserver.stack;
 
 import org.jitsi.turnserver.client.*;
+import org.jitsi.turnserver.listeners.*;
+import org.jitsi.turnserver.socket.*;
+import org.jitsi.turnserver.util.*;
 import org.junit.runner.*;
 import org.junit.runners.*;
 
@@ -30,7 +33,30 @@ import org.junit.runners.*;
  */
 @RunWith(Suite.class)
 @Suite.SuiteClasses({
-    ClientTest.class
+    ClientTest.class,
+    AllocationRegistryTest.class,
+    ChannelTableTest.class,
+    ConnectRequestListenerTest.class,
+    ConnectionIdManagerTest.class,
+    FiveTupleKeyTest.class,
+    ForwardingSnapshotTest.class,
+    IceTcpEventizedServerSockerWrapperTest.class,
+    IntObjectTableTest.class,
+    PackedAddressTest.class,
+    PermissionSetTest.class,
+    RelayAddressProviderTest.class,
+    RelayAllocationTableTest.class,
+    RelayForwardingTest.class,
+    RelayPortAllocatorTest.class,
+    RelaySocketPoolTest.class,
+    RequestDispatcherTest.class,
+    ReservationTableTest.class,
+    TcpConnectorTest.class,
+    TcpRelayAcceptorTest.class,
+    TcpSpliceEngineTest.class,
+    TimingWheelTest.class,
+    TurnStackTest.class,
+    UdpRelayEngineTest.class
 })
 public class TurnServerTestSuite
 {
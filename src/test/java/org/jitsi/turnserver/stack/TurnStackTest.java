@@ -0,0 +1,370 @@
+/*
+ * TurnServer, the OpenSource Java Solution for TURN protocol. Maintained by the
+ * Jitsi community (http://jitsi.org).
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.jitsi.turnserver.stack;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.net.*;
+import java.nio.channels.*;
+
+import org.ice4j.*;
+import org.ice4j.message.*;
+import org.ice4j.stack.*;
+import org.jitsi.turnserver.*;
+import org.jitsi.turnserver.listeners.*;
+import org.junit.*;
+
+/**
+ * Tests how a {@link TurnStack} adds, indexes and releases Allocations, and
+ * that every way an Allocation ends releases all it holds.
+ */
+public class TurnStackTest
+{
+    private TurnStack turnStack;
+
+    private InetAddress loopback;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        turnStack = new TurnStack();
+        loopback = InetAddress.getByName("127.0.0.1");
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        turnStack.shutDown();
+    }
+
+    @Test
+    public void testAddedAllocationKeepsItsLifetime() throws Exception
+    {
+        Allocation allocation = udpAllocation(40000, 60);
+        assertTrue(turnStack.addNewServerAllocation(allocation));
+
+        long lifetime = allocation.getLifetime();
+        assertTrue(lifetime + " ms", lifetime > 50000 && lifetime <= 60000);
+        assertFalse(allocation.isExpired());
+    }
+
+    @Test
+    public void testAddedAllocationIsIndexedUntilDeleted() throws Exception
+    {
+        Allocation allocation = udpAllocation(40000, 60);
+        assertTrue(turnStack.addNewServerAllocation(allocation));
+        assertFalse(turnStack.addNewServerAllocation(udpAllocation(40000, 60)));
+
+        assertSame(allocation,
+            turnStack.getServerAllocation(allocation.getFiveTuple()));
+        assertSame(allocation,
+            turnStack.getServerAllocation(allocation.getRelayAddress()));
+        assertTrue(allocation.getRelayChannel().isOpen());
+
+        turnStack.deleteServerAllocation(allocation);
+        assertNull(turnStack.getServerAllocation(allocation.getFiveTuple()));
+        assertNull(
+            turnStack.getServerAllocation(allocation.getRelayAddress()));
+        assertTrue(allocation.isExpired());
+    }
+
+    @Test
+    public void testExpiredAllocationIsReleased() throws Exception
+    {
+        Allocation allocation = udpAllocation(40000, 1);
+        assertTrue(turnStack.addNewServerAllocation(allocation));
+        DatagramChannel relayChannel = allocation.getRelayChannel();
+
+        // the relay channel is closed after the indexes are purged
+        long deadline = System.currentTimeMillis() + 5000;
+        while (relayChannel.isOpen() && System.currentTimeMillis() < deadline)
+            Thread.sleep(20);
+        assertFalse(relayChannel.isOpen());
+        assertReleased(allocation);
+    }
+
+    @Test
+    public void testRefreshWithZeroLifetimeReleasesAllocation()
+        throws Exception
+    {
+        Allocation allocation = udpAllocation(40000, 600);
+        assertTrue(turnStack.addNewServerAllocation(allocation));
+        DatagramChannel relayChannel = allocation.getRelayChannel();
+        FiveTuple fiveTuple = allocation.getFiveTuple();
+        Request refresh = MessageFactory.createRefreshRequest(0);
+        refresh.setTransactionID(
+            TransactionID.createNewTransactionID().getBytes());
+
+        new RefreshRequestListener(turnStack).processRequest(
+            new StunMessageEvent(turnStack, RawMessage.build(new byte[0], 0,
+                fiveTuple.getClientTransportAddress(),
+                fiveTuple.getServerTransportAddress()), refresh));
+
+        // right away, not at the next expiry
+        assertReleased(allocation);
+        assertFalse(relayChannel.isOpen());
+    }
+
+    @Test
+    public void testControlConnectionLossReleasesAllocation()
+        throws Exception
+    {
+        Allocation allocation = tcpAllocation(40000);
+        assertTrue(turnStack.addNewServerAllocation(allocation));
+        ServerSocketChannel relayChannel = allocation.getTcpRelayChannel();
+        assertTrue(relayChannel.isOpen());
+
+        // a peer connection waiting for its ConnectionBind
+        ServerSocketChannel peerServer = ServerSocketChannel.open();
+        peerServer.socket().bind(new InetSocketAddress(loopback, 0));
+        SocketChannel peer = SocketChannel.open(
+            peerServer.socket().getLocalSocketAddress());
+        SocketChannel peerChannel = peerServer.accept();
+        int connectionId = 0x1234;
+        try
+        {
+            assertTrue(turnStack.addUnAcknowlededConnectionId(
+                connectionId, peerChannel, allocation));
+            FiveTuple peerTuple =
+                allocation.getPeerTCPConnection(connectionId);
+            assertEquals(Integer.valueOf(connectionId),
+                turnStack.getConnectionIdForPeer(peerTuple));
+
+            FiveTuple control = allocation.getFiveTuple();
+            turnStack.tcpConnectionClosed(
+                control.getServerTransportAddress(),
+                control.getClientTransportAddress());
+
+            assertReleased(allocation);
+            assertFalse(relayChannel.isOpen());
+            assertFalse(peerChannel.isOpen());
+            assertNull(turnStack.getConnectionIdForPeer(peerTuple));
+            assertNull(turnStack.getAllocationFromConnectionId(connectionId));
+            // a second loss of the same connection is harmless
+            turnStack.tcpConnectionClosed(
+                control.getServerTransportAddress(),
+                control.getClientTransportAddress());
+        }
+        finally
+        {
+            peer.close();
+            peerChannel.close();
+            peerServer.close();
+        }
+    }
+
+    @Test
+    public void testUnboundConnectionIdExpiresAtItsBindDeadline()
+        throws Exception
+    {
+        useConnectionIdLifetime(200);
+        Allocation allocation = tcpAllocation(40000);
+        assertTrue(turnStack.addNewServerAllocation(allocation));
+
+        ServerSocketChannel peerServer = ServerSocketChannel.open();
+        peerServer.socket().bind(new InetSocketAddress(loopback, 0));
+        SocketChannel peer = SocketChannel.open(
+            peerServer.socket().getLocalSocketAddress());
+        SocketChannel peerChannel = peerServer.accept();
+        int connectionId = 0x2345;
+        try
+        {
+            assertTrue(turnStack.addUnAcknowlededConnectionId(
+                connectionId, peerChannel, allocation));
+            FiveTuple peerTuple =
+                allocation.getPeerTCPConnection(connectionId);
+            assertTrue(turnStack.isUnacknowledged(connectionId));
+
+            long deadline = System.currentTimeMillis() + 5000;
+            while (turnStack.getAllocationFromConnectionId(connectionId)
+                != null)
+            {
+                assertTrue(System.currentTimeMillis() < deadline);
+                Thread.sleep(10);
+            }
+
+            // only the Connection Id and its peer connection are released
+            assertFalse(peerChannel.isOpen());
+            assertNull(turnStack.getConnectionIdForPeer(peerTuple));
+            assertNull(allocation.getPeerTCPConnection(connectionId));
+            assertEquals(1,
+                turnStack.getConnectionIdManager().getExpiredCount());
+            assertEquals(0, turnStack.getConnectionIdManager().size());
+            assertFalse(allocation.isExpired());
+            assertSame(allocation,
+                turnStack.getServerAllocation(allocation.getFiveTuple()));
+        }
+        finally
+        {
+            peer.close();
+            peerChannel.close();
+            peerServer.close();
+        }
+    }
+
+    @Test
+    public void testBoundConnectionIdOutlivesItsBindDeadline()
+        throws Exception
+    {
+        useConnectionIdLifetime(200);
+        Allocation allocation = tcpAllocation(40000);
+        assertTrue(turnStack.addNewServerAllocation(allocation));
+
+        ServerSocketChannel peerServer = ServerSocketChannel.open();
+        peerServer.socket().bind(new InetSocketAddress(loopback, 0));
+        SocketChannel peer = SocketChannel.open(
+            peerServer.socket().getLocalSocketAddress());
+        SocketChannel peerChannel = peerServer.accept();
+        int connectionId = 0x3456;
+        try
+        {
+            assertTrue(turnStack.addUnAcknowlededConnectionId(
+                connectionId, peerChannel, allocation));
+            FiveTuple dataConnTuple = new FiveTuple(
+                new TransportAddress(loopback, 40001, Transport.TCP),
+                new TransportAddress(loopback, 3478, Transport.TCP),
+                Transport.TCP);
+            turnStack.acknowledgeConnectionId(connectionId, dataConnTuple);
+            assertFalse(turnStack.isUnacknowledged(connectionId));
+
+            Thread.sleep(600);
+
+            assertSame(allocation,
+                turnStack.getAllocationFromConnectionId(connectionId));
+            assertEquals(Integer.valueOf(connectionId),
+                turnStack.getConnectionIdForDataConn(dataConnTuple));
+            assertEquals(0,
+                turnStack.getConnectionIdManager().getExpiredCount());
+        }
+        finally
+        {
+            peer.close();
+            peerChannel.close();
+            peerServer.close();
+        }
+    }
+
+    @Test
+    public void testFileDescriptorsStayFlatUnderChurn() throws Exception
+    {
+        File fds = new File("/proc/self/fd");
+        Assume.assumeTrue(fds.isDirectory());
+        // warms the relay engine and the acceptor up
+        churn(10);
+        int before = fds.list().length;
+
+        churn(200);
+
+        int after = fds.list().length;
+        assertTrue(before + " fds before, " + after + " after",
+            after - before < 10);
+    }
+
+    /**
+     * Adds and ends UDP and TCP Allocations in every way they can end.
+     */
+    private void churn(int rounds) throws Exception
+    {
+        for (int i = 0; i < rounds; i++)
+        {
+            Allocation udp = udpAllocation(40000 + i, 600);
+            assertTrue(turnStack.addNewServerAllocation(udp));
+            turnStack.deleteServerAllocation(udp);
+            assertReleased(udp);
+
+            Allocation tcp = tcpAllocation(40000 + i);
+            assertTrue(turnStack.addNewServerAllocation(tcp));
+            FiveTuple control = tcp.getFiveTuple();
+            turnStack.tcpConnectionClosed(
+                control.getServerTransportAddress(),
+                control.getClientTransportAddress());
+            assertReleased(tcp);
+        }
+    }
+
+    /**
+     * Replaces the stack of the test with one whose Connection Ids wait the
+     * specified time for their ConnectionBind.
+     */
+    private void useConnectionIdLifetime(int lifetime)
+    {
+        turnStack.shutDown();
+        System.setProperty(TurnStackProperties.CONNECTION_ID_LIFETIME,
+            Integer.toString(lifetime));
+        try
+        {
+            turnStack = new TurnStack();
+        }
+        finally
+        {
+            System.clearProperty(TurnStackProperties.CONNECTION_ID_LIFETIME);
+        }
+    }
+
+    /**
+     * Asserts that an Allocation is expired and no longer indexed.
+     */
+    private void assertReleased(Allocation allocation)
+    {
+        assertTrue(allocation.isExpired());
+        assertNull(turnStack.getServerAllocation(allocation.getFiveTuple()));
+        assertNull(
+            turnStack.getServerAllocation(allocation.getRelayAddress()));
+    }
+
+    /**
+     * Creates a TURN-over-TCP Allocation of a loopback client with a TCP
+     * relay address of its own.
+     */
+    private Allocation tcpAllocation(int clientPort) throws Exception
+    {
+        ServerSocket probe = new ServerSocket(0, 1, loopback);
+        int relayPort = probe.getLocalPort();
+        probe.close();
+        return new Allocation(
+            new TransportAddress(loopback, relayPort, Transport.TCP),
+            new FiveTuple(
+                new TransportAddress(loopback, clientPort, Transport.TCP),
+                new TransportAddress(loopback, 3478, Transport.TCP),
+                Transport.TCP),
+            600);
+    }
+
+    /**
+     * Creates a UDP Allocation of a loopback client on a relay address of
+     * its own.
+     */
+    private Allocation udpAllocation(int clientPort, long lifetime)
+        throws Exception
+    {
+        DatagramSocket probe = new DatagramSocket(0, loopback);
+        int relayPort = probe.getLocalPort();
+        probe.close();
+        return new Allocation(
+            new TransportAddress(loopback, relayPort, Transport.UDP),
+            new FiveTuple(
+                new TransportAddress(loopback, clientPort, Transport.UDP),
+                new TransportAddress(loopback, 3478, Transport.UDP),
+                Transport.UDP),
+            lifetime);
+    }
+}
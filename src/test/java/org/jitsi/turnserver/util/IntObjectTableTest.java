@@ -0,0 +1,133 @@
+/*
+ * TurnServer, the OpenSource Java Solution for TURN protocol. Maintained by the
+ * Jitsi community (http://jitsi.org).
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jitsi.turnserver.util;
+
+import static org.junit.Assert.*;
+
+import java.util.*;
+
+import org.junit.*;
+
+/**
+ * Tests the {@link IntObjectTable}, in particular that removals shifting the
+ * following entries back keep every key reachable.
+ */
+public class IntObjectTableTest
+{
+    @Test
+    public void testPutGetRemove()
+    {
+        IntObjectTable<String> table = new IntObjectTable<String>();
+        assertNull(table.put(1, "a"));
+        assertNull(table.put(-1, "b"));
+        assertEquals("a", table.put(1, "c"));
+        assertEquals(2, table.size());
+        assertEquals("c", table.get(1));
+        assertEquals("b", table.get(-1));
+        assertNull(table.get(2));
+        assertTrue(table.containsKey(-1));
+        assertFalse(table.containsKey(2));
+
+        assertEquals("c", table.remove(1));
+        assertNull(table.remove(1));
+        assertEquals(1, table.size());
+    }
+
+    @Test
+    public void testPutIfAbsent()
+    {
+        IntObjectTable<String> table = new IntObjectTable<String>();
+        assertNull(table.putIfAbsent(7, "a"));
+        assertEquals("a", table.putIfAbsent(7, "b"));
+        assertEquals("a", table.get(7));
+    }
+
+    @Test
+    public void testConditionalRemove()
+    {
+        IntObjectTable<String> table = new IntObjectTable<String>();
+        String value = new String("a");
+        table.put(7, value);
+
+        // compared by reference
+        assertFalse(table.remove(7, new String("a")));
+        assertFalse(table.remove(7, null));
+        assertFalse(table.remove(8, value));
+        assertTrue(table.remove(7, value));
+        assertFalse(table.containsKey(7));
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void testNullValue()
+    {
+        new IntObjectTable<String>().put(1, null);
+    }
+
+    @Test
+    public void testGrowAndShrink()
+    {
+        IntObjectTable<Integer> table = new IntObjectTable<Integer>();
+        for (int key = 0; key < 20000; key++)
+            table.put(key, key);
+        assertEquals(20000, table.size());
+        for (int key = 0; key < 20000; key += 2)
+            assertEquals(Integer.valueOf(key), table.remove(key));
+        for (int key = 0; key < 20000; key++)
+        {
+            assertEquals((key % 2 == 0) ? null : Integer.valueOf(key),
+                table.get(key));
+        }
+        for (int key = 1; key < 20000; key += 2)
+            table.remove(key);
+        assertEquals(0, table.size());
+        assertNull(table.put(5, 5));
+        assertEquals(Integer.valueOf(5), table.get(5));
+    }
+
+    @Test
+    public void testBackwardShiftDelete()
+    {
+        // few keys per segment removed in random order, so that probe
+        // sequences wrap and clusters are broken up over and over
+        IntObjectTable<Integer> table = new IntObjectTable<Integer>();
+        Map<Integer, Integer> expected = new HashMap<Integer, Integer>();
+        Random random = new Random(6062);
+
+        for (int op = 0; op < 200000; op++)
+        {
+            int key = random.nextInt(2048) - 1024;
+            if (random.nextInt(3) == 0)
+            {
+                assertEquals(expected.remove(key), table.remove(key));
+            }
+            else
+            {
+                Integer value = Integer.valueOf(op);
+                assertEquals(expected.put(key, value), table.put(key, value));
+            }
+            if (op % 1000 == 0)
+            {
+                assertEquals(expected.size(), table.size());
+                for (int k = -1024; k < 1024; k++)
+                    assertEquals(expected.get(k), table.get(k));
+            }
+        }
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * TurnServer, the OpenSource Java Solution for TURN protocol. Maintained by the
+ * Jitsi community (http://jitsi.org).
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jitsi.turnserver.util;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import org.junit.*;
+
+/**
+ * Tests the scheduling, cascading and cancelling of the {@link TimingWheel}.
+ */
+public class TimingWheelTest
+{
+    /**
+     * How late a task may run on a loaded machine before the test fails.
+     */
+    private static final long SLACK = 1000;
+
+    private TimingWheel wheel;
+
+    @Before
+    public void setUp()
+    {
+        wheel = new TimingWheel("TimingWheelTest", 1);
+        wheel.start();
+    }
+
+    @After
+    public void tearDown()
+    {
+        wheel.stop();
+    }
+
+    @Test
+    public void testRunsAtDeadline() throws Exception
+    {
+        long now = System.currentTimeMillis();
+        RecordingTask first = new RecordingTask();
+        RecordingTask second = new RecordingTask();
+        wheel.schedule(second, now + 60);
+        wheel.schedule(first, now + 20);
+        assertEquals(2, wheel.size());
+
+        second.await();
+        first.await();
+        assertTrue(first.ranAt >= now + 20);
+        assertTrue(second.ranAt >= now + 60);
+        assertTrue(first.ranAt <= second.ranAt);
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void testPastDeadlineRunsOnNextTick() throws Exception
+    {
+        RecordingTask task = new RecordingTask();
+        long now = System.currentTimeMillis();
+        wheel.schedule(task, now - 1000);
+        task.await();
+        assertTrue(task.ranAt < now + SLACK);
+    }
+
+    @Test
+    public void testCascadesFromUpperLevel() throws Exception
+    {
+        // beyond the 256 ticks of the first level
+        long now = System.currentTimeMillis();
+        RecordingTask near = new RecordingTask();
+        RecordingTask far = new RecordingTask();
+        TimingWheel.Timeout nearTimeout = wheel.schedule(near, now + 300);
+        TimingWheel.Timeout farTimeout = wheel.schedule(far, now + 700);
+
+        near.await();
+        assertTrue(near.ranAt >= now + 300);
+        assertTrue(farTimeout.isPending());
+        far.await();
+        assertTrue(far.ranAt >= now + 700);
+        assertFalse(nearTimeout.isPending());
+        assertFalse(farTimeout.isPending());
+    }
+
+    @Test
+    public void testCancel() throws Exception
+    {
+        long now = System.currentTimeMillis();
+        RecordingTask cancelled = new RecordingTask();
+        RecordingTask kept = new RecordingTask();
+        TimingWheel.Timeout timeout = wheel.schedule(cancelled, now + 50);
+        wheel.schedule(kept, now + 100);
+
+        assertTrue(timeout.cancel());
+        assertFalse(timeout.cancel());
+        assertFalse(timeout.isPending());
+        assertEquals(1, wheel.size());
+
+        kept.await();
+        assertEquals(0, cancelled.runs.get());
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void testReschedule() throws Exception
+    {
+        long now = System.currentTimeMillis();
+        RecordingTask task = new RecordingTask();
+        TimingWheel.Timeout timeout = wheel.schedule(task, now + 60000);
+        timeout.reschedule(now + 20);
+        assertEquals(1, wheel.size());
+        task.await();
+        assertTrue(task.ranAt < now + 20 + SLACK);
+
+        // a timeout which has run can be scheduled again
+        task.reset();
+        timeout.reschedule(System.currentTimeMillis() + 20);
+        assertTrue(timeout.isPending());
+        task.await();
+        assertEquals(2, task.runs.get());
+    }
+
+    @Test
+    public void testDeadlineBeyondTopLevel() throws Exception
+    {
+        // more ticks away than the top level covers, parked in its last slot
+        RecordingTask task = new RecordingTask();
+        TimingWheel.Timeout timeout = wheel.schedule(
+            task, System.currentTimeMillis() + TimeUnit.DAYS.toMillis(2));
+        Thread.sleep(300);
+        assertTrue(timeout.isPending());
+        assertEquals(0, task.runs.get());
+        assertTrue(timeout.cancel());
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void testFailingTaskDoesNotStopTheWheel() throws Exception
+    {
+        long now = System.currentTimeMillis();
+        wheel.schedule(new Runnable()
+        {
+            public void run()
+            {
+                throw new IllegalStateException("expected by the test");
+            }
+        }, now + 10);
+        RecordingTask task = new RecordingTask();
+        wheel.schedule(task, now + 30);
+        task.await();
+    }
+
+    /**
+     * Records when and how often it runs.
+     */
+    private static class RecordingTask
+        implements Runnable
+    {
+        final AtomicInteger runs = new AtomicInteger();
+
+        volatile long ranAt;
+
+        private volatile CountDownLatch latch = new CountDownLatch(1);
+
+        public void run()
+        {
+            ranAt = System.currentTimeMillis();
+            runs.incrementAndGet();
+            latch.countDown();
+        }
+
+        void await() throws InterruptedException
+        {
+            assertTrue("task did not run",
+                latch.await(SLACK + 5000, TimeUnit.MILLISECONDS));
+        }
+
+        void reset()
+        {
+            latch = new CountDownLatch(1);
+        }
+    }
+}